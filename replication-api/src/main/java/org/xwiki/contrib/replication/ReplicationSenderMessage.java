@@ -29,6 +29,8 @@ public interface ReplicationSenderMessage extends ReplicationMessage
 {
     /**
      * Write the entire state of the data to the output stream. The output stream must not be closed.
+     * <p>
+     * The custom metadata modified while writing the data is stored with the message.
      * 
      * @param stream the output stream
      * @throws IOException when failing to write the data
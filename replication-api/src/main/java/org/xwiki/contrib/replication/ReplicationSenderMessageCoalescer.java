@@ -0,0 +1,48 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Replace messages waiting to be sent with a single message when a new message makes them useless. Implementations
+ * are named after the type of message they support.
+ * 
+ * @version $Id$
+ * @since 2.3.9
+ */
+@Role
+public interface ReplicationSenderMessageCoalescer
+{
+    /**
+     * @param pending a message waiting to be sent
+     * @param message the new message to send
+     * @return true if the pending message does not need to be sent anymore if the message returned by
+     *         {@link #coalesce(ReplicationSenderMessage)} is sent instead of the new one
+     */
+    boolean isSuperseded(ReplicationMessage pending, ReplicationSenderMessage message);
+
+    /**
+     * @param message the new message to send
+     * @return the message to send in place of the new message and of the pending messages it supersedes
+     * @throws ReplicationException when failing to create the message
+     */
+    ReplicationSenderMessage coalesce(ReplicationSenderMessage message) throws ReplicationException;
+}
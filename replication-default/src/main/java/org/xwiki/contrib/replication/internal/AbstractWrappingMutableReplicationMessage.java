@@ -21,6 +21,9 @@ package org.xwiki.contrib.replication.internal;
 
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
 
 import org.xwiki.contrib.replication.AbstractReplicationMessage;
 import org.xwiki.contrib.replication.MutableReplicationMessage;
@@ -35,13 +38,40 @@ public abstract class AbstractWrappingMutableReplicationMessage<M extends Replic
 {
     protected M message;
 
+    private Map<String, Collection<String>> initialMetadata;
+
     /**
      * @param message the message to wrap
      */
     public void initialize(M message)
     {
         this.message = message;
-        this.modifiableMetadata.putAll(message.getCustomMetadata());
+        this.initialMetadata = new HashMap<>(message.getCustomMetadata());
+        this.modifiableMetadata.putAll(this.initialMetadata);
+    }
+
+    /**
+     * Take into account the metadata modified by the wrapped message since the initialization (a message is allowed to
+     * adjust its metadata while writing its data) without losing the modifications made on the wrapper.
+     * 
+     * @since 2.3.9
+     */
+    public void updateMetadata()
+    {
+        Map<String, Collection<String>> metadata = this.message.getCustomMetadata();
+
+        for (Map.Entry<String, Collection<String>> entry : metadata.entrySet()) {
+            if (!Objects.equals(entry.getValue(), this.initialMetadata.get(entry.getKey()))) {
+                this.modifiableMetadata.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String key : this.initialMetadata.keySet()) {
+            if (!metadata.containsKey(key)) {
+                this.modifiableMetadata.remove(key);
+            }
+        }
+
+        this.initialMetadata = new HashMap<>(metadata);
     }
 
     @Override
@@ -0,0 +1,93 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The optional features an instance can advertise to the instances sending it requests. Instances which don't
+ * advertise anything are expected to only support the historical protocol.
+ *
+ * @version $Id$
+ * @since 2.3.9
+ */
+public final class ReplicationCapabilities
+{
+    /**
+     * The HTTP header containing the capabilities of the instance which answered a replication request.
+     */
+    public static final String HEADER = "X-XWIKI-REPLICATION-CAPABILITIES";
+
+    /**
+     * The instance supports receiving several messages in a single request.
+     */
+    public static final String BATCH = "batch";
+
+    /**
+     * The instance supports authenticating requests with a session key.
+     */
+    public static final String SESSION = "session";
+
+    /**
+     * The instance supports receiving gzip compressed requests.
+     */
+    public static final String GZIP = ReplicationCompression.GZIP;
+
+    /**
+     * The instance supports receiving the data of a message in several requests.
+     */
+    public static final String CHUNK = "chunk";
+
+    /**
+     * The capabilities supported by the current instance.
+     */
+    public static final Set<String> SUPPORTED = Set.of(BATCH, SESSION, GZIP, CHUNK);
+
+    private static final char SEPARATOR = ',';
+
+    private ReplicationCapabilities()
+    {
+    }
+
+    /**
+     * @param capabilities the capabilities
+     * @return the value of the HTTP header
+     */
+    public static String toString(Set<String> capabilities)
+    {
+        return StringUtils.join(capabilities, SEPARATOR);
+    }
+
+    /**
+     * @param header the value of the HTTP header
+     * @return the capabilities
+     */
+    public static Set<String> fromString(String header)
+    {
+        if (StringUtils.isBlank(header)) {
+            return Collections.emptySet();
+        }
+
+        return Set.of(StringUtils.split(StringUtils.deleteWhitespace(header), SEPARATOR));
+    }
+}
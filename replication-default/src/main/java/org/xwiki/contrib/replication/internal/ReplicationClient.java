@@ -19,24 +19,47 @@
  */
 package org.xwiki.contrib.replication.internal;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
 import org.apache.hc.client5.http.classic.methods.HttpPut;
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.client5.http.config.RequestConfig;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
 import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
 import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.NameValuePair;
+import org.apache.hc.core5.http.io.SocketConfig;
 import org.apache.hc.core5.http.io.entity.EntityTemplate;
 import org.apache.hc.core5.net.URIBuilder;
+import org.apache.hc.core5.pool.PoolStats;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.manager.ComponentLifecycleException;
@@ -47,16 +70,26 @@ import org.xwiki.contrib.replication.ReplicationException;
 import org.xwiki.contrib.replication.ReplicationInstance;
 import org.xwiki.contrib.replication.ReplicationInstance.Status;
 import org.xwiki.contrib.replication.ReplicationSenderMessage;
+import org.xwiki.contrib.replication.internal.ReplicationRateLimiter.TokenBucket;
+import org.xwiki.contrib.replication.internal.enpoint.AbstractReplicationEndpoint;
 import org.xwiki.contrib.replication.internal.enpoint.ReplicationResourceReferenceHandler;
 import org.xwiki.contrib.replication.internal.enpoint.instance.ReplicationInstancePingEndpoint;
 import org.xwiki.contrib.replication.internal.enpoint.instance.ReplicationInstanceRegisterEndpoint;
+import org.xwiki.contrib.replication.internal.enpoint.instance.ReplicationInstanceSessionEndpoint;
 import org.xwiki.contrib.replication.internal.enpoint.instance.ReplicationInstanceUnregisterEndpoint;
 import org.xwiki.contrib.replication.internal.enpoint.instance.ReplicationInstanceUpdateKeyEndpoint;
 import org.xwiki.contrib.replication.internal.enpoint.message.HttpServletRequestReplicationReceiverMessage;
+import org.xwiki.contrib.replication.internal.enpoint.message.ReplicationMessageBatchEndpoint;
+import org.xwiki.contrib.replication.internal.enpoint.message.ReplicationMessageBatchFormat;
+import org.xwiki.contrib.replication.internal.enpoint.message.ReplicationMessageChunkEndpoint;
 import org.xwiki.contrib.replication.internal.enpoint.message.ReplicationMessageEndpoint;
 import org.xwiki.contrib.replication.internal.instance.ReplicationInstanceStore;
+import org.xwiki.contrib.replication.internal.message.ReplicationSenderMessageDataStore;
+import org.xwiki.contrib.replication.internal.message.ReplicationSenderMessageDataStore.SerializedDataMessage;
 import org.xwiki.contrib.replication.internal.sign.ReplicationCertifiedKeyPair;
 import org.xwiki.contrib.replication.internal.sign.ReplicationCertifiedKeyPairStore;
+import org.xwiki.contrib.replication.internal.sign.ReplicationSession;
+import org.xwiki.contrib.replication.internal.sign.ReplicationSessionManager;
 import org.xwiki.contrib.replication.internal.sign.SignatureManager;
 import org.xwiki.crypto.pkix.params.CertifiedPublicKey;
 
@@ -78,13 +111,30 @@ public class ReplicationClient implements Initializable, Disposable
     @Inject
     private ReplicationCertifiedKeyPairStore signatureStore;
 
+    @Inject
+    private ReplicationSessionManager sessions;
+
+    @Inject
+    private ReplicationConfiguration configuration;
+
+    @Inject
+    private ReplicationRateLimiter rateLimiter;
+
     @Inject
     private Logger logger;
 
     private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
+    private PoolingHttpClientConnectionManager connectionManager;
+
     private CloseableHttpClient client;
 
+    private final Map<String, Set<String>> capabilities = new ConcurrentHashMap<>();
+
+    private final Map<String, Long> chunkOffsets = new ConcurrentHashMap<>();
+
+    private final Map<String, Object> sessionLocks = new ConcurrentHashMap<>();
+
     /**
      * The result of the register.
      * 
@@ -126,7 +176,31 @@ public class ReplicationClient implements Initializable, Disposable
     @Override
     public void initialize() throws InitializationException
     {
-        this.client = HttpClients.createSystem();
+        // Keep the connections to other instances open and reuse them
+        this.connectionManager = PoolingHttpClientConnectionManagerBuilder.create().useSystemProperties()
+            .setMaxConnTotal(this.configuration.getClientMaxConnections())
+            .setMaxConnPerRoute(this.configuration.getClientMaxConnectionsPerTarget())
+            .setDefaultSocketConfig(
+                SocketConfig.custom().setSoTimeout(Timeout.ofSeconds(this.configuration.getClientSocketTimeout()))
+                    .setSoKeepAlive(true).build())
+            .build();
+
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectTimeout(Timeout.ofSeconds(this.configuration.getClientConnectTimeout()))
+            .setResponseTimeout(Timeout.ofSeconds(this.configuration.getClientSocketTimeout())).build();
+
+        this.client = HttpClients.custom().useSystemProperties().setConnectionManager(this.connectionManager)
+            .setDefaultRequestConfig(requestConfig).evictExpiredConnections()
+            .evictIdleConnections(TimeValue.ofSeconds(this.configuration.getClientIdleTimeout())).build();
+    }
+
+    /**
+     * @return the statistics of the pool of connections to other instances
+     * @since 2.3.9
+     */
+    public PoolStats getPoolStats()
+    {
+        return this.connectionManager.getTotalStats();
     }
 
     @Override
@@ -166,12 +240,150 @@ public class ReplicationClient implements Initializable, Disposable
 
         builder.setParameter(ReplicationInstancePingEndpoint.PARAMETER_KEY, key);
 
+        authenticate(builder, target, key);
+
+        return builder;
+    }
+
+    private void authenticate(URIBuilder builder, ReplicationInstance target, String key) throws ReplicationException
+    {
+        // Prefer the session key when the target instance supports it
+        ReplicationSession session = getSession(target);
+        if (session != null) {
+            builder.setParameter(AbstractReplicationEndpoint.PARAMETER_SESSION, session.getId());
+            builder.setParameter(ReplicationInstancePingEndpoint.PARAMETER_SIGNEDKEY, session.sign(key));
+        } else {
+            sign(builder, target, key);
+        }
+    }
+
+    private void sign(URIBuilder builder, ReplicationInstance target, String key) throws ReplicationException
+    {
         String signedKey = this.signatureManager.sign(target, key);
         if (signedKey != null) {
             builder.setParameter(ReplicationInstancePingEndpoint.PARAMETER_SIGNEDKEY, signedKey);
         }
+    }
 
-        return builder;
+    private ReplicationSession getSession(ReplicationInstance target)
+    {
+        if (!this.sessions.isEnabled() || target.getReceiveKey() == null
+            || !supports(target, ReplicationCapabilities.SESSION)) {
+            return null;
+        }
+
+        ReplicationSession session = this.sessions.getSendSession(target);
+        if (session == null) {
+            session = openSession(target);
+        }
+
+        return session;
+    }
+
+    private ReplicationSession openSession(ReplicationInstance target)
+    {
+        // Only one handshake at a time with a given instance, without blocking the requests to other instances
+        synchronized (this.sessionLocks.computeIfAbsent(target.getURI(), k -> new Object())) {
+            // The session might have been opened by another thread in the meantime
+            ReplicationSession session = this.sessions.getSendSession(target);
+
+            if (session == null) {
+                session = handshake(target);
+            }
+
+            return session;
+        }
+    }
+
+    private ReplicationSession handshake(ReplicationInstance target)
+    {
+        try {
+            ReplicationSession session = this.sessions.createSendSession(target);
+
+            URIBuilder builder = createURIBuilder(target.getURI(), ReplicationInstanceSessionEndpoint.PATH);
+            String key = this.sessions.getHandshakeKey(target, session);
+            builder.setParameter(ReplicationInstancePingEndpoint.PARAMETER_KEY, key);
+            sign(builder, target, key);
+
+            HttpPost httpPost = new HttpPost(builder.build());
+
+            try (CloseableHttpResponse response = this.client.execute(httpPost)) {
+                if (response.getCode() == 200) {
+                    this.sessions.setSendSession(session);
+                } else {
+                    throw new ReplicationException(HTTPUtils.getContent(response, UNKNWON_ERROR));
+                }
+            }
+
+            return session;
+        } catch (Exception e) {
+            this.logger.warn("Failed to open a session with instance [{}], signing each request instead: {}",
+                target.getURI(), ExceptionUtils.getRootCauseMessage(e));
+
+            return null;
+        }
+    }
+
+    private CloseableHttpResponse execute(ReplicationInstance target, HttpUriRequestBase request)
+        throws IOException, URISyntaxException, ReplicationException
+    {
+        CloseableHttpResponse response = this.client.execute(request);
+
+        // The target instance does not know the session anymore (restarted, expired, etc.), negotiate a new one
+        if (response.getCode() == 401) {
+            URIBuilder builder = new URIBuilder(request.getUri());
+            String sessionId = getParameter(builder, AbstractReplicationEndpoint.PARAMETER_SESSION);
+
+            if (sessionId != null) {
+                response.close();
+
+                this.sessions.forgetSendSession(target.getURI(), sessionId);
+
+                String key = getParameter(builder, ReplicationInstancePingEndpoint.PARAMETER_KEY);
+                builder.setParameters(builder.getQueryParams().stream()
+                    .filter(p -> !p.getName().equals(AbstractReplicationEndpoint.PARAMETER_SESSION))
+                    .collect(Collectors.toList()));
+
+                authenticate(builder, target, key);
+                request.setUri(builder.build());
+
+                response = this.client.execute(request);
+            }
+        }
+
+        return response;
+    }
+
+    private String getParameter(URIBuilder builder, String name)
+    {
+        return builder.getQueryParams().stream().filter(p -> p.getName().equals(name)).map(NameValuePair::getValue)
+            .findFirst().orElse(null);
+    }
+
+    private void updateCapabilities(ReplicationInstance target, HttpResponse response)
+    {
+        Header header = response.getFirstHeader(ReplicationCapabilities.HEADER);
+
+        this.capabilities.put(target.getURI(),
+            ReplicationCapabilities.fromString(header != null ? header.getValue() : null));
+    }
+
+    /**
+     * @param target the instance
+     * @param capability the optional feature
+     * @return true if the last answer of the passed instance indicated that it supports the passed feature
+     * @since 2.3.9
+     */
+    public boolean supports(ReplicationInstance target, String capability)
+    {
+        Set<String> targetCapabilities = this.capabilities.get(target.getURI());
+
+        return targetCapabilities != null && targetCapabilities.contains(capability);
+    }
+
+    private boolean isCompressed(ReplicationInstance target)
+    {
+        return this.configuration.isCompressionWire() && supports(target, ReplicationCapabilities.GZIP);
     }
 
     /**
@@ -184,39 +396,37 @@ public class ReplicationClient implements Initializable, Disposable
     public void sendMessage(ReplicationSenderMessage message, ReplicationInstance target)
         throws ReplicationException, URISyntaxException, IOException
     {
+        // Respect the limits of the target instance
+        TokenBucket bandwidth = acquire(List.of(message), target);
+
         this.lock.readLock().lock();
 
         try {
-            URIBuilder builder = createURIBuilder(target, ReplicationMessageEndpoint.PATH, message.getId());
-
-            builder.setParameter(HttpServletRequestReplicationReceiverMessage.PARAMETER_ID, message.getId());
-            builder.setParameter(HttpServletRequestReplicationReceiverMessage.PARAMETER_TYPE, message.getType());
-            builder.setParameter(HttpServletRequestReplicationReceiverMessage.PARAMETER_DATE,
-                HttpServletRequestReplicationReceiverMessage.fromDate(message.getDate()));
-
-            if (message.getReceivers() != null) {
-                message.getReceivers().forEach(
-                    r -> builder.addParameter(HttpServletRequestReplicationReceiverMessage.PARAMETER_RECEIVERS, r));
-            }
+            // Send big data in several requests so that a failure does not require to send everything again
+            File dataFile = getChunkedDataFile(message, target);
+            if (dataFile != null) {
+                sendChunks(message, dataFile, target, bandwidth);
 
-            String source = message.getSource();
-            if (source == null) {
-                source = this.instances.getCurrentInstance().getURI();
+                return;
             }
-            builder.setParameter(HttpServletRequestReplicationReceiverMessage.PARAMETER_SOURCE, source);
 
-            HttpPut httpPut = new HttpPut(builder.build());
+            HttpPut httpPut =
+                new HttpPut(createMessageURIBuilder(target, ReplicationMessageEndpoint.PATH, message).build());
 
-            httpPut.setEntity(new EntityTemplate(-1, ContentType.DEFAULT_BINARY, null, message::write));
+            if (isCompressed(target)) {
+                int level = this.configuration.getCompressionLevel();
+                httpPut.setEntity(new EntityTemplate(-1, ContentType.DEFAULT_BINARY, ReplicationCompression.GZIP,
+                    stream -> ReplicationCompression.write(message, this.rateLimiter.limit(stream, bandwidth), level)));
+            } else {
+                httpPut.setEntity(new EntityTemplate(-1, ContentType.DEFAULT_BINARY, null,
+                    stream -> message.write(this.rateLimiter.limit(stream, bandwidth))));
+            }
 
-            // Add custom headers
-            for (Map.Entry<String, Collection<String>> entry : message.getCustomMetadata().entrySet()) {
-                String header = HttpServletRequestReplicationReceiverMessage.HEADER_METADATA_PREFIX + entry.getKey();
+            setMetadataHeaders(httpPut, message);
 
-                httpPut.setHeader(header, HTTPUtils.toString(entry.getValue()));
-            }
+            try (CloseableHttpResponse response = execute(target, httpPut)) {
+                updateCapabilities(target, response);
 
-            try (CloseableHttpResponse response = this.client.execute(httpPut)) {
                 if (response.getCode() == 200) {
                     // TODO: done
                 } else {
@@ -232,6 +442,190 @@ public class ReplicationClient implements Initializable, Disposable
         }
     }
 
+    private TokenBucket acquire(List<? extends ReplicationSenderMessage> messages, ReplicationInstance target)
+        throws InterruptedIOException
+    {
+        try {
+            return this.rateLimiter.acquire(messages, target);
+        } catch (InterruptedException e) {
+            // Mark the thread as interrupted
+            Thread.currentThread().interrupt();
+
+            throw new InterruptedIOException(
+                "Interrupted while waiting to send messages to instance [" + target.getURI() + "]");
+        }
+    }
+
+    private URIBuilder createMessageURIBuilder(ReplicationInstance target, String endpoint,
+        ReplicationSenderMessage message) throws ReplicationException, URISyntaxException
+    {
+        URIBuilder builder = createURIBuilder(target, endpoint, message.getId());
+
+        builder.setParameter(HttpServletRequestReplicationReceiverMessage.PARAMETER_ID, message.getId());
+        builder.setParameter(HttpServletRequestReplicationReceiverMessage.PARAMETER_TYPE, message.getType());
+        builder.setParameter(HttpServletRequestReplicationReceiverMessage.PARAMETER_DATE,
+            HttpServletRequestReplicationReceiverMessage.fromDate(message.getDate()));
+
+        if (message.getReceivers() != null) {
+            message.getReceivers().forEach(
+                r -> builder.addParameter(HttpServletRequestReplicationReceiverMessage.PARAMETER_RECEIVERS, r));
+        }
+
+        String source = message.getSource();
+        if (source == null) {
+            source = this.instances.getCurrentInstance().getURI();
+        }
+        builder.setParameter(HttpServletRequestReplicationReceiverMessage.PARAMETER_SOURCE, source);
+
+        return builder;
+    }
+
+    private void setMetadataHeaders(HttpUriRequestBase request, ReplicationSenderMessage message)
+    {
+        for (Map.Entry<String, Collection<String>> entry : message.getCustomMetadata().entrySet()) {
+            String header = HttpServletRequestReplicationReceiverMessage.HEADER_METADATA_PREFIX + entry.getKey();
+
+            request.setHeader(header, HTTPUtils.toString(entry.getValue()));
+        }
+    }
+
+    private File getChunkedDataFile(ReplicationSenderMessage message, ReplicationInstance target)
+    {
+        long chunkSize = this.configuration.getClientChunkSize();
+
+        if (chunkSize > 0 && message instanceof SerializedDataMessage
+            && supports(target, ReplicationCapabilities.CHUNK)) {
+            File dataFile = ((SerializedDataMessage) message).getSerializedDataFile();
+
+            if (dataFile.length() > chunkSize) {
+                return dataFile;
+            }
+        }
+
+        return null;
+    }
+
+    private void sendChunks(ReplicationSenderMessage message, File dataFile, ReplicationInstance target,
+        TokenBucket bandwidth) throws ReplicationException, URISyntaxException, IOException
+    {
+        long size = dataFile.length();
+        boolean compressed = ReplicationSenderMessageDataStore.isCompressed(dataFile);
+        long chunkSize = this.configuration.getClientChunkSize();
+
+        // Resume from the last offset acknowledged by the target instance
+        String transfer = target.getURI() + ' ' + message.getId();
+        long offset = this.chunkOffsets.getOrDefault(transfer, 0L);
+
+        while (offset < size) {
+            URIBuilder builder = createMessageURIBuilder(target, ReplicationMessageChunkEndpoint.PATH, message);
+            builder.setParameter(ReplicationMessageChunkEndpoint.PARAMETER_OFFSET, String.valueOf(offset));
+            builder.setParameter(ReplicationMessageChunkEndpoint.PARAMETER_SIZE, String.valueOf(size));
+            builder.setParameter(ReplicationMessageChunkEndpoint.PARAMETER_COMPRESSED, String.valueOf(compressed));
+
+            HttpPut httpPut = new HttpPut(builder.build());
+
+            long chunkOffset = offset;
+            long chunkLength = Math.min(chunkSize, size - offset);
+            if (!compressed && isCompressed(target)) {
+                int level = this.configuration.getCompressionLevel();
+                httpPut.setEntity(
+                    new EntityTemplate(-1, ContentType.DEFAULT_BINARY, ReplicationCompression.GZIP, stream -> {
+                        GZIPOutputStream compressedStream =
+                            ReplicationCompression.compress(this.rateLimiter.limit(stream, bandwidth), level);
+                        writeChunk(dataFile, chunkOffset, chunkLength, compressedStream);
+                        compressedStream.finish();
+                    }));
+            } else {
+                httpPut.setEntity(new EntityTemplate(chunkLength, ContentType.DEFAULT_BINARY, null,
+                    stream -> writeChunk(dataFile, chunkOffset, chunkLength,
+                        this.rateLimiter.limit(stream, bandwidth))));
+            }
+
+            setMetadataHeaders(httpPut, message);
+
+            try (CloseableHttpResponse response = execute(target, httpPut)) {
+                updateCapabilities(target, response);
+
+                Header offsetHeader = response.getFirstHeader(ReplicationMessageChunkEndpoint.HEADER_OFFSET);
+                if ((response.getCode() == 200 || response.getCode() == 409) && offsetHeader != null) {
+                    // Continue from where the target instance is
+                    offset = Long.parseLong(offsetHeader.getValue());
+                    this.chunkOffsets.put(transfer, offset);
+                } else {
+                    String error = HTTPUtils.getContent(response, UNKNWON_ERROR);
+
+                    throw new ReplicationException(String.format(
+                        "Failed to send a chunk of message with id [%s] and type [%s] to instance [%s]: %s",
+                        message.getId(), message.getType(), target.getURI(), error));
+                }
+            }
+        }
+
+        this.chunkOffsets.remove(transfer);
+    }
+
+    private static void writeChunk(File dataFile, long offset, long length, OutputStream stream) throws IOException
+    {
+        try (InputStream fileStream = new FileInputStream(dataFile)) {
+            IOUtils.copyLarge(fileStream, stream, offset, length);
+        }
+    }
+
+    /**
+     * Send several messages in a single request. The target instance is expected to support
+     * {@link ReplicationCapabilities#BATCH}.
+     * 
+     * @param messages the messages to send
+     * @param target the instance to send the messages to
+     * @throws ReplicationException when failing to send the messages
+     * @throws URISyntaxException when failing to send the messages
+     * @throws IOException when failing to send the messages
+     * @since 2.3.9
+     */
+    public void sendMessages(List<? extends ReplicationSenderMessage> messages, ReplicationInstance target)
+        throws ReplicationException, URISyntaxException, IOException
+    {
+        // Respect the limits of the target instance
+        TokenBucket bandwidth = acquire(messages, target);
+
+        this.lock.readLock().lock();
+
+        try {
+            URIBuilder builder = createURIBuilder(target, ReplicationMessageBatchEndpoint.PATH);
+
+            HttpPut httpPut = new HttpPut(builder.build());
+
+            String currentInstance = this.instances.getCurrentInstance().getURI();
+            if (isCompressed(target)) {
+                int level = this.configuration.getCompressionLevel();
+                httpPut.setEntity(
+                    new EntityTemplate(-1, ContentType.DEFAULT_BINARY, ReplicationCompression.GZIP, stream -> {
+                        GZIPOutputStream compressedStream =
+                            ReplicationCompression.compress(this.rateLimiter.limit(stream, bandwidth), level);
+                        ReplicationMessageBatchFormat.write(messages, currentInstance, compressedStream);
+                        compressedStream.finish();
+                    }));
+            } else {
+                httpPut.setEntity(new EntityTemplate(-1, ContentType.DEFAULT_BINARY, null,
+                    stream -> ReplicationMessageBatchFormat.write(messages, currentInstance,
+                        this.rateLimiter.limit(stream, bandwidth))));
+            }
+
+            try (CloseableHttpResponse response = execute(target, httpPut)) {
+                updateCapabilities(target, response);
+
+                if (response.getCode() != 200) {
+                    String error = HTTPUtils.getContent(response, UNKNWON_ERROR);
+
+                    throw new ReplicationException(String.format("Failed to send [%s] messages starting with id [%s]"
+                        + " to instance [%s]: %s", messages.size(), messages.get(0).getId(), target.getURI(), error));
+                }
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
     /**
      * @param instance the instance to remove
      * @throws ReplicationException when failing to unregister the instance
@@ -247,7 +641,7 @@ public class ReplicationClient implements Initializable, Disposable
 
             HttpPut httpPut = new HttpPut(builder.build());
 
-            try (CloseableHttpResponse response = this.client.execute(httpPut)) {
+            try (CloseableHttpResponse response = execute(instance, httpPut)) {
                 if (response.getCode() == 200) {
                     // TODO: done
                 } else if (response.getCode() == 404) {
@@ -279,7 +673,9 @@ public class ReplicationClient implements Initializable, Disposable
 
             HttpPost httpPost = new HttpPost(builder.build());
 
-            try (CloseableHttpResponse response = this.client.execute(httpPost)) {
+            try (CloseableHttpResponse response = execute(instance, httpPost)) {
+                updateCapabilities(instance, response);
+
                 if (response.getCode() == 200) {
                     // TODO: done
                 } else if (response.getCode() == 404) {
@@ -359,7 +755,7 @@ public class ReplicationClient implements Initializable, Disposable
 
             HttpPut httpPut = new HttpPut(builder.build());
 
-            try (CloseableHttpResponse response = this.client.execute(httpPut)) {
+            try (CloseableHttpResponse response = execute(instance, httpPut)) {
                 if (response.getCode() == 200) {
                     // Registered both ways
                     return Status.REGISTERED;
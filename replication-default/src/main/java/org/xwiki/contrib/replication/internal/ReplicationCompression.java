@@ -0,0 +1,154 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.xwiki.contrib.replication.ReplicationSenderMessage;
+
+/**
+ * Helpers to compress the data of the messages, on disk and in the requests sent to other instances.
+ *
+ * @version $Id$
+ * @since 2.3.9
+ */
+public final class ReplicationCompression
+{
+    /**
+     * The name of the compression format, as used in the {@code Content-Encoding} HTTP header.
+     */
+    public static final String GZIP = "gzip";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * A message to send which can write its data already compressed.
+     * 
+     * @version $Id$
+     */
+    public interface CompressedOutput
+    {
+        /**
+         * @return true if the data is available compressed
+         */
+        boolean isDataCompressed();
+
+        /**
+         * @param stream the stream where to write the compressed data
+         * @throws IOException when failing to write the data
+         */
+        void writeCompressed(OutputStream stream) throws IOException;
+    }
+
+    /**
+     * A received message which can provide its data already compressed.
+     * 
+     * @version $Id$
+     */
+    public interface CompressedInput
+    {
+        /**
+         * @return true if the data is available compressed
+         */
+        boolean isDataCompressed();
+
+        /**
+         * @return the compressed data
+         * @throws IOException when failing to read the data
+         */
+        InputStream openCompressed() throws IOException;
+    }
+
+    private ReplicationCompression()
+    {
+    }
+
+    /**
+     * @param stream the stream where to write the compressed data
+     * @param level the compression level, from 0 (no compression) to 9 (best compression)
+     * @return the stream to write the uncompressed data to, {@link GZIPOutputStream#finish()} must be called once all
+     *         the data is written
+     * @throws IOException when failing to create the stream
+     */
+    public static GZIPOutputStream compress(OutputStream stream, int level) throws IOException
+    {
+        return new GZIPOutputStream(stream, BUFFER_SIZE)
+        {
+            {
+                this.def.setLevel(level);
+            }
+        };
+    }
+
+    /**
+     * @param stream the compressed data
+     * @return the uncompressed data
+     * @throws IOException when failing to create the stream
+     */
+    public static InputStream decompress(InputStream stream) throws IOException
+    {
+        return new GZIPInputStream(stream, BUFFER_SIZE);
+    }
+
+    /**
+     * @param message the message to write
+     * @param stream the stream where to write the compressed data of the message
+     * @param level the compression level to use when the data is not already compressed
+     * @throws IOException when failing to write the data
+     */
+    public static void write(ReplicationSenderMessage message, OutputStream stream, int level) throws IOException
+    {
+        if (message instanceof CompressedOutput && ((CompressedOutput) message).isDataCompressed()) {
+            // No need to compress the data again
+            ((CompressedOutput) message).writeCompressed(stream);
+        } else {
+            GZIPOutputStream compressedStream = compress(stream, level);
+            message.write(compressedStream);
+            compressedStream.finish();
+        }
+    }
+
+    /**
+     * @param request the request
+     * @return true if the body of the request is compressed
+     */
+    public static boolean isCompressed(HttpServletRequest request)
+    {
+        return StringUtils.equalsIgnoreCase(request.getHeader(HttpHeaders.CONTENT_ENCODING), GZIP);
+    }
+
+    /**
+     * @param request the request
+     * @return the uncompressed body of the request
+     * @throws IOException when failing to read the request
+     */
+    public static InputStream getInputStream(HttpServletRequest request) throws IOException
+    {
+        return isCompressed(request) ? decompress(request.getInputStream()) : request.getInputStream();
+    }
+}
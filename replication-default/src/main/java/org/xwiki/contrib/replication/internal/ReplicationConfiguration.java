@@ -0,0 +1,363 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.contrib.replication.internal.message.ReplicationMessageJournal;
+import org.xwiki.contrib.replication.internal.message.ReplicationSenderMessagePriority;
+import org.xwiki.contrib.replication.internal.message.log.ReplicationMessageLogStore;
+
+/**
+ * Low level replication configuration.
+ *
+ * @version $Id$
+ * @since 2.3.9
+ */
+@Component(roles = ReplicationConfiguration.class)
+@Singleton
+public class ReplicationConfiguration
+{
+    /**
+     * The prefix of replication related configurations.
+     */
+    public static final String PREFIX = "replication.";
+
+    private static final String PREFIX_SENDER = PREFIX + "sender.";
+
+    private static final String PREFIX_CLIENT = PREFIX + "client.";
+
+    private static final String PREFIX_RECEIVER = PREFIX + "receiver.";
+
+    private static final String PREFIX_STORE = PREFIX + "store.";
+
+    private static final String PREFIX_QUEUE = PREFIX + "queue.";
+
+    private static final String PREFIX_COMPRESSION = PREFIX + "compression.";
+
+    private static final String PREFIX_LOG = PREFIX + "log.";
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /**
+     * @return the maximum number of messages being sent at the same time to the same instance
+     */
+    public int getSenderWindow()
+    {
+        return Math.max(1, this.configuration.getProperty(PREFIX_SENDER + "window", 1));
+    }
+
+    /**
+     * @return the maximum number of messages sent to an instance in a single request
+     */
+    public int getSenderBatchSize()
+    {
+        return Math.max(1, this.configuration.getProperty(PREFIX_SENDER + "batch.size", 100));
+    }
+
+    /**
+     * @return the maximum size of the data of a message (and of the total data) to be sent as part of a batch
+     */
+    public long getSenderBatchMaxDataSize()
+    {
+        return this.configuration.getProperty(PREFIX_SENDER + "batch.maxDataSize", 102400L);
+    }
+
+    /**
+     * @param priority the priority lane
+     * @return the weight of the lane: how many messages of the lane are sent for each message of a lane with a weight
+     *         of 1 when both have messages waiting
+     */
+    public int getSenderPriorityWeight(ReplicationSenderMessagePriority priority)
+    {
+        return Math.max(1,
+            this.configuration.getProperty(getSenderPriorityPrefix(priority) + "weight", priority.getDefaultWeight()));
+    }
+
+    /**
+     * @param priority the priority lane
+     * @return the types of the messages going to the lane, messages targeting an entity always going to the
+     *         {@link ReplicationSenderMessagePriority#BULK} lane to stay ordered
+     */
+    public Set<String> getSenderPriorityTypes(ReplicationSenderMessagePriority priority)
+    {
+        String key = getSenderPriorityPrefix(priority) + "types";
+
+        if (!this.configuration.containsKey(key)) {
+            return priority.getDefaultTypes();
+        }
+
+        List<?> types = this.configuration.getProperty(key, List.class);
+
+        return types.stream().map(String::valueOf).collect(Collectors.toSet());
+    }
+
+    private String getSenderPriorityPrefix(ReplicationSenderMessagePriority priority)
+    {
+        return PREFIX_SENDER + "priority." + priority.name().toLowerCase(Locale.ROOT) + '.';
+    }
+
+    /**
+     * @return the number of lanes in which messages to send are serialized in parallel
+     */
+    public int getSenderStoreLanes()
+    {
+        return Math.max(1, this.configuration.getProperty(PREFIX_SENDER + "store.lanes", 1));
+    }
+
+    /**
+     * @return the maximum number of messages waiting to be serialized in each lane
+     */
+    public int getSenderStoreQueueSize()
+    {
+        return Math.max(1, this.configuration.getProperty(PREFIX_SENDER + "store.queueSize", 1000));
+    }
+
+    /**
+     * @return the maximum number of seconds to wait for some room in a saturated serialization lane before giving up on
+     *         a message
+     * @since 2.3.9
+     */
+    public int getSenderStoreQueueTimeout()
+    {
+        return this.configuration.getProperty(PREFIX_SENDER + "store.queueTimeout", 60);
+    }
+
+    /**
+     * @return the maximum number of connections opened to all other instances
+     */
+    public int getClientMaxConnections()
+    {
+        return Math.max(1, this.configuration.getProperty(PREFIX_CLIENT + "maxConnections", 100));
+    }
+
+    /**
+     * @return the maximum number of connections opened to the same instance
+     */
+    public int getClientMaxConnectionsPerTarget()
+    {
+        // Leave room for the requests sent outside of the sending window (ping, etc.)
+        return Math.max(1, this.configuration.getProperty(PREFIX_CLIENT + "maxConnectionsPerTarget",
+            getSenderWindow() + 2));
+    }
+
+    /**
+     * @return the time in seconds to wait for a connection to be established, 0 for no limit
+     */
+    public int getClientConnectTimeout()
+    {
+        return this.configuration.getProperty(PREFIX_CLIENT + "connectTimeout", 60);
+    }
+
+    /**
+     * @return the time in seconds to wait for data on an established connection, 0 for no limit
+     */
+    public int getClientSocketTimeout()
+    {
+        return this.configuration.getProperty(PREFIX_CLIENT + "socketTimeout", 600);
+    }
+
+    /**
+     * @return the time in seconds after which an unused connection is closed
+     */
+    public int getClientIdleTimeout()
+    {
+        return this.configuration.getProperty(PREFIX_CLIENT + "idleTimeout", 60);
+    }
+
+    /**
+     * @return the size of the parts in which the data of a message is sent when it's bigger than that, 0 to always send
+     *         the data in a single request
+     */
+    public long getClientChunkSize()
+    {
+        return this.configuration.getProperty(PREFIX_CLIENT + "chunkSize", 10485760L);
+    }
+
+    /**
+     * @return the time in seconds after which a new session key is negotiated with an instance, 0 to sign each request
+     *         with the instance private key instead
+     */
+    public long getSessionLifetime()
+    {
+        return this.configuration.getProperty(PREFIX + "session.lifetime", 3600L);
+    }
+
+    /**
+     * @return true if the data sent to instances supporting it should be compressed
+     */
+    public boolean isCompressionWire()
+    {
+        return this.configuration.getProperty(PREFIX_COMPRESSION + "wire", true);
+    }
+
+    /**
+     * @return true if the data of the messages should be compressed on disk
+     */
+    public boolean isCompressionStorage()
+    {
+        return this.configuration.getProperty(PREFIX_COMPRESSION + "storage", false);
+    }
+
+    /**
+     * @return the compression level, from 0 (no compression) to 9 (best compression)
+     */
+    public int getCompressionLevel()
+    {
+        return Math.min(9, Math.max(0, this.configuration.getProperty(PREFIX_COMPRESSION + "level", 6)));
+    }
+
+    /**
+     * @return the maximum number of messages accepted in a single batch request
+     */
+    public int getReceiverBatchMaxSize()
+    {
+        return Math.max(1, this.configuration.getProperty(PREFIX_RECEIVER + "batch.maxSize", 1000));
+    }
+
+    /**
+     * @return the maximum total size of the data of the messages accepted in a single batch request
+     */
+    public long getReceiverBatchMaxDataSize()
+    {
+        return this.configuration.getProperty(PREFIX_RECEIVER + "batch.maxDataSize", 16777216L);
+    }
+
+    /**
+     * @return the number of lanes in which received messages are handled in parallel
+     */
+    public int getReceiverLanes()
+    {
+        return Math.max(1, this.configuration.getProperty(PREFIX_RECEIVER + "lanes", 1));
+    }
+
+    /**
+     * @return true if messages waiting to be sent should be replaced by a single message when a new message makes them
+     *         useless
+     */
+    public boolean isSenderCoalesce()
+    {
+        return this.configuration.getProperty(PREFIX_SENDER + "coalesce", false);
+    }
+
+    /**
+     * @return the number of received message identifiers the index is sized for
+     */
+    public long getReceiverIndexSize()
+    {
+        return this.configuration.getProperty(PREFIX_RECEIVER + "index.size", 1000000L);
+    }
+
+    /**
+     * @return the time in seconds during which the identifier of a received message is kept in memory
+     */
+    public long getReceiverIndexTTL()
+    {
+        return this.configuration.getProperty(PREFIX_RECEIVER + "index.ttl", 86400L);
+    }
+
+    /**
+     * @return the maximum number of messages of a queue kept in memory, the others stay on disk until there is room
+     */
+    public int getQueueSize()
+    {
+        return Math.max(1, this.configuration.getProperty(PREFIX_QUEUE + "size", 1000));
+    }
+
+    /**
+     * @return the time in seconds to wait before handling again a message which failed for the first time, doubled
+     *         after each new failure
+     */
+    public long getQueueRetryDelay()
+    {
+        return Math.max(1, this.configuration.getProperty(PREFIX_QUEUE + "retry.delay", 60L));
+    }
+
+    /**
+     * @return the maximum time in seconds to wait before handling again a failed message
+     */
+    public long getQueueRetryMaxDelay()
+    {
+        return Math.max(1, this.configuration.getProperty(PREFIX_QUEUE + "retry.maxDelay", 3600L));
+    }
+
+    /**
+     * @return the number of failed attempts after which a message is not handled again automatically, 0 for no limit
+     */
+    public int getQueueRetryMaxAttempts()
+    {
+        return this.configuration.getProperty(PREFIX_QUEUE + "retry.maxAttempts", 20);
+    }
+
+    /**
+     * @return where the messages events are stored: {@link ReplicationMessageLogStore#STORE_EVENTS} (the default) or
+     *         {@link ReplicationMessageLogStore#STORE_JOURNAL}
+     */
+    public String getLogStore()
+    {
+        return this.configuration.getProperty(PREFIX_LOG + "store", ReplicationMessageLogStore.STORE_EVENTS);
+    }
+
+    /**
+     * @return the number of days during which the messages events are kept in the
+     *         {@link ReplicationMessageLogStore#STORE_JOURNAL} store, 0 to keep them forever
+     */
+    public int getLogRetention()
+    {
+        return this.configuration.getProperty(PREFIX_LOG + "retention", 90);
+    }
+
+    /**
+     * @return the maximum number of message events waiting to be written to the log, the events being written by the
+     *         calling thread when the limit is reached
+     */
+    public int getLogQueueSize()
+    {
+        return Math.max(1, this.configuration.getProperty(PREFIX_LOG + "queueSize", 10000));
+    }
+
+    /**
+     * @return the maximum number of message events written to the log together
+     */
+    public int getLogBatchSize()
+    {
+        return Math.max(1, this.configuration.getProperty(PREFIX_LOG + "batchSize", 100));
+    }
+
+    /**
+     * @return the size after which a new message journal segment is started
+     */
+    public long getStoreSegmentSize()
+    {
+        return this.configuration.getProperty(PREFIX_STORE + "segmentSize",
+            ReplicationMessageJournal.DEFAULT_SEGMENT_SIZE);
+    }
+}
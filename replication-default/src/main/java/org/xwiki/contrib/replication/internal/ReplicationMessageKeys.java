@@ -0,0 +1,82 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.xwiki.contrib.replication.ReplicationMessage;
+
+/**
+ * Helpers to find out which messages need to stay ordered relatively to each other.
+ *
+ * @version $Id$
+ * @since 2.3.9
+ */
+public final class ReplicationMessageKeys
+{
+    /**
+     * The name of the metadata containing the reference of the entity targeted by the message (same as
+     * {@code EntityReplicationMessage#METADATA_ENTITY_REFERENCE}).
+     */
+    public static final String METADATA_ENTITY_REFERENCE = "ENTITY_REFERENCE";
+
+    private ReplicationMessageKeys()
+    {
+    }
+
+    /**
+     * @param message the message
+     * @return true if the message targets an entity
+     */
+    public static boolean hasEntity(ReplicationMessage message)
+    {
+        Collection<String> values = message.getCustomMetadata().get(METADATA_ENTITY_REFERENCE);
+
+        return values != null && !values.isEmpty();
+    }
+
+    /**
+     * @param message the message
+     * @return the key shared by all the messages which must be handled in the order they were produced: the reference
+     *         of the entity for entity related messages or the type of message otherwise
+     */
+    public static String getOrderingKey(ReplicationMessage message)
+    {
+        return getOrderingKey(message.getType(), message.getCustomMetadata());
+    }
+
+    /**
+     * @param type the type of the message
+     * @param metadata the custom metadata of the message
+     * @return the key shared by all the messages which must be handled in the order they were produced: the reference
+     *         of the entity for entity related messages or the type of message otherwise
+     */
+    public static String getOrderingKey(String type, Map<String, ? extends Collection<String>> metadata)
+    {
+        Collection<String> values = metadata.get(METADATA_ENTITY_REFERENCE);
+
+        if (values != null && !values.isEmpty()) {
+            return values.iterator().next();
+        }
+
+        return type;
+    }
+}
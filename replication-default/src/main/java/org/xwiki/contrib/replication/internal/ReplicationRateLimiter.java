@@ -0,0 +1,345 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.replication.ReplicationInstance;
+import org.xwiki.contrib.replication.ReplicationMessage;
+import org.xwiki.contrib.replication.internal.message.ReplicationSenderMessagePriority;
+
+/**
+ * Limit the bandwidth and the number of messages sent to each instance, based on the following properties of the
+ * instance:
+ * <ul>
+ * <li>{@value #PROPERTY_BYTES}: the maximum number of bytes sent per second</li>
+ * <li>{@value #PROPERTY_MESSAGES}: the maximum number of messages sent per second</li>
+ * <li>{@value #PROPERTY_SCHEDULE}: the comma separated time ranges (for example {@code 08:00-12:00,13:00-19:00})
+ * during which the limits apply, the limits always apply when not set</li>
+ * </ul>
+ * The messages of the {@link ReplicationSenderMessagePriority#CONTROL} lane are never limited.
+ *
+ * @version $Id$
+ * @since 2.3.9
+ */
+@Component(roles = ReplicationRateLimiter.class)
+@Singleton
+public class ReplicationRateLimiter
+{
+    /**
+     * The name of the instance property containing the maximum number of bytes sent per second.
+     */
+    public static final String PROPERTY_BYTES = "ratebytes";
+
+    /**
+     * The name of the instance property containing the maximum number of messages sent per second.
+     */
+    public static final String PROPERTY_MESSAGES = "ratemessages";
+
+    /**
+     * The name of the instance property containing the time ranges during which the limits apply.
+     */
+    public static final String PROPERTY_SCHEDULE = "rateschedule";
+
+    private static final char RANGE_SEPARATOR = '-';
+
+    @Inject
+    private ReplicationConfiguration configuration;
+
+    @Inject
+    private Logger logger;
+
+    private final Map<String, Limits> limits = new ConcurrentHashMap<>();
+
+    /**
+     * A token bucket allowing a burst of one second.
+     * 
+     * @version $Id$
+     */
+    public static final class TokenBucket
+    {
+        private final long rate;
+
+        private double tokens;
+
+        private long time;
+
+        TokenBucket(long rate, long now)
+        {
+            this.rate = rate;
+            this.tokens = rate;
+            this.time = now;
+        }
+
+        /**
+         * @param count the number of tokens to take
+         * @param now the current time in milliseconds
+         * @return the time to wait in milliseconds before the tokens are actually available
+         */
+        synchronized long take(long count, long now)
+        {
+            // Refill the bucket
+            this.tokens = Math.min(this.rate, this.tokens + (now - this.time) * this.rate / 1000D);
+            this.time = now;
+
+            // Tokens can be borrowed, the caller has to wait for the debt to be paid
+            this.tokens -= count;
+
+            return this.tokens >= 0 ? 0 : (long) Math.ceil(-this.tokens * 1000 / this.rate);
+        }
+    }
+
+    private static final class Limits
+    {
+        private final List<String> values;
+
+        private final TokenBucket bytes;
+
+        private final TokenBucket messages;
+
+        private final List<LocalTime[]> schedule;
+
+        private Limits(List<String> values, long bytes, long messages, List<LocalTime[]> schedule)
+        {
+            long now = System.currentTimeMillis();
+
+            this.values = values;
+            this.bytes = bytes > 0 ? new TokenBucket(bytes, now) : null;
+            this.messages = messages > 0 ? new TokenBucket(messages, now) : null;
+            this.schedule = schedule;
+        }
+    }
+
+    private final class LimitedOutputStream extends FilterOutputStream
+    {
+        private final TokenBucket bucket;
+
+        private LimitedOutputStream(OutputStream out, TokenBucket bucket)
+        {
+            super(out);
+
+            this.bucket = bucket;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            this.out.write(b);
+
+            acquire(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            this.out.write(b, off, len);
+
+            acquire(len);
+        }
+
+        private void acquire(int count) throws InterruptedIOException
+        {
+            try {
+                consume(this.bucket, count);
+            } catch (InterruptedException e) {
+                // Mark the thread as interrupted
+                Thread.currentThread().interrupt();
+
+                throw new InterruptedIOException("Interrupted while waiting for some bandwidth");
+            }
+        }
+    }
+
+    private Limits getLimits(ReplicationInstance target)
+    {
+        Map<String, Object> properties = target.getProperties() != null ? target.getProperties() : Map.of();
+        String bytes = Objects.toString(properties.get(PROPERTY_BYTES), null);
+        String messages = Objects.toString(properties.get(PROPERTY_MESSAGES), null);
+        String schedule = Objects.toString(properties.get(PROPERTY_SCHEDULE), null);
+        List<String> values = Arrays.asList(bytes, messages, schedule);
+
+        // Reuse the current buckets unless the configuration of the instance changed
+        Limits currentLimits = this.limits.get(target.getURI());
+        if (currentLimits != null && currentLimits.values.equals(values)) {
+            return currentLimits;
+        }
+
+        Limits newLimits = new Limits(values, parseRate(target, PROPERTY_BYTES, bytes),
+            parseRate(target, PROPERTY_MESSAGES, messages), parseSchedule(target, schedule));
+        this.limits.put(target.getURI(), newLimits);
+
+        return newLimits;
+    }
+
+    private long parseRate(ReplicationInstance target, String property, String value)
+    {
+        if (StringUtils.isBlank(value)) {
+            return 0;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            this.logger.warn("Ignoring invalid value [{}] for property [{}] of instance [{}]", value, property,
+                target.getURI());
+
+            return 0;
+        }
+    }
+
+    private List<LocalTime[]> parseSchedule(ReplicationInstance target, String value)
+    {
+        try {
+            return parseSchedule(value);
+        } catch (DateTimeParseException | IllegalArgumentException e) {
+            this.logger.warn("Ignoring invalid schedule [{}] for instance [{}], the limits always apply: {}", value,
+                target.getURI(), e.getMessage());
+
+            return null;
+        }
+    }
+
+    /**
+     * @param value the comma separated time ranges
+     * @return the parsed time ranges, null if the limits always apply
+     */
+    static List<LocalTime[]> parseSchedule(String value)
+    {
+        if (StringUtils.isBlank(value)) {
+            return null;
+        }
+
+        List<LocalTime[]> ranges = new ArrayList<>();
+        for (String range : StringUtils.split(StringUtils.deleteWhitespace(value), ',')) {
+            int index = range.indexOf(RANGE_SEPARATOR);
+            if (index == -1) {
+                throw new IllegalArgumentException("Invalid time range [" + range + "]");
+            }
+
+            ranges.add(new LocalTime[] {LocalTime.parse(range.substring(0, index)),
+                LocalTime.parse(range.substring(index + 1))});
+        }
+
+        return ranges;
+    }
+
+    /**
+     * @param schedule the time ranges during which the limits apply, null if the limits always apply
+     * @param time the time to check
+     * @return true if the limits apply at the passed time
+     */
+    static boolean isScheduled(List<LocalTime[]> schedule, LocalTime time)
+    {
+        if (schedule == null) {
+            return true;
+        }
+
+        for (LocalTime[] range : schedule) {
+            if (range[0].isAfter(range[1])) {
+                // The range goes over midnight
+                if (!time.isBefore(range[0]) || time.isBefore(range[1])) {
+                    return true;
+                }
+            } else if (!time.isBefore(range[0]) && time.isBefore(range[1])) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean isLimited(Collection<? extends ReplicationMessage> messages, Limits targetLimits)
+    {
+        if (!isScheduled(targetLimits.schedule, LocalTime.now())) {
+            return false;
+        }
+
+        // Control messages are never limited
+        for (ReplicationMessage message : messages) {
+            if (ReplicationMessageKeys.hasEntity(message) || !this.configuration
+                .getSenderPriorityTypes(ReplicationSenderMessagePriority.CONTROL).contains(message.getType())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void consume(TokenBucket bucket, long count) throws InterruptedException
+    {
+        long wait = bucket.take(count, System.currentTimeMillis());
+
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    /**
+     * Wait until the passed messages can be sent to the target instance.
+     * 
+     * @param messages the messages to send
+     * @param target the instance to send the messages to
+     * @return the bucket to use to limit the bandwidth, null if the bandwidth is not limited
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public TokenBucket acquire(Collection<? extends ReplicationMessage> messages, ReplicationInstance target)
+        throws InterruptedException
+    {
+        Limits targetLimits = getLimits(target);
+
+        if ((targetLimits.bytes == null && targetLimits.messages == null) || !isLimited(messages, targetLimits)) {
+            return null;
+        }
+
+        if (targetLimits.messages != null) {
+            consume(targetLimits.messages, messages.size());
+        }
+
+        return targetLimits.bytes;
+    }
+
+    /**
+     * @param stream the stream to write to
+     * @param bucket the bucket returned by {@link #acquire(Collection, ReplicationInstance)}
+     * @return the stream to use to write the data of the messages
+     */
+    public OutputStream limit(OutputStream stream, TokenBucket bucket)
+    {
+        return bucket != null ? new LimitedOutputStream(stream, bucket) : stream;
+    }
+}
@@ -21,11 +21,13 @@ package org.xwiki.contrib.replication.internal.enpoint;
 
 import javax.inject.Inject;
 
+import org.apache.commons.lang3.StringUtils;
 import org.xwiki.contrib.replication.ReplicationException;
 import org.xwiki.contrib.replication.ReplicationInstance;
 import org.xwiki.contrib.replication.ReplicationInstance.Status;
 import org.xwiki.contrib.replication.ReplicationInstanceManager;
 import org.xwiki.contrib.replication.UnauthorizedReplicationInstanceException;
+import org.xwiki.contrib.replication.internal.sign.ReplicationSessionManager;
 import org.xwiki.contrib.replication.internal.sign.SignatureManager;
 
 /**
@@ -48,12 +50,22 @@ public abstract class AbstractReplicationEndpoint implements ReplicationEndpoint
      */
     public static final String PARAMETER_SIGNEDKEY = "signedKey";
 
+    /**
+     * The identifier of the session used to sign the key.
+     * 
+     * @since 2.3.9
+     */
+    public static final String PARAMETER_SESSION = "session";
+
     @Inject
     protected ReplicationInstanceManager instances;
 
     @Inject
     protected SignatureManager signatureManager;
 
+    @Inject
+    protected ReplicationSessionManager sessions;
+
     protected ReplicationInstance validateInstance(ReplicationResourceReference reference) throws ReplicationException
     {
         String uri = reference.getParameterValue(PARAMETER_URI);
@@ -87,7 +99,16 @@ public abstract class AbstractReplicationEndpoint implements ReplicationEndpoint
 
         String signedKey = reference.getParameterValue(PARAMETER_SIGNEDKEY);
 
-        if (!this.signatureManager.verify(instance, key, signedKey)) {
+        String session = reference.getParameterValue(PARAMETER_SESSION);
+
+        boolean valid;
+        if (StringUtils.isEmpty(session)) {
+            valid = this.signatureManager.verify(instance, key, signedKey);
+        } else {
+            valid = this.sessions.verify(instance, session, key, signedKey);
+        }
+
+        if (!valid) {
             throw new UnauthorizedReplicationInstanceException(
                 "Failed to validate the signature from instance [" + instance.getURI() + "]");
         }
@@ -19,6 +19,7 @@
  */
 package org.xwiki.contrib.replication.internal.enpoint;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 
@@ -34,6 +35,8 @@ import org.xwiki.container.Container;
 import org.xwiki.container.Request;
 import org.xwiki.container.servlet.ServletRequest;
 import org.xwiki.container.servlet.ServletResponse;
+import org.xwiki.contrib.replication.internal.ReplicationCapabilities;
+import org.xwiki.contrib.replication.internal.sign.UnknownReplicationSessionException;
 import org.xwiki.resource.AbstractResourceReferenceHandler;
 import org.xwiki.resource.NotFoundResourceHandlerException;
 import org.xwiki.resource.ResourceReference;
@@ -94,9 +97,20 @@ public class ReplicationResourceReferenceHandler extends AbstractResourceReferen
             ServletRequest servletRequest = (ServletRequest) request;
             ServletResponse servletResponse = (ServletResponse) this.container.getResponse();
 
+            // Advertise the optional features supported by this instance
+            servletResponse.getHttpServletResponse().setHeader(ReplicationCapabilities.HEADER,
+                ReplicationCapabilities.toString(ReplicationCapabilities.SUPPORTED));
+
             try {
                 enpoint.handle(servletRequest.getHttpServletRequest(), servletResponse.getHttpServletResponse(),
                     reference);
+            } catch (UnknownReplicationSessionException e) {
+                // Tell the client to negotiate a new session
+                try {
+                    servletResponse.getHttpServletResponse().sendError(401, e.getMessage());
+                } catch (IOException ioe) {
+                    throw new ResourceReferenceHandlerException("Failed to send the error", ioe);
+                }
             } catch (Exception e) {
                 this.logger.debug("The Replication request [{}] failed", reference, e);
 
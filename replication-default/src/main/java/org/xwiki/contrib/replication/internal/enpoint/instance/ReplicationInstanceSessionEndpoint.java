@@ -0,0 +1,77 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.enpoint.instance;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.replication.ReplicationInstance;
+import org.xwiki.contrib.replication.internal.enpoint.AbstractReplicationEndpoint;
+import org.xwiki.contrib.replication.internal.enpoint.ReplicationResourceReference;
+import org.xwiki.contrib.replication.internal.sign.ReplicationSessionOpenedEvent;
+import org.xwiki.observation.ObservationManager;
+
+/**
+ * Open a session used to authenticate the following requests sent by an instance.
+ * <p>
+ * The key is made of the identifier of the session and the session secret encrypted with the public key of the
+ * current instance, the whole being signed with the private key of the instance sending the request.
+ * 
+ * @version $Id$
+ * @since 2.3.9
+ */
+@Component
+@Named(ReplicationInstanceSessionEndpoint.PATH)
+@Singleton
+public class ReplicationInstanceSessionEndpoint extends AbstractReplicationEndpoint
+{
+    /**
+     * The path to use to access this endpoint.
+     */
+    public static final String PATH = "instance/session";
+
+    @Inject
+    private ObservationManager observation;
+
+    @Override
+    public void handle(HttpServletRequest request, HttpServletResponse response, ReplicationResourceReference reference)
+        throws Exception
+    {
+        // The session itself must be validated with the instance private key
+        if (reference.getParameterValue(PARAMETER_SESSION) != null) {
+            response.sendError(400, "A session cannot be opened from another session");
+
+            return;
+        }
+
+        ReplicationInstance instance = validateInstance(reference);
+
+        String key = reference.getParameterValue(PARAMETER_KEY);
+
+        this.sessions.openReceiveSession(instance.getURI(), key);
+
+        // Share the session with the other cluster members
+        this.observation.notify(new ReplicationSessionOpenedEvent(instance.getURI(), key), null);
+    }
+}
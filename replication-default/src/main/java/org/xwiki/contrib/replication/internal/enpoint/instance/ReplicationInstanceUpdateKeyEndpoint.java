@@ -71,5 +71,8 @@ public class ReplicationInstanceUpdateKeyEndpoint extends AbstractReplicationEnd
         } catch (ReplicationException e) {
             throw new ReplicationException("Failed to update the replication instance [" + instance + "]", e);
         }
+
+        // The sessions opened with the previous key should not be trusted anymore
+        this.sessions.closeReceiveSessions(instance.getURI());
     }
 }
@@ -0,0 +1,174 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.enpoint.message;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import javax.inject.Inject;
+
+import org.slf4j.Logger;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.contrib.replication.ReplicationReceiver;
+import org.xwiki.contrib.replication.ReplicationReceiverMessage;
+import org.xwiki.contrib.replication.ReplicationSender;
+import org.xwiki.contrib.replication.internal.enpoint.AbstractReplicationEndpoint;
+import org.xwiki.contrib.replication.internal.message.ReplicationReceiverMessageQueue;
+import org.xwiki.contrib.replication.internal.message.log.ReplicationMessageIdIndex;
+import org.xwiki.contrib.replication.internal.message.log.ReplicationMessageLogStore;
+import org.xwiki.contrib.replication.log.ReplicationMessageEventQuery;
+import org.xwiki.eventstream.EventStreamException;
+import org.xwiki.resource.ResourceReferenceHandlerException;
+
+/**
+ * Base class for the endpoints receiving messages.
+ * 
+ * @version $Id$
+ * @since 2.3.9
+ */
+public abstract class AbstractReplicationMessageEndpoint extends AbstractReplicationEndpoint
+{
+    /**
+     * The messages currently being remembered, to make sure the same message is only remembered once while distinct
+     * messages are remembered in parallel.
+     */
+    private static final Map<String, CompletableFuture<Void>> CLAIMS = new ConcurrentHashMap<>();
+
+    @Inject
+    protected ComponentManager componentManager;
+
+    @Inject
+    protected ReplicationSender sender;
+
+    @Inject
+    protected Logger logger;
+
+    @Inject
+    private ReplicationReceiverMessageQueue queue;
+
+    @Inject
+    private ReplicationMessageLogStore messageLog;
+
+    @Inject
+    private ReplicationMessageIdIndex messageIndex;
+
+    protected void checkType(String dataType) throws ResourceReferenceHandlerException
+    {
+        // Make sure the data type is supported
+        if (!this.componentManager.hasComponent(ReplicationReceiver.class, dataType)) {
+            throw new ResourceReferenceHandlerException("Unsupported replication data type [" + dataType + "]");
+        }
+    }
+
+    protected void receive(ReplicationReceiverMessage message) throws Exception
+    {
+        // Check if the message is already known
+        if (isKnown(message)) {
+            // Ignore the message since we already received it
+            return;
+        }
+
+        // Remember the message
+        if (!rememberMessage(message)) {
+            // Ignore the message since it was received in the meantime
+            return;
+        }
+
+        // Add the data to the queue
+        try {
+            this.queue.add(message);
+        } catch (Exception e) {
+            // Forget the message if it could not be stored
+            forgetMessage(message);
+
+            throw new ResourceReferenceHandlerException("Could not handle the replication data", e);
+        }
+    }
+
+    private boolean rememberMessage(ReplicationReceiverMessage message)
+        throws EventStreamException, InterruptedException
+    {
+        // Claim the message
+        CompletableFuture<Void> claim = new CompletableFuture<>();
+        for (CompletableFuture<Void> currentClaim = CLAIMS.putIfAbsent(message.getId(), claim); currentClaim != null;
+            currentClaim = CLAIMS.putIfAbsent(message.getId(), claim)) {
+            // Another thread is remembering the same message, wait for it
+            try {
+                currentClaim.get();
+
+                return false;
+            } catch (ExecutionException e) {
+                // The other thread failed to remember the message, try again
+            }
+        }
+
+        try {
+            if (isKnown(message)) {
+                // Was saved by another thread while waiting
+                claim.complete(null);
+
+                return false;
+            }
+
+            this.messageLog.saveSync(message, (m, e) -> {
+                Map<String, Object> custom = new HashMap<>(e.getCustom());
+
+                custom.put(ReplicationMessageEventQuery.KEY_STATUS, ReplicationMessageEventQuery.VALUE_STATUS_RECEIVED);
+
+                e.setCustom(custom);
+            });
+
+            this.messageIndex.add(message.getId());
+
+            claim.complete(null);
+
+            return true;
+        } catch (Exception e) {
+            claim.completeExceptionally(e);
+
+            throw e;
+        } finally {
+            // Release the claim
+            CLAIMS.remove(message.getId(), claim);
+        }
+    }
+
+    protected boolean isKnown(ReplicationReceiverMessage message) throws EventStreamException
+    {
+        Boolean known = this.messageIndex.isKnown(message.getId(), message.getDate());
+
+        // Search the message log only when the index is not sure
+        return known != null ? known : this.messageLog.exist(message.getId());
+    }
+
+    private void forgetMessage(ReplicationReceiverMessage message)
+    {
+        this.messageIndex.remove(message.getId());
+
+        try {
+            this.messageLog.deleteAsync(message.getId());
+        } catch (EventStreamException e) {
+            this.logger.error("Failed to delete the event", e);
+        }
+    }
+}
@@ -36,6 +36,7 @@ import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
 import org.xwiki.contrib.replication.ReplicationInstance;
 import org.xwiki.contrib.replication.ReplicationReceiverMessage;
 import org.xwiki.contrib.replication.internal.HTTPUtils;
+import org.xwiki.contrib.replication.internal.ReplicationCompression;
 import org.xwiki.contrib.replication.internal.ReplicationUtils;
 
 /**
@@ -43,7 +44,8 @@ import org.xwiki.contrib.replication.internal.ReplicationUtils;
  */
 @Component(roles = HttpServletRequestReplicationReceiverMessage.class)
 @InstantiationStrategy(ComponentInstantiationStrategy.PER_LOOKUP)
-public class HttpServletRequestReplicationReceiverMessage implements ReplicationReceiverMessage
+public class HttpServletRequestReplicationReceiverMessage
+    implements ReplicationReceiverMessage, ReplicationCompression.CompressedInput
 {
     /**
      * The request parameter containing the message id.
@@ -195,6 +197,18 @@ public class HttpServletRequestReplicationReceiverMessage implements Replication
 
     @Override
     public InputStream open() throws IOException
+    {
+        return ReplicationCompression.getInputStream(this.request);
+    }
+
+    @Override
+    public boolean isDataCompressed()
+    {
+        return ReplicationCompression.isCompressed(this.request);
+    }
+
+    @Override
+    public InputStream openCompressed() throws IOException
     {
         return this.request.getInputStream();
     }
@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.enpoint.message;
+
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.replication.ReplicationInstance;
+import org.xwiki.contrib.replication.ReplicationReceiverMessage;
+import org.xwiki.contrib.replication.internal.ReplicationCompression;
+import org.xwiki.contrib.replication.internal.ReplicationConfiguration;
+import org.xwiki.contrib.replication.internal.enpoint.ReplicationResourceReference;
+
+/**
+ * Receive several messages in a single request.
+ * 
+ * @version $Id$
+ * @since 2.3.9
+ */
+@Component
+@Named(ReplicationMessageBatchEndpoint.PATH)
+@Singleton
+public class ReplicationMessageBatchEndpoint extends AbstractReplicationMessageEndpoint
+{
+    /**
+     * The path to use to access this endpoint.
+     */
+    public static final String PATH = ReplicationMessageEndpoint.PATH + "/batch";
+
+    @Inject
+    private ReplicationConfiguration configuration;
+
+    @Override
+    public void handle(HttpServletRequest request, HttpServletResponse response, ReplicationResourceReference reference)
+        throws Exception
+    {
+        // Make sure the sending instance is allowed to communicate with this instance
+        ReplicationInstance instance = validateInstance(reference);
+
+        // Notify the sender that an instance we know sent us a message in case we were waiting
+        this.sender.ping(instance);
+
+        // Read the messages
+        List<ReplicationReceiverMessage> messages = ReplicationMessageBatchFormat.read(
+            ReplicationCompression.getInputStream(request), instance, this.configuration.getReceiverBatchMaxSize(),
+            this.configuration.getReceiverBatchMaxDataSize());
+
+        // Make sure all the data types are supported before handling any message
+        for (ReplicationReceiverMessage message : messages) {
+            checkType(message.getType());
+        }
+
+        // Handle the messages in the order they were sent
+        for (ReplicationReceiverMessage message : messages) {
+            receive(message);
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.enpoint.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.xwiki.contrib.replication.DefaultReplicationReceiverMessage;
+import org.xwiki.contrib.replication.ReplicationInstance;
+import org.xwiki.contrib.replication.ReplicationReceiverMessage;
+import org.xwiki.contrib.replication.ReplicationSenderMessage;
+import org.xwiki.filter.input.DefaultByteArrayInputSource;
+
+/**
+ * Read and write the body of a request containing several messages.
+ * <p>
+ * The body starts with a version byte and the number of messages, followed by each message as a length prefixed
+ * header block (id, type, date, source, receivers and custom metadata) and a length prefixed data block.
+ * <p>
+ * The data of the messages is kept in memory so all the sizes read from the body are checked against the limits passed
+ * to {@link #read(InputStream, ReplicationInstance, int, long)} before allocating anything. Messages with a data too
+ * big to fit in a batch are sent individually, and their data is streamed to disk.
+ *
+ * @version $Id$
+ * @since 2.3.9
+ */
+public final class ReplicationMessageBatchFormat
+{
+    private static final int VERSION = 1;
+
+    private static final int NULL = -1;
+
+    /**
+     * The maximum size of the header block of a message.
+     */
+    private static final int MAX_HEADER_SIZE = 1024 * 1024;
+
+    private ReplicationMessageBatchFormat()
+    {
+    }
+
+    /**
+     * @param messages the messages to write
+     * @param defaultSource the source to use for messages which don't have any
+     * @param stream the stream where to write the messages
+     * @throws IOException when failing to write the messages
+     */
+    public static void write(List<? extends ReplicationSenderMessage> messages, String defaultSource,
+        OutputStream stream) throws IOException
+    {
+        DataOutputStream dataStream = new DataOutputStream(stream);
+
+        dataStream.writeByte(VERSION);
+        dataStream.writeInt(messages.size());
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        for (ReplicationSenderMessage message : messages) {
+            // Header
+            buffer.reset();
+            writeHeader(message, defaultSource, new DataOutputStream(buffer));
+            dataStream.writeInt(buffer.size());
+            buffer.writeTo(dataStream);
+
+            // Data
+            buffer.reset();
+            message.write(buffer);
+            dataStream.writeLong(buffer.size());
+            buffer.writeTo(dataStream);
+        }
+
+        dataStream.flush();
+    }
+
+    private static void writeHeader(ReplicationSenderMessage message, String defaultSource, DataOutputStream stream)
+        throws IOException
+    {
+        writeString(message.getId(), stream);
+        writeString(message.getType(), stream);
+        stream.writeLong(message.getDate() != null ? message.getDate().getTime() : NULL);
+        writeString(message.getSource() != null ? message.getSource() : defaultSource, stream);
+        writeStrings(message.getReceivers(), stream);
+
+        Map<String, Collection<String>> metadata = message.getCustomMetadata();
+        stream.writeInt(metadata.size());
+        for (Map.Entry<String, Collection<String>> entry : metadata.entrySet()) {
+            writeString(entry.getKey(), stream);
+            writeStrings(entry.getValue(), stream);
+        }
+
+        stream.flush();
+    }
+
+    private static void writeStrings(Collection<String> values, DataOutputStream stream) throws IOException
+    {
+        if (values == null) {
+            stream.writeInt(NULL);
+        } else {
+            stream.writeInt(values.size());
+            for (String value : values) {
+                writeString(value, stream);
+            }
+        }
+    }
+
+    private static void writeString(String value, DataOutputStream stream) throws IOException
+    {
+        if (value == null) {
+            stream.writeInt(NULL);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            stream.writeInt(bytes.length);
+            stream.write(bytes);
+        }
+    }
+
+    /**
+     * @param stream the stream to read
+     * @param instance the instance which sent the messages
+     * @param maxMessages the maximum number of messages accepted in a batch
+     * @param maxDataSize the maximum total size of the data of the messages accepted in a batch
+     * @return the messages
+     * @throws IOException when failing to read the messages or when the batch exceed the limits
+     */
+    public static List<ReplicationReceiverMessage> read(InputStream stream, ReplicationInstance instance,
+        int maxMessages, long maxDataSize) throws IOException
+    {
+        DataInputStream dataStream = new DataInputStream(stream);
+
+        int version = dataStream.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported batch format version [" + version + "]");
+        }
+
+        int size = dataStream.readInt();
+        if (size < 0 || size > maxMessages) {
+            throw new IOException("Invalid number of messages in the batch [" + size + "], the maximum is ["
+                + maxMessages + "]");
+        }
+
+        long remainingDataSize = maxDataSize;
+        List<ReplicationReceiverMessage> messages = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            // Header
+            int headerSize = dataStream.readInt();
+            if (headerSize < 0 || headerSize > MAX_HEADER_SIZE) {
+                throw new IOException("Invalid message header size in the batch [" + headerSize + "]");
+            }
+            byte[] header = new byte[headerSize];
+            dataStream.readFully(header);
+            DefaultReplicationReceiverMessage.Builder builder =
+                readHeader(new DataInputStream(new ByteArrayInputStream(header)));
+            builder.instance(instance);
+
+            // Data
+            long dataSize = dataStream.readLong();
+            if (dataSize < 0 || dataSize > remainingDataSize) {
+                throw new IOException("Invalid message data size in the batch [" + dataSize + "], the maximum total"
+                    + " data size is [" + maxDataSize + "]");
+            }
+            remainingDataSize -= dataSize;
+            byte[] data = new byte[(int) dataSize];
+            dataStream.readFully(data);
+            builder.data(new DefaultByteArrayInputSource(data));
+
+            messages.add(builder.build());
+        }
+
+        return messages;
+    }
+
+    private static DefaultReplicationReceiverMessage.Builder readHeader(DataInputStream stream) throws IOException
+    {
+        DefaultReplicationReceiverMessage.Builder builder = new DefaultReplicationReceiverMessage.Builder();
+
+        builder.id(readString(stream));
+        builder.type(readString(stream));
+        long date = stream.readLong();
+        builder.date(date != NULL ? new Date(date) : null);
+        builder.source(readString(stream));
+        builder.receivers(readStrings(stream));
+
+        int metadataSize = readSize(stream, false);
+        Map<String, Collection<String>> metadata = new LinkedHashMap<>(metadataSize);
+        for (int i = 0; i < metadataSize; ++i) {
+            metadata.put(readString(stream), readStrings(stream));
+        }
+        builder.customMetadata(metadata);
+
+        return builder;
+    }
+
+    private static int readSize(DataInputStream stream, boolean nullable) throws IOException
+    {
+        int size = stream.readInt();
+
+        // Each element takes at least 4 bytes in the header
+        if (size < (nullable ? NULL : 0) || size > stream.available() / Integer.BYTES) {
+            throw new IOException("Invalid size in message header [" + size + "]");
+        }
+
+        return size;
+    }
+
+    private static List<String> readStrings(DataInputStream stream) throws IOException
+    {
+        int size = readSize(stream, true);
+        if (size == NULL) {
+            return null;
+        }
+
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            values.add(readString(stream));
+        }
+
+        return values;
+    }
+
+    private static String readString(DataInputStream stream) throws IOException
+    {
+        int length = stream.readInt();
+        if (length == NULL) {
+            return null;
+        }
+        if (length < 0 || length > stream.available()) {
+            throw new IOException("Invalid string length in message header [" + length + "]");
+        }
+
+        byte[] bytes = new byte[length];
+        stream.readFully(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
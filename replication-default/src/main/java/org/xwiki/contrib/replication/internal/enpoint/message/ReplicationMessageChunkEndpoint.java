@@ -0,0 +1,179 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.enpoint.message;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.replication.DefaultReplicationReceiverMessage;
+import org.xwiki.contrib.replication.ReplicationInstance;
+import org.xwiki.contrib.replication.internal.ReplicationCompression;
+import org.xwiki.contrib.replication.internal.enpoint.ReplicationResourceReference;
+import org.xwiki.contrib.replication.internal.message.ReplicationReceiverMessageChunkStore;
+import org.xwiki.filter.input.DefaultInputStreamInputSource;
+
+/**
+ * Receive the data of a message in several requests. Each request contains the same parameters and headers as a
+ * request to {@link ReplicationMessageEndpoint} and the part of the data starting at the indicated offset. The answer
+ * indicates the number of bytes received so far, which is where the sender should continue (or resume after a failure).
+ *
+ * @version $Id$
+ * @since 2.3.9
+ */
+@Component
+@Named(ReplicationMessageChunkEndpoint.PATH)
+@Singleton
+public class ReplicationMessageChunkEndpoint extends AbstractReplicationMessageEndpoint
+{
+    /**
+     * The path to use to access this endpoint.
+     */
+    public static final String PATH = "message/chunk";
+
+    /**
+     * The request parameter containing the position of the chunk in the data.
+     */
+    public static final String PARAMETER_OFFSET = "offset";
+
+    /**
+     * The request parameter containing the total size of the data.
+     */
+    public static final String PARAMETER_SIZE = "size";
+
+    /**
+     * The request parameter indicating if the data (once all chunks are put together) is compressed.
+     */
+    public static final String PARAMETER_COMPRESSED = "compressed";
+
+    /**
+     * The HTTP header containing the number of bytes received so far.
+     */
+    public static final String HEADER_OFFSET = "X-XWIKI-REPLICATION-OFFSET";
+
+    @Inject
+    private Provider<HttpServletRequestReplicationReceiverMessage> messageProvider;
+
+    @Inject
+    private ReplicationReceiverMessageChunkStore chunks;
+
+    @Override
+    public void handle(HttpServletRequest request, HttpServletResponse response, ReplicationResourceReference reference)
+        throws Exception
+    {
+        // Make sure the sending instance is allowed to communicate with this instance
+        ReplicationInstance instance = validateInstance(reference);
+
+        // Notify the sender that an instance we know sent us a message in case we were waiting
+        this.sender.ping(instance);
+
+        // Make sure the data type is supported
+        checkType(reference.getParameterValue(HttpServletRequestReplicationReceiverMessage.PARAMETER_TYPE));
+
+        HttpServletRequestReplicationReceiverMessage message = this.messageProvider.get();
+        message.initialize(instance, request);
+
+        long offset = Long.parseLong(reference.getParameterValue(PARAMETER_OFFSET));
+        long size = Long.parseLong(reference.getParameterValue(PARAMETER_SIZE));
+        boolean compressed = Boolean.parseBoolean(reference.getParameterValue(PARAMETER_COMPRESSED));
+        String sender = instance.getURI();
+
+        // The answer to the last chunk was probably lost
+        if (isKnown(message)) {
+            response.setHeader(HEADER_OFFSET, String.valueOf(size));
+
+            return;
+        }
+
+        // Tell the sender where to continue if it's not sending the expected chunk
+        long currentOffset = this.chunks.getOffset(sender, message.getId(), size, compressed);
+        if (offset != currentOffset) {
+            response.setHeader(HEADER_OFFSET, String.valueOf(currentOffset));
+            response.setStatus(409);
+
+            return;
+        }
+
+        // Store the chunk
+        try (InputStream stream = ReplicationCompression.getInputStream(request)) {
+            currentOffset = this.chunks.append(sender, message.getId(), size, compressed, offset, stream);
+        }
+
+        if (currentOffset > size) {
+            this.chunks.delete(sender, message.getId());
+
+            response.sendError(400, "Received more data than announced");
+        } else {
+            if (currentOffset == size) {
+                // All the data was received
+                if (!this.chunks.isComplete(sender, message.getId(), size, compressed)) {
+                    this.chunks.delete(sender, message.getId());
+
+                    response.sendError(400, "The received data does not match what was announced");
+
+                    return;
+                }
+
+                receive(message, sender, compressed);
+            }
+
+            response.setHeader(HEADER_OFFSET, String.valueOf(currentOffset));
+        }
+    }
+
+    private void receive(HttpServletRequestReplicationReceiverMessage message, String sender, boolean compressed)
+        throws Exception
+    {
+        File dataFile = this.chunks.getDataFile(sender, message.getId());
+
+        try (InputStream stream = open(dataFile, compressed)) {
+            DefaultReplicationReceiverMessage.Builder builder = new DefaultReplicationReceiverMessage.Builder();
+            builder.instance(message.getInstance());
+            builder.id(message.getId());
+            builder.type(message.getType());
+            builder.date(message.getDate());
+            builder.source(message.getSource());
+            builder.receivers(message.getReceivers());
+            builder.customMetadata(message.getCustomMetadata());
+            builder.data(new DefaultInputStreamInputSource(stream));
+
+            receive(builder.build());
+        }
+
+        // The data is now in the receiver store
+        this.chunks.delete(sender, message.getId());
+    }
+
+    private InputStream open(File dataFile, boolean compressed) throws IOException
+    {
+        InputStream stream = new FileInputStream(dataFile);
+
+        return compressed ? ReplicationCompression.decompress(stream) : stream;
+    }
+}
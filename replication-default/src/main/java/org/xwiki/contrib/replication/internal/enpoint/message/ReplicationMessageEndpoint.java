@@ -19,9 +19,6 @@
  */
 package org.xwiki.contrib.replication.internal.enpoint.message;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Provider;
@@ -29,20 +26,9 @@ import javax.inject.Singleton;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
-import org.xwiki.component.manager.ComponentManager;
 import org.xwiki.contrib.replication.ReplicationInstance;
-import org.xwiki.contrib.replication.ReplicationReceiver;
-import org.xwiki.contrib.replication.ReplicationReceiverMessage;
-import org.xwiki.contrib.replication.ReplicationSender;
-import org.xwiki.contrib.replication.internal.enpoint.AbstractReplicationEndpoint;
 import org.xwiki.contrib.replication.internal.enpoint.ReplicationResourceReference;
-import org.xwiki.contrib.replication.internal.message.ReplicationReceiverMessageQueue;
-import org.xwiki.contrib.replication.internal.message.log.ReplicationMessageLogStore;
-import org.xwiki.contrib.replication.log.ReplicationMessageEventQuery;
-import org.xwiki.eventstream.EventStreamException;
-import org.xwiki.resource.ResourceReferenceHandlerException;
 
 /**
  * @version $Id$
@@ -50,31 +36,16 @@ import org.xwiki.resource.ResourceReferenceHandlerException;
 @Component
 @Named(ReplicationMessageEndpoint.PATH)
 @Singleton
-public class ReplicationMessageEndpoint extends AbstractReplicationEndpoint
+public class ReplicationMessageEndpoint extends AbstractReplicationMessageEndpoint
 {
     /**
      * The path to use to access this endpoint.
      */
     public static final String PATH = "message";
 
-    @Inject
-    private ComponentManager componentManager;
-
-    @Inject
-    private ReplicationReceiverMessageQueue queue;
-
-    @Inject
-    private ReplicationMessageLogStore messageLog;
-
-    @Inject
-    private ReplicationSender sender;
-
     @Inject
     private Provider<HttpServletRequestReplicationReceiverMessage> messageProvider;
 
-    @Inject
-    private Logger logger;
-
     @Override
     public void handle(HttpServletRequest request, HttpServletResponse response, ReplicationResourceReference reference)
         throws Exception
@@ -86,58 +57,13 @@ public class ReplicationMessageEndpoint extends AbstractReplicationEndpoint
         this.sender.ping(instance);
 
         // Make sure the data type is supported
-        String dataType = reference.getParameterValue(HttpServletRequestReplicationReceiverMessage.PARAMETER_TYPE);
-        if (!this.componentManager.hasComponent(ReplicationReceiver.class, dataType)) {
-            throw new ResourceReferenceHandlerException("Unsupported replication data type [" + dataType + "]");
-        }
+        checkType(reference.getParameterValue(HttpServletRequestReplicationReceiverMessage.PARAMETER_TYPE));
 
         // Prepare the data
         HttpServletRequestReplicationReceiverMessage message = this.messageProvider.get();
         message.initialize(instance, request);
 
-        // Check if the message is already known
-        if (this.messageLog.exist(message.getId())) {
-            // Ignore the message since we already received it
-            return;
-        }
-
-        // Remember the message
-        rememberMessage(message);
-
-        // Add the data to the queue
-        try {
-            this.queue.add(message);
-        } catch (Exception e) {
-            // Forget the message if it could not be stored
-            forgetMessage(message);
-
-            throw new ResourceReferenceHandlerException("Could not handle the replication data", e);
-        }
-    }
-
-    private synchronized void rememberMessage(ReplicationReceiverMessage message)
-        throws EventStreamException, InterruptedException
-    {
-        if (this.messageLog.exist(message.getId())) {
-            // Was saved by another thread while waiting
-            return;
-        }
-
-        this.messageLog.saveSync(message, (m, e) -> {
-            Map<String, Object> custom = new HashMap<>(e.getCustom());
-
-            custom.put(ReplicationMessageEventQuery.KEY_STATUS, ReplicationMessageEventQuery.VALUE_STATUS_RECEIVED);
-
-            e.setCustom(custom);
-        });
-    }
-
-    private void forgetMessage(ReplicationReceiverMessage message)
-    {
-        try {
-            this.messageLog.deleteAsync(message.getId());
-        } catch (EventStreamException e) {
-            this.logger.error("Failed to delete the event", e);
-        }
+        // Handle the message
+        receive(message);
     }
 }
@@ -29,6 +29,7 @@ import org.xwiki.component.annotation.Component;
 import org.xwiki.contrib.replication.ReplicationInstance.Status;
 import org.xwiki.contrib.replication.ReplicationInstanceClassInitializer;
 import org.xwiki.contrib.replication.internal.ReplicationConstants;
+import org.xwiki.contrib.replication.internal.ReplicationRateLimiter;
 import org.xwiki.model.reference.LocalDocumentReference;
 
 import com.xpn.xwiki.doc.AbstractMandatoryClassInitializer;
@@ -107,6 +108,10 @@ public class StandardReplicationInstanceClassInitializer extends AbstractMandato
         xclass.addStaticListField(FIELD_STATUS, "Status", Status.REGISTERED.name() + '|' + Status.REQUESTED.name() + '|'
             + Status.REQUESTING.name() + '|' + Status.RELAYED.name());
 
+        xclass.addTextField(ReplicationRateLimiter.PROPERTY_BYTES, "Maximum bytes per second", 30);
+        xclass.addTextField(ReplicationRateLimiter.PROPERTY_MESSAGES, "Maximum messages per second", 30);
+        xclass.addTextField(ReplicationRateLimiter.PROPERTY_SCHEDULE, "Rate limits schedule", 30);
+
         // Extends the class
         this.initializers.forEach(i -> i.extendClass(xclass));
     }
@@ -21,20 +21,40 @@ package org.xwiki.contrib.replication.internal.message;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
 
 import javax.inject.Inject;
 
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.xwiki.component.manager.ComponentLifecycleException;
 import org.xwiki.component.phase.Disposable;
 import org.xwiki.contrib.replication.ReplicationException;
 import org.xwiki.contrib.replication.ReplicationMessage;
+import org.xwiki.contrib.replication.internal.ReplicationConfiguration;
 
 /**
+ * Handle the messages of a store in the order they were stored.
+ * <p>
+ * Only a limited number of messages (see {@link ReplicationConfiguration#getQueueSize()}) are kept in memory, the
+ * following ones are loaded from the store when there is room for them.
+ * <p>
+ * A message which failed is handled again later, waiting a bit longer after each failure (see
+ * {@link ReplicationConfiguration#getQueueRetryDelay()}). The failures are stored with the message so that they
+ * survive a restart, and after too many of them (see {@link ReplicationConfiguration#getQueueRetryMaxAttempts()}) the
+ * message is put aside until an administrator decides to retry or delete it.
+ * 
  * @param <M> the type of message handled
  * @version $Id$
  */
@@ -48,17 +68,68 @@ public abstract class AbstractReplicationMessageQueue<M extends ReplicationMessa
 
     protected ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
-    protected final BlockingQueue<M> queue = new LinkedBlockingQueue<>(10000);
+    protected BlockingQueue<M> queue;
 
-    protected final BlockingQueue<M> errorQueue = new LinkedBlockingQueue<>(10000);
+    /**
+     * The failed messages waiting to be handled again.
+     */
+    protected final DelayQueue<Retry> retryQueue = new DelayQueue<>();
+
+    /**
+     * The messages which failed too many times to be handled again automatically.
+     */
+    protected final Map<String, M> deadMessages = new ConcurrentHashMap<>();
+
+    @Inject
+    protected ReplicationConfiguration configuration;
 
     @Inject
     protected Logger logger;
 
     protected M currentMessage;
 
+    /**
+     * The position in the store of the next message to load in memory.
+     */
+    private long nextSequence;
+
+    private final Object loadLock = new Object();
+
+    /**
+     * A failed message waiting to be handled again.
+     * 
+     * @version $Id$
+     */
+    protected final class Retry implements Delayed
+    {
+        private final M message;
+
+        private final long time;
+
+        private Retry(M message, Date nextTry)
+        {
+            this.message = message;
+            this.time = nextTry != null ? nextTry.getTime() : 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit)
+        {
+            return unit.convert(this.time - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o)
+        {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), o.getDelay(TimeUnit.MILLISECONDS));
+        }
+    }
+
     protected void initializeQueue()
     {
+        // Initialize the messages kept in memory
+        this.queue = new LinkedBlockingQueue<>(this.configuration.getQueueSize());
+
         // Initialize messages handling thread
         this.thread = new Thread(this);
         this.thread.setName(getThreadName());
@@ -68,16 +139,126 @@ public abstract class AbstractReplicationMessageQueue<M extends ReplicationMessa
         this.thread.start();
 
         // Initialize failed messages handling thread
-        this.errorThread = new Thread(this::runError);
-        this.errorThread.setName("FAILED - " + getThreadName());
-        this.errorThread.setPriority(Thread.NORM_PRIORITY - 3);
-        // That thread can be stopped any time without really loosing anything
-        this.errorThread.setDaemon(true);
-        this.errorThread.start();
+        if (isRetryEnabled()) {
+            this.errorThread = new Thread(this::runRetry);
+            this.errorThread.setName("FAILED - " + getThreadName());
+            this.errorThread.setPriority(Thread.NORM_PRIORITY - 3);
+            // That thread can be stopped any time without really loosing anything
+            this.errorThread.setDaemon(true);
+            this.errorThread.start();
+        }
     }
 
     protected abstract String getThreadName();
 
+    /**
+     * @return true if the messages which failed to be handled are retried by {@link #runRetry()}, false if the queue
+     *         takes care of its own failures
+     * @since 2.3.9
+     */
+    protected boolean isRetryEnabled()
+    {
+        return true;
+    }
+
+    /**
+     * @param fromSequence the position of the first message to load
+     * @param max the maximum number of messages to load
+     * @param consumer called for each loaded message, return false to stop loading messages
+     * @return the position of the next message to load
+     * @since 2.3.9
+     */
+    protected abstract long load(long fromSequence, int max, Predicate<M> consumer);
+
+    /**
+     * @param message the message
+     * @return the failures met so far while handling the message, null if it never failed
+     * @since 2.3.9
+     */
+    public abstract ReplicationMessageRetry getRetry(M message);
+
+    /**
+     * @param message the message
+     * @param retry the failures met so far while handling the message
+     * @throws ReplicationException when failing to store the failures
+     * @since 2.3.9
+     */
+    protected abstract void saveRetry(M message, ReplicationMessageRetry retry) throws ReplicationException;
+
+    /**
+     * Load in memory the stored messages which are not already there, in the limit of the room left in the queue.
+     * 
+     * @since 2.3.9
+     */
+    protected void loadMessages()
+    {
+        synchronized (this.loadLock) {
+            int room = this.queue.remainingCapacity();
+            if (room > 0) {
+                this.nextSequence = load(this.nextSequence, room, this::enqueue);
+            }
+        }
+    }
+
+    private boolean enqueue(M message)
+    {
+        ReplicationMessageRetry retry = isRetryEnabled() ? getRetry(message) : null;
+
+        if (retry == null) {
+            return this.queue.offer(message);
+        }
+
+        // The message failed before the restart
+        if (retry.isDead()) {
+            this.deadMessages.put(message.getId(), message);
+        } else {
+            this.retryQueue.add(new Retry(message, retry.getNextTry()));
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove a message waiting to be handled, whether it's already loaded in memory or still only in the store.
+     * 
+     * @param message the message to remove
+     * @param sequence the position of the message in the store
+     * @return true if the message was removed, false if it's not waiting anymore (already being handled, or gone)
+     * @throws ReplicationException when failing to remove the message from the store
+     * @since 2.3.9
+     */
+    protected boolean removeWaiting(M message, long sequence) throws ReplicationException
+    {
+        synchronized (this.loadLock) {
+            // The instance loaded in memory is not necessarily the same as the one passed
+            if (this.queue.removeIf(waiting -> message.getId().equals(waiting.getId()))
+                || (sequence >= 0 && sequence >= this.nextSequence)) {
+                // Remove the message from the store before it has a chance to be loaded
+                removeFromStore(message);
+
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Wait for the next message and make room for the following stored messages.
+     * 
+     * @return the next message
+     * @throws InterruptedException when interrupted while waiting for a message
+     * @since 2.3.9
+     */
+    protected M take() throws InterruptedException
+    {
+        M message = this.queue.take();
+
+        loadMessages();
+
+        return message;
+    }
+
     @Override
     public void dispose() throws ComponentLifecycleException
     {
@@ -121,7 +302,7 @@ public abstract class AbstractReplicationMessageQueue<M extends ReplicationMessa
             this.currentMessage = null;
 
             try {
-                this.currentMessage = this.queue.take();
+                this.currentMessage = take();
 
                 // Handle the message
                 handle(this.currentMessage);
@@ -144,34 +325,104 @@ public abstract class AbstractReplicationMessageQueue<M extends ReplicationMessa
                 // Stop the loop
                 break;
             } catch (Throwable t) {
-                onFailed(t);
+                onFailed(this.currentMessage, t);
             }
         }
     }
 
     /**
-     * Handle previously failed messages.
+     * @return the failed messages waiting to be handled again
+     * @since 2.3.9
+     */
+    public List<M> getRetryMessages()
+    {
+        List<M> messages = new ArrayList<>(this.retryQueue.size());
+        this.retryQueue.forEach(retry -> messages.add(retry.message));
+        messages.sort(Comparator.comparing(ReplicationMessage::getDate));
+
+        return messages;
+    }
+
+    /**
+     * @return the messages which failed too many times to be handled again automatically
+     * @since 2.3.9
+     */
+    public List<M> getDeadMessages()
+    {
+        List<M> messages = new ArrayList<>(this.deadMessages.values());
+        messages.sort(Comparator.comparing(ReplicationMessage::getDate));
+
+        return messages;
+    }
+
+    /**
+     * Try once more to handle a message which failed too many times.
+     * 
+     * @param id the identifier of the message
+     * @return true if the message was found
+     * @since 2.3.9
+     */
+    public boolean retryDeadMessage(String id)
+    {
+        M message = this.deadMessages.remove(id);
+
+        if (message != null) {
+            this.retryQueue.add(new Retry(message, null));
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Forget a message which failed too many times.
+     * 
+     * @param id the identifier of the message
+     * @return true if the message was found
+     * @throws ReplicationException when failing to delete the message
+     * @since 2.3.9
+     */
+    public boolean deleteDeadMessage(String id) throws ReplicationException
+    {
+        M message = this.deadMessages.remove(id);
+
+        if (message != null) {
+            removeFromStore(message);
+
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Handle previously failed messages when it's time to try again.
+     * 
+     * @since 2.3.9
      */
-    public void runError()
+    public void runRetry()
     {
         while (!this.disposed) {
             try {
-                M message = this.errorQueue.take();
+                M message = this.retryQueue.take().message;
 
-                // Wait 1h before handling the previously failed message
-                Thread.sleep(3600000);
+                try {
+                    // Handle the message
+                    handle(message);
 
-                List<M> messages = new ArrayList<>(this.errorQueue.size() + 1);
-                messages.add(message);
-                messages.addAll(this.errorQueue);
-
-                // Handle the message
-                handleFailed(messages);
+                    // Remove the message from the store
+                    removeFromStore(message);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Throwable t) {
+                    onFailed(message, t);
+                }
             } catch (InterruptedException e) {
-                this.logger.warn("The replication failed input message thread has been interrupted");
+                this.logger.warn("The replication failed message thread has been interrupted");
 
                 // Mark the thread as interrupted
-                this.thread.interrupt();
+                this.errorThread.interrupt();
 
                 // Stop the loop
                 break;
@@ -179,36 +430,49 @@ public abstract class AbstractReplicationMessageQueue<M extends ReplicationMessa
         }
     }
 
-    private void handleFailed(List<M> messages) throws InterruptedException
+    protected void onFailed(M message, Throwable t)
     {
-        for (M message : messages) {
-            try {
-                // Handle the message
-                handle(message);
+        if (message == null) {
+            this.logger.error("An unexpected throwable was thrown while handling a replication message", t);
 
-                // Remove the message from the store
-                // TODO: put the remove in an async queue
-                removeFromStore(message);
-            } catch (InterruptedException e) {
-                throw e;
-            } catch (Throwable t) {
-                onFailed(t);
-            }
+            return;
         }
-    }
 
-    private void onFailed(Throwable t)
-    {
-        if (this.currentMessage == null) {
-            this.logger
-                .error("An unexpected throwable was thrown while handling a previously failed replication message", t);
+        ReplicationMessageRetry previousRetry = getRetry(message);
+        int attempts = previousRetry != null ? previousRetry.getAttempts() + 1 : 1;
+        String cause = ExceptionUtils.getRootCauseMessage(t);
+
+        int maxAttempts = this.configuration.getQueueRetryMaxAttempts();
+        ReplicationMessageRetry retry;
+        if (maxAttempts > 0 && attempts >= maxAttempts) {
+            this.logger.error("Failed [{}] times to handle the replication message with id [{}] and type [{}],"
+                + " giving up until an administrator asks for it", attempts, message.getId(), message.getType(), t);
+
+            retry = new ReplicationMessageRetry(message.getId(), attempts, null, cause, true);
         } else {
-            this.logger
-                .error("An unexpected throwable was thrown while handling a previously failed replication message with"
-                    + " id [{}] and type [{}]", this.currentMessage.getId(), this.currentMessage.getType(), t);
+            // Double the wait after each failure
+            long delay = Math.min(this.configuration.getQueueRetryMaxDelay(),
+                this.configuration.getQueueRetryDelay() << Math.min(attempts - 1, 30));
+
+            this.logger.error("Failed to handle the replication message with id [{}] and type [{}],"
+                + " retrying in [{}] seconds", message.getId(), message.getType(), delay, t);
+
+            retry = new ReplicationMessageRetry(message.getId(), attempts,
+                new Date(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(delay)), cause, false);
+        }
 
-            // Put back the message in the queue
-            this.errorQueue.add(this.currentMessage);
+        // Remember the failure in case of restart
+        try {
+            saveRetry(message, retry);
+        } catch (ReplicationException e) {
+            this.logger.error("Failed to store the failure of the replication message with id [{}]", message.getId(),
+                e);
+        }
+
+        if (retry.isDead()) {
+            this.deadMessages.put(message.getId(), message);
+        } else {
+            this.retryQueue.add(new Retry(message, retry.getNextTry()));
         }
     }
 
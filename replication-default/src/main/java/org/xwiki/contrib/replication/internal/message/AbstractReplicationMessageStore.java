@@ -20,14 +20,22 @@
 package org.xwiki.contrib.replication.internal.message;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.Queue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
 import javax.inject.Inject;
 
@@ -38,21 +46,40 @@ import org.apache.commons.configuration2.builder.fluent.Parameters;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.contrib.replication.AbstractReplicationMessage;
 import org.xwiki.contrib.replication.ReplicationException;
 import org.xwiki.contrib.replication.ReplicationInstanceManager;
 import org.xwiki.contrib.replication.ReplicationMessage;
+import org.xwiki.contrib.replication.internal.ReplicationCompression;
+import org.xwiki.contrib.replication.internal.ReplicationConfiguration;
 import org.xwiki.contrib.replication.internal.ReplicationFileStore;
+import org.xwiki.contrib.replication.internal.ReplicationMessageKeys;
 import org.xwiki.contrib.replication.internal.ReplicationUtils;
+import org.xwiki.contrib.replication.internal.message.ReplicationMessageJournal.DataWriter;
+import org.xwiki.contrib.replication.internal.message.ReplicationMessageJournal.Entry;
+import org.xwiki.contrib.replication.internal.message.ReplicationMessageJournal.Header;
 
 import com.xpn.xwiki.util.Util;
 
 /**
+ * Store the messages in a {@link ReplicationMessageJournal}.
+ * <p>
+ * Messages stored with the previous layout (one folder per message) are moved to the journal the first time the
+ * store is used.
+ * <p>
+ * The failures met while handling a message are stored next to the journal until the message is deleted.
+ * 
  * @param <M>
  * @version $Id$
  */
-public abstract class AbstractReplicationMessageStore<M extends ReplicationMessage>
+public abstract class AbstractReplicationMessageStore<M extends ReplicationMessage> implements Disposable
 {
+    private static final String FOLDER_JOURNAL = "journal";
+
+    private static final String FOLDER_RETRY = "retry";
+
     private static final String FILE_METADATA = "metadata.properties";
 
     private static final String FILE_CUSTOM = "custom.properties";
@@ -69,27 +96,122 @@ public abstract class AbstractReplicationMessageStore<M extends ReplicationMessa
 
     private static final String PROPERTY_DATE = "date";
 
+    private static final String PROPERTY_COMPRESSION = "compression";
+
+    private static final String PROPERTY_ATTEMPTS = "attempts";
+
+    private static final String PROPERTY_NEXT = "next";
+
+    private static final String PROPERTY_CAUSE = "cause";
+
+    private static final String PROPERTY_DEAD = "dead";
+
     @Inject
     protected ReplicationInstanceManager instances;
 
     @Inject
     protected ReplicationFileStore fileStore;
 
+    @Inject
+    protected ReplicationConfiguration configuration;
+
     @Inject
     protected Logger logger;
 
     protected File home;
 
+    private ReplicationMessageJournal journal;
+
+    private Map<String, ReplicationMessageRetry> retries;
+
+    /**
+     * @param messageFolder the folder of a message stored with the previous layout
+     * @return the message
+     * @throws ReplicationException when failing to load the message
+     */
     protected abstract M createReplicationMessage(File messageFolder) throws ReplicationException;
 
+    /**
+     * @param entry the message stored in the journal
+     * @return the message
+     * @throws ReplicationException when failing to load the message
+     * @since 2.3.9
+     */
+    protected abstract M createReplicationMessage(Entry entry) throws ReplicationException;
+
     protected void setHome(File home)
     {
         this.home = home;
     }
 
-    protected File getMessageFolder(String id)
+    protected synchronized ReplicationMessageJournal getJournal() throws ReplicationException
+    {
+        if (this.journal == null) {
+            try {
+                this.journal = new ReplicationMessageJournal(new File(this.home, FOLDER_JOURNAL),
+                    this.configuration.getStoreSegmentSize(), AbstractReplicationMessageStore::getOrderingKey,
+                    this.logger);
+            } catch (IOException e) {
+                throw new ReplicationException("Failed to open the replication journal in [" + this.home + "]", e);
+            }
+
+            // Import the messages stored with the previous layout
+            migrate();
+        }
+
+        return this.journal;
+    }
+
+    private void migrate()
     {
-        return new File(this.home, String.valueOf(Util.getHash(id)));
+        // Only consider folders looking like a message, the home can contain other stores
+        File[] messageFolders = this.home.listFiles(file -> file.isDirectory()
+            && !file.getName().equals(FOLDER_JOURNAL) && getMetadataFile(file).exists());
+
+        if (messageFolders != null && messageFolders.length > 0) {
+            this.logger.info("Moving [{}] replication messages from [{}] to the journal", messageFolders.length,
+                this.home.getAbsolutePath());
+
+            // Sort the messages by date to store them in the order they are supposed to be handled
+            Map<File, M> messages = new LinkedHashMap<>();
+            for (File messageFolder : messageFolders) {
+                try {
+                    messages.put(messageFolder, createReplicationMessage(messageFolder));
+                } catch (ReplicationException e) {
+                    this.logger.error("Failed to load replication message from folder [{}]",
+                        messageFolder.getAbsolutePath(), e);
+                }
+            }
+            List<Map.Entry<File, M>> sortedMessages = new ArrayList<>(messages.entrySet());
+            sortedMessages.sort(Comparator.comparing(entry -> entry.getValue().getDate()));
+
+            for (Map.Entry<File, M> message : sortedMessages) {
+                try {
+                    migrate(message.getValue(), message.getKey());
+
+                    FileUtils.deleteDirectory(message.getKey());
+                } catch (Exception e) {
+                    this.logger.error("Failed to move replication message from folder [{}] to the journal",
+                        message.getKey().getAbsolutePath(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param message the message stored with the previous layout
+     * @param messageFolder the folder of the message
+     * @throws ReplicationException when failing to migrate the message
+     * @since 2.3.9
+     */
+    protected void migrate(M message, File messageFolder) throws ReplicationException
+    {
+        storeMessage(message);
+    }
+
+    protected File getDataFile(File messageFolder)
+    {
+        return new File(messageFolder, FILE_DATA);
     }
 
     private File getMetadataFile(File messageFolder)
@@ -102,9 +224,16 @@ public abstract class AbstractReplicationMessageStore<M extends ReplicationMessa
         return new File(messageFolder, FILE_CUSTOM);
     }
 
-    private File getDataFile(File messageFolder)
+    @Override
+    public synchronized void dispose() throws ComponentLifecycleException
     {
-        return new File(messageFolder, FILE_DATA);
+        if (this.journal != null) {
+            try {
+                this.journal.close();
+            } catch (IOException e) {
+                this.logger.error("Failed to close the replication journal in [{}]", this.home, e);
+            }
+        }
     }
 
     protected abstract class AbstractFileReplicationMessage extends AbstractReplicationMessage
@@ -120,8 +249,16 @@ public abstract class AbstractReplicationMessageStore<M extends ReplicationMessa
 
         protected Collection<String> receivers;
 
+        /**
+         * The file containing the data, null when the data is stored in the journal.
+         */
         protected File dataFile;
 
+        /**
+         * True if the data stored in the journal is compressed.
+         */
+        protected boolean compressed;
+
         protected AbstractFileReplicationMessage(File messageFolder) throws ConfigurationException, ReplicationException
         {
             // Standard metadata
@@ -154,6 +291,29 @@ public abstract class AbstractReplicationMessageStore<M extends ReplicationMessa
             this.dataFile = getDataFile(messageFolder);
         }
 
+        protected AbstractFileReplicationMessage(Entry entry) throws ReplicationException
+        {
+            Header header;
+            try {
+                header = getJournal().readHeader(entry);
+            } catch (IOException e) {
+                throw new ReplicationException(
+                    "Failed to read the metadata of the message with id [" + entry.getId() + "]", e);
+            }
+
+            // Standard metadata
+
+            PropertiesConfiguration metadata = new PropertiesConfiguration();
+            header.getMetadata()
+                .forEach((key, values) -> metadata.setProperty(key, values.size() == 1 ? values.get(0) : values));
+
+            loadMetadata(metadata);
+
+            // Custom metadata
+
+            this.modifiableMetadata.putAll(header.getCustom());
+        }
+
         protected void loadMetadata(PropertiesConfiguration metadata) throws ReplicationException
         {
             this.id = (String) metadata.getProperty(PROPERTY_ID);
@@ -166,6 +326,23 @@ public abstract class AbstractReplicationMessageStore<M extends ReplicationMessa
             String dateString = (String) metadata.getProperty(PROPERTY_DATE);
             this.date = new Date(Long.parseLong(dateString));
 
+            this.compressed = ReplicationCompression.GZIP.equals(metadata.getProperty(PROPERTY_COMPRESSION));
+
+        }
+
+        protected InputStream openData() throws IOException
+        {
+            if (this.dataFile != null) {
+                return new FileInputStream(this.dataFile);
+            }
+
+            try {
+                InputStream stream = getJournal().openData(this.id);
+
+                return this.compressed ? ReplicationCompression.decompress(stream) : stream;
+            } catch (ReplicationException e) {
+                throw new IOException("Failed to access the data of the message with id [" + this.id + "]", e);
+            }
         }
 
         @Override
@@ -206,96 +383,142 @@ public abstract class AbstractReplicationMessageStore<M extends ReplicationMessa
     }
 
     /**
-     * @return all the replication messages stored on the filesystem stored by date
+     * Load the stored messages in the order they were stored, starting from the passed position in the sequence of
+     * stored messages.
+     * 
+     * @param fromSequence the position of the first message to load
+     * @param max the maximum number of messages to load
+     * @param consumer called for each loaded message, return false to stop loading messages
+     * @return the position of the next message to load
+     * @since 2.3.9
      */
-    public Queue<M> load()
+    public long load(long fromSequence, int max, Predicate<M> consumer)
     {
-        Queue<M> list = new PriorityQueue<>();
+        long nextSequence = fromSequence;
 
-        if (this.home.exists()) {
-            for (File file : this.home.listFiles()) {
-                if (file.isDirectory()) {
-                    try {
-                        list.offer(createReplicationMessage(file));
-                    } catch (ReplicationException e) {
-                        this.logger.error("Failed to load replication message from folder [{}]", file.getAbsolutePath(),
-                            e);
+        try {
+            for (Entry entry : getJournal().getEntries(fromSequence, max)) {
+                try {
+                    if (!consumer.test(createReplicationMessage(entry))) {
+                        break;
                     }
+                } catch (ReplicationException e) {
+                    this.logger.error("Failed to load replication message with id [{}]", entry.getId(), e);
                 }
+
+                nextSequence = entry.getSequence() + 1;
             }
+        } catch (ReplicationException e) {
+            this.logger.error("Failed to load replication messages from [{}]", this.home.getAbsolutePath(), e);
         }
 
-        return list;
+        return nextSequence;
     }
 
     /**
-     * @param message the message to store
-     * @throws ReplicationException when failing to store the message
+     * Go through the ordering keys of the stored messages without reading their metadata from the disk.
+     * 
+     * @param consumer called with the identifier and the ordering key (see
+     *            {@link ReplicationMessageKeys#getOrderingKey(ReplicationMessage)}) of each stored message, in the
+     *            order they were stored
+     * @since 2.3.9
      */
-    protected File storeMessage(M message) throws ReplicationException
+    public void forEachOrderingKey(BiConsumer<String, String> consumer)
     {
-        File messageFolder = getMessageFolder(message.getId());
-
-        if (messageFolder.exists()) {
-            // Get rid of any date already there before storing the message (could be some previous partially failed
-            // message store for which the cleanup also failed for some reason)
-            delete(messageFolder);
+        try {
+            for (Entry entry : getJournal().getEntries(0, Integer.MAX_VALUE)) {
+                consumer.accept(entry.getId(), entry.getKey());
+            }
+        } catch (ReplicationException e) {
+            this.logger.error("Failed to access replication messages in [{}]", this.home.getAbsolutePath(), e);
         }
+    }
 
-        boolean clean = true;
+    private static String getOrderingKey(Header header)
+    {
+        List<String> types = header.getMetadata().get(PROPERTY_TYPE);
 
+        return ReplicationMessageKeys.getOrderingKey(types != null && !types.isEmpty() ? types.get(0) : null,
+            header.getCustom());
+    }
+
+    /**
+     * @param id the identifier of the message
+     * @return the stored message, or null if no message with this identifier is stored
+     * @since 2.3.9
+     */
+    public M get(String id)
+    {
         try {
-            // Make sure the folder exist on filesystem
-            messageFolder.mkdirs();
+            Entry entry = getJournal().get(id);
 
-            // Data
-            try {
-                storeData(message, getDataFile(messageFolder));
-            } catch (IOException e) {
-                throw new ReplicationException(
-                    "Failed to write on disk the data of the message with id [" + message.getId() + "]", e);
-            }
+            return entry != null ? createReplicationMessage(entry) : null;
+        } catch (ReplicationException e) {
+            this.logger.error("Failed to load replication message with id [{}]", id, e);
 
-            // Standard metadata
-            try {
-                FileBasedConfigurationBuilder<PropertiesConfiguration> builder =
-                    new FileBasedConfigurationBuilder<>(PropertiesConfiguration.class, null, true)
-                        .configure(new Parameters().properties().setFile(getMetadataFile(messageFolder)));
+            return null;
+        }
+    }
 
-                PropertiesConfiguration configuration = builder.getConfiguration();
-                setMessageMetadata(message, configuration);
+    /**
+     * @param id the identifier of the message
+     * @return the position of the message in the sequence of stored messages, or -1 if no message with this
+     *         identifier is stored
+     * @since 2.3.9
+     */
+    public long getSequence(String id)
+    {
+        try {
+            Entry entry = getJournal().get(id);
 
-                builder.save();
-            } catch (ConfigurationException e) {
-                throw new ReplicationException(
-                    "Failed to write on disk the standard metadata of the message with id [" + message.getId() + "]",
-                    e);
-            }
+            return entry != null ? entry.getSequence() : -1;
+        } catch (ReplicationException e) {
+            this.logger.error("Failed to access replication messages in [{}]", this.home.getAbsolutePath(), e);
 
-            // Custom metadata
-            try {
-                FileBasedConfigurationBuilder<PropertiesConfiguration> builder =
-                    new FileBasedConfigurationBuilder<>(PropertiesConfiguration.class, null, true)
-                        .configure(new Parameters().properties().setFile(getCustomFile(messageFolder)));
+            return -1;
+        }
+    }
 
-                PropertiesConfiguration configuration = builder.getConfiguration();
-                message.getCustomMetadata().forEach(configuration::setProperty);
+    /**
+     * @return the number of stored messages
+     * @since 2.3.9
+     */
+    public int size()
+    {
+        try {
+            return getJournal().size();
+        } catch (ReplicationException e) {
+            this.logger.error("Failed to access replication messages in [{}]", this.home.getAbsolutePath(), e);
 
-                builder.save();
-            } catch (ConfigurationException e) {
-                throw new ReplicationException(
-                    "Failed to write on disk the custom metadata of the message with id [" + message.getId() + "]", e);
-            }
+            return 0;
+        }
+    }
 
-            // All went well
-            clean = false;
-        } finally {
-            if (clean) {
-                delete(message);
-            }
+    /**
+     * @param message the message to store
+     * @return the stored message
+     * @throws ReplicationException when failing to store the message
+     */
+    protected Entry storeMessage(M message) throws ReplicationException
+    {
+        // Standard metadata
+        PropertiesConfiguration metadata = new PropertiesConfiguration();
+        setMessageMetadata(message, metadata);
+        Map<String, List<String>> metadataMap = new LinkedHashMap<>();
+        for (Iterator<String> it = metadata.getKeys(); it.hasNext();) {
+            String key = it.next();
+            metadataMap.put(key, metadata.getList(String.class, key));
         }
 
-        return messageFolder;
+        // Custom metadata
+        Map<String, List<String>> customMap = new LinkedHashMap<>();
+        message.getCustomMetadata().forEach((key, values) -> customMap.put(key, new ArrayList<>(values)));
+
+        try {
+            return getJournal().store(message.getId(), metadataMap, customMap, getDataWriter(message));
+        } catch (IOException e) {
+            throw new ReplicationException("Failed to write on disk the message with id [" + message.getId() + "]", e);
+        }
     }
 
     protected void setMessageMetadata(M message, PropertiesConfiguration configuration) throws ReplicationException
@@ -309,7 +532,26 @@ public abstract class AbstractReplicationMessageStore<M extends ReplicationMessa
         }
     }
 
-    protected abstract void storeData(M message, File file) throws IOException;
+    /**
+     * @param metadata the metadata of the message
+     * @since 2.3.9
+     */
+    protected void setCompressed(PropertiesConfiguration metadata)
+    {
+        metadata.setProperty(PROPERTY_COMPRESSION, ReplicationCompression.GZIP);
+    }
+
+    protected abstract void storeData(M message, OutputStream stream) throws IOException;
+
+    /**
+     * @param message the message to store
+     * @return the writer in charge of storing the data of the message in the journal
+     * @since 2.3.9
+     */
+    protected DataWriter getDataWriter(M message)
+    {
+        return stream -> storeData(message, stream);
+    }
 
     /**
      * @param message the message to delete
@@ -317,20 +559,96 @@ public abstract class AbstractReplicationMessageStore<M extends ReplicationMessa
      */
     public void delete(ReplicationMessage message) throws ReplicationException
     {
-        File messageFolder = getMessageFolder(message.getId());
+        try {
+            getJournal().delete(message.getId());
+        } catch (IOException e) {
+            throw new ReplicationException(
+                "Failed to delete the message with id [" + message.getId() + "] from the filesystem", e);
+        }
 
-        delete(messageFolder);
+        // Forget the failures of the message
+        if (getRetries().remove(message.getId()) != null) {
+            FileUtils.deleteQuietly(getRetryFile(message.getId()));
+        }
     }
 
-    private void delete(File messageFolder) throws ReplicationException
+    private File getRetryFile(String id)
     {
-        if (messageFolder.exists()) {
-            try {
-                FileUtils.deleteDirectory(messageFolder);
-            } catch (IOException e) {
-                throw new ReplicationException(
-                    "Failed to delete message folder [" + messageFolder + "] from the filesystem", e);
+        return new File(new File(this.home, FOLDER_RETRY), Util.getHash(id) + ".properties");
+    }
+
+    private synchronized Map<String, ReplicationMessageRetry> getRetries()
+    {
+        if (this.retries == null) {
+            this.retries = new ConcurrentHashMap<>();
+
+            File[] retryFiles = new File(this.home, FOLDER_RETRY).listFiles();
+            if (retryFiles != null) {
+                for (File retryFile : retryFiles) {
+                    try {
+                        ReplicationMessageRetry retry = loadRetry(new Configurations().properties(retryFile));
+                        this.retries.put(retry.getId(), retry);
+                    } catch (Exception e) {
+                        this.logger.error("Failed to load the replication message failures from [{}]",
+                            retryFile.getAbsolutePath(), e);
+                    }
+                }
             }
         }
+
+        return this.retries;
+    }
+
+    private ReplicationMessageRetry loadRetry(PropertiesConfiguration properties)
+    {
+        String nextString = properties.getString(PROPERTY_NEXT);
+
+        return new ReplicationMessageRetry(properties.getString(PROPERTY_ID), properties.getInt(PROPERTY_ATTEMPTS),
+            nextString != null ? new Date(Long.parseLong(nextString)) : null, properties.getString(PROPERTY_CAUSE),
+            properties.getBoolean(PROPERTY_DEAD, false));
+    }
+
+    /**
+     * @param id the identifier of the message
+     * @return the failures met so far while handling the message, null if it never failed
+     * @since 2.3.9
+     */
+    public ReplicationMessageRetry getRetry(String id)
+    {
+        return getRetries().get(id);
+    }
+
+    /**
+     * @param retry the failures met so far while handling the message
+     * @throws ReplicationException when failing to store the failures
+     * @since 2.3.9
+     */
+    public void saveRetry(ReplicationMessageRetry retry) throws ReplicationException
+    {
+        getRetries().put(retry.getId(), retry);
+
+        File retryFile = getRetryFile(retry.getId());
+        retryFile.getParentFile().mkdirs();
+
+        try {
+            FileBasedConfigurationBuilder<PropertiesConfiguration> builder =
+                new FileBasedConfigurationBuilder<>(PropertiesConfiguration.class, null, true)
+                    .configure(new Parameters().properties().setFile(retryFile));
+
+            PropertiesConfiguration properties = builder.getConfiguration();
+            properties.clear();
+            properties.setProperty(PROPERTY_ID, retry.getId());
+            properties.setProperty(PROPERTY_ATTEMPTS, retry.getAttempts());
+            if (retry.getNextTry() != null) {
+                properties.setProperty(PROPERTY_NEXT, ReplicationUtils.toString(retry.getNextTry()));
+            }
+            properties.setProperty(PROPERTY_CAUSE, retry.getCause());
+            properties.setProperty(PROPERTY_DEAD, retry.isDead());
+
+            builder.save();
+        } catch (ConfigurationException e) {
+            throw new ReplicationException(
+                "Failed to write on disk the failures of the message with id [" + retry.getId() + "]", e);
+        }
     }
 }
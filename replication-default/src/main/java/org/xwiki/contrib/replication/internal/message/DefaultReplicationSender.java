@@ -20,14 +20,18 @@
 package org.xwiki.contrib.replication.internal.message;
 
 import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
@@ -38,6 +42,8 @@ import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.annotation.DisposePriority;
 import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
 import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
@@ -51,6 +57,9 @@ import org.xwiki.contrib.replication.ReplicationInstanceManager;
 import org.xwiki.contrib.replication.ReplicationMessage;
 import org.xwiki.contrib.replication.ReplicationSender;
 import org.xwiki.contrib.replication.ReplicationSenderMessage;
+import org.xwiki.contrib.replication.ReplicationSenderMessageCoalescer;
+import org.xwiki.contrib.replication.internal.ReplicationConfiguration;
+import org.xwiki.contrib.replication.internal.ReplicationMessageKeys;
 import org.xwiki.contrib.replication.internal.message.ReplicationSenderMessageStore.FileReplicationSenderMessage;
 import org.xwiki.contrib.replication.internal.message.log.ReplicationMessageLogStore;
 import org.xwiki.contrib.replication.internal.message.question.ReplicationAnswerManager;
@@ -59,10 +68,15 @@ import org.xwiki.contrib.replication.internal.message.question.ReplicationQuesti
 import org.xwiki.contrib.replication.log.ReplicationMessageEventQuery;
 import org.xwiki.eventstream.Event;
 import org.xwiki.eventstream.EventSearchResult;
-import org.xwiki.eventstream.EventStore;
 import org.xwiki.observation.ObservationManager;
 
 /**
+ * Store the messages to send and dispatch them to the queue of each target instance.
+ * <p>
+ * The messages are serialized in lanes handled in parallel (see {@link ReplicationConfiguration#getSenderStoreLanes()})
+ * based on the entity they target, so that messages targeting the same entity are still stored in the order they were
+ * sent.
+ * 
  * @version $Id$
  */
 @Component
@@ -83,10 +97,10 @@ public class DefaultReplicationSender implements ReplicationSender, Initializabl
     private Provider<ReplicationSenderMessageQueue> sendQueueProvider;
 
     @Inject
-    private ReplicationMessageLogStore logStore;
+    private ReplicationSenderMessageDataStore dataStore;
 
     @Inject
-    private EventStore eventStore;
+    private ReplicationMessageLogStore logStore;
 
     @Inject
     private ReplicationAnswerManager answers;
@@ -97,14 +111,20 @@ public class DefaultReplicationSender implements ReplicationSender, Initializabl
     @Inject
     private ObservationManager observation;
 
+    @Inject
+    private ReplicationConfiguration configuration;
+
+    @Inject
+    private ComponentManager componentManager;
+
     @Inject
     private Logger logger;
 
-    private Thread storeThread;
+    private StoreLane[] storeLanes;
 
     private final Map<String, ReplicationSenderMessageQueue> sendQueues = new ConcurrentHashMap<>();
 
-    private final BlockingQueue<QueueEntry> storeQueue = new LinkedBlockingQueue<>(1000);
+    private int storeQueueTimeout;
 
     private static final class QueueEntry
     {
@@ -128,14 +148,74 @@ public class DefaultReplicationSender implements ReplicationSender, Initializabl
         }
     }
 
+    private final class StoreLane implements Runnable
+    {
+        private final BlockingQueue<QueueEntry> storeQueue;
+
+        private final Thread storeThread;
+
+        private volatile boolean saturated;
+
+        private StoreLane(String name, int size)
+        {
+            this.storeQueue = new LinkedBlockingQueue<>(size);
+
+            this.storeThread = new Thread(this);
+            this.storeThread.setName(name);
+            this.storeThread.setPriority(Thread.NORM_PRIORITY - 1);
+        }
+
+        @Override
+        public void run()
+        {
+            while (true) {
+                QueueEntry entry = null;
+                try {
+                    entry = this.storeQueue.take();
+
+                    // Stop the loop when asked to
+                    if (entry == STOP) {
+                        break;
+                    }
+
+                    syncStore(entry);
+                } catch (InterruptedException e) {
+                    // Complete all remaining entries
+                    for (QueueEntry remaining : this.storeQueue) {
+                        remaining.future.completeExceptionally(e);
+                    }
+
+                    logger.warn("The replication storing thread has been interrupted");
+
+                    // Mark back the thread as interrupted
+                    this.storeThread.interrupt();
+
+                    // Stop thread
+                    return;
+                } catch (Exception e) {
+                    if (entry != null) {
+                        entry.future.completeExceptionally(e);
+                    }
+
+                    logger.error("Failed to store the message", e);
+                }
+            }
+        }
+    }
+
     @Override
     public void initialize() throws InitializationException
     {
-        // Create a thread in charge of locally serializing message to send to other instances
-        this.storeThread = new Thread(this::store);
-        this.storeThread.setName("Replication serializing");
-        this.storeThread.setPriority(Thread.NORM_PRIORITY - 1);
-        this.storeThread.start();
+        // Create the threads in charge of locally serializing message to send to other instances
+        int laneCount = this.configuration.getSenderStoreLanes();
+        int laneSize = this.configuration.getSenderStoreQueueSize();
+        this.storeQueueTimeout = this.configuration.getSenderStoreQueueTimeout();
+        this.storeLanes = new StoreLane[laneCount];
+        for (int i = 0; i < laneCount; ++i) {
+            String name = laneCount > 1 ? "Replication serializing - lane " + i : "Replication serializing";
+            this.storeLanes[i] = new StoreLane(name, laneSize);
+            this.storeLanes[i].storeThread.start();
+        }
 
         // Initialize queues
         try {
@@ -194,84 +274,150 @@ public class DefaultReplicationSender implements ReplicationSender, Initializabl
         return this.sendQueues.get(instance.getURI());
     }
 
-    private void store()
+    private void syncStore(QueueEntry entry) throws ExecutionContextException, ReplicationException
     {
-        while (true) {
-            QueueEntry entry = null;
-            try {
-                entry = this.storeQueue.take();
+        // Get the instances to send the message to
+        Collection<ReplicationInstance> targets = entry.targets;
+        if (entry.targets == null) {
+            targets = this.instances.getRegisteredInstances();
+        }
 
-                // Stop the loop when asked to
-                if (entry == STOP) {
-                    break;
-                }
+        // Stop there if there is no instance to send the message to
+        if (!targets.isEmpty()) {
+            // Make sure an ExecutionContext is available
+            this.executionContextManager.pushContext(new ExecutionContext(), false);
+
+            try {
+                // Replace the waiting messages made useless by the new one
+                targets = coalesce(entry, targets);
 
-                syncStore(entry);
-            } catch (InterruptedException e) {
-                // Complete all remaining entries
-                for (QueueEntry remaining : this.storeQueue) {
-                    remaining.future.completeExceptionally(e);
+                if (!targets.isEmpty()) {
+                    syncStore(entry, targets);
                 }
+            } finally {
+                this.executionContextManager.popContext();
+            }
+        } else {
+            entry.future.complete(entry.message);
+        }
+    }
 
-                this.logger.warn("The replication storing thread has been interrupted");
+    private void syncStore(QueueEntry entry, Collection<ReplicationInstance> targets)
+    {
+        // Serialize the message only once for all the instances
+        ReplicationSenderMessage sharedMessage;
+        try {
+            sharedMessage = this.dataStore.store(entry.message, targets);
+        } catch (Exception e) {
+            this.logger.error("Failed to store the message [{}] on disk. It will be lost.", entry.message, e);
 
-                // Mark back the thread as interrupted
-                this.storeThread.interrupt();
+            // Unlock those waiting for the future even if the message is not really stored
+            entry.future.completeExceptionally(e);
 
-                // Stop thread
-                return;
-            } catch (Exception e) {
-                if (entry != null) {
-                    entry.future.completeExceptionally(e);
-                }
+            return;
+        }
 
-                this.logger.error("Failed to store the message", e);
-            }
+        for (ReplicationInstance target : targets) {
+            syncStore(entry, sharedMessage, target);
         }
     }
 
-    private void syncStore(QueueEntry entry) throws ExecutionContextException, ReplicationException
+    private Collection<ReplicationInstance> coalesce(QueueEntry entry, Collection<ReplicationInstance> targets)
     {
-        // Get the instances to send the message to
-        Collection<ReplicationInstance> targets = entry.targets;
-        if (entry.targets == null) {
-            targets = this.instances.getRegisteredInstances();
+        if (!this.configuration.isSenderCoalesce()
+            || !this.componentManager.hasComponent(ReplicationSenderMessageCoalescer.class, entry.message.getType())) {
+            return targets;
         }
 
-        // Stop there if there is no instance to send the message to
-        if (!targets.isEmpty()) {
-            for (ReplicationInstance target : targets) {
-                // Make sure an ExecutionContext is available
-                this.executionContextManager.pushContext(new ExecutionContext(), false);
+        ReplicationSenderMessageCoalescer coalescer;
+        try {
+            coalescer =
+                this.componentManager.getInstance(ReplicationSenderMessageCoalescer.class, entry.message.getType());
+        } catch (ComponentLookupException e) {
+            this.logger.error("Failed to lookup the coalescer for messages of type [{}]", entry.message.getType(), e);
 
-                try {
-                    FileReplicationSenderMessage storedMessage = addSend(entry.message, target);
+            return targets;
+        }
+
+        // Find the instances for which some waiting messages are superseded by the new message
+        Map<ReplicationInstance, List<ReplicationSenderMessage>> superseded = new LinkedHashMap<>();
+        List<ReplicationInstance> otherTargets = new ArrayList<>(targets.size());
+        for (ReplicationInstance target : targets) {
+            List<ReplicationSenderMessage> messages =
+                getSendQueue(target, true).getSuperseded(entry.message, coalescer);
+            if (messages.isEmpty()) {
+                otherTargets.add(target);
+            } else {
+                superseded.put(target, messages);
+            }
+        }
 
-                    // Log the message
-                    this.logStore.saveAsync(storedMessage, (m, e) -> {
-                        Map<String, Object> custom = new HashMap<>(e.getCustom());
+        if (superseded.isEmpty()) {
+            return targets;
+        }
 
-                        custom.put(ReplicationMessageEventQuery.KEY_STATUS,
-                            ReplicationMessageEventQuery.VALUE_STATUS_STORED);
-                        custom.put(ReplicationMessageEventQuery.KEY_TARGET, target.getURI());
+        // Serialize the message replacing the new one and the superseded ones
+        ReplicationSenderMessage sharedMessage;
+        try {
+            sharedMessage = this.dataStore.store(coalescer.coalesce(entry.message), superseded.keySet());
+        } catch (Exception e) {
+            this.logger.error("Failed to coalesce the message [{}], sending it as is", entry.message, e);
 
-                        e.setCustom(custom);
-                    });
+            return targets;
+        }
 
-                    // Notify that the message is stored
-                    entry.future.complete(storedMessage);
-                } catch (Exception e) {
-                    this.logger.error("Failed to store the message [{}] on disk. It will be lost.", entry.message, e);
+        for (Map.Entry<ReplicationInstance, List<ReplicationSenderMessage>> supersededEntry : superseded.entrySet()) {
+            // Send the coalesced message instead of the new one
+            syncStore(entry, sharedMessage, supersededEntry.getKey());
 
-                    // Unlock those waiting for the future even if the message is not really stored
-                    entry.future.completeExceptionally(e);
-                } finally {
-                    this.executionContextManager.popContext();
-                }
+            // Forget the superseded messages
+            this.logger.debug("[{}] messages waiting to be sent to instance [{}] were superseded by message [{}]",
+                supersededEntry.getValue().size(), supersededEntry.getKey().getURI(), sharedMessage.getId());
+            getSendQueue(supersededEntry.getKey(), true).remove(supersededEntry.getValue());
+        }
+
+        return otherTargets;
+    }
+
+    private void syncStore(QueueEntry entry, ReplicationSenderMessage sharedMessage, ReplicationInstance target)
+    {
+        FileReplicationSenderMessage storedMessage;
+        try {
+            storedMessage = addSend(sharedMessage, target);
+        } catch (Exception e) {
+            this.logger.error("Failed to store the message [{}] on disk. It will be lost.", entry.message, e);
+
+            // The instance won't ever release the shared data so do it now
+            try {
+                this.dataStore.release(sharedMessage.getId(), target);
+            } catch (ReplicationException re) {
+                this.logger.error("Failed to release the data of message [{}] for instance [{}]",
+                    sharedMessage.getId(), target.getURI(), re);
             }
-        } else {
-            entry.future.complete(entry.message);
+
+            // Unlock those waiting for the future even if the message is not really stored
+            entry.future.completeExceptionally(e);
+
+            return;
+        }
+
+        try {
+            // Log the message
+            this.logStore.saveAsync(storedMessage, (m, e) -> {
+                Map<String, Object> custom = new HashMap<>(e.getCustom());
+
+                custom.put(ReplicationMessageEventQuery.KEY_STATUS, ReplicationMessageEventQuery.VALUE_STATUS_STORED);
+                custom.put(ReplicationMessageEventQuery.KEY_TARGET, target.getURI());
+
+                e.setCustom(custom);
+            });
+        } catch (Exception e) {
+            // The message is stored, it's only missing from the log
+            this.logger.error("Failed to log the stored message [{}]", storedMessage, e);
         }
+
+        // Notify that the message is stored
+        entry.future.complete(storedMessage);
     }
 
     @Override
@@ -293,23 +439,73 @@ public class DefaultReplicationSender implements ReplicationSender, Initializabl
     private void disposeSerialize()
     {
         try {
-            this.storeQueue.put(STOP);
+            for (StoreLane lane : this.storeLanes) {
+                lane.storeQueue.put(STOP);
+            }
 
             // Wait for the processing to be over but not more than 60s in case it's stuck for some reason
-            this.storeThread.join(60000);
+            long deadline = System.currentTimeMillis() + 60000;
+            for (StoreLane lane : this.storeLanes) {
+                lane.storeThread.join(Math.max(1, deadline - System.currentTimeMillis()));
 
-            // Stop the thread if it's still running
-            if (this.storeThread.isAlive()) {
-                this.logger.warn("The replication serialization thread is still running, killing it");
+                // Stop the thread if it's still running
+                if (lane.storeThread.isAlive()) {
+                    this.logger.warn("The replication serialization thread [{}] is still running, killing it",
+                        lane.storeThread.getName());
 
-                this.storeThread.interrupt();
+                    lane.storeThread.interrupt();
+                }
             }
         } catch (InterruptedException e) {
             this.logger.warn("The replication serialization thread has been interrupted: {}",
                 ExceptionUtils.getRootCauseMessage(e));
 
-            this.storeThread.interrupt();
+            for (StoreLane lane : this.storeLanes) {
+                lane.storeThread.interrupt();
+            }
+
+            // Mark back the thread as interrupted
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of lanes in which messages to send are serialized in parallel
+     * @since 2.3.9
+     */
+    public int getStoreLaneCount()
+    {
+        return this.storeLanes.length;
+    }
+
+    /**
+     * @return the number of messages waiting to be serialized
+     * @since 2.3.9
+     */
+    public int getStoreQueueSize()
+    {
+        int size = 0;
+        for (StoreLane lane : this.storeLanes) {
+            size += lane.storeQueue.size();
         }
+
+        return size;
+    }
+
+    /**
+     * @return true if the messages are sent faster than they can be serialized and senders have to wait for some room
+     *         in at least one of the lanes
+     * @since 2.3.9
+     */
+    public boolean isStoreSaturated()
+    {
+        for (StoreLane lane : this.storeLanes) {
+            if (lane.saturated) {
+                return true;
+            }
+        }
+
+        return false;
     }
 
     @Override
@@ -330,24 +526,59 @@ public class DefaultReplicationSender implements ReplicationSender, Initializabl
             return future;
         }
 
+        // Messages targeting the same entity always go to the same lane
+        StoreLane lane = this.storeLanes[Math.floorMod(ReplicationMessageKeys.getOrderingKey(message).hashCode(),
+            this.storeLanes.length)];
+
         QueueEntry entry = new QueueEntry(message, targets);
         try {
-            this.storeQueue.put(entry);
+            if (!enqueue(lane, entry)) {
+                ReplicationException exception = new ReplicationException(getQueueErrorMessage(message, targets)
+                    + ": no room was freed in the serialization queue after " + this.storeQueueTimeout + " seconds");
+                entry.future.completeExceptionally(exception);
+
+                throw exception;
+            }
         } catch (InterruptedException e) {
             entry.future.completeExceptionally(e);
 
             // Mark the thread as interrupted
-            this.storeThread.interrupt();
+            Thread.currentThread().interrupt();
 
-            String exceptionMessage = targets != null
-                ? String.format("Failed to queue the message [%s] targetting instances %s", message, targets)
-                : String.format("Failed to queue the message [%s]", message);
-            throw new ReplicationException(exceptionMessage, e);
+            throw new ReplicationException(getQueueErrorMessage(message, targets), e);
         }
 
         return entry.future;
     }
 
+    private String getQueueErrorMessage(ReplicationSenderMessage message, Collection<ReplicationInstance> targets)
+    {
+        return targets != null
+            ? String.format("Failed to queue the message [%s] targetting instances %s", message, targets)
+            : String.format("Failed to queue the message [%s]", message);
+    }
+
+    private boolean enqueue(StoreLane lane, QueueEntry entry) throws InterruptedException
+    {
+        if (lane.storeQueue.offer(entry)) {
+            lane.saturated = false;
+
+            return true;
+        }
+
+        // Warn only once per saturation period of the lane
+        if (!lane.saturated) {
+            lane.saturated = true;
+
+            this.logger.warn("Messages are sent faster than they can be serialized in lane [{}], the senders are slowed"
+                + " down until some room is freed in the queue (see replication.sender.store.* properties)",
+                lane.storeThread.getName());
+        }
+
+        // Wait for some room in the lane, but not forever in case the serialization is stuck
+        return lane.storeQueue.offer(entry, this.storeQueueTimeout, TimeUnit.SECONDS);
+    }
+
     @Override
     public void ping(ReplicationInstance instance)
     {
@@ -361,7 +592,7 @@ public class DefaultReplicationSender implements ReplicationSender, Initializabl
     @Override
     public void resend(ReplicationMessageEventQuery query, Collection<String> receivers) throws ReplicationException
     {
-        try (EventSearchResult result = this.eventStore.search(query, Set.of(Event.FIELD_ID))) {
+        try (EventSearchResult result = this.logStore.search(query, Set.of(Event.FIELD_ID))) {
             for (Event event : (Iterable<Event>) result.stream()::iterator) {
                 send(this.logStore.loadMessage(event.getId(), receivers));
             }
@@ -0,0 +1,1042 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.message;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+
+/**
+ * An append-only journal of messages stored in sequential segment files.
+ * <p>
+ * Each record is made of a kind, a length prefixed header protected by a CRC32 checksum and a length prefixed data
+ * block followed by its own CRC32 checksum, verified when the data is read. Storing a message appends a store record
+ * and deleting it appends a delete record, both being forced to disk before returning. The index of the live
+ * messages only contains their location in the segments, the sequence in which they were stored and an optional key
+ * extracted from their metadata. It is rebuilt in memory by reading the headers of all the segments when the journal is
+ * opened. Any incomplete record found at the end of the last segment (typically after a crash) is truncated, while an
+ * unreadable record in an older segment is reported as a corruption. The metadata of a message is only read from the
+ * segment when requested.
+ * <p>
+ * Segments are deleted, starting from the oldest one, when all the messages they contain have been deleted. When the
+ * oldest segment mostly contains deleted messages, or when it's the only thing preventing the deletion of the
+ * following segment, the remaining messages are copied to a new segment (keeping their position in the sequence) so
+ * that the oldest segment can be deleted without waiting for them. The copy is done without holding the lock of the
+ * journal: the new segment is numbered right before the one started at the same time for the following records, so
+ * that anything which happens to the copied messages in the meantime is applied after the copy when the journal is
+ * opened again.
+ *
+ * @version $Id$
+ * @since 2.3.9
+ */
+public class ReplicationMessageJournal implements Closeable
+{
+    /**
+     * The default maximum size of a segment.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final String SEGMENT_EXTENSION = ".journal";
+
+    private static final String COMPACTION_EXTENSION = ".compacting";
+
+    private static final byte KIND_STORE = 1;
+
+    private static final byte KIND_DELETE = 2;
+
+    private static final int NULL = -1;
+
+    private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The live messages of the oldest segment are moved when they represent less than 1/4 of the segment messages.
+     */
+    private static final int COMPACTION_RATIO = 4;
+
+    private final File folder;
+
+    private final long segmentSize;
+
+    private final Function<Header, String> keyExtractor;
+
+    private final Logger logger;
+
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    private final Map<String, Entry> index = new HashMap<>();
+
+    private final NavigableMap<Long, Entry> sequences = new TreeMap<>();
+
+    private long lastSequence = NULL;
+
+    private Segment activeSegment;
+
+    private FileChannel activeChannel;
+
+    /**
+     * True when the live messages of the oldest segment are being copied to a new segment.
+     */
+    private boolean compacting;
+
+    /**
+     * Write the data of a message.
+     * 
+     * @version $Id$
+     */
+    @FunctionalInterface
+    public interface DataWriter
+    {
+        /**
+         * @param stream the stream where to write the data
+         * @throws IOException when failing to write the data
+         */
+        void write(OutputStream stream) throws IOException;
+
+        /**
+         * Write the data directly in the journal segment, starting at the current position of the channel. The
+         * position of the channel must be right after the data when the method returns.
+         * 
+         * @param channel the channel of the segment where to write the data
+         * @return the number of bytes written
+         * @throws IOException when failing to write the data
+         * @since 2.3.9
+         */
+        default long write(FileChannel channel) throws IOException
+        {
+            CountingOutputStream stream =
+                new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            write(stream);
+            stream.flush();
+
+            return stream.getByteCount();
+        }
+    }
+
+    /**
+     * Write the data of a message by transferring it from a channel.
+     * 
+     * @version $Id$
+     * @since 2.3.9
+     */
+    public abstract static class ChannelDataWriter implements DataWriter
+    {
+        /**
+         * The maximum number of bytes transferred in one call.
+         */
+        private static final long TRANSFER_SIZE = 8L * 1024 * 1024;
+
+        /**
+         * @return the channel to read the data from
+         * @throws IOException when failing to open the channel
+         */
+        protected abstract ReadableByteChannel openChannel() throws IOException;
+
+        @Override
+        public void write(OutputStream stream) throws IOException
+        {
+            try (ReadableByteChannel source = openChannel()) {
+                IOUtils.copy(Channels.newInputStream(source), stream);
+            }
+        }
+
+        @Override
+        public long write(FileChannel channel) throws IOException
+        {
+            long start = channel.position();
+            long position = start;
+
+            try (ReadableByteChannel source = openChannel()) {
+                // Let the file channel read the source directly instead of going through intermediate streams
+                for (long count = channel.transferFrom(source, position, TRANSFER_SIZE); count > 0;
+                    count = channel.transferFrom(source, position, TRANSFER_SIZE)) {
+                    position += count;
+                }
+            }
+
+            // Transferring data does not move the position of the channel
+            channel.position(position);
+
+            return position - start;
+        }
+    }
+
+    /**
+     * The location of a message stored in the journal.
+     * 
+     * @version $Id$
+     */
+    public static final class Entry
+    {
+        private final String id;
+
+        private final long sequence;
+
+        private final Segment segment;
+
+        private final long headerOffset;
+
+        private final int headerSize;
+
+        private final long dataSize;
+
+        private final String key;
+
+        private Entry(String id, long sequence, Segment segment, long headerOffset, int headerSize, long dataSize,
+            String key)
+        {
+            this.id = id;
+            this.sequence = sequence;
+            this.segment = segment;
+            this.headerOffset = headerOffset;
+            this.headerSize = headerSize;
+            this.dataSize = dataSize;
+            this.key = key;
+        }
+
+        /**
+         * @return the identifier of the message
+         */
+        public String getId()
+        {
+            return this.id;
+        }
+
+        /**
+         * @return the position of the message in the sequence of stored messages
+         */
+        public long getSequence()
+        {
+            return this.sequence;
+        }
+
+        /**
+         * @return the size of the data of the message
+         */
+        public long getDataSize()
+        {
+            return this.dataSize;
+        }
+
+        /**
+         * @return the key extracted from the metadata of the message, null if the journal does not extract any
+         */
+        public String getKey()
+        {
+            return this.key;
+        }
+
+        private long getDataOffset()
+        {
+            return this.headerOffset + this.headerSize + Long.BYTES + Long.BYTES;
+        }
+    }
+
+    /**
+     * The metadata of a message stored in the journal.
+     * 
+     * @version $Id$
+     */
+    public static final class Header
+    {
+        private final Map<String, List<String>> metadata;
+
+        private final Map<String, List<String>> custom;
+
+        private Header(Map<String, List<String>> metadata, Map<String, List<String>> custom)
+        {
+            this.metadata = metadata;
+            this.custom = custom;
+        }
+
+        /**
+         * @return the standard metadata of the message
+         */
+        public Map<String, List<String>> getMetadata()
+        {
+            return this.metadata;
+        }
+
+        /**
+         * @return the custom metadata of the message
+         */
+        public Map<String, List<String>> getCustom()
+        {
+            return this.custom;
+        }
+    }
+
+    /**
+     * Verify the checksum of the data once it has been entirely read.
+     * 
+     * @version $Id$
+     */
+    private static final class CheckedDataInputStream extends CheckedInputStream
+    {
+        private final long expected;
+
+        private final String id;
+
+        private CheckedDataInputStream(InputStream stream, long expected, String id)
+        {
+            super(stream, new CRC32());
+
+            this.expected = expected;
+            this.id = id;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            return verify(super.read());
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException
+        {
+            return verify(super.read(buffer, offset, length));
+        }
+
+        private int verify(int result) throws IOException
+        {
+            if (result < 0 && getChecksum().getValue() != this.expected) {
+                throw new IOException("Corrupted data for message with id [" + this.id + "]");
+            }
+
+            return result;
+        }
+    }
+
+    private static final class Segment
+    {
+        private final long number;
+
+        private final File file;
+
+        /**
+         * The number of messages stored in the segment.
+         */
+        private int stored;
+
+        /**
+         * The number of messages stored in the segment which were not deleted yet.
+         */
+        private int live;
+
+        private Segment(long number, File file)
+        {
+            this.number = number;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Open the journal and rebuild the index of the live messages.
+     * 
+     * @param folder the folder containing the segments
+     * @param segmentSize the size after which a new segment is started
+     * @param logger the logger to use to report recovered problems
+     * @throws IOException when failing to open the journal
+     */
+    public ReplicationMessageJournal(File folder, long segmentSize, Logger logger) throws IOException
+    {
+        this(folder, segmentSize, null, logger);
+    }
+
+    /**
+     * @param folder the folder containing the segments
+     * @param segmentSize the size after which a new segment is started
+     * @param keyExtractor extract from the metadata of a message the key to keep in memory (see {@link Entry#getKey()})
+     * @param logger the logger to use to report recovered problems
+     * @throws IOException when failing to open the journal
+     */
+    public ReplicationMessageJournal(File folder, long segmentSize, Function<Header, String> keyExtractor,
+        Logger logger) throws IOException
+    {
+        this.folder = folder;
+        this.segmentSize = segmentSize > 0 ? segmentSize : DEFAULT_SEGMENT_SIZE;
+        this.keyExtractor = keyExtractor;
+        this.logger = logger;
+
+        // Make sure the folder exist on filesystem
+        this.folder.mkdirs();
+
+        // Find the existing segments
+        File[] files = this.folder.listFiles((dir, name) -> name.endsWith(SEGMENT_EXTENSION));
+        if (files != null) {
+            for (File file : files) {
+                String number = StringUtils.removeEnd(file.getName(), SEGMENT_EXTENSION);
+                if (StringUtils.isNumeric(number)) {
+                    Segment segment = new Segment(Long.parseLong(number), file);
+                    this.segments.put(segment.number, segment);
+                }
+            }
+        }
+
+        // Forget the compactions interrupted by a crash (the copied messages are still in their original segment)
+        File[] compactionFiles = this.folder.listFiles((dir, name) -> name.endsWith(COMPACTION_EXTENSION));
+        if (compactionFiles != null) {
+            for (File file : compactionFiles) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+
+        // Rebuild the index
+        for (Segment segment : this.segments.values()) {
+            load(segment, segment == this.segments.lastEntry().getValue());
+        }
+
+        // Continue writing in the last segment
+        if (this.segments.isEmpty()) {
+            startSegment(0);
+        } else {
+            openSegment(this.segments.lastEntry().getValue());
+        }
+    }
+
+    private void load(Segment segment, boolean last) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long offset = 0;
+            while (offset < size) {
+                long next = loadRecord(segment, channel, offset, size);
+
+                if (next < 0) {
+                    // Only the segment being written when the instance stopped can end with an incomplete record
+                    if (!last) {
+                        throw new IOException(String.format("Corrupted record at offset [%s] of replication journal"
+                            + " segment [%s] which is not the last one, the segment need to be repaired or removed",
+                            offset, segment.file.getAbsolutePath()));
+                    }
+
+                    this.logger.warn("Truncating incomplete record at offset [{}] of replication journal segment [{}]",
+                        offset, segment.file.getAbsolutePath());
+
+                    channel.truncate(offset);
+
+                    break;
+                }
+
+                offset = next;
+            }
+        }
+    }
+
+    private long loadRecord(Segment segment, FileChannel channel, long offset, long size) throws IOException
+    {
+        // Kind and header size
+        ByteBuffer prefix = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES);
+        if (!read(channel, prefix, offset)) {
+            return NULL;
+        }
+        byte kind = prefix.get(0);
+        int headerSize = prefix.getInt(Byte.BYTES);
+        if ((kind != KIND_STORE && kind != KIND_DELETE) || headerSize < 0
+            || headerSize > size - offset - prefix.capacity()) {
+            return NULL;
+        }
+
+        // Header, checksum and data size
+        ByteBuffer header = ByteBuffer.allocate(headerSize + Long.BYTES + Long.BYTES);
+        if (!read(channel, header, offset + prefix.capacity())) {
+            return NULL;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, headerSize);
+        long dataOffset = offset + prefix.capacity() + header.capacity();
+        long dataSize = header.getLong(headerSize + Long.BYTES);
+        if (crc.getValue() != header.getLong(headerSize) || dataSize < 0
+            || dataSize > size - dataOffset - Long.BYTES) {
+            return NULL;
+        }
+
+        DataInputStream headerStream = new DataInputStream(new ByteArrayInputStream(header.array(), 0, headerSize));
+        if (kind == KIND_STORE) {
+            String id = readString(headerStream);
+            long sequence = headerStream.readLong();
+            String key = this.keyExtractor != null
+                ? this.keyExtractor.apply(new Header(readMap(headerStream), readMap(headerStream))) : null;
+            index(new Entry(id, sequence, segment, offset + prefix.capacity(), headerSize, dataSize, key));
+            this.lastSequence = Math.max(this.lastSequence, sequence);
+        } else {
+            unindex(readString(headerStream));
+        }
+
+        // Skip the data and its checksum
+        return dataOffset + dataSize + Long.BYTES;
+    }
+
+    private boolean read(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void index(Entry entry)
+    {
+        Entry previous = this.index.put(entry.id, entry);
+        if (previous != null) {
+            this.sequences.remove(previous.sequence);
+            --previous.segment.live;
+        }
+        this.sequences.put(entry.sequence, entry);
+
+        ++entry.segment.stored;
+        ++entry.segment.live;
+    }
+
+    private Entry unindex(String id)
+    {
+        Entry entry = this.index.remove(id);
+        if (entry != null) {
+            this.sequences.remove(entry.sequence);
+            --entry.segment.live;
+        }
+
+        return entry;
+    }
+
+    private File getSegmentFile(long number)
+    {
+        return getFile(number, SEGMENT_EXTENSION);
+    }
+
+    private File getFile(long number, String extension)
+    {
+        return new File(this.folder, String.format("%019d", number) + extension);
+    }
+
+    private void startSegment(long number) throws IOException
+    {
+        Segment segment = new Segment(number, getSegmentFile(number));
+        this.segments.put(number, segment);
+
+        openSegment(segment);
+    }
+
+    private void openSegment(Segment segment) throws IOException
+    {
+        if (this.activeChannel != null) {
+            this.activeChannel.close();
+        }
+
+        this.activeSegment = segment;
+        this.activeChannel = FileChannel.open(segment.file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE);
+        this.activeChannel.position(this.activeChannel.size());
+    }
+
+    /**
+     * @param fromSequence the minimum sequence of the messages to return
+     * @param max the maximum number of messages to return
+     * @return the live messages in the order they were stored
+     */
+    public synchronized List<Entry> getEntries(long fromSequence, int max)
+    {
+        List<Entry> entries = new ArrayList<>(Math.min(max, this.sequences.size()));
+
+        for (Entry entry : this.sequences.tailMap(fromSequence, true).values()) {
+            if (entries.size() >= max) {
+                break;
+            }
+
+            entries.add(entry);
+        }
+
+        return entries;
+    }
+
+    /**
+     * @return the number of live messages
+     */
+    public synchronized int size()
+    {
+        return this.index.size();
+    }
+
+    /**
+     * @param entry the message
+     * @return the metadata of the message
+     * @throws IOException when failing to read the metadata
+     */
+    public synchronized Header readHeader(Entry entry) throws IOException
+    {
+        // The message might have been moved in the meantime
+        Entry currentEntry = this.index.getOrDefault(entry.id, entry);
+
+        ByteBuffer header = ByteBuffer.allocate(currentEntry.headerSize);
+        try (FileChannel channel = FileChannel.open(currentEntry.segment.file.toPath(), StandardOpenOption.READ)) {
+            if (!read(channel, header, currentEntry.headerOffset)) {
+                throw new EOFException("Failed to read the header of message with id [" + entry.id + "]");
+            }
+        }
+
+        DataInputStream headerStream = new DataInputStream(new ByteArrayInputStream(header.array()));
+        // Skip the id and sequence
+        readString(headerStream);
+        headerStream.readLong();
+
+        return new Header(readMap(headerStream), readMap(headerStream));
+    }
+
+    /**
+     * @param id the identifier of the message
+     * @return the message, or null if no message with this identifier is stored
+     */
+    public synchronized Entry get(String id)
+    {
+        return this.index.get(id);
+    }
+
+    /**
+     * @param id the identifier of the message
+     * @param metadata the standard metadata of the message
+     * @param custom the custom metadata of the message
+     * @param data the writer of the message data
+     * @return the stored message
+     * @throws IOException when failing to store the message
+     */
+    public synchronized Entry store(String id, Map<String, List<String>> metadata, Map<String, List<String>> custom,
+        DataWriter data) throws IOException
+    {
+        return store(id, this.lastSequence + 1, metadata, custom, data);
+    }
+
+    private Entry store(String id, long sequence, Map<String, List<String>> metadata,
+        Map<String, List<String>> custom, DataWriter data) throws IOException
+    {
+        // Start a new segment if the current one is full
+        if (this.activeChannel.size() >= this.segmentSize) {
+            startSegment(this.activeSegment.number + 1);
+        }
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerStream = new DataOutputStream(header);
+        writeString(id, headerStream);
+        headerStream.writeLong(sequence);
+        writeMap(metadata, headerStream);
+        writeMap(custom, headerStream);
+
+        long offset = this.activeChannel.position();
+        long dataOffset = offset + Byte.BYTES + Integer.BYTES + header.size() + Long.BYTES + Long.BYTES;
+        long dataSize;
+        try {
+            // The size of the data is only known once written
+            dataSize = write(KIND_STORE, header, NULL, data);
+
+            // Update the size of the data now that it's known
+            ByteBuffer size = ByteBuffer.allocate(Long.BYTES).putLong(0, dataSize);
+            while (size.hasRemaining()) {
+                this.activeChannel.write(size, dataOffset - Long.BYTES + size.position());
+            }
+
+            writeDataChecksum(dataOffset, dataSize);
+
+            // Make sure the message is actually on disk before acknowledging it
+            this.activeChannel.force(false);
+        } catch (Exception e) {
+            // Get rid of the partially written record
+            this.activeChannel.truncate(offset);
+            this.activeChannel.position(offset);
+
+            throw e;
+        }
+
+        String key = this.keyExtractor != null ? this.keyExtractor.apply(new Header(metadata, custom)) : null;
+        Entry entry = new Entry(id, sequence, this.activeSegment, offset + Byte.BYTES + Integer.BYTES, header.size(),
+            dataSize, key);
+        index(entry);
+        this.lastSequence = Math.max(this.lastSequence, sequence);
+
+        return entry;
+    }
+
+    private long write(byte kind, ByteArrayOutputStream header, long dataSize, DataWriter data) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update(header.toByteArray());
+
+        OutputStream channelStream = new BufferedOutputStream(Channels.newOutputStream(this.activeChannel));
+        DataOutputStream stream = new DataOutputStream(channelStream);
+        stream.writeByte(kind);
+        stream.writeInt(header.size());
+        header.writeTo(stream);
+        stream.writeLong(crc.getValue());
+        stream.writeLong(dataSize);
+
+        // Make sure the header is in the segment before writing the data
+        stream.flush();
+
+        long writtenSize = 0;
+        if (data != null) {
+            writtenSize = data.write(this.activeChannel);
+        }
+
+        return writtenSize;
+    }
+
+    private void writeDataChecksum(long dataOffset, long dataSize) throws IOException
+    {
+        // The data is written in many different ways so read it back (it's very likely still in the system cache)
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(dataSize, CHECKSUM_BUFFER_SIZE));
+        long position = dataOffset;
+        while (position < dataOffset + dataSize) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), dataOffset + dataSize - position));
+            int count = this.activeChannel.read(buffer, position);
+            if (count < 0) {
+                throw new EOFException("Unexpected end of replication journal segment ["
+                    + this.activeSegment.file.getAbsolutePath() + "]");
+            }
+            buffer.flip();
+            crc.update(buffer);
+            position += count;
+        }
+
+        ByteBuffer checksum = ByteBuffer.allocate(Long.BYTES).putLong(0, crc.getValue());
+        long checksumOffset = dataOffset + dataSize;
+        while (checksum.hasRemaining()) {
+            this.activeChannel.write(checksum, checksumOffset + checksum.position());
+        }
+        this.activeChannel.position(checksumOffset + Long.BYTES);
+    }
+
+    /**
+     * @param id the identifier of the message to delete
+     * @throws IOException when failing to delete the message
+     */
+    public void delete(String id) throws IOException
+    {
+        synchronized (this) {
+            if (unindex(id) == null) {
+                // Unknown message
+                return;
+            }
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            writeString(id, new DataOutputStream(header));
+
+            long offset = this.activeChannel.position();
+            try {
+                write(KIND_DELETE, header, 0, null);
+                writeDataChecksum(this.activeChannel.position(), 0);
+
+                // Make sure the message won't come back after a crash
+                this.activeChannel.force(false);
+            } catch (IOException e) {
+                // Get rid of the partially written record
+                this.activeChannel.truncate(offset);
+                this.activeChannel.position(offset);
+
+                throw e;
+            }
+        }
+
+        // Get rid of the segments which are not needed anymore, without blocking the other operations
+        compact();
+    }
+
+    private void compact() throws IOException
+    {
+        while (true) {
+            Segment oldest;
+            List<Entry> entries;
+            long number;
+
+            synchronized (this) {
+                oldest = getCompactableSegment();
+                if (oldest == null) {
+                    return;
+                }
+
+                if (oldest.live == 0) {
+                    // The segment does not contain anything useful anymore
+                    deleteSegment(oldest);
+
+                    continue;
+                }
+
+                // Collect the remaining messages in the order of the sequence
+                entries = new ArrayList<>(oldest.live);
+                for (Entry entry : this.sequences.values()) {
+                    if (entry.segment == oldest) {
+                        entries.add(entry);
+                    }
+                }
+
+                // Reserve the segment which will contain the copy and continue writing in the next one so that
+                // what happens to the copied messages in the meantime is loaded after the copy
+                number = this.activeSegment.number + 1;
+                startSegment(number + 1);
+
+                this.compacting = true;
+            }
+
+            try {
+                copy(oldest, entries, number);
+            } finally {
+                synchronized (this) {
+                    this.compacting = false;
+                }
+            }
+        }
+    }
+
+    private Segment getCompactableSegment()
+    {
+        if (this.compacting || this.segments.size() <= 1) {
+            return null;
+        }
+
+        Segment oldest = this.segments.firstEntry().getValue();
+
+        if (oldest.live > 0) {
+            Segment next = this.segments.higherEntry(oldest.number).getValue();
+            if (oldest.live * COMPACTION_RATIO > oldest.stored && (next == this.activeSegment || next.live > 0)) {
+                // Still too many live messages in the segment and it's not preventing the deletion of others
+                return null;
+            }
+        }
+
+        return oldest;
+    }
+
+    private void copy(Segment oldest, List<Entry> entries, long number) throws IOException
+    {
+        Segment segment = new Segment(number, getSegmentFile(number));
+        File compactionFile = getFile(number, COMPACTION_EXTENSION);
+
+        // Copy the records as they are (the oldest segment is not modified anymore so it's safe to read it without
+        // holding the lock)
+        List<Entry> copies = new ArrayList<>(entries.size());
+        try {
+            try (FileChannel source = FileChannel.open(oldest.file.toPath(), StandardOpenOption.READ);
+                FileChannel target = FileChannel.open(compactionFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (Entry entry : entries) {
+                    long recordOffset = entry.headerOffset - Byte.BYTES - Integer.BYTES;
+                    long recordSize = entry.getDataOffset() + entry.dataSize + Long.BYTES - recordOffset;
+
+                    long offset = target.position();
+                    transfer(source, recordOffset, recordSize, target);
+
+                    copies.add(new Entry(entry.id, entry.sequence, segment,
+                        offset + Byte.BYTES + Integer.BYTES, entry.headerSize, entry.dataSize, entry.key));
+                }
+
+                // Make sure the copy is on disk before forgetting the original
+                target.force(false);
+            }
+
+            Files.move(compactionFile.toPath(), segment.file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(compactionFile.toPath());
+
+            throw e;
+        }
+
+        synchronized (this) {
+            this.segments.put(number, segment);
+
+            for (Entry copy : copies) {
+                ++segment.stored;
+
+                // Only switch to the copy if the message was not deleted or stored again in the meantime
+                Entry entry = this.index.get(copy.id);
+                if (entry != null && entry.segment == oldest && entry.sequence == copy.sequence) {
+                    this.index.put(copy.id, copy);
+                    this.sequences.put(copy.sequence, copy);
+                    --oldest.live;
+                    ++segment.live;
+                }
+            }
+
+            deleteSegment(oldest);
+        }
+    }
+
+    private static void transfer(FileChannel source, long position, long size, FileChannel target)
+        throws IOException
+    {
+        long current = position;
+        long end = position + size;
+        while (current < end) {
+            long count = source.transferTo(current, end - current, target);
+            if (count <= 0) {
+                throw new EOFException("Unexpected end of replication journal segment while copying it");
+            }
+            current += count;
+        }
+    }
+
+    private void deleteSegment(Segment segment)
+    {
+        this.segments.remove(segment.number);
+        try {
+            Files.deleteIfExists(segment.file.toPath());
+        } catch (IOException e) {
+            // Loading the segment again would not cause any problem since all its messages were deleted or copied
+            this.logger.warn("Failed to delete replication journal segment [{}]: {}", segment.file.getAbsolutePath(),
+                e.getMessage());
+        }
+    }
+
+    /**
+     * @param id the identifier of the message
+     * @return the stream to read the data of the message
+     * @throws IOException when failing to read the data of the message
+     */
+    public synchronized InputStream openData(String id) throws IOException
+    {
+        Entry entry = this.index.get(id);
+
+        if (entry == null) {
+            throw new FileNotFoundException("No message with id [" + id + "] in journal [" + this.folder + "]");
+        }
+
+        return openData(entry);
+    }
+
+    private InputStream openData(Entry entry) throws IOException
+    {
+        FileInputStream stream = new FileInputStream(entry.segment.file);
+        long checksum;
+        try {
+            // Read the checksum which follows the data
+            ByteBuffer checksumBuffer = ByteBuffer.allocate(Long.BYTES);
+            if (!read(stream.getChannel(), checksumBuffer, entry.getDataOffset() + entry.dataSize)) {
+                throw new EOFException("Failed to read the data checksum of message with id [" + entry.id + "]");
+            }
+            checksum = checksumBuffer.getLong(0);
+
+            stream.getChannel().position(entry.getDataOffset());
+        } catch (IOException e) {
+            stream.close();
+
+            throw e;
+        }
+
+        return new CheckedDataInputStream(new BoundedInputStream(stream, entry.dataSize), checksum, entry.id);
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (this.activeChannel != null) {
+            this.activeChannel.close();
+            this.activeChannel = null;
+        }
+    }
+
+    private static void writeMap(Map<String, List<String>> map, DataOutputStream stream) throws IOException
+    {
+        stream.writeInt(map.size());
+        for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+            writeString(entry.getKey(), stream);
+            stream.writeInt(entry.getValue().size());
+            for (String value : entry.getValue()) {
+                writeString(value, stream);
+            }
+        }
+    }
+
+    private static void writeString(String value, DataOutputStream stream) throws IOException
+    {
+        if (value == null) {
+            stream.writeInt(NULL);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            stream.writeInt(bytes.length);
+            stream.write(bytes);
+        }
+    }
+
+    private static Map<String, List<String>> readMap(DataInputStream stream) throws IOException
+    {
+        int size = stream.readInt();
+        Map<String, List<String>> map = new LinkedHashMap<>(size);
+        for (int i = 0; i < size; ++i) {
+            String key = readString(stream);
+            int valuesSize = stream.readInt();
+            List<String> values = new ArrayList<>(valuesSize);
+            for (int j = 0; j < valuesSize; ++j) {
+                values.add(readString(stream));
+            }
+            map.put(key, Collections.unmodifiableList(values));
+        }
+
+        return Collections.unmodifiableMap(map);
+    }
+
+    private static String readString(DataInputStream stream) throws IOException
+    {
+        int length = stream.readInt();
+        if (length == NULL) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        stream.readFully(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.message;
+
+import java.util.Date;
+
+/**
+ * The failures met so far while handling a message.
+ *
+ * @version $Id$
+ * @since 2.3.9
+ */
+public class ReplicationMessageRetry
+{
+    private final String id;
+
+    private final int attempts;
+
+    private final Date nextTry;
+
+    private final String cause;
+
+    private final boolean dead;
+
+    /**
+     * @param id the identifier of the message
+     * @param attempts the number of failed attempts to handle the message
+     * @param nextTry the date of the next attempt
+     * @param cause the cause of the last failure
+     * @param dead true if the message is not going to be handled again automatically
+     */
+    public ReplicationMessageRetry(String id, int attempts, Date nextTry, String cause, boolean dead)
+    {
+        this.id = id;
+        this.attempts = attempts;
+        this.nextTry = nextTry;
+        this.cause = cause;
+        this.dead = dead;
+    }
+
+    /**
+     * @return the identifier of the message
+     */
+    public String getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * @return the number of failed attempts to handle the message
+     */
+    public int getAttempts()
+    {
+        return this.attempts;
+    }
+
+    /**
+     * @return the date of the next attempt
+     */
+    public Date getNextTry()
+    {
+        return this.nextTry;
+    }
+
+    /**
+     * @return the cause of the last failure
+     */
+    public String getCause()
+    {
+        return this.cause;
+    }
+
+    /**
+     * @return true if the message is not going to be handled again automatically
+     */
+    public boolean isDead()
+    {
+        return this.dead;
+    }
+}
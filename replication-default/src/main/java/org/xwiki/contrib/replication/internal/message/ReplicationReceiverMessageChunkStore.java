@@ -0,0 +1,234 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.message;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.replication.internal.ReplicationFileStore;
+
+import com.xpn.xwiki.util.Util;
+
+/**
+ * Store the part of the data of a message already received when the sender transfers it in several chunks, so that a
+ * failed transfer can be resumed from the last received byte.
+ * <p>
+ * A transfer is identified by the sending instance and the message identifier since the same message can be relayed
+ * by several instances at the same time. The announced size of the data and whether it's compressed are stored with
+ * the received data and a chunk announcing something else is rejected.
+ *
+ * @version $Id$
+ * @since 2.3.9
+ */
+@Component(roles = ReplicationReceiverMessageChunkStore.class)
+@Singleton
+public class ReplicationReceiverMessageChunkStore implements Initializable
+{
+    private static final String FILE_DATA = "data";
+
+    private static final String FILE_TRANSFER = "transfer";
+
+    private static final int LOCK_COUNT = 64;
+
+    /**
+     * The time after which a transfer which was not resumed is forgotten.
+     */
+    private static final long EXPIRATION = TimeUnit.DAYS.toMillis(7);
+
+    @Inject
+    private ReplicationFileStore fileStore;
+
+    private final Object[] locks = new Object[LOCK_COUNT];
+
+    private File home;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.home = new File(this.fileStore.getReplicationFolder(), "receiver-chunks");
+
+        for (int i = 0; i < this.locks.length; ++i) {
+            this.locks[i] = new Object();
+        }
+
+        // Forget the transfers abandoned by the sender
+        File[] folders = this.home.listFiles();
+        if (folders != null) {
+            long limit = System.currentTimeMillis() - EXPIRATION;
+            for (File folder : folders) {
+                if (new File(folder, FILE_DATA).lastModified() < limit) {
+                    FileUtils.deleteQuietly(folder);
+                }
+            }
+        }
+    }
+
+    private static String getTransfer(String instance, String id)
+    {
+        return instance + ' ' + id;
+    }
+
+    private Object getLock(String transfer)
+    {
+        return this.locks[Math.floorMod(transfer.hashCode(), this.locks.length)];
+    }
+
+    private File getFolder(String transfer)
+    {
+        return new File(this.home, String.valueOf(Util.getHash(transfer)));
+    }
+
+    /**
+     * @param instance the URI of the instance sending the message
+     * @param id the identifier of the message
+     * @return the file containing the part of the data already received
+     */
+    public File getDataFile(String instance, String id)
+    {
+        return new File(getFolder(getTransfer(instance, id)), FILE_DATA);
+    }
+
+    /**
+     * @param instance the URI of the instance sending the message
+     * @param id the identifier of the message
+     * @param size the total size of the data announced by the sender
+     * @param compressed true if the data announced by the sender is compressed
+     * @return the number of bytes already received, 0 if the data received so far does not match what the sender
+     *         announced (in which case it's forgotten)
+     */
+    public long getOffset(String instance, String id, long size, boolean compressed)
+    {
+        String transfer = getTransfer(instance, id);
+
+        synchronized (getLock(transfer)) {
+            File dataFile = new File(getFolder(transfer), FILE_DATA);
+
+            if (dataFile.exists() && !matches(transfer, size, compressed)) {
+                // The sender started a different transfer of the same message
+                FileUtils.deleteQuietly(dataFile.getParentFile());
+            }
+
+            return dataFile.length();
+        }
+    }
+
+    private boolean matches(String transfer, long size, boolean compressed)
+    {
+        try {
+            List<String> lines =
+                FileUtils.readLines(new File(getFolder(transfer), FILE_TRANSFER), StandardCharsets.UTF_8);
+
+            return lines.equals(getTransferLines(transfer, size, compressed));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static List<String> getTransferLines(String transfer, long size, boolean compressed)
+    {
+        return List.of(transfer, String.valueOf(size), String.valueOf(compressed));
+    }
+
+    /**
+     * @param instance the URI of the instance sending the message
+     * @param id the identifier of the message
+     * @param size the total size of the data announced by the sender
+     * @param compressed true if the data announced by the sender is compressed
+     * @param offset the position of the received chunk in the data
+     * @param stream the content of the chunk
+     * @return the number of bytes received so far
+     * @throws IOException when failing to store the chunk
+     */
+    public long append(String instance, String id, long size, boolean compressed, long offset, InputStream stream)
+        throws IOException
+    {
+        String transfer = getTransfer(instance, id);
+
+        synchronized (getLock(transfer)) {
+            File dataFile = new File(getFolder(transfer), FILE_DATA);
+
+            if (offset != dataFile.length()) {
+                throw new IOException(
+                    String.format("Unexpected offset [%s] for message [%s] sent by [%s], expected [%s]", offset, id,
+                        instance, dataFile.length()));
+            }
+
+            if (offset == 0) {
+                // Remember what the sender announced
+                dataFile.getParentFile().mkdirs();
+                FileUtils.writeLines(new File(dataFile.getParentFile(), FILE_TRANSFER), StandardCharsets.UTF_8.name(),
+                    getTransferLines(transfer, size, compressed));
+            } else if (!matches(transfer, size, compressed)) {
+                throw new IOException(String.format(
+                    "The chunk of message [%s] sent by [%s] does not match the data received so far", id, instance));
+            }
+
+            // Whatever was received before a failure is kept since the chunk is always received in order
+            try (FileOutputStream fileStream = new FileOutputStream(dataFile, true)) {
+                IOUtils.copyLarge(stream, fileStream);
+            }
+
+            return dataFile.length();
+        }
+    }
+
+    /**
+     * @param instance the URI of the instance sending the message
+     * @param id the identifier of the message
+     * @param size the total size of the data announced by the sender
+     * @param compressed true if the data announced by the sender is compressed
+     * @return true if all the announced data was received for this transfer
+     */
+    public boolean isComplete(String instance, String id, long size, boolean compressed)
+    {
+        String transfer = getTransfer(instance, id);
+
+        synchronized (getLock(transfer)) {
+            return matches(transfer, size, compressed)
+                && new File(getFolder(transfer), FILE_DATA).length() == size;
+        }
+    }
+
+    /**
+     * @param instance the URI of the instance sending the message
+     * @param id the identifier of the message
+     */
+    public void delete(String instance, String id)
+    {
+        String transfer = getTransfer(instance, id);
+
+        synchronized (getLock(transfer)) {
+            FileUtils.deleteQuietly(getFolder(transfer));
+        }
+    }
+}
@@ -19,17 +19,22 @@
  */
 package org.xwiki.contrib.replication.internal.message;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Predicate;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
 import org.xwiki.component.manager.ComponentManager;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
@@ -46,12 +51,18 @@ import org.xwiki.contrib.replication.ReplicationReceiverMessageFilter;
 import org.xwiki.contrib.replication.event.ReplicationMessageHandlingEvent;
 import org.xwiki.contrib.replication.internal.DefaultReplicationContext;
 import org.xwiki.contrib.replication.internal.ReplicationClient;
+import org.xwiki.contrib.replication.internal.ReplicationConfiguration;
+import org.xwiki.contrib.replication.internal.ReplicationMessageKeys;
 import org.xwiki.contrib.replication.internal.message.log.ReplicationMessageLogStore;
 import org.xwiki.contrib.replication.log.ReplicationMessageEventQuery;
 import org.xwiki.observation.ObservationManager;
 
 /**
  * Maintain a queue of replication data to give to the various receivers.
+ * <p>
+ * When more than one lane is configured (see {@link ReplicationConfiguration#getReceiverLanes()}), the messages are
+ * dispatched to lanes handled in parallel based on the entity they target, so that messages targeting the same entity
+ * are still handled in the order they were received.
  * 
  * @version $Id$
  */
@@ -60,6 +71,11 @@ import org.xwiki.observation.ObservationManager;
 public class ReplicationReceiverMessageQueue extends AbstractReplicationMessageQueue<ReplicationReceiverMessage>
     implements Initializable
 {
+    /**
+     * The maximum number of messages waiting in a lane.
+     */
+    private static final int LANE_SIZE = 100;
+
     @Inject
     private ReplicationReceiverMessageStore store;
 
@@ -87,15 +103,76 @@ public class ReplicationReceiverMessageQueue extends AbstractReplicationMessageQ
     @Inject
     private ReplicationReceiverMessageFilter filter;
 
+    private Lane[] lanes;
+
+    private final class Lane implements Runnable
+    {
+        private final BlockingQueue<ReplicationReceiverMessage> laneQueue = new LinkedBlockingQueue<>(LANE_SIZE);
+
+        private final Thread laneThread;
+
+        private ReplicationReceiverMessage laneMessage;
+
+        private Lane(int index)
+        {
+            this.laneThread = new Thread(this);
+            this.laneThread.setName(getThreadName() + " - lane " + index);
+            this.laneThread.setPriority(Thread.NORM_PRIORITY - 2);
+            // That thread can be stopped any time without really loosing anything
+            this.laneThread.setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            while (!disposed) {
+                try {
+                    this.laneMessage = this.laneQueue.take();
+
+                    try {
+                        // Handle the message
+                        handle(this.laneMessage);
+
+                        // Remove the message from the store
+                        removeFromStore(this.laneMessage);
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Throwable t) {
+                        onFailed(this.laneMessage, t);
+                    } finally {
+                        this.laneMessage = null;
+                    }
+                } catch (InterruptedException e) {
+                    logger.warn("The replication receiver lane thread has been interrupted");
+
+                    // Mark the thread as interrupted
+                    this.laneThread.interrupt();
+
+                    // Stop the loop
+                    break;
+                }
+            }
+        }
+    }
+
     @Override
     public void initialize() throws InitializationException
     {
+        // Initialize the lanes in which messages are handled in parallel
+        int laneCount = this.configuration.getReceiverLanes();
+        if (laneCount > 1) {
+            this.lanes = new Lane[laneCount];
+            for (int i = 0; i < laneCount; ++i) {
+                this.lanes[i] = new Lane(i);
+                this.lanes[i].laneThread.start();
+            }
+        }
+
         // Initialize handling thread
         initializeQueue();
 
-        // Load the queue from disk
-        Queue<ReplicationReceiverMessage> messages = this.store.load();
-        messages.forEach(this.queue::add);
+        // Load the first messages from disk
+        loadMessages();
 
         // Notify the other instances that we are ready to receive messages
         try {
@@ -121,6 +198,94 @@ public class ReplicationReceiverMessageQueue extends AbstractReplicationMessageQ
         return "Replication receiver";
     }
 
+    /**
+     * @return the number of lanes in which messages are handled in parallel
+     * @since 2.3.9
+     */
+    public int getLaneCount()
+    {
+        return this.lanes != null ? this.lanes.length : 1;
+    }
+
+    @Override
+    public void run()
+    {
+        if (this.lanes == null) {
+            // Handle all the messages in the queue thread
+            super.run();
+        } else {
+            // Dispatch the messages to the lanes
+            dispatch();
+        }
+    }
+
+    private void dispatch()
+    {
+        while (!this.disposed) {
+            try {
+                this.currentMessage = take();
+
+                // Messages targeting the same entity always go to the same lane
+                String key = ReplicationMessageKeys.getOrderingKey(this.currentMessage);
+                Lane lane = this.lanes[Math.floorMod(key.hashCode(), this.lanes.length)];
+
+                // Wait for some room in the lane
+                lane.laneQueue.put(this.currentMessage);
+
+                this.currentMessage = null;
+            } catch (InterruptedException e) {
+                this.logger.warn("The replication receiver thread has been interrupted");
+
+                // Mark the thread as interrupted
+                this.thread.interrupt();
+
+                // Stop the loop
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        super.dispose();
+
+        // Stop the lanes
+        if (this.lanes != null) {
+            for (Lane lane : this.lanes) {
+                lane.laneThread.interrupt();
+            }
+        }
+    }
+
+    @Override
+    public List<ReplicationReceiverMessage> getMessages()
+    {
+        if (this.lanes == null) {
+            return super.getMessages();
+        }
+
+        List<ReplicationReceiverMessage> messages = new ArrayList<>();
+
+        // The messages currently handled
+        for (Lane lane : this.lanes) {
+            ReplicationReceiverMessage laneMessage = lane.laneMessage;
+            if (laneMessage != null) {
+                messages.add(laneMessage);
+            }
+        }
+
+        // The messages waiting in the lanes
+        for (Lane lane : this.lanes) {
+            messages.addAll(lane.laneQueue);
+        }
+
+        // The messages waiting to be dispatched
+        messages.addAll(super.getMessages());
+
+        return messages;
+    }
+
     @Override
     protected void handle(ReplicationReceiverMessage message) throws Exception
     {
@@ -181,12 +346,31 @@ public class ReplicationReceiverMessageQueue extends AbstractReplicationMessageQ
             message.getId(), message.getType(), e);
     }
 
+    @Override
+    protected long load(long fromSequence, int max, Predicate<ReplicationReceiverMessage> consumer)
+    {
+        return this.store.load(fromSequence, max, consumer);
+    }
+
     @Override
     protected void removeFromStore(ReplicationReceiverMessage message) throws ReplicationException
     {
         this.store.delete(message);
     }
 
+    @Override
+    public ReplicationMessageRetry getRetry(ReplicationReceiverMessage message)
+    {
+        return this.store.getRetry(message.getId());
+    }
+
+    @Override
+    protected void saveRetry(ReplicationReceiverMessage message, ReplicationMessageRetry retry)
+        throws ReplicationException
+    {
+        this.store.saveRetry(retry);
+    }
+
     /**
      * @param message the message to store and add to the queue
      * @throws ReplicationException when failing to store the message
@@ -194,15 +378,14 @@ public class ReplicationReceiverMessageQueue extends AbstractReplicationMessageQ
     public void add(ReplicationReceiverMessage message) throws ReplicationException
     {
         // Serialize the data
-        ReplicationReceiverMessage storedMessage;
         try {
-            storedMessage = this.store.store(message);
+            this.store.store(message);
         } catch (Exception e) {
             throw new ReplicationException("Failed to store received message with id [" + message.getId() + "]", e);
         }
 
-        // Add the data to the queue
-        this.queue.add(storedMessage);
+        // Add the data to the queue if there is room for it
+        loadMessages();
     }
 
     /**
@@ -212,9 +395,19 @@ public class ReplicationReceiverMessageQueue extends AbstractReplicationMessageQ
      */
     public Date getLastMessageBefore(Date maxDate)
     {
-        Date date = null;
+        Date date = getLastMessageBefore(getMessages(), null);
+
+        // The messages which failed are not handled yet either
+        date = getLastMessageBefore(getRetryMessages(), date);
+
+        return getLastMessageBefore(getDeadMessages(), date);
+    }
+
+    private Date getLastMessageBefore(List<ReplicationReceiverMessage> messages, Date current)
+    {
+        Date date = current;
 
-        for (ReplicationReceiverMessage message : this.queue) {
+        for (ReplicationReceiverMessage message : messages) {
             if (date == null || date.after(message.getDate())) {
                 date = message.getDate();
             }
@@ -20,22 +20,30 @@
 package org.xwiki.contrib.replication.internal.message;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.GZIPOutputStream;
 
 import javax.inject.Singleton;
 
 import org.apache.commons.configuration2.PropertiesConfiguration;
 import org.apache.commons.configuration2.ex.ConfigurationException;
-import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
 import org.xwiki.contrib.replication.ReplicationException;
 import org.xwiki.contrib.replication.ReplicationInstance;
 import org.xwiki.contrib.replication.ReplicationReceiverMessage;
+import org.xwiki.contrib.replication.internal.ReplicationCompression;
+import org.xwiki.contrib.replication.internal.ReplicationCompression.CompressedInput;
 import org.xwiki.contrib.replication.internal.ReplicationUtils;
+import org.xwiki.contrib.replication.internal.message.ReplicationMessageJournal.ChannelDataWriter;
+import org.xwiki.contrib.replication.internal.message.ReplicationMessageJournal.DataWriter;
+import org.xwiki.contrib.replication.internal.message.ReplicationMessageJournal.Entry;
 
 /**
  * @version $Id$
@@ -57,6 +65,11 @@ public class ReplicationReceiverMessageStore extends AbstractReplicationMessageS
             super(messageFolder);
         }
 
+        private FileReplicationReceiverMessage(Entry entry) throws ReplicationException
+        {
+            super(entry);
+        }
+
         @Override
         protected void loadMetadata(PropertiesConfiguration metadata) throws ReplicationException
         {
@@ -75,7 +88,7 @@ public class ReplicationReceiverMessageStore extends AbstractReplicationMessageS
         @Override
         public InputStream open() throws IOException
         {
-            return new FileInputStream(this.dataFile);
+            return openData();
         }
 
         @Override
@@ -98,17 +111,52 @@ public class ReplicationReceiverMessageStore extends AbstractReplicationMessageS
      */
     public ReplicationReceiverMessage store(ReplicationReceiverMessage message) throws ReplicationException
     {
-        File messageFolder = storeMessage(message);
+        Entry entry = storeMessage(message);
+
+        return createReplicationMessage(entry);
+    }
 
-        return createReplicationMessage(messageFolder);
+    @Override
+    protected void storeData(ReplicationReceiverMessage message, OutputStream stream) throws IOException
+    {
+        try (InputStream messageStream = message.open()) {
+            IOUtils.copy(messageStream, stream);
+        }
     }
 
     @Override
-    protected void storeData(ReplicationReceiverMessage message, File dataFile) throws IOException
+    protected DataWriter getDataWriter(ReplicationReceiverMessage message)
     {
-        try (InputStream stream = message.open()) {
-            FileUtils.copyInputStreamToFile(stream, dataFile);
+        if (this.configuration.isCompressionStorage()) {
+            if (message instanceof CompressedInput && ((CompressedInput) message).isDataCompressed()) {
+                // The data was received compressed, store it as is
+                return new ChannelDataWriter()
+                {
+                    @Override
+                    protected ReadableByteChannel openChannel() throws IOException
+                    {
+                        return Channels.newChannel(((CompressedInput) message).openCompressed());
+                    }
+                };
+            }
+
+            int level = this.configuration.getCompressionLevel();
+            return stream -> {
+                GZIPOutputStream compressedStream = ReplicationCompression.compress(stream, level);
+                storeData(message, compressedStream);
+                compressedStream.finish();
+            };
         }
+
+        // Transfer the received data (generally the body of the request) directly to the journal
+        return new ChannelDataWriter()
+        {
+            @Override
+            protected ReadableByteChannel openChannel() throws IOException
+            {
+                return Channels.newChannel(message.open());
+            }
+        };
     }
 
     @Override
@@ -118,6 +166,10 @@ public class ReplicationReceiverMessageStore extends AbstractReplicationMessageS
         super.setMessageMetadata(message, configuration);
 
         configuration.setProperty(PROPERTY_INSTANCE, message.getInstance().getURI());
+
+        if (this.configuration.isCompressionStorage()) {
+            setCompressed(configuration);
+        }
     }
 
     @Override
@@ -131,4 +183,10 @@ public class ReplicationReceiverMessageStore extends AbstractReplicationMessageS
                 e);
         }
     }
+
+    @Override
+    protected FileReplicationReceiverMessage createReplicationMessage(Entry entry) throws ReplicationException
+    {
+        return new FileReplicationReceiverMessage(entry);
+    }
 }
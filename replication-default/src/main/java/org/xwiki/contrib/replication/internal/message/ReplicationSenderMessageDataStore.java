@@ -0,0 +1,380 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.message;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.zip.GZIPOutputStream;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.replication.ReplicationException;
+import org.xwiki.contrib.replication.ReplicationInstance;
+import org.xwiki.contrib.replication.ReplicationSenderMessage;
+import org.xwiki.contrib.replication.event.ReplicationMessageStoringEvent;
+import org.xwiki.contrib.replication.internal.AbstractWrappingMutableReplicationMessage;
+import org.xwiki.contrib.replication.internal.ReplicationCompression;
+import org.xwiki.contrib.replication.internal.ReplicationCompression.CompressedOutput;
+import org.xwiki.contrib.replication.internal.ReplicationConfiguration;
+import org.xwiki.contrib.replication.internal.ReplicationFileStore;
+import org.xwiki.contrib.replication.internal.ReplicationUtils;
+import org.xwiki.contrib.replication.internal.WrappingMutableReplicationSenderMessage;
+import org.xwiki.observation.ObservationManager;
+
+import com.xpn.xwiki.util.Util;
+
+/**
+ * Store the serialized data of the messages to send only once, whatever the number of instances it's sent to. Each
+ * target instance holds a reference on the data which is deleted when the last one release it.
+ *
+ * @version $Id$
+ * @since 2.3.9
+ */
+@Component(roles = ReplicationSenderMessageDataStore.class)
+@Singleton
+public class ReplicationSenderMessageDataStore implements Initializable
+{
+    private static final String FILE_DATA = "data";
+
+    private static final String FILE_DATA_COMPRESSED = FILE_DATA + ".gz";
+
+    private static final String FOLDER_TARGETS = "targets";
+
+    private static final int LOCK_COUNT = 64;
+
+    @Inject
+    private ReplicationFileStore fileStore;
+
+    @Inject
+    private ObservationManager observation;
+
+    @Inject
+    private Provider<WrappingMutableReplicationSenderMessage> wrappingMessageProvider;
+
+    @Inject
+    private ReplicationConfiguration configuration;
+
+    private final Object[] locks = new Object[LOCK_COUNT];
+
+    private File home;
+
+    /**
+     * A message which data is serialized in a file.
+     *
+     * @version $Id$
+     */
+    public interface SerializedDataMessage
+    {
+        /**
+         * @return the file containing the serialized data of the message, compressed or not
+         */
+        File getSerializedDataFile();
+    }
+
+    /**
+     * A message for which the data was already serialized in the shared store.
+     *
+     * @version $Id$
+     */
+    public static final class SharedReplicationSenderMessage
+        extends AbstractWrappingMutableReplicationMessage<ReplicationSenderMessage>
+        implements ReplicationSenderMessage, CompressedOutput, SerializedDataMessage
+    {
+        private final File dataFile;
+
+        private SharedReplicationSenderMessage(File dataFile)
+        {
+            this.dataFile = dataFile;
+        }
+
+        @Override
+        public void write(OutputStream stream) throws IOException
+        {
+            writeData(this.dataFile, stream);
+        }
+
+        @Override
+        public boolean isDataCompressed()
+        {
+            return isCompressed(this.dataFile);
+        }
+
+        @Override
+        public void writeCompressed(OutputStream stream) throws IOException
+        {
+            FileUtils.copyFile(this.dataFile, stream);
+        }
+
+        @Override
+        public File getSerializedDataFile()
+        {
+            return this.dataFile;
+        }
+
+        @Override
+        public String toString()
+        {
+            return ReplicationUtils.toString(this);
+        }
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.home = new File(this.fileStore.getReplicationFolder(), "sender-data");
+
+        for (int i = 0; i < this.locks.length; ++i) {
+            this.locks[i] = new Object();
+        }
+    }
+
+    /**
+     * @param uri the URI of the instance
+     * @return a version of the URI which can be used as a file name
+     */
+    public static String toFileName(String uri)
+    {
+        return StringUtils.replaceChars(uri, "/:@", "-_.");
+    }
+
+    private Object getLock(String id)
+    {
+        return this.locks[Math.floorMod(id.hashCode(), this.locks.length)];
+    }
+
+    private File getDataFolder(String id)
+    {
+        return new File(this.home, String.valueOf(Util.getHash(id)));
+    }
+
+    /**
+     * @param id the identifier of the message
+     * @return the file containing the serialized data of the message
+     */
+    public File getDataFile(String id)
+    {
+        File dataFolder = getDataFolder(id);
+
+        File compressedFile = new File(dataFolder, FILE_DATA_COMPRESSED);
+
+        return compressedFile.exists() ? compressedFile : new File(dataFolder, FILE_DATA);
+    }
+
+    /**
+     * @param dataFile the file containing the serialized data of a message
+     * @return true if the data is compressed
+     * @since 2.3.9
+     */
+    public static boolean isCompressed(File dataFile)
+    {
+        return dataFile.getName().equals(FILE_DATA_COMPRESSED);
+    }
+
+    /**
+     * @param dataFile the file containing the serialized data of a message
+     * @return the size of the uncompressed data
+     * @since 2.3.9
+     */
+    public static long getDataSize(File dataFile)
+    {
+        if (isCompressed(dataFile)) {
+            // The gzip trailer ends with the size of the uncompressed data (modulo 2^32)
+            try (RandomAccessFile file = new RandomAccessFile(dataFile, "r")) {
+                if (file.length() >= Integer.BYTES) {
+                    file.seek(file.length() - Integer.BYTES);
+                    byte[] bytes = new byte[Integer.BYTES];
+                    file.readFully(bytes);
+
+                    return Integer.toUnsignedLong(ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt());
+                }
+            } catch (IOException e) {
+                // Fallback on the size of the file
+            }
+        }
+
+        return dataFile.length();
+    }
+
+    /**
+     * @param dataFile the file containing the serialized data of a message
+     * @param stream the stream where to write the uncompressed data
+     * @throws IOException when failing to write the data
+     * @since 2.3.9
+     */
+    public static void writeData(File dataFile, OutputStream stream) throws IOException
+    {
+        if (isCompressed(dataFile)) {
+            try (InputStream dataStream = ReplicationCompression.decompress(new FileInputStream(dataFile))) {
+                IOUtils.copy(dataStream, stream);
+            }
+        } else {
+            FileUtils.copyFile(dataFile, stream);
+        }
+    }
+
+    private File getTargetFile(File dataFolder, ReplicationInstance target)
+    {
+        return new File(new File(dataFolder, FOLDER_TARGETS), toFileName(target.getURI()));
+    }
+
+    /**
+     * Serialize the message data and reference it for each of the passed target instances.
+     *
+     * @param message the message to serialize
+     * @param targets the instances which will send the message
+     * @return the message associated with the serialized data
+     * @throws ReplicationException when failing to store the message data
+     */
+    public SharedReplicationSenderMessage store(ReplicationSenderMessage message,
+        Collection<ReplicationInstance> targets) throws ReplicationException
+    {
+        // Give a chance to customize the message to store
+        WrappingMutableReplicationSenderMessage customMessage = this.wrappingMessageProvider.get();
+        customMessage.initialize(message);
+        this.observation.notify(new ReplicationMessageStoringEvent(), customMessage);
+
+        boolean compress = this.configuration.isCompressionStorage();
+
+        File dataFolder = getDataFolder(message.getId());
+        File dataFile = new File(dataFolder, compress ? FILE_DATA_COMPRESSED : FILE_DATA);
+
+        synchronized (getLock(message.getId())) {
+            boolean clean = true;
+
+            try {
+                // Make sure the folder exist on filesystem
+                new File(dataFolder, FOLDER_TARGETS).mkdirs();
+
+                // Data
+                try (FileOutputStream stream = new FileOutputStream(dataFile)) {
+                    if (compress) {
+                        GZIPOutputStream compressedStream =
+                            ReplicationCompression.compress(stream, this.configuration.getCompressionLevel());
+                        customMessage.write(compressedStream);
+                        compressedStream.finish();
+                    } else {
+                        customMessage.write(stream);
+                    }
+                }
+
+                // Remember which instances are using the data
+                for (ReplicationInstance target : targets) {
+                    getTargetFile(dataFolder, target).createNewFile();
+                }
+
+                // All went well
+                clean = false;
+            } catch (IOException e) {
+                throw new ReplicationException(
+                    "Failed to write on disk the data of the message with id [" + message.getId() + "]", e);
+            } finally {
+                if (clean) {
+                    FileUtils.deleteQuietly(dataFolder);
+                }
+            }
+        }
+
+        // The message might have adjusted its metadata while writing its data
+        customMessage.updateMetadata();
+
+        SharedReplicationSenderMessage sharedMessage = new SharedReplicationSenderMessage(dataFile);
+        sharedMessage.initialize(customMessage);
+
+        return sharedMessage;
+    }
+
+    /**
+     * Move the data of a message stored with the previous layout (a copy of the data for each target instance) to the
+     * shared store.
+     *
+     * @param id the identifier of the message
+     * @param dataFile the file containing the data of the message
+     * @param target the instance which will send the message
+     * @throws ReplicationException when failing to move the message data
+     */
+    public void migrate(String id, File dataFile, ReplicationInstance target) throws ReplicationException
+    {
+        File dataFolder = getDataFolder(id);
+
+        synchronized (getLock(id)) {
+            try {
+                // Make sure the folder exist on filesystem
+                new File(dataFolder, FOLDER_TARGETS).mkdirs();
+
+                // The data might already have been moved for another instance
+                File sharedDataFile = new File(dataFolder, FILE_DATA);
+                if (!sharedDataFile.exists()) {
+                    FileUtils.moveFile(dataFile, sharedDataFile);
+                }
+
+                // Remember which instance is using the data
+                getTargetFile(dataFolder, target).createNewFile();
+            } catch (IOException e) {
+                throw new ReplicationException("Failed to move the data of the message with id [" + id + "]", e);
+            }
+        }
+    }
+
+    /**
+     * Indicate that the passed instance does not need the message data anymore and delete it if it was the last one.
+     *
+     * @param id the identifier of the message
+     * @param target the instance which does not need the message data anymore
+     * @throws ReplicationException when failing to release the message data
+     */
+    public void release(String id, ReplicationInstance target) throws ReplicationException
+    {
+        File dataFolder = getDataFolder(id);
+
+        synchronized (getLock(id)) {
+            try {
+                // Forget the instance
+                Files.deleteIfExists(getTargetFile(dataFolder, target).toPath());
+
+                // Delete the data if no other instance is using it
+                String[] remaining = new File(dataFolder, FOLDER_TARGETS).list();
+                if ((remaining == null || remaining.length == 0) && dataFolder.exists()) {
+                    FileUtils.deleteDirectory(dataFolder);
+                }
+            } catch (IOException e) {
+                throw new ReplicationException(
+                    "Failed to release the data of the message with id [" + id + "] for instance [" + target + "]",
+                    e);
+            }
+        }
+    }
+}
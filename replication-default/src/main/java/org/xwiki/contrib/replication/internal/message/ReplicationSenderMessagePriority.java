@@ -0,0 +1,76 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.message;
+
+import java.util.Set;
+
+import org.xwiki.contrib.replication.ReplicationMessage;
+
+/**
+ * The lanes in which the messages waiting to be sent to an instance are stored, the messages of a lane with a higher
+ * weight being sent more often.
+ *
+ * @version $Id$
+ * @since 2.3.9
+ */
+public enum ReplicationSenderMessagePriority
+{
+    /**
+     * The messages needed to keep the instances working together (instance updates, recover requests, answers, etc.).
+     */
+    CONTROL(16, ReplicationMessage.TYPE_INSTANCE_UPDATE, ReplicationMessage.TYPE_INSTANCE_RECOVER_REQUEST,
+        ReplicationMessage.TYPE_INSTANCE_RECOVER_FINISHED, ReplicationMessage.TYPE_ANSWER),
+
+    /**
+     * Small messages which should not wait behind big transfers.
+     */
+    METADATA(4),
+
+    /**
+     * All the other messages, including all the messages targeting an entity.
+     */
+    BULK(1);
+
+    private final int weight;
+
+    private final Set<String> types;
+
+    ReplicationSenderMessagePriority(int weight, String... types)
+    {
+        this.weight = weight;
+        this.types = Set.of(types);
+    }
+
+    /**
+     * @return the default weight of the lane
+     */
+    public int getDefaultWeight()
+    {
+        return this.weight;
+    }
+
+    /**
+     * @return the types of messages going to this lane by default
+     */
+    public Set<String> getDefaultTypes()
+    {
+        return this.types;
+    }
+}
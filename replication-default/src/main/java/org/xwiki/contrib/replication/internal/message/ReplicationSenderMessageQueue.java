@@ -19,26 +19,49 @@
  */
 package org.xwiki.contrib.replication.internal.message;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 import javax.inject.Inject;
+import javax.inject.Provider;
 
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.annotation.InstantiationStrategy;
 import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
+import org.xwiki.component.manager.ComponentLifecycleException;
 import org.xwiki.contrib.replication.ReplicationException;
 import org.xwiki.contrib.replication.ReplicationInstance;
 import org.xwiki.contrib.replication.ReplicationSenderMessage;
+import org.xwiki.contrib.replication.ReplicationSenderMessageCoalescer;
 import org.xwiki.contrib.replication.event.ReplicationMessageSendingEvent;
+import org.xwiki.contrib.replication.internal.ReplicationCapabilities;
 import org.xwiki.contrib.replication.internal.ReplicationClient;
+import org.xwiki.contrib.replication.internal.ReplicationConfiguration;
+import org.xwiki.contrib.replication.internal.ReplicationMessageKeys;
 import org.xwiki.contrib.replication.internal.message.ReplicationSenderMessageStore.FileReplicationSenderMessage;
 import org.xwiki.contrib.replication.internal.message.log.ReplicationMessageLogStore;
 import org.xwiki.contrib.replication.log.ReplicationMessageEventQuery;
@@ -46,6 +69,17 @@ import org.xwiki.observation.ObservationManager;
 
 /**
  * Maintain a queue of replication data to send to a specific instance.
+ * <p>
+ * Up to {@link ReplicationConfiguration#getSenderWindow()} messages can be sent at the same time, but messages
+ * targeting the same entity are always sent one after the other. When a message fails, the queue waits for all the
+ * messages being sent to be finished and start again from the oldest message which failed.
+ * <p>
+ * When the target instance supports it, following small messages are sent together in a single request which occupies
+ * a single slot of the window.
+ * <p>
+ * The messages are stored in priority lanes (see {@link ReplicationSenderMessagePriority}) decided by their type and
+ * the next message to send is taken from the lanes using a weighted round robin, so that small urgent messages don't
+ * wait behind hours of big transfers.
  * 
  * @version $Id$
  */
@@ -56,6 +90,9 @@ public class ReplicationSenderMessageQueue extends AbstractReplicationMessageQue
     @Inject
     private ReplicationSenderMessageStore store;
 
+    @Inject
+    private Provider<ReplicationSenderMessageStore> storeProvider;
+
     @Inject
     private ReplicationClient client;
 
@@ -75,7 +112,67 @@ public class ReplicationSenderMessageQueue extends AbstractReplicationMessageQue
      */
     private final Condition pingCondition = this.pingLock.newCondition();
 
-    private final Lock lock = new ReentrantLock();
+    /**
+     * Used to wake up the main thread when a new message is available in any lane or when a message failed.
+     */
+    private final Semaphore wakeSignal = new Semaphore(0);
+
+    /**
+     * Protect the state of the window.
+     */
+    private final ReentrantLock windowLock = new ReentrantLock();
+
+    /**
+     * Condition for waiting for a change in the window.
+     */
+    private final Condition windowCondition = this.windowLock.newCondition();
+
+    /**
+     * The messages currently being sent associated with their position in the queue.
+     */
+    private final Map<ReplicationSenderMessage, Long> inflight = new LinkedHashMap<>();
+
+    /**
+     * The ordering keys of the messages currently being sent associated with the request which acquired them.
+     */
+    private final Map<String, Object> inflightKeys = new HashMap<>();
+
+    /**
+     * The requests currently being sent (a request can contain several messages). Each request only releases the slot
+     * and the keys it acquired, even if the queue was purged in the meantime.
+     */
+    private final Set<Object> inflightRequests = new HashSet<>();
+
+    /**
+     * The messages which failed to be sent since the last rewind sorted by position in the queue.
+     */
+    private final SortedMap<Long, ReplicationSenderMessage> failed = new TreeMap<>();
+
+    /**
+     * The messages to send again before the ones in the queue.
+     */
+    private final Deque<ReplicationSenderMessage> rewindQueue = new ConcurrentLinkedDeque<>();
+
+    /**
+     * Protect {@link #keys}.
+     */
+    private final Object keysLock = new Object();
+
+    /**
+     * The identifiers of the messages of the main queue, in memory or still only in the store, indexed by ordering key
+     * in the order they were stored. Only built when coalescing is needed.
+     */
+    private Map<String, Set<String>> keys;
+
+    private long position;
+
+    private int window;
+
+    private int batchSize;
+
+    private long batchMaxDataSize;
+
+    private ExecutorService sendExecutor;
 
     private ReplicationInstance instance;
 
@@ -85,6 +182,69 @@ public class ReplicationSenderMessageQueue extends AbstractReplicationMessageQue
 
     private Date nextTry;
 
+    /**
+     * The priority lanes, the {@link ReplicationSenderMessagePriority#BULK} one being the main queue.
+     */
+    private final List<PriorityLane> lanes = new ArrayList<>();
+
+    private final class PriorityLane
+    {
+        private final int weight;
+
+        private final Set<String> types;
+
+        /**
+         * The store of the lane, null for the main queue.
+         */
+        private final ReplicationSenderMessageStore laneStore;
+
+        /**
+         * The messages of the lane kept in memory, null for the main queue.
+         */
+        private final BlockingQueue<ReplicationSenderMessage> laneQueue;
+
+        private long nextSequence;
+
+        private int currentWeight;
+
+        private PriorityLane(ReplicationSenderMessagePriority priority, ReplicationSenderMessageStore laneStore)
+        {
+            this.weight = configuration.getSenderPriorityWeight(priority);
+            this.types = configuration.getSenderPriorityTypes(priority);
+            this.laneStore = laneStore;
+            this.laneQueue = laneStore != null ? new LinkedBlockingQueue<>(configuration.getQueueSize()) : null;
+        }
+
+        private BlockingQueue<ReplicationSenderMessage> getQueue()
+        {
+            return this.laneQueue != null ? this.laneQueue : queue;
+        }
+
+        private void load()
+        {
+            if (this.laneStore == null) {
+                loadMessages();
+            } else {
+                synchronized (this) {
+                    int room = this.laneQueue.remainingCapacity();
+                    if (room > 0) {
+                        this.nextSequence = this.laneStore.load(this.nextSequence, room, this.laneQueue::offer);
+                    }
+                }
+            }
+        }
+
+        private ReplicationSenderMessage poll()
+        {
+            ReplicationSenderMessage message = getQueue().poll();
+
+            // Make room for the following stored messages
+            load();
+
+            return message;
+        }
+    }
+
     /**
      * @return the instance to send messages to
      */
@@ -101,11 +261,66 @@ public class ReplicationSenderMessageQueue extends AbstractReplicationMessageQue
         this.instance = instance;
         this.store.initialize(instance);
 
+        // Initialize the threads in charge of sending messages in parallel
+        this.window = this.configuration.getSenderWindow();
+        if (this.window > 1) {
+            this.sendExecutor = Executors.newFixedThreadPool(this.window, this::createSendingThread);
+        }
+
+        // Small messages can be grouped in a single request
+        this.batchSize = this.configuration.getSenderBatchSize();
+        this.batchMaxDataSize = this.configuration.getSenderBatchMaxDataSize();
+
+        // Initialize the priority lanes
+        for (ReplicationSenderMessagePriority priority : ReplicationSenderMessagePriority.values()) {
+            ReplicationSenderMessageStore laneStore = null;
+            if (priority != ReplicationSenderMessagePriority.BULK) {
+                laneStore = this.storeProvider.get();
+                laneStore.initialize(instance, priority.name().toLowerCase(Locale.ROOT));
+            }
+
+            this.lanes.add(new PriorityLane(priority, laneStore));
+        }
+
         initializeQueue();
 
-        // Load the queue from disk
-        Queue<ReplicationSenderMessage> messages = this.store.load();
-        messages.forEach(this.queue::add);
+        // Load the first messages from disk
+        this.lanes.forEach(PriorityLane::load);
+
+        // The main thread might have started waiting before the messages were loaded
+        this.wakeSignal.release();
+    }
+
+    private Thread createSendingThread(Runnable runnable)
+    {
+        Thread sendingThread = new Thread(runnable);
+        sendingThread.setName("Window - " + getThreadName());
+        sendingThread.setPriority(Thread.NORM_PRIORITY - 2);
+        // That thread can be stopped any time without really loosing anything
+        sendingThread.setDaemon(true);
+
+        return sendingThread;
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        super.dispose();
+
+        // Make sure the main thread notice the end
+        this.wakeSignal.release();
+
+        if (this.sendExecutor != null) {
+            this.sendExecutor.shutdownNow();
+        }
+
+        // Release the store resources
+        this.store.dispose();
+        for (PriorityLane lane : this.lanes) {
+            if (lane.laneStore != null) {
+                lane.laneStore.dispose();
+            }
+        }
     }
 
     @Override
@@ -115,82 +330,415 @@ public class ReplicationSenderMessageQueue extends AbstractReplicationMessageQue
     }
 
     @Override
-    protected void handle(ReplicationSenderMessage message) throws InterruptedException
+    protected boolean isRetryEnabled()
     {
-        // Notify that a message is about to be sent
-        ReplicationMessageSendingEvent event = new ReplicationMessageSendingEvent();
-        this.observation.notify(event, message, this.instance);
-        if (event.isCanceled()) {
-            this.logger.warn("The sending of the message with id [{}] and type [{}] was cancelled: {}", message.getId(),
-                message.getType(), event.getReason());
+        // The failed messages are sent again in order by the window (see #rewind()) since giving up on a message would
+        // break the ordering of the following messages targeting the same entity
+        return false;
+    }
 
-            return;
+    @Override
+    public List<ReplicationSenderMessage> getMessages()
+    {
+        List<ReplicationSenderMessage> messages = new ArrayList<>(this.queue.size() + this.window);
+
+        this.windowLock.lock();
+        try {
+            messages.addAll(this.failed.values());
+            messages.addAll(this.inflight.keySet());
+        } finally {
+            this.windowLock.unlock();
+        }
+
+        messages.addAll(this.rewindQueue);
+        for (PriorityLane lane : this.lanes) {
+            messages.addAll(lane.getQueue());
         }
 
-        // Try to send the message until it works
-        while (true) {
+        return messages;
+    }
+
+    @Override
+    public void run()
+    {
+        while (!this.disposed) {
             try {
-                // Send the data to the instance
-                this.client.sendMessage(message, this.instance);
+                // Start again from the oldest unacknowledged message if some failed
+                if (hasFailed()) {
+                    rewind();
+                }
 
-                // Log the successfully sent message
-                this.logStore.saveAsync(message, (m, e) -> {
-                    Map<String, Object> custom = new HashMap<>(e.getCustom());
+                // Get the next message to send
+                ReplicationSenderMessage message = this.rewindQueue.pollFirst();
+                if (message == null) {
+                    message = poll();
+                    if (message == null) {
+                        // Wait for a new message in any lane or a failure
+                        this.wakeSignal.acquire();
+                        // Several signals might have accumulated, checking the lanes again once is enough
+                        this.wakeSignal.drainPermits();
+
+                        continue;
+                    }
+                }
 
-                    custom.put(ReplicationMessageEventQuery.KEY_STATUS, ReplicationMessageEventQuery.VALUE_STATUS_SENT);
-                    custom.put(ReplicationMessageEventQuery.KEY_TARGET, this.instance.getURI());
+                if (!dispatch(message)) {
+                    // A message failed in the meantime, this one will be sent after the rewind
+                    this.rewindQueue.addFirst(message);
+                }
+            } catch (InterruptedException e) {
+                this.logger.warn("The replication sending thread has been interrupted");
 
-                    e.setCustom(custom);
-                });
+                // Mark the thread as interrupted
+                this.thread.interrupt();
 
                 // Stop the loop
                 break;
-            } catch (Exception e) {
-                // Remember the last error
-                this.lastError = e;
-
-                // Wait before trying to send the message again
-
-                if (this.wait < 60) {
-                    // Double the wait
-                    // Start waiting at 1 minute
-                    this.wait = this.wait == 0 ? 1 : this.wait * 2;
-                } else {
-                    // Wait a maximum of 2h (120 min)
-                    this.wait = 120;
+            } catch (Throwable t) {
+                this.logger.error("An unexpected throwable was thrown while sending replication messages to [{}]",
+                    this.instance.getURI(), t);
+            }
+        }
+    }
+
+    /**
+     * Smooth weighted round robin between the lanes having messages waiting.
+     */
+    private ReplicationSenderMessage poll()
+    {
+        PriorityLane selected = null;
+        int totalWeight = 0;
+        for (PriorityLane lane : this.lanes) {
+            if (!lane.getQueue().isEmpty()) {
+                lane.currentWeight += lane.weight;
+                totalWeight += lane.weight;
+
+                if (selected == null || lane.currentWeight > selected.currentWeight) {
+                    selected = lane;
+                }
+            }
+        }
+
+        if (selected == null) {
+            return null;
+        }
+
+        selected.currentWeight -= totalWeight;
+
+        return selected.poll();
+    }
+
+    private PriorityLane getLane(ReplicationSenderMessage message)
+    {
+        // Messages targeting an entity must stay ordered with all the other messages targeting the same entity
+        if (!ReplicationMessageKeys.hasEntity(message)) {
+            for (PriorityLane lane : this.lanes) {
+                if (lane.types.contains(message.getType())) {
+                    return lane;
+                }
+            }
+        }
+
+        // The last lane is the bulk one
+        return this.lanes.get(this.lanes.size() - 1);
+    }
+
+    private ReplicationSenderMessageStore getStore(ReplicationSenderMessage message)
+    {
+        if (message instanceof FileReplicationSenderMessage) {
+            return ((FileReplicationSenderMessage) message).getStore();
+        }
+
+        return this.store;
+    }
+
+    private boolean hasFailed()
+    {
+        this.windowLock.lock();
+        try {
+            return !this.failed.isEmpty();
+        } finally {
+            this.windowLock.unlock();
+        }
+    }
+
+    private boolean dispatch(ReplicationSenderMessage message) throws InterruptedException
+    {
+        List<ReplicationSenderMessage> messages = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        Object request = new Object();
+        long firstPosition;
+
+        this.windowLock.lockInterruptibly();
+        try {
+            String key = ReplicationMessageKeys.getOrderingKey(message);
+
+            // Wait for a free slot in the window and for the previous message with the same key to be sent
+            while (this.failed.isEmpty()
+                && (this.inflightRequests.size() >= this.window || this.inflightKeys.containsKey(key))) {
+                this.windowCondition.await();
+            }
+
+            if (!this.failed.isEmpty()) {
+                return false;
+            }
+
+            messages.add(message);
+            keys.add(key);
+
+            // Send following small messages in the same request when the target instance supports it
+            if (isBatchable(message)) {
+                collectBatch(messages, keys);
+
+                // Make room for the following stored messages
+                loadMessages();
+            }
+
+            firstPosition = this.position;
+            for (ReplicationSenderMessage batchMessage : messages) {
+                this.inflight.put(batchMessage, this.position++);
+            }
+            for (String batchKey : keys) {
+                this.inflightKeys.put(batchKey, request);
+            }
+            this.inflightRequests.add(request);
+
+            this.currentMessage = this.inflight.keySet().iterator().next();
+        } finally {
+            this.windowLock.unlock();
+        }
+
+        if (this.sendExecutor != null) {
+            this.sendExecutor.execute(() -> send(messages, keys, request, firstPosition));
+        } else {
+            send(messages, keys, request, firstPosition);
+        }
+
+        return true;
+    }
+
+    private boolean isBatchable(ReplicationSenderMessage message)
+    {
+        return this.batchSize > 1 && message instanceof FileReplicationSenderMessage
+            && ((FileReplicationSenderMessage) message).getDataSize() <= this.batchMaxDataSize
+            && this.client.supports(this.instance, ReplicationCapabilities.BATCH);
+    }
+
+    private void collectBatch(List<ReplicationSenderMessage> messages, List<String> keys)
+    {
+        long dataSize = ((FileReplicationSenderMessage) messages.get(0)).getDataSize();
+
+        while (messages.size() < this.batchSize) {
+            ReplicationSenderMessage nextMessage = this.rewindQueue.pollFirst();
+            if (nextMessage == null) {
+                nextMessage = this.queue.poll();
+                if (nextMessage == null) {
+                    // Don't wait for new messages
+                    break;
                 }
+            }
+
+            String nextKey = ReplicationMessageKeys.getOrderingKey(nextMessage);
+            if (!isBatchable(nextMessage) || this.inflightKeys.containsKey(nextKey)
+                || dataSize + ((FileReplicationSenderMessage) nextMessage).getDataSize() > this.batchMaxDataSize) {
+                // Keep the message for the next dispatch, in the same position
+                this.rewindQueue.addFirst(nextMessage);
+
+                break;
+            }
+
+            messages.add(nextMessage);
+            keys.add(nextKey);
+            dataSize += ((FileReplicationSenderMessage) nextMessage).getDataSize();
+        }
+    }
 
-                // Calculate next try date
-                Calendar calendar = Calendar.getInstance();
-                calendar.add(Calendar.MINUTE, this.wait);
-                this.nextTry = calendar.getTime();
-
-                this.logger.warn(
-                    "Failed to send replication message with id [{}] and type [{}] to instance [{}],"
-                        + " retrying in [{}] minutes: {}",
-                    message.getId(), message.getType(), this.instance.getURI(), this.wait,
-                    ExceptionUtils.getRootCauseMessage(e));
-
-                // Wait
-                this.pingLock.lockInterruptibly();
-                try {
-                    this.pingCondition.awaitUntil(this.nextTry);
-                } finally {
-                    this.pingLock.unlock();
+    private void send(List<ReplicationSenderMessage> messages, List<String> keys, Object request, long firstPosition)
+    {
+        boolean success = false;
+        try {
+            // Send the messages
+            if (messages.size() == 1) {
+                handle(messages.get(0));
+            } else {
+                handle(messages);
+            }
+
+            // Remove the messages from the store
+            for (ReplicationSenderMessage message : messages) {
+                removeFromStore(message);
+            }
+
+            success = true;
+        } catch (Exception e) {
+            // Remember the last error
+            this.lastError = e;
+
+            ReplicationSenderMessage message = messages.get(0);
+            this.logger.debug(
+                "Failed to send [{}] replication message(s) starting with id [{}] and type [{}] to instance [{}]",
+                messages.size(), message.getId(), message.getType(), this.instance.getURI(), e);
+        } finally {
+            this.windowLock.lock();
+            try {
+                long messagePosition = firstPosition;
+                for (ReplicationSenderMessage message : messages) {
+                    // Make sure the message was not purged in the meantime
+                    if (this.inflight.remove(message) != null && !success) {
+                        this.failed.put(messagePosition, message);
+                    }
+                    ++messagePosition;
                 }
+                // Only release what this request acquired
+                for (String key : keys) {
+                    this.inflightKeys.remove(key, request);
+                }
+                this.inflightRequests.remove(request);
+
+                this.currentMessage = this.inflight.isEmpty() ? null : this.inflight.keySet().iterator().next();
 
-                // Make sure the current message is still the same (might have been purged while waiting)
-                if (this.currentMessage != message) {
-                    return;
+                if (success && this.failed.isEmpty()) {
+                    // Reset the wait
+                    this.wait = 0;
+                    this.nextTry = null;
+                    // Reset the last error
+                    this.lastError = null;
                 }
+
+                this.windowCondition.signalAll();
+            } finally {
+                this.windowLock.unlock();
+            }
+        }
+
+        // Make sure the main thread is not stuck waiting for new messages
+        if (!success && this.sendExecutor != null) {
+            this.wakeSignal.release();
+        }
+    }
+
+    private void rewind() throws InterruptedException
+    {
+        List<ReplicationSenderMessage> messages;
+
+        this.windowLock.lockInterruptibly();
+        try {
+            // Wait for all the messages being sent to be finished
+            while (!this.inflight.isEmpty()) {
+                this.windowCondition.await();
+            }
+
+            messages = new ArrayList<>(this.failed.values());
+            this.failed.clear();
+        } finally {
+            this.windowLock.unlock();
+        }
+
+        // The messages might have been purged in the meantime
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        // Put back the messages in front of the queue, in the order they were initially taken
+        for (ListIterator<ReplicationSenderMessage> it = messages.listIterator(messages.size()); it.hasPrevious();) {
+            this.rewindQueue.addFirst(it.previous());
+        }
+
+        this.currentMessage = messages.get(0);
+
+        // Wait before trying to send the messages again
+        waitBeforeRetry(this.currentMessage);
+    }
+
+    private void waitBeforeRetry(ReplicationSenderMessage message) throws InterruptedException
+    {
+        if (this.wait < 60) {
+            // Double the wait
+            // Start waiting at 1 minute
+            this.wait = this.wait == 0 ? 1 : this.wait * 2;
+        } else {
+            // Wait a maximum of 2h (120 min)
+            this.wait = 120;
+        }
+
+        // Calculate next try date
+        Calendar calendar = Calendar.getInstance();
+        calendar.add(Calendar.MINUTE, this.wait);
+        this.nextTry = calendar.getTime();
+
+        this.logger.warn(
+            "Failed to send replication message with id [{}] and type [{}] to instance [{}],"
+                + " retrying in [{}] minutes: {}",
+            message.getId(), message.getType(), this.instance.getURI(), this.wait,
+            ExceptionUtils.getRootCauseMessage(this.lastError));
+
+        // Wait
+        this.pingLock.lockInterruptibly();
+        try {
+            this.pingCondition.awaitUntil(this.nextTry);
+        } finally {
+            this.pingLock.unlock();
+        }
+    }
+
+    @Override
+    protected void handle(ReplicationSenderMessage message) throws Exception
+    {
+        // Notify that a message is about to be sent
+        ReplicationMessageSendingEvent event = new ReplicationMessageSendingEvent();
+        this.observation.notify(event, message, this.instance);
+        if (event.isCanceled()) {
+            this.logger.warn("The sending of the message with id [{}] and type [{}] was cancelled: {}", message.getId(),
+                message.getType(), event.getReason());
+
+            return;
+        }
+
+        // Send the data to the instance
+        this.client.sendMessage(message, this.instance);
+
+        // Log the successfully sent message
+        logSent(message);
+    }
+
+    private void handle(List<ReplicationSenderMessage> messages) throws Exception
+    {
+        // Notify that the messages are about to be sent
+        List<ReplicationSenderMessage> sentMessages = new ArrayList<>(messages.size());
+        for (ReplicationSenderMessage message : messages) {
+            ReplicationMessageSendingEvent event = new ReplicationMessageSendingEvent();
+            this.observation.notify(event, message, this.instance);
+            if (event.isCanceled()) {
+                this.logger.warn("The sending of the message with id [{}] and type [{}] was cancelled: {}",
+                    message.getId(), message.getType(), event.getReason());
+            } else {
+                sentMessages.add(message);
             }
         }
 
-        // Reset the wait
-        this.wait = 0;
-        this.nextTry = null;
-        // Reset the last error
-        this.lastError = null;
+        if (sentMessages.isEmpty()) {
+            return;
+        }
+
+        // Send the data to the instance
+        this.client.sendMessages(sentMessages, this.instance);
+
+        // Log the successfully sent messages
+        for (ReplicationSenderMessage message : sentMessages) {
+            logSent(message);
+        }
+    }
+
+    private void logSent(ReplicationSenderMessage message)
+    {
+        this.logStore.saveAsync(message, (m, e) -> {
+            Map<String, Object> custom = new HashMap<>(e.getCustom());
+
+            custom.put(ReplicationMessageEventQuery.KEY_STATUS, ReplicationMessageEventQuery.VALUE_STATUS_SENT);
+            custom.put(ReplicationMessageEventQuery.KEY_TARGET, this.instance.getURI());
+
+            e.setCustom(custom);
+        });
     }
 
     /**
@@ -209,10 +757,43 @@ public class ReplicationSenderMessageQueue extends AbstractReplicationMessageQue
         return this.nextTry;
     }
 
+    @Override
+    protected long load(long fromSequence, int max, Predicate<ReplicationSenderMessage> consumer)
+    {
+        return this.store.load(fromSequence, max, consumer);
+    }
+
     @Override
     protected void removeFromStore(ReplicationSenderMessage message) throws ReplicationException
     {
-        this.store.delete(message);
+        ReplicationSenderMessageStore messageStore = getStore(message);
+
+        messageStore.delete(message);
+
+        if (messageStore == this.store) {
+            synchronized (this.keysLock) {
+                if (this.keys != null) {
+                    String key = ReplicationMessageKeys.getOrderingKey(message);
+                    Set<String> ids = this.keys.get(key);
+                    if (ids != null && ids.remove(message.getId()) && ids.isEmpty()) {
+                        this.keys.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public ReplicationMessageRetry getRetry(ReplicationSenderMessage message)
+    {
+        return getStore(message).getRetry(message.getId());
+    }
+
+    @Override
+    protected void saveRetry(ReplicationSenderMessage message, ReplicationMessageRetry retry)
+        throws ReplicationException
+    {
+        getStore(message).saveRetry(retry);
     }
 
     /**
@@ -222,19 +803,122 @@ public class ReplicationSenderMessageQueue extends AbstractReplicationMessageQue
      */
     public FileReplicationSenderMessage add(ReplicationSenderMessage message) throws ReplicationException
     {
+        PriorityLane lane = getLane(message);
+
         // Serialize the data
         FileReplicationSenderMessage storedMessage;
         try {
-            storedMessage = this.store.store(message);
+            storedMessage = lane.laneStore != null ? lane.laneStore.store(message) : this.store.store(message);
         } catch (Exception e) {
             throw new ReplicationException("Failed to store sender message with id [" + message.getId() + "]", e);
         }
 
-        this.queue.add(storedMessage);
+        // Remember the key of the message if the index is already there
+        if (lane.laneStore == null) {
+            synchronized (this.keysLock) {
+                if (this.keys != null) {
+                    index(storedMessage);
+                }
+            }
+        }
+
+        // Add the message to the queue if there is room for it
+        lane.load();
+
+        // Make sure the main thread is not stuck waiting for new messages
+        this.wakeSignal.release();
 
         return storedMessage;
     }
 
+    /**
+     * @param message the new message to send
+     * @param coalescer the coalescer associated to the type of the new message
+     * @return the messages waiting to be sent which are superseded by the new message
+     * @since 2.3.9
+     */
+    public List<ReplicationSenderMessage> getSuperseded(ReplicationSenderMessage message,
+        ReplicationSenderMessageCoalescer coalescer)
+    {
+        // Find the stored messages which need to stay ordered with the new one, including the ones not loaded in
+        // memory yet
+        List<String> ids;
+        synchronized (this.keysLock) {
+            Set<String> keyIds = getKeys().get(ReplicationMessageKeys.getOrderingKey(message));
+            if (keyIds == null) {
+                return Collections.emptyList();
+            }
+            ids = new ArrayList<>(keyIds);
+        }
+
+        // Only the most recent messages, not separated by a message which cannot be coalesced, are superseded
+        List<ReplicationSenderMessage> messages = new ArrayList<>();
+        for (ListIterator<String> it = ids.listIterator(ids.size()); it.hasPrevious();) {
+            ReplicationSenderMessage pending = getStored(it.previous());
+            if (pending == null || !coalescer.isSuperseded(pending, message)) {
+                break;
+            }
+            messages.add(0, pending);
+        }
+
+        return messages;
+    }
+
+    private Map<String, Set<String>> getKeys()
+    {
+        if (this.keys == null) {
+            // Index the messages stored before the first coalescing (the keys are kept in memory by the store so it
+            // does not require reading the metadata of the whole backlog)
+            this.keys = new HashMap<>();
+            this.store.forEachOrderingKey(this::index);
+        }
+
+        return this.keys;
+    }
+
+    private void index(ReplicationSenderMessage message)
+    {
+        index(message.getId(), ReplicationMessageKeys.getOrderingKey(message));
+    }
+
+    private void index(String id, String key)
+    {
+        this.keys.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(id);
+    }
+
+    private ReplicationSenderMessage getStored(String id)
+    {
+        // Avoid reading the metadata again when the message is already in memory
+        for (ReplicationSenderMessage waiting : this.queue) {
+            if (id.equals(waiting.getId())) {
+                return waiting;
+            }
+        }
+
+        return this.store.get(id);
+    }
+
+    /**
+     * Remove messages which don't need to be sent anymore, unless they are already being sent.
+     * 
+     * @param messages the messages to remove
+     * @since 2.3.9
+     */
+    public void remove(List<ReplicationSenderMessage> messages)
+    {
+        for (ReplicationSenderMessage message : messages) {
+            // Messages already being sent are left alone
+            try {
+                removeWaiting(message, getStore(message).getSequence(message.getId()));
+            } catch (ReplicationException e) {
+                this.logger.error("Failed to remove the message from the fielsystem", e);
+            }
+        }
+
+        // Make room for the following stored messages
+        loadMessages();
+    }
+
     /**
      * Force the queue to resume sending messages.
      */
@@ -261,21 +945,46 @@ public class ReplicationSenderMessageQueue extends AbstractReplicationMessageQue
      */
     public void purge()
     {
-        // Remove messages from the queue
-        for (ReplicationSenderMessage message = this.queue.poll(); message != null; message = this.queue.poll()) {
+        // Remove messages from the queues, including the ones not loaded from the store yet
+        for (PriorityLane lane : this.lanes) {
+            do {
+                for (ReplicationSenderMessage message = lane.getQueue().poll(); message != null;
+                    message = lane.getQueue().poll()) {
+                    // Remove the message from the store
+                    removeFromStoreIgnoreException(message);
+                }
+
+                lane.load();
+            } while (!lane.getQueue().isEmpty());
+        }
+        for (ReplicationSenderMessage message = this.rewindQueue.poll(); message != null;
+            message = this.rewindQueue.poll()) {
             // Remove the message from the store
             removeFromStoreIgnoreException(message);
         }
 
-        // Remember current message
-        ReplicationSenderMessage message = this.currentMessage;
+        // Forget the messages currently being sent
+        List<ReplicationSenderMessage> messages;
+        this.windowLock.lock();
+        try {
+            messages = new ArrayList<>(this.inflight.keySet());
+            messages.addAll(this.failed.values());
+
+            // The requests still being sent release their slot in the window and their keys when they finish
+            this.inflight.clear();
+            this.failed.clear();
 
-        if (message != null) {
             // Reset the current message if any
             this.currentMessage = null;
 
-            // Remove the current message from the store
-            removeFromStoreIgnoreException(message);
+            this.windowCondition.signalAll();
+        } finally {
+            this.windowLock.unlock();
+        }
+
+        if (!messages.isEmpty()) {
+            // Remove the current messages from the store
+            messages.forEach(this::removeFromStoreIgnoreException);
 
             // And reset the corresponding error if any
             this.lastError = null;
@@ -20,16 +20,14 @@
 package org.xwiki.contrib.replication.internal.message;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.List;
 
 import javax.inject.Inject;
-import javax.inject.Provider;
 
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.annotation.InstantiationStrategy;
 import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
@@ -37,10 +35,12 @@ import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
 import org.xwiki.contrib.replication.ReplicationException;
 import org.xwiki.contrib.replication.ReplicationInstance;
+import org.xwiki.contrib.replication.ReplicationMessage;
 import org.xwiki.contrib.replication.ReplicationSenderMessage;
-import org.xwiki.contrib.replication.event.ReplicationMessageStoringEvent;
-import org.xwiki.contrib.replication.internal.WrappingMutableReplicationSenderMessage;
-import org.xwiki.observation.ObservationManager;
+import org.xwiki.contrib.replication.internal.ReplicationCompression.CompressedOutput;
+import org.xwiki.contrib.replication.internal.message.ReplicationMessageJournal.Entry;
+import org.xwiki.contrib.replication.internal.message.ReplicationSenderMessageDataStore.SerializedDataMessage;
+import org.xwiki.contrib.replication.internal.message.ReplicationSenderMessageDataStore.SharedReplicationSenderMessage;
 
 /**
  * @version $Id$
@@ -51,10 +51,7 @@ public class ReplicationSenderMessageStore extends AbstractReplicationMessageSto
     implements Initializable
 {
     @Inject
-    private ObservationManager observation;
-
-    @Inject
-    private Provider<WrappingMutableReplicationSenderMessage> wrappingMessageProvider;
+    private ReplicationSenderMessageDataStore dataStore;
 
     private ReplicationInstance instance;
 
@@ -64,18 +61,66 @@ public class ReplicationSenderMessageStore extends AbstractReplicationMessageSto
      * @version $Id$
      */
     public final class FileReplicationSenderMessage extends AbstractFileReplicationMessage
-        implements ReplicationSenderMessage
+        implements ReplicationSenderMessage, CompressedOutput, SerializedDataMessage
     {
         private FileReplicationSenderMessage(File messageFolder) throws ConfigurationException, ReplicationException
         {
             super(messageFolder);
+
+            // Messages stored before the introduction of the shared data store have their own data file
+            if (!this.dataFile.exists()) {
+                this.dataFile = dataStore.getDataFile(this.id);
+            }
+        }
+
+        private FileReplicationSenderMessage(Entry entry) throws ReplicationException
+        {
+            super(entry);
+
+            this.dataFile = dataStore.getDataFile(this.id);
         }
 
         @Override
         public void write(OutputStream stream) throws IOException
+        {
+            ReplicationSenderMessageDataStore.writeData(this.dataFile, stream);
+        }
+
+        @Override
+        public boolean isDataCompressed()
+        {
+            return ReplicationSenderMessageDataStore.isCompressed(this.dataFile);
+        }
+
+        @Override
+        public void writeCompressed(OutputStream stream) throws IOException
         {
             FileUtils.copyFile(this.dataFile, stream);
         }
+
+        @Override
+        public File getSerializedDataFile()
+        {
+            return this.dataFile;
+        }
+
+        /**
+         * @return the store containing the message
+         * @since 2.3.9
+         */
+        public ReplicationSenderMessageStore getStore()
+        {
+            return ReplicationSenderMessageStore.this;
+        }
+
+        /**
+         * @return the size of the serialized data of the message
+         * @since 2.3.9
+         */
+        public long getDataSize()
+        {
+            return ReplicationSenderMessageDataStore.getDataSize(this.dataFile);
+        }
     }
 
     @Override
@@ -92,12 +137,19 @@ public class ReplicationSenderMessageStore extends AbstractReplicationMessageSto
     {
         this.instance = instance;
 
-        setHome(new File(this.home, clean(this.instance.getURI())));
+        setHome(new File(this.home, ReplicationSenderMessageDataStore.toFileName(this.instance.getURI())));
     }
 
-    private String clean(String uri)
+    /**
+     * @param instance the instance to send messages to
+     * @param lane the name of the lane in which the messages are sent
+     * @since 2.3.9
+     */
+    public void initialize(ReplicationInstance instance, String lane)
     {
-        return StringUtils.replaceChars(uri, "/:@", "-_.");
+        initialize(instance);
+
+        setHome(new File(new File(this.home, "lanes"), lane));
     }
 
     @Override
@@ -113,11 +165,27 @@ public class ReplicationSenderMessageStore extends AbstractReplicationMessageSto
     }
 
     @Override
-    protected void storeData(ReplicationSenderMessage message, File dataFile) throws IOException
+    protected FileReplicationSenderMessage createReplicationMessage(Entry entry) throws ReplicationException
+    {
+        return new FileReplicationSenderMessage(entry);
+    }
+
+    @Override
+    protected void migrate(ReplicationSenderMessage message, File messageFolder) throws ReplicationException
     {
-        try (FileOutputStream stream = new FileOutputStream(dataFile)) {
-            message.write(stream);
+        // Messages stored before the introduction of the shared data store have their own data file
+        File dataFile = getDataFile(messageFolder);
+        if (dataFile.exists()) {
+            this.dataStore.migrate(message.getId(), dataFile, this.instance);
         }
+
+        super.migrate(message, messageFolder);
+    }
+
+    @Override
+    protected void storeData(ReplicationSenderMessage message, OutputStream stream) throws IOException
+    {
+        // The data is stored only once for all the instances in the ReplicationSenderMessageDataStore
     }
 
     /**
@@ -127,14 +195,24 @@ public class ReplicationSenderMessageStore extends AbstractReplicationMessageSto
      */
     public FileReplicationSenderMessage store(ReplicationSenderMessage message) throws ReplicationException
     {
-        // Give a change to customize the message to store
-        WrappingMutableReplicationSenderMessage customMessage = this.wrappingMessageProvider.get();
-        customMessage.initialize(message);
-        this.observation.notify(new ReplicationMessageStoringEvent(), customMessage);
+        // Serialize the data if it was not already done
+        ReplicationSenderMessage sharedMessage = message;
+        if (!(message instanceof SharedReplicationSenderMessage)) {
+            sharedMessage = this.dataStore.store(message, List.of(this.instance));
+        }
 
         // Store the message
-        File messageFolder = storeMessage(customMessage);
+        Entry entry = storeMessage(sharedMessage);
+
+        return createReplicationMessage(entry);
+    }
+
+    @Override
+    public void delete(ReplicationMessage message) throws ReplicationException
+    {
+        super.delete(message);
 
-        return createReplicationMessage(messageFolder);
+        // Release the shared data
+        this.dataStore.release(message.getId(), this.instance);
     }
 }
@@ -0,0 +1,508 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.message.log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.codec.digest.MurmurHash3;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.replication.internal.ReplicationConfiguration;
+import org.xwiki.contrib.replication.internal.ReplicationFileStore;
+import org.xwiki.observation.remote.RemoteObservationManagerConfiguration;
+
+/**
+ * Remember the identifiers of the received messages to reject duplicates without searching the message log.
+ * <p>
+ * A bloom filter tells if a message was certainly never received and a set of the recently received identifiers tells
+ * if a message was certainly already received. When the index cannot be sure (false positive of the bloom filter, or
+ * message which might have been received before the index was created), the message log remains the reference. The
+ * recently received identifiers are appended to a file, forced to disk at most once per second, so that the bloom
+ * filter, which is only saved from time to time, can be rebuilt after a crash. Since the last identifiers might be
+ * lost in a crash, the bloom filter is not trusted anymore for the messages produced before an unclean shutdown.
+ * <p>
+ * The bloom filter is rebuilt, only containing the recent identifiers, when more identifiers than it was sized for were
+ * added to it, so that its false positive probability does not keep growing.
+ * <p>
+ * The index is local to the cluster member while the message log is shared: in a cluster, a message might have been
+ * received by another member so the bloom filter is never trusted to tell that a message is unknown.
+ * 
+ * @version $Id$
+ * @since 2.3.9
+ */
+@Component(roles = ReplicationMessageIdIndex.class)
+@Singleton
+public class ReplicationMessageIdIndex implements Initializable, Disposable
+{
+    private static final String FILE_BLOOM = "bloom";
+
+    private static final String FILE_RECENT = "recent";
+
+    /**
+     * Only exists when the index was properly saved.
+     */
+    private static final String FILE_CLEAN = "clean";
+
+    private static final int VERSION = 1;
+
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    /**
+     * The maximum clock difference expected between two instances.
+     */
+    private static final long CLOCK_MARGIN = 24L * 60 * 60 * 1000;
+
+    /**
+     * The time associated to an identifier in the recent file to indicate it should be forgotten.
+     */
+    private static final long FORGET = -1;
+
+    private static final char SEPARATOR = ' ';
+
+    /**
+     * The minimum time between two syncs of the recent identifiers to disk.
+     */
+    private static final long SYNC_INTERVAL = 1000;
+
+    @Inject
+    private ReplicationFileStore fileStore;
+
+    @Inject
+    private ReplicationConfiguration configuration;
+
+    @Inject
+    private RemoteObservationManagerConfiguration remoteConfiguration;
+
+    @Inject
+    private Logger logger;
+
+    private File home;
+
+    private long ttl;
+
+    private long created;
+
+    private int hashes;
+
+    private long[] bits;
+
+    private long count;
+
+    /**
+     * The number of identifiers the bloom filter was sized for.
+     */
+    private long capacity;
+
+    /**
+     * True if other cluster members receive messages too.
+     */
+    private boolean clustered;
+
+    private final Map<String, Long> recent = new LinkedHashMap<>();
+
+    private FileChannel recentChannel;
+
+    private Writer recentWriter;
+
+    private int recentLines;
+
+    private long lastSync;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.home = new File(this.fileStore.getReplicationFolder(), "receiver-index");
+        this.ttl = this.configuration.getReceiverIndexTTL() * 1000L;
+        this.clustered = this.remoteConfiguration.isEnabled();
+
+        try {
+            load();
+        } catch (IOException e) {
+            this.logger.warn("Failed to load the index of received replication messages, creating a new one: {}",
+                ExceptionUtils.getRootCauseMessage(e));
+
+            try {
+                create();
+            } catch (IOException e2) {
+                throw new InitializationException("Failed to create the index of received replication messages", e2);
+            }
+        }
+    }
+
+    private void load() throws IOException
+    {
+        this.recent.clear();
+
+        // Make sure a crash is detected next time
+        boolean clean = Files.deleteIfExists(new File(this.home, FILE_CLEAN).toPath());
+
+        File bloomFile = new File(this.home, FILE_BLOOM);
+        if (!bloomFile.exists()) {
+            create();
+
+            return;
+        }
+
+        // Read the bloom filter
+        try (DataInputStream stream = new DataInputStream(Files.newInputStream(bloomFile.toPath()))) {
+            int version = stream.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported index version [" + version + "]");
+            }
+
+            this.created = stream.readLong();
+            this.hashes = stream.readInt();
+            this.count = stream.readLong();
+            this.bits = new long[stream.readInt()];
+            for (int i = 0; i < this.bits.length; ++i) {
+                this.bits[i] = stream.readLong();
+            }
+        }
+
+        // Read the recently received identifiers (which might be missing from the saved bloom filter)
+        File recentFile = new File(this.home, FILE_RECENT);
+        if (recentFile.exists()) {
+            long now = System.currentTimeMillis();
+            try (BufferedReader reader = Files.newBufferedReader(recentFile.toPath(), StandardCharsets.UTF_8)) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    loadRecent(line, now);
+                }
+            }
+        }
+
+        this.capacity = getCapacity();
+
+        if (!clean) {
+            // The last received identifiers might not have reached the disk before the crash
+            this.logger.warn("The index of received replication messages was not properly saved, it won't be trusted"
+                + " for the messages produced before now");
+            this.created = System.currentTimeMillis();
+        }
+
+        // Start a fresh recent file
+        save();
+    }
+
+    private void loadRecent(String line, long now)
+    {
+        int index = line.indexOf(SEPARATOR);
+        if (index <= 0) {
+            // Incomplete line (typically after a crash)
+            return;
+        }
+
+        long time;
+        try {
+            time = Long.parseLong(line.substring(0, index));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        String id = line.substring(index + 1);
+
+        if (time == FORGET) {
+            this.recent.remove(id);
+        } else {
+            addBloom(id);
+            if (now - time < this.ttl) {
+                this.recent.put(id, time);
+            }
+        }
+    }
+
+    private void create() throws IOException
+    {
+        this.recent.clear();
+
+        FileUtils.deleteDirectory(this.home);
+
+        rebuild();
+    }
+
+    private long getCapacity()
+    {
+        // Leave room for new identifiers even when many were recently received
+        return Math.max(Math.max(1, this.configuration.getReceiverIndexSize()), 2L * this.recent.size());
+    }
+
+    /**
+     * Start a new bloom filter only containing the recent identifiers.
+     */
+    private void rebuild() throws IOException
+    {
+        // Size the bloom filter according to the expected number of identifiers
+        this.capacity = getCapacity();
+        double size = -this.capacity * Math.log(FALSE_POSITIVE_PROBABILITY) / (Math.log(2) * Math.log(2));
+        int length = (int) Math.min(Integer.MAX_VALUE / Long.SIZE, (long) Math.ceil(size / Long.SIZE));
+
+        // The identifiers received before are forgotten
+        this.created = System.currentTimeMillis();
+        this.hashes = Math.max(1, (int) Math.round(length * (double) Long.SIZE / this.capacity * Math.log(2)));
+        this.bits = new long[length];
+        this.count = 0;
+        for (String id : this.recent.keySet()) {
+            addBloom(id);
+            ++this.count;
+        }
+
+        save();
+    }
+
+    /**
+     * Save the bloom filter and start a new recent file.
+     */
+    private void save() throws IOException
+    {
+        this.home.mkdirs();
+
+        // Write the bloom filter
+        File bloomFile = new File(this.home, FILE_BLOOM);
+        File tmpFile = new File(this.home, FILE_BLOOM + ".tmp");
+        try (FileOutputStream fileStream = new FileOutputStream(tmpFile)) {
+            DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(fileStream));
+            stream.writeInt(VERSION);
+            stream.writeLong(this.created);
+            stream.writeInt(this.hashes);
+            stream.writeLong(this.count);
+            stream.writeInt(this.bits.length);
+            for (long value : this.bits) {
+                stream.writeLong(value);
+            }
+            stream.flush();
+
+            // Make sure the content is on disk before replacing the previous filter
+            fileStream.getChannel().force(false);
+        }
+        Files.move(tmpFile.toPath(), bloomFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+
+        // Start a new recent file, only containing the identifiers still in the TTL
+        if (this.recentWriter != null) {
+            this.recentWriter.close();
+        }
+        File recentFile = new File(this.home, FILE_RECENT);
+        this.recentChannel = FileChannel.open(recentFile.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.recentWriter =
+            new BufferedWriter(Channels.newWriter(this.recentChannel, StandardCharsets.UTF_8.newEncoder(), -1));
+        this.recentLines = 0;
+        for (Map.Entry<String, Long> entry : this.recent.entrySet()) {
+            writeRecent(entry.getKey(), entry.getValue());
+        }
+        syncRecent();
+    }
+
+    /**
+     * Make sure the recent identifiers written so far survive a crash.
+     */
+    private void syncRecent() throws IOException
+    {
+        this.recentWriter.flush();
+        this.recentChannel.force(false);
+
+        this.lastSync = System.currentTimeMillis();
+    }
+
+    private void writeRecent(String id, long time) throws IOException
+    {
+        this.recentWriter.write(String.valueOf(time));
+        this.recentWriter.write(SEPARATOR);
+        this.recentWriter.write(id);
+        this.recentWriter.write('\n');
+
+        ++this.recentLines;
+    }
+
+    private long[] hash(String id)
+    {
+        return MurmurHash3.hash128x64(id.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private int getBit(long[] hash, int i)
+    {
+        long combined = hash[0] + i * hash[1];
+
+        return (int) Math.floorMod(combined, (long) this.bits.length * Long.SIZE);
+    }
+
+    private void addBloom(String id)
+    {
+        long[] hash = hash(id);
+        for (int i = 0; i < this.hashes; ++i) {
+            int bit = getBit(hash, i);
+            this.bits[bit / Long.SIZE] |= 1L << (bit % Long.SIZE);
+        }
+    }
+
+    private boolean mightContain(String id)
+    {
+        long[] hash = hash(id);
+        for (int i = 0; i < this.hashes; ++i) {
+            int bit = getBit(hash, i);
+            if ((this.bits[bit / Long.SIZE] & (1L << (bit % Long.SIZE))) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param id the identifier of the message
+     * @param date the date of the message
+     * @return {@link Boolean#TRUE} if the message was already received, {@link Boolean#FALSE} if it was never
+     *         received (never returned in a cluster), null if the index cannot be sure
+     */
+    public synchronized Boolean isKnown(String id, Date date)
+    {
+        long now = System.currentTimeMillis();
+
+        Long time = this.recent.get(id);
+        if (time != null && now - time < this.ttl) {
+            return Boolean.TRUE;
+        }
+
+        // Messages produced before the index was created might have been received before it too
+        if (!this.clustered && !mightContain(id) && date != null && date.getTime() > this.created + CLOCK_MARGIN) {
+            return Boolean.FALSE;
+        }
+
+        return null;
+    }
+
+    /**
+     * @param id the identifier of the received message
+     */
+    public synchronized void add(String id)
+    {
+        long now = System.currentTimeMillis();
+
+        addBloom(id);
+        ++this.count;
+        this.recent.put(id, now);
+
+        try {
+            writeRecent(id, now);
+
+            // Group the syncs of the identifiers received at the same time, an unclean shutdown being detected anyway
+            if (now - this.lastSync >= SYNC_INTERVAL) {
+                syncRecent();
+            }
+        } catch (IOException e) {
+            this.logger.error("Failed to write the received replication message id [{}] in the index", id, e);
+        }
+
+        // Forget expired identifiers
+        for (Iterator<Long> it = this.recent.values().iterator(); it.hasNext() && now - it.next() >= this.ttl;) {
+            it.remove();
+        }
+
+        if (this.count > this.capacity) {
+            // The bloom filter is full
+            this.logger.info("Rebuilding the index of received replication messages after [{}] identifiers",
+                this.count);
+
+            try {
+                rebuild();
+            } catch (IOException e) {
+                this.logger.error("Failed to rebuild the index of received replication messages", e);
+            }
+        } else if (this.recentLines > this.recent.size() * 2 + 1000) {
+            // Avoid growing the recent file forever
+            saveIgnoreException();
+        }
+    }
+
+    /**
+     * @param id the identifier of the message which should not be considered received anymore
+     */
+    public synchronized void remove(String id)
+    {
+        // It's not possible to remove an identifier from a bloom filter, but the message log will make the difference
+        if (this.recent.remove(id) != null) {
+            try {
+                writeRecent(id, FORGET);
+                syncRecent();
+            } catch (IOException e) {
+                this.logger.error("Failed to remove the replication message id [{}] from the index", id, e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of identifiers added to the index since it was created
+     */
+    public synchronized long getCount()
+    {
+        return this.count;
+    }
+
+    private void saveIgnoreException()
+    {
+        try {
+            save();
+        } catch (IOException e) {
+            this.logger.error("Failed to save the index of received replication messages", e);
+        }
+    }
+
+    @Override
+    public synchronized void dispose() throws ComponentLifecycleException
+    {
+        if (this.recentWriter != null) {
+            try {
+                save();
+                this.recentWriter.close();
+                this.recentWriter = null;
+
+                // Everything is on disk
+                Files.createFile(new File(this.home, FILE_CLEAN).toPath());
+            } catch (IOException e) {
+                this.logger.error("Failed to close the index of received replication messages", e);
+            }
+        }
+    }
+}
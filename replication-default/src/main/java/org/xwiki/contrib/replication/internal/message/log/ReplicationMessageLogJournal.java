@@ -0,0 +1,1107 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.message.log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.xwiki.contrib.replication.internal.ReplicationMessageKeys;
+import org.xwiki.contrib.replication.log.ReplicationMessageEventQuery;
+import org.xwiki.eventstream.Event;
+import org.xwiki.eventstream.EventStreamException;
+import org.xwiki.eventstream.query.CompareQueryCondition;
+import org.xwiki.eventstream.query.CompareQueryCondition.CompareType;
+import org.xwiki.eventstream.query.GroupQueryCondition;
+import org.xwiki.eventstream.query.InQueryCondition;
+import org.xwiki.eventstream.query.QueryCondition;
+import org.xwiki.eventstream.query.SimpleEventQuery;
+import org.xwiki.eventstream.query.SortableEventQuery.SortClause;
+import org.xwiki.eventstream.query.SortableEventQuery.SortClause.Order;
+
+/**
+ * A compact log of the replication messages events stored in daily segment files, used instead of the
+ * {@link org.xwiki.eventstream.EventStore} when {@link ReplicationMessageLogStore#STORE_JOURNAL} is configured.
+ * <p>
+ * Each record is made of a kind, a length prefixed payload and a CRC32 checksum of the payload. Adding an event
+ * appends a row record with a fixed set of columns (event identifier and date, message identifier, type, status,
+ * target, source, sender, date and receivers) followed by the message custom metadata, and deleting an event appends a
+ * delete record. Only the indexes on the event identifier, the message identifier and the reference of the targeted
+ * entity are kept in memory, along with the offset of each row in its segment, and the rows themselves are read from
+ * the segments when needed. The segments are read when the journal is opened and any incomplete record found at the
+ * end of a segment (typically after a crash) is truncated.
+ * <p>
+ * The segments older than the retention are deleted when the journal is opened and each time a new segment is
+ * started.
+ *
+ * @version $Id$
+ * @since 2.3.9
+ */
+public class ReplicationMessageLogJournal implements Closeable
+{
+    private static final String SEGMENT_EXTENSION = ".log";
+
+    private static final byte KIND_ROW = 1;
+
+    private static final byte KIND_DELETE = 2;
+
+    private static final int NULL = -1;
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    private static final String METADATA_ENTITY_REFERENCE =
+        ReplicationMessageEventQuery.customMetadataName(ReplicationMessageKeys.METADATA_ENTITY_REFERENCE);
+
+    private final File folder;
+
+    private final int retention;
+
+    private final Logger logger;
+
+    private final TreeMap<Long, List<Entry>> segments = new TreeMap<>();
+
+    private final Map<String, Entry> eventIds = new HashMap<>();
+
+    private final Map<String, List<Entry>> messageIds = new HashMap<>();
+
+    private final Map<String, List<Entry>> entities = new HashMap<>();
+
+    private long activeDay = NULL;
+
+    private FileChannel activeChannel;
+
+    /**
+     * A logged message event.
+     * 
+     * @version $Id$
+     */
+    public static final class Row
+    {
+        private final String eventId;
+
+        private final long date;
+
+        private final String id;
+
+        private final String type;
+
+        private final String status;
+
+        private final String target;
+
+        private final String source;
+
+        private final String sender;
+
+        private final long messageDate;
+
+        private final List<String> receivers;
+
+        private final Map<String, List<String>> metadata;
+
+        private final Map<String, String> properties;
+
+        private Row(String eventId, long date, String id, String type, String status, String target, String source,
+            String sender, long messageDate, List<String> receivers, Map<String, List<String>> metadata,
+            Map<String, String> properties)
+        {
+            this.eventId = eventId;
+            this.date = date;
+            this.id = id;
+            this.type = type;
+            this.status = status;
+            this.target = target;
+            this.source = source;
+            this.sender = sender;
+            this.messageDate = messageDate;
+            this.receivers = receivers;
+            this.metadata = metadata;
+            this.properties = properties;
+        }
+
+        /**
+         * @return the identifier of the event
+         */
+        public String getEventId()
+        {
+            return this.eventId;
+        }
+
+        /**
+         * @return the date of the event
+         */
+        public Date getDate()
+        {
+            return new Date(this.date);
+        }
+
+        /**
+         * @return the identifier of the message
+         */
+        public String getId()
+        {
+            return this.id;
+        }
+
+        /**
+         * @return the type of the message
+         */
+        public String getType()
+        {
+            return this.type;
+        }
+
+        /**
+         * @return the custom properties of the event, as they would be stored in the
+         *         {@link org.xwiki.eventstream.EventStore}
+         */
+        public Map<String, Object> getCustom()
+        {
+            Map<String, Object> custom = new HashMap<>();
+
+            putNotNull(custom, ReplicationMessageEventQuery.KEY_ID, this.id);
+            putNotNull(custom, ReplicationMessageEventQuery.KEY_TYPE, this.type);
+            putNotNull(custom, ReplicationMessageEventQuery.KEY_STATUS, this.status);
+            putNotNull(custom, ReplicationMessageEventQuery.KEY_TARGET, this.target);
+            putNotNull(custom, ReplicationMessageEventQuery.KEY_SOURCE, this.source);
+            putNotNull(custom, ReplicationMessageEventQuery.KEY_SENDER, this.sender);
+            putNotNull(custom, ReplicationMessageEventQuery.KEY_DATE,
+                this.messageDate != NULL ? new Date(this.messageDate) : null);
+            putNotNull(custom, ReplicationMessageEventQuery.KEY_RECEIVERS, this.receivers);
+            for (Map.Entry<String, List<String>> entry : this.metadata.entrySet()) {
+                custom.put(ReplicationMessageEventQuery.customMetadataName(entry.getKey()), entry.getValue());
+            }
+            custom.putAll(this.properties);
+
+            return custom;
+        }
+
+        private static void putNotNull(Map<String, Object> map, String key, Object value)
+        {
+            if (value != null) {
+                map.put(key, value);
+            }
+        }
+
+        private String getEntity()
+        {
+            List<String> values = this.metadata.get(ReplicationMessageKeys.METADATA_ENTITY_REFERENCE);
+
+            return values != null && !values.isEmpty() ? values.get(0) : null;
+        }
+
+        private Object getValue(String property, boolean custom)
+        {
+            if (!custom) {
+                switch (property) {
+                    case Event.FIELD_ID:
+                        return this.eventId;
+                    case Event.FIELD_DATE:
+                        return getDate();
+                    case Event.FIELD_TYPE:
+                        return ReplicationMessageEventQuery.messageTypeValue(this.type);
+                    case Event.FIELD_APPLICATION:
+                        return ReplicationMessageEventQuery.VALUE_APPLICATION;
+                    default:
+                        return null;
+                }
+            }
+
+            switch (property) {
+                case ReplicationMessageEventQuery.KEY_ID:
+                    return this.id;
+                case ReplicationMessageEventQuery.KEY_TYPE:
+                    return this.type;
+                case ReplicationMessageEventQuery.KEY_STATUS:
+                    return this.status;
+                case ReplicationMessageEventQuery.KEY_TARGET:
+                    return this.target;
+                case ReplicationMessageEventQuery.KEY_SOURCE:
+                    return this.source;
+                case ReplicationMessageEventQuery.KEY_SENDER:
+                    return this.sender;
+                case ReplicationMessageEventQuery.KEY_DATE:
+                    return this.messageDate != NULL ? new Date(this.messageDate) : null;
+                case ReplicationMessageEventQuery.KEY_RECEIVERS:
+                    return this.receivers;
+                default:
+                    if (property.startsWith(ReplicationMessageEventQuery.PREFIX_CUSTOM_METADATA)) {
+                        return this.metadata
+                            .get(property.substring(ReplicationMessageEventQuery.PREFIX_CUSTOM_METADATA.length()));
+                    }
+
+                    return this.properties.get(property);
+            }
+        }
+    }
+
+    /**
+     * The location of a row in the segments and the values needed to index it.
+     * 
+     * @version $Id$
+     */
+    private static final class Entry
+    {
+        private final String eventId;
+
+        private final long date;
+
+        private final String id;
+
+        private final String entity;
+
+        private final long offset;
+
+        private Entry(Row row, long offset)
+        {
+            this.eventId = row.eventId;
+            this.date = row.date;
+            this.id = row.id;
+            this.entity = row.getEntity();
+            this.offset = offset;
+        }
+
+        private long getDay()
+        {
+            return this.date / DAY;
+        }
+    }
+
+    /**
+     * Read rows from the segments, keeping each segment open until closed.
+     * 
+     * @version $Id$
+     */
+    private final class SegmentReader implements Closeable
+    {
+        private final Map<Long, FileChannel> channels = new HashMap<>();
+
+        /**
+         * @param entry the location of the row
+         * @return the row or null if its segment does not exist anymore
+         * @throws IOException when failing to read the row
+         */
+        private Row read(Entry entry) throws IOException
+        {
+            Long day = entry.getDay();
+
+            FileChannel channel;
+            if (this.channels.containsKey(day)) {
+                channel = this.channels.get(day);
+            } else {
+                try {
+                    channel = FileChannel.open(getSegmentFile(day).toPath(), StandardOpenOption.READ);
+                } catch (NoSuchFileException e) {
+                    // The segment was deleted in the meantime (expired)
+                    channel = null;
+                }
+                this.channels.put(day, channel);
+            }
+
+            if (channel == null) {
+                return null;
+            }
+
+            Record record = readRecord(channel, entry.offset, channel.size());
+            if (record == null || record.kind != KIND_ROW) {
+                throw new EOFException("Failed to read the row of event with id [" + entry.eventId
+                    + "] at offset [" + entry.offset + "] of replication log segment [" + day + "]");
+            }
+
+            return readRow(new DataInputStream(new ByteArrayInputStream(record.payload)));
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            for (FileChannel channel : this.channels.values()) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A record read from a segment.
+     * 
+     * @version $Id$
+     */
+    private static final class Record
+    {
+        private final byte kind;
+
+        private final byte[] payload;
+
+        private final long next;
+
+        private Record(byte kind, byte[] payload, long next)
+        {
+            this.kind = kind;
+            this.payload = payload;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Open the journal and index the rows.
+     * 
+     * @param folder the folder containing the segments
+     * @param retention the number of days during which the rows are kept, 0 to keep them forever
+     * @param logger the logger to use to report recovered problems
+     * @throws IOException when failing to open the journal
+     */
+    public ReplicationMessageLogJournal(File folder, int retention, Logger logger) throws IOException
+    {
+        this.folder = folder;
+        this.retention = retention;
+        this.logger = logger;
+
+        // Make sure the folder exist on filesystem
+        this.folder.mkdirs();
+
+        // Find the existing segments
+        List<Long> days = new ArrayList<>();
+        File[] files = this.folder.listFiles((dir, name) -> name.endsWith(SEGMENT_EXTENSION));
+        if (files != null) {
+            for (File file : files) {
+                String day = StringUtils.removeEnd(file.getName(), SEGMENT_EXTENSION);
+                if (StringUtils.isNumeric(day)) {
+                    days.add(Long.parseLong(day));
+                }
+            }
+        }
+        Collections.sort(days);
+
+        // Index the rows
+        for (long day : days) {
+            load(day);
+        }
+
+        prune(System.currentTimeMillis() / DAY);
+    }
+
+    private File getSegmentFile(long day)
+    {
+        return new File(this.folder, day + SEGMENT_EXTENSION);
+    }
+
+    private void load(long day) throws IOException
+    {
+        File file = getSegmentFile(day);
+        List<Entry> entries = this.segments.computeIfAbsent(day, k -> new ArrayList<>());
+
+        try (FileChannel channel =
+            FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long offset = 0;
+            while (offset < size) {
+                Record record = readRecord(channel, offset, size);
+
+                if (record == null) {
+                    this.logger.warn("Truncating incomplete record at offset [{}] of replication log segment [{}]",
+                        offset, file.getAbsolutePath());
+
+                    channel.truncate(offset);
+
+                    break;
+                }
+
+                DataInputStream stream = new DataInputStream(new ByteArrayInputStream(record.payload));
+                if (record.kind == KIND_ROW) {
+                    // Only keep what's needed to index the row
+                    Entry entry = new Entry(readRow(stream), offset);
+                    entries.add(entry);
+                    index(entry);
+                } else {
+                    unindex(readString(stream));
+                }
+
+                offset = record.next;
+            }
+        }
+    }
+
+    private Record readRecord(FileChannel channel, long offset, long size) throws IOException
+    {
+        // Kind and payload size
+        ByteBuffer prefix = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES);
+        if (!read(channel, prefix, offset)) {
+            return null;
+        }
+        byte kind = prefix.get(0);
+        int payloadSize = prefix.getInt(Byte.BYTES);
+        if ((kind != KIND_ROW && kind != KIND_DELETE) || payloadSize < 0
+            || payloadSize > size - offset - prefix.capacity() - Long.BYTES) {
+            return null;
+        }
+
+        // Payload and checksum
+        ByteBuffer payload = ByteBuffer.allocate(payloadSize + Long.BYTES);
+        if (!read(channel, payload, offset + prefix.capacity())) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, payloadSize);
+        if (crc.getValue() != payload.getLong(payloadSize)) {
+            return null;
+        }
+
+        return new Record(kind, Arrays.copyOf(payload.array(), payloadSize),
+            offset + prefix.capacity() + payload.capacity());
+    }
+
+    private boolean read(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void index(Entry entry)
+    {
+        this.eventIds.put(entry.eventId, entry);
+        if (entry.id != null) {
+            this.messageIds.computeIfAbsent(entry.id, k -> new ArrayList<>(1)).add(entry);
+        }
+        if (entry.entity != null) {
+            this.entities.computeIfAbsent(entry.entity, k -> new ArrayList<>()).add(entry);
+        }
+    }
+
+    private Entry unindex(String eventId)
+    {
+        Entry entry = this.eventIds.remove(eventId);
+
+        if (entry != null) {
+            remove(this.messageIds, entry.id, entry);
+            remove(this.entities, entry.entity, entry);
+            List<Entry> entries = this.segments.get(entry.getDay());
+            if (entries != null) {
+                entries.remove(entry);
+            }
+        }
+
+        return entry;
+    }
+
+    private static void remove(Map<String, List<Entry>> index, String key, Entry entry)
+    {
+        if (key != null) {
+            List<Entry> entries = index.get(key);
+            if (entries != null) {
+                entries.remove(entry);
+                if (entries.isEmpty()) {
+                    index.remove(key);
+                }
+            }
+        }
+    }
+
+    private void prune(long today) throws IOException
+    {
+        if (this.retention <= 0) {
+            return;
+        }
+
+        NavigableMap<Long, List<Entry>> expired = this.segments.headMap(today - this.retention, false);
+        for (Map.Entry<Long, List<Entry>> segment : new ArrayList<>(expired.entrySet())) {
+            for (Entry entry : segment.getValue()) {
+                this.eventIds.remove(entry.eventId);
+                remove(this.messageIds, entry.id, entry);
+                remove(this.entities, entry.entity, entry);
+            }
+
+            this.segments.remove(segment.getKey());
+            Files.deleteIfExists(getSegmentFile(segment.getKey()).toPath());
+        }
+    }
+
+    private FileChannel getChannel(long day) throws IOException
+    {
+        if (day != this.activeDay) {
+            if (this.activeChannel != null) {
+                this.activeChannel.close();
+                this.activeChannel = null;
+            }
+
+            prune(day);
+
+            this.activeChannel =
+                FileChannel.open(getSegmentFile(day).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            this.activeChannel.position(this.activeChannel.size());
+            this.activeDay = day;
+        }
+
+        return this.activeChannel;
+    }
+
+    private long write(long day, byte kind, ByteArrayOutputStream payload) throws IOException
+    {
+        FileChannel channel = getChannel(day);
+
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        ByteBuffer record = ByteBuffer.allocate(Byte.BYTES + Integer.BYTES + bytes.length + Long.BYTES);
+        record.put(kind).putInt(bytes.length).put(bytes).putLong(crc.getValue()).flip();
+
+        long offset = channel.position();
+        try {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+        } catch (IOException e) {
+            // Get rid of the partially written record
+            channel.truncate(offset);
+            channel.position(offset);
+
+            throw e;
+        }
+
+        return offset;
+    }
+
+    /**
+     * @param eventId the identifier of the event
+     * @param date the date of the event
+     * @param custom the custom properties of the event
+     * @return the added row
+     * @throws IOException when failing to write the row
+     */
+    public synchronized Row add(String eventId, Date date, Map<String, Object> custom) throws IOException
+    {
+        Row row = createRow(eventId, date, custom);
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        writeRow(row, new DataOutputStream(payload));
+
+        long day = row.date / DAY;
+        Entry entry = new Entry(row, write(day, KIND_ROW, payload));
+
+        this.segments.computeIfAbsent(day, k -> new ArrayList<>()).add(entry);
+        index(entry);
+
+        return row;
+    }
+
+    private static Row createRow(String eventId, Date date, Map<String, Object> custom)
+    {
+        Map<String, List<String>> metadata = new LinkedHashMap<>();
+        Map<String, String> properties = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> entry : custom.entrySet()) {
+            String key = entry.getKey();
+            if (ReplicationMessageEventQuery.CUSTOM_TYPES.containsKey(key) || entry.getValue() == null) {
+                continue;
+            }
+
+            if (key.startsWith(ReplicationMessageEventQuery.PREFIX_CUSTOM_METADATA)) {
+                metadata.put(key.substring(ReplicationMessageEventQuery.PREFIX_CUSTOM_METADATA.length()),
+                    toStrings(entry.getValue()));
+            } else {
+                // Extra properties added by event initializers are kept as String
+                properties.put(key, entry.getValue().toString());
+            }
+        }
+
+        Date messageDate = (Date) custom.get(ReplicationMessageEventQuery.KEY_DATE);
+        Object receivers = custom.get(ReplicationMessageEventQuery.KEY_RECEIVERS);
+
+        return new Row(eventId, date.getTime(), (String) custom.get(ReplicationMessageEventQuery.KEY_ID),
+            (String) custom.get(ReplicationMessageEventQuery.KEY_TYPE),
+            (String) custom.get(ReplicationMessageEventQuery.KEY_STATUS),
+            (String) custom.get(ReplicationMessageEventQuery.KEY_TARGET),
+            (String) custom.get(ReplicationMessageEventQuery.KEY_SOURCE),
+            (String) custom.get(ReplicationMessageEventQuery.KEY_SENDER),
+            messageDate != null ? messageDate.getTime() : NULL, receivers != null ? toStrings(receivers) : null,
+            metadata, properties);
+    }
+
+    private static List<String> toStrings(Object value)
+    {
+        List<String> values = new ArrayList<>();
+        if (value instanceof Collection) {
+            for (Object element : (Collection<?>) value) {
+                values.add(element != null ? element.toString() : null);
+            }
+        } else {
+            values.add(value.toString());
+        }
+
+        return values;
+    }
+
+    /**
+     * @param eventId the identifier of the event to delete
+     * @return the deleted row or null if none could be found
+     * @throws IOException when failing to write the deletion
+     */
+    public synchronized Row delete(String eventId) throws IOException
+    {
+        Entry entry = this.eventIds.get(eventId);
+
+        if (entry == null) {
+            return null;
+        }
+
+        Row row;
+        try (SegmentReader reader = new SegmentReader()) {
+            row = reader.read(entry);
+        }
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        writeString(eventId, new DataOutputStream(payload));
+
+        // Write the deletion in the segment containing the row so that it goes away with it
+        write(entry.getDay(), KIND_DELETE, payload);
+
+        unindex(eventId);
+
+        return row;
+    }
+
+    /**
+     * @param eventId the identifier of the event
+     * @return the row or null if none could be found
+     * @throws IOException when failing to read the row
+     */
+    public Row get(String eventId) throws IOException
+    {
+        Entry entry = getEntry(eventId);
+
+        if (entry == null) {
+            return null;
+        }
+
+        try (SegmentReader reader = new SegmentReader()) {
+            return reader.read(entry);
+        }
+    }
+
+    private synchronized Entry getEntry(String eventId)
+    {
+        return this.eventIds.get(eventId);
+    }
+
+    /**
+     * @param messageId the identifier of the message
+     * @return the identifier of the first event logged for the message or null if none could be found
+     */
+    public synchronized String getFirstEventId(String messageId)
+    {
+        List<Entry> entries = this.messageIds.get(messageId);
+
+        return entries != null ? entries.get(0).eventId : null;
+    }
+
+    /**
+     * @param dateMax the maximum date to take into account
+     * @return the date of the most recent row before the passed date
+     */
+    public synchronized Date getLastDateBefore(Date dateMax)
+    {
+        long max = dateMax.getTime();
+
+        for (List<Entry> entries : this.segments.headMap(max / DAY, true).descendingMap().values()) {
+            for (int i = entries.size() - 1; i >= 0; --i) {
+                Entry entry = entries.get(i);
+                if (entry.date < max) {
+                    return new Date(entry.date);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return the number of rows
+     */
+    public synchronized int size()
+    {
+        return this.eventIds.size();
+    }
+
+    /**
+     * @param query the query to execute
+     * @return all the rows matching the query conditions sorted according to the query (offset and limit are not
+     *         applied)
+     * @throws EventStreamException when the query contains a condition which is not supported or when failing to read
+     *             the rows
+     */
+    public List<Row> search(SimpleEventQuery query) throws EventStreamException
+    {
+        // Only the selection of the candidates needs the lock, the rows are read and sorted without blocking the
+        // writers
+        List<Entry> candidates = getCandidates(query.getConditions());
+
+        List<Row> rows = new ArrayList<>();
+        try (SegmentReader reader = new SegmentReader()) {
+            for (Entry entry : candidates) {
+                Row row = reader.read(entry);
+                if (row != null && matches(row, query.getConditions(), false)) {
+                    rows.add(row);
+                }
+            }
+        } catch (IOException e) {
+            throw new EventStreamException("Failed to read the rows of the replication message log journal", e);
+        }
+
+        Comparator<Row> comparator = null;
+        for (SortClause sort : query.getSorts()) {
+            Comparator<Row> sortComparator =
+                Comparator.comparing(r -> getSortValue(r, sort), Comparator.nullsFirst(Comparator.naturalOrder()));
+            if (sort.getOrder() == Order.DESC) {
+                sortComparator = sortComparator.reversed();
+            }
+            comparator = comparator != null ? comparator.thenComparing(sortComparator) : sortComparator;
+        }
+        if (comparator != null) {
+            rows.sort(comparator);
+        }
+
+        return rows;
+    }
+
+    private synchronized List<Entry> getCandidates(List<QueryCondition> conditions)
+    {
+        long min = Long.MIN_VALUE;
+        long max = Long.MAX_VALUE;
+
+        // Use the most selective index available for the top level conditions
+        for (QueryCondition condition : conditions) {
+            if (condition instanceof CompareQueryCondition && !condition.isReversed()) {
+                CompareQueryCondition compare = (CompareQueryCondition) condition;
+                Object value = compare.getValue();
+
+                if (compare.getType() == CompareType.EQUALS && value instanceof String) {
+                    List<Entry> entries = getIndexedEntries(compare.getProperty(), compare.isCustom(), (String) value);
+                    if (entries != null) {
+                        return new ArrayList<>(entries);
+                    }
+                } else if (!compare.isCustom() && Event.FIELD_DATE.equals(compare.getProperty())
+                    && value instanceof Date) {
+                    long time = ((Date) value).getTime();
+                    if (compare.getType() == CompareType.GREATER
+                        || compare.getType() == CompareType.GREATER_OR_EQUALS) {
+                        min = Math.max(min, time);
+                    } else if (compare.getType() == CompareType.LESS
+                        || compare.getType() == CompareType.LESS_OR_EQUALS) {
+                        max = Math.min(max, time);
+                    }
+                }
+            }
+        }
+
+        // Otherwise only go through the segments covering the requested dates
+        List<Entry> entries = new ArrayList<>();
+        if (min > max) {
+            return entries;
+        }
+        for (List<Entry> segment : this.segments.subMap(min / DAY, true, max / DAY, true).values()) {
+            for (Entry entry : segment) {
+                // Avoid reading the rows which are out of the requested dates
+                if (entry.date >= min && entry.date <= max) {
+                    entries.add(entry);
+                }
+            }
+        }
+
+        return entries;
+    }
+
+    private List<Entry> getIndexedEntries(String property, boolean custom, String value)
+    {
+        if (custom) {
+            if (ReplicationMessageEventQuery.KEY_ID.equals(property)) {
+                return this.messageIds.getOrDefault(value, List.of());
+            } else if (METADATA_ENTITY_REFERENCE.equals(property)) {
+                return this.entities.getOrDefault(value, List.of());
+            }
+        } else if (Event.FIELD_ID.equals(property)) {
+            Entry entry = this.eventIds.get(value);
+
+            return entry != null ? List.of(entry) : List.of();
+        }
+
+        return null;
+    }
+
+    private boolean matches(Row row, List<QueryCondition> conditions, boolean or) throws EventStreamException
+    {
+        for (QueryCondition condition : conditions) {
+            boolean matches = matches(row, condition);
+
+            if (or && matches) {
+                return true;
+            } else if (!or && !matches) {
+                return false;
+            }
+        }
+
+        return !or || conditions.isEmpty();
+    }
+
+    private boolean matches(Row row, QueryCondition condition) throws EventStreamException
+    {
+        boolean matches;
+        if (condition instanceof GroupQueryCondition) {
+            GroupQueryCondition group = (GroupQueryCondition) condition;
+            matches = matches(row, group.getConditions(), group.isOr());
+        } else if (condition instanceof CompareQueryCondition) {
+            CompareQueryCondition compare = (CompareQueryCondition) condition;
+            matches = matches(row.getValue(compare.getProperty(), compare.isCustom()), compare.getType(),
+                compare.getValue());
+        } else if (condition instanceof InQueryCondition) {
+            InQueryCondition in = (InQueryCondition) condition;
+            Object value = row.getValue(in.getProperty(), in.isCustom());
+            matches = false;
+            for (Object expected : in.getValues()) {
+                if (matches(value, CompareType.EQUALS, expected)) {
+                    matches = true;
+                    break;
+                }
+            }
+        } else {
+            throw new EventStreamException(
+                "Unsupported condition [" + condition + "] for the replication message log journal");
+        }
+
+        return condition.isReversed() ? !matches : matches;
+    }
+
+    private boolean matches(Object value, CompareType type, Object expected)
+    {
+        if (value instanceof Collection) {
+            for (Object element : (Collection<?>) value) {
+                if (matches(element, type, expected)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        if (value == null || expected == null) {
+            return type == CompareType.EQUALS && value == expected;
+        }
+
+        switch (type) {
+            case EQUALS:
+                return compare(value, expected) == 0;
+            case GREATER:
+                return compare(value, expected) > 0;
+            case GREATER_OR_EQUALS:
+                return compare(value, expected) >= 0;
+            case LESS:
+                return compare(value, expected) < 0;
+            case LESS_OR_EQUALS:
+                return compare(value, expected) <= 0;
+            case STARTS_WITH:
+                return value.toString().startsWith(expected.toString());
+            case ENDS_WITH:
+                return value.toString().endsWith(expected.toString());
+            case CONTAINS:
+                return value.toString().contains(expected.toString());
+            default:
+                return false;
+        }
+    }
+
+    private static int compare(Object value, Object expected)
+    {
+        if (value instanceof Date && expected instanceof Date) {
+            return ((Date) value).compareTo((Date) expected);
+        }
+
+        if (value instanceof Number && expected instanceof Number) {
+            return Long.compare(((Number) value).longValue(), ((Number) expected).longValue());
+        }
+
+        return value.toString().compareTo(expected.toString());
+    }
+
+    private static Comparable<Object> getSortValue(Row row, SortClause sort)
+    {
+        Object value = row.getValue(sort.getProperty(), sort.isCustom());
+
+        if (value instanceof List) {
+            List<?> values = (List<?>) value;
+            value = values.isEmpty() ? null : values.get(0);
+        }
+
+        if (value instanceof Date) {
+            return (Comparable) value;
+        }
+
+        return (Comparable) Objects.toString(value, null);
+    }
+
+    private void writeRow(Row row, DataOutputStream stream) throws IOException
+    {
+        writeString(row.eventId, stream);
+        stream.writeLong(row.date);
+        writeString(row.id, stream);
+        writeString(row.type, stream);
+        writeString(row.status, stream);
+        writeString(row.target, stream);
+        writeString(row.source, stream);
+        writeString(row.sender, stream);
+        stream.writeLong(row.messageDate);
+        writeStrings(row.receivers, stream);
+
+        stream.writeInt(row.metadata.size());
+        for (Map.Entry<String, List<String>> entry : row.metadata.entrySet()) {
+            writeString(entry.getKey(), stream);
+            writeStrings(entry.getValue(), stream);
+        }
+
+        stream.writeInt(row.properties.size());
+        for (Map.Entry<String, String> entry : row.properties.entrySet()) {
+            writeString(entry.getKey(), stream);
+            writeString(entry.getValue(), stream);
+        }
+
+        stream.flush();
+    }
+
+    private static Row readRow(DataInputStream stream) throws IOException
+    {
+        String eventId = readString(stream);
+        long date = stream.readLong();
+        String id = readString(stream);
+        String type = readString(stream);
+        String status = readString(stream);
+        String target = readString(stream);
+        String source = readString(stream);
+        String sender = readString(stream);
+        long messageDate = stream.readLong();
+        List<String> receivers = readStrings(stream);
+
+        int metadataSize = stream.readInt();
+        Map<String, List<String>> metadata = new LinkedHashMap<>(metadataSize);
+        for (int i = 0; i < metadataSize; ++i) {
+            metadata.put(readString(stream), readStrings(stream));
+        }
+
+        int propertiesSize = stream.readInt();
+        Map<String, String> properties = new LinkedHashMap<>(propertiesSize);
+        for (int i = 0; i < propertiesSize; ++i) {
+            properties.put(readString(stream), readString(stream));
+        }
+
+        return new Row(eventId, date, id, type, status, target, source, sender, messageDate, receivers, metadata,
+            properties);
+    }
+
+    private static void writeStrings(Collection<String> values, DataOutputStream stream) throws IOException
+    {
+        if (values == null) {
+            stream.writeInt(NULL);
+        } else {
+            stream.writeInt(values.size());
+            for (String value : values) {
+                writeString(value, stream);
+            }
+        }
+    }
+
+    private static void writeString(String value, DataOutputStream stream) throws IOException
+    {
+        if (value == null) {
+            stream.writeInt(NULL);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            stream.writeInt(bytes.length);
+            stream.write(bytes);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream stream) throws IOException
+    {
+        int size = stream.readInt();
+        if (size == NULL) {
+            return null;
+        }
+
+        List<String> values = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            values.add(readString(stream));
+        }
+
+        return values;
+    }
+
+    private static String readString(DataInputStream stream) throws IOException
+    {
+        int length = stream.readInt();
+        if (length == NULL) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        stream.readFully(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (this.activeChannel != null) {
+            this.activeChannel.close();
+            this.activeChannel = null;
+            this.activeDay = NULL;
+        }
+    }
+}
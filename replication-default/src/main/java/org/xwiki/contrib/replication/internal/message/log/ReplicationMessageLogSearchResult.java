@@ -0,0 +1,83 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.message.log;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.xwiki.eventstream.Event;
+import org.xwiki.eventstream.EventSearchResult;
+
+/**
+ * The events found in the {@link ReplicationMessageLogJournal}.
+ *
+ * @version $Id$
+ * @since 2.3.9
+ */
+public class ReplicationMessageLogSearchResult implements EventSearchResult
+{
+    private final long totalHits;
+
+    private final long offset;
+
+    private final List<Event> events;
+
+    /**
+     * @param totalHits the total number of events matching the query
+     * @param offset the index of the first returned event
+     * @param events the returned events
+     */
+    public ReplicationMessageLogSearchResult(long totalHits, long offset, List<Event> events)
+    {
+        this.totalHits = totalHits;
+        this.offset = offset;
+        this.events = events;
+    }
+
+    @Override
+    public long getTotalHits()
+    {
+        return this.totalHits;
+    }
+
+    @Override
+    public long getOffset()
+    {
+        return this.offset;
+    }
+
+    @Override
+    public long getSize()
+    {
+        return this.events.size();
+    }
+
+    @Override
+    public Stream<Event> stream()
+    {
+        return this.events.stream();
+    }
+
+    @Override
+    public void close()
+    {
+        // Nothing to release
+    }
+}
@@ -19,13 +19,21 @@
  */
 package org.xwiki.contrib.replication.internal.message.log;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 
 import javax.inject.Inject;
@@ -34,7 +42,13 @@ import javax.inject.Singleton;
 
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
+import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
 import org.xwiki.context.Execution;
 import org.xwiki.context.ExecutionContext;
 import org.xwiki.contrib.replication.DefaultReplicationReceiverMessage;
@@ -44,6 +58,9 @@ import org.xwiki.contrib.replication.ReplicationInstance;
 import org.xwiki.contrib.replication.ReplicationInstanceManager;
 import org.xwiki.contrib.replication.ReplicationMessage;
 import org.xwiki.contrib.replication.ReplicationReceiverMessage;
+import org.xwiki.contrib.replication.internal.ReplicationConfiguration;
+import org.xwiki.contrib.replication.internal.ReplicationFileStore;
+import org.xwiki.contrib.replication.internal.message.log.ReplicationMessageLogJournal.Row;
 import org.xwiki.contrib.replication.log.ReplicationMessageEventQuery;
 import org.xwiki.contrib.replication.message.log.ReplicationMessageEventInitializer;
 import org.xwiki.eventstream.Event;
@@ -54,20 +71,52 @@ import org.xwiki.eventstream.EventStore;
 import org.xwiki.eventstream.EventStreamException;
 import org.xwiki.eventstream.query.SimpleEventQuery;
 import org.xwiki.eventstream.query.SortableEventQuery.SortClause.Order;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.ModelContext;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.ObservationManager;
 
 import com.xpn.xwiki.user.api.XWikiRightService;
 
 /**
+ * Store the messages events in the {@link EventStore} or, when configured (see
+ * {@link ReplicationConfiguration#getLogStore()}), in a dedicated {@link ReplicationMessageLogJournal}.
+ * <p>
+ * The events saved with {@link #saveAsync(ReplicationMessage, ReplicationMessageEventInitializer)} are written by a
+ * dedicated thread in batches. When that thread is lagging too much behind (see
+ * {@link ReplicationConfiguration#getLogQueueSize()}) the events are written by the calling thread instead.
+ * 
  * @version $Id$
  */
 @Component(roles = ReplicationMessageLogStore.class)
 @Singleton
-public class ReplicationMessageLogStore
+public class ReplicationMessageLogStore implements Initializable, Disposable
 {
+    /**
+     * The messages events are stored in the {@link EventStore}.
+     * 
+     * @since 2.3.9
+     */
+    public static final String STORE_EVENTS = "events";
+
+    /**
+     * The messages events are stored in the {@link ReplicationMessageLogJournal}.
+     * 
+     * @since 2.3.9
+     */
+    public static final String STORE_JOURNAL = "journal";
+
     private static final DocumentReference SUPERADMIN =
         new DocumentReference("xwiki", "XWiki", XWikiRightService.SUPERADMIN_USER);
 
+    private static final String LISTENER_NAME = "ReplicationMessageLogStore.initializers";
+
+    private static final String NAMESPACE_WIKI_PREFIX = "wiki:";
+
+    private static final String NAMESPACE_ROOT = "";
+
     @Inject
     private EventStore store;
 
@@ -81,12 +130,190 @@ public class ReplicationMessageLogStore
     @Named("context")
     private ComponentManager componentManager;
 
+    @Inject
+    private ModelContext modelContext;
+
     @Inject
     private Execution execution;
 
+    @Inject
+    private ReplicationConfiguration configuration;
+
+    @Inject
+    private ObservationManager observation;
+
+    @Inject
+    private ReplicationFileStore fileStore;
+
     @Inject
     private Logger logger;
 
+    private volatile ReplicationMessageLogJournal journal;
+
+    /**
+     * The initializers found in the context component manager, by namespace.
+     */
+    private final Map<String, List<ReplicationMessageEventInitializer>> initializers = new ConcurrentHashMap<>();
+
+    private BlockingQueue<LogEntry> logQueue;
+
+    private Thread logThread;
+
+    private volatile boolean saturated;
+
+    private volatile boolean disposed;
+
+    private static final class LogEntry
+    {
+        private final ReplicationMessage message;
+
+        private final ReplicationMessageEventInitializer initializer;
+
+        private final List<ReplicationMessageEventInitializer> initializers;
+
+        private final CompletableFuture<Event> future = new CompletableFuture<>();
+
+        private LogEntry(ReplicationMessage message, ReplicationMessageEventInitializer initializer,
+            List<ReplicationMessageEventInitializer> initializers)
+        {
+            this.message = message;
+            this.initializer = initializer;
+            this.initializers = initializers;
+        }
+    }
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        // Forget the cached initializers when one is registered or unregistered
+        this.observation.addListener(new AbstractEventListener(LISTENER_NAME,
+            new ComponentDescriptorAddedEvent(ReplicationMessageEventInitializer.class),
+            new ComponentDescriptorRemovedEvent(ReplicationMessageEventInitializer.class))
+        {
+            @Override
+            public void onEvent(org.xwiki.observation.event.Event event, Object source, Object data)
+            {
+                ReplicationMessageLogStore.this.initializers.clear();
+            }
+        });
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.disposed = true;
+
+        this.observation.removeListener(LISTENER_NAME);
+
+        synchronized (this) {
+            if (this.logThread != null) {
+                this.logThread.interrupt();
+            }
+
+            if (this.journal != null) {
+                try {
+                    this.journal.close();
+                } catch (IOException e) {
+                    this.logger.error("Failed to close the replication message log journal", e);
+                }
+            }
+        }
+    }
+
+    private ReplicationMessageLogJournal getJournal() throws EventStreamException
+    {
+        if (!STORE_JOURNAL.equals(this.configuration.getLogStore())) {
+            return null;
+        }
+
+        ReplicationMessageLogJournal currentJournal = this.journal;
+        if (currentJournal == null) {
+            synchronized (this) {
+                if (this.journal == null) {
+                    try {
+                        this.journal = new ReplicationMessageLogJournal(
+                            new File(this.fileStore.getReplicationFolder(), "log"),
+                            this.configuration.getLogRetention(), this.logger);
+                    } catch (IOException e) {
+                        throw new EventStreamException("Failed to open the replication message log journal", e);
+                    }
+                }
+
+                currentJournal = this.journal;
+            }
+        }
+
+        return currentJournal;
+    }
+
+    /**
+     * @param query the query to execute
+     * @return the result of the search
+     * @throws EventStreamException when failing to execute the query
+     * @since 2.3.9
+     */
+    public EventSearchResult search(ReplicationMessageEventQuery query) throws EventStreamException
+    {
+        return search(query, null);
+    }
+
+    /**
+     * @param query the query to execute
+     * @param fields the fields to fill in the returned events, null or empty for all of them (only taken into account
+     *            by the {@link EventStore})
+     * @return the result of the search
+     * @throws EventStreamException when failing to execute the query
+     * @since 2.3.9
+     */
+    public EventSearchResult search(SimpleEventQuery query, Set<String> fields) throws EventStreamException
+    {
+        ReplicationMessageLogJournal currentJournal = getJournal();
+
+        if (currentJournal == null) {
+            return fields != null ? this.store.search(query, fields) : this.store.search(query);
+        }
+
+        List<Row> rows = currentJournal.search(query);
+
+        long offset = Math.max(0, query.getOffset());
+        long end = query.getLimit() > 0 ? Math.min(rows.size(), offset + query.getLimit()) : rows.size();
+        List<Event> events = new ArrayList<>();
+        for (long i = offset; i < end; ++i) {
+            events.add(toEvent(rows.get((int) i)));
+        }
+
+        return new ReplicationMessageLogSearchResult(rows.size(), offset, events);
+    }
+
+    private Event createEvent(String messageType)
+    {
+        Event event = this.eventFactory.createRawEvent();
+
+        // We don't want this even to go through pre filtering so we mark it as done
+        event.setPrefiltered(true);
+        // We want to hide this event as much as possible
+        event.setHidden(true);
+
+        event.setUser(SUPERADMIN);
+        event.setApplication(ReplicationMessageEventQuery.VALUE_APPLICATION);
+        event.setImportance(Importance.BACKGROUND);
+
+        event.setType(ReplicationMessageEventQuery.messageTypeValue(messageType));
+
+        return event;
+    }
+
+    private Event toEvent(Row row)
+    {
+        Event event = createEvent(row.getType());
+
+        event.setId(row.getEventId());
+        event.setDate(row.getDate());
+        event.setCustom(row.getCustom());
+
+        return event;
+    }
+
     /**
      * @param messageId the identifier of the message
      * @return the first event corresponding to this message
@@ -94,6 +321,11 @@ public class ReplicationMessageLogStore
      */
     public Optional<String> getEventId(String messageId) throws EventStreamException
     {
+        ReplicationMessageLogJournal currentJournal = getJournal();
+        if (currentJournal != null) {
+            return Optional.ofNullable(currentJournal.getFirstEventId(messageId));
+        }
+
         SimpleEventQuery eventQuery = new SimpleEventQuery();
         // Check of an event exist with the same message id
         eventQuery.custom().eq(ReplicationMessageEventQuery.KEY_ID, messageId);
@@ -131,8 +363,8 @@ public class ReplicationMessageLogStore
     {
         // Save the event synchronously
         try {
-            return saveAsyncInternal(message, initializer).get();
-        } catch (InterruptedException e) {
+            return saveAsyncInternal(message, initializer, getInitializers(message)).get();
+        } catch (InterruptedException | EventStreamException e) {
             throw e;
         } catch (Exception e) {
             Throwable cause = e;
@@ -156,44 +388,131 @@ public class ReplicationMessageLogStore
     public CompletableFuture<Event> saveAsync(ReplicationMessage message,
         ReplicationMessageEventInitializer initializer)
     {
-        CompletableFuture<Event> future = new CompletableFuture<>();
+        // The extended initializers depend on the context of the caller
+        LogEntry entry = new LogEntry(message, initializer, getInitializers(message));
 
-        // Make the full process asynchronous and not only storing the Event instance
-        CompletableFuture.runAsync(() -> {
+        if (!getLogQueue().offer(entry)) {
+            // The log thread is lagging too much behind, slow down the producer instead of piling up events
+            if (!this.saturated) {
+                this.saturated = true;
+
+                this.logger.warn("The message log queue is full, messages events are written by the calling thread"
+                    + " until it catches up");
+            }
+
+            saveInCallingThread(entry);
+        }
+
+        return entry.future;
+    }
+
+    private synchronized BlockingQueue<LogEntry> getLogQueue()
+    {
+        if (this.logQueue == null) {
+            this.logQueue = new ArrayBlockingQueue<>(this.configuration.getLogQueueSize());
+
+            this.logThread = new Thread(this::runLog);
+            this.logThread.setName("Replication message log");
+            this.logThread.setPriority(Thread.NORM_PRIORITY - 2);
+            // The log is not critical enough to block the shutdown
+            this.logThread.setDaemon(true);
+            this.logThread.start();
+        }
+
+        return this.logQueue;
+    }
+
+    private void saveInCallingThread(LogEntry entry)
+    {
+        boolean newContext = this.execution.getContext() == null;
+        if (newContext) {
             this.execution.setContext(new ExecutionContext());
+        }
+
+        try {
+            save(entry);
+        } finally {
+            if (newContext) {
+                this.execution.removeContext();
+            }
+        }
+    }
+
+    private void runLog()
+    {
+        int batchSize = this.configuration.getLogBatchSize();
+        List<LogEntry> batch = new ArrayList<>(batchSize);
 
+        while (!this.disposed) {
             try {
-                future.complete(saveAsyncInternal(message, initializer).get());
-            } catch (Exception e) {
-                future.completeExceptionally(e);
-                if (e instanceof InterruptedException) {
-                    Thread.currentThread().interrupt();
-                }
+                batch.add(this.logQueue.take());
+                this.logQueue.drainTo(batch, batchSize - 1);
+
+                saveBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
 
-                this.logger.error("Failed to log the message with id [{}]", message.getId(), e);
+                break;
             } finally {
-                this.execution.removeContext();
+                batch.clear();
             }
-        });
 
-        return future;
+            if (this.saturated && this.logQueue.isEmpty()) {
+                this.saturated = false;
+
+                this.logger.info("The message log queue caught up");
+            }
+        }
     }
 
-    private CompletableFuture<Event> saveAsyncInternal(ReplicationMessage message,
-        ReplicationMessageEventInitializer initializer)
+    private void saveBatch(List<LogEntry> batch) throws InterruptedException
     {
-        Event event = this.eventFactory.createRawEvent();
+        this.execution.setContext(new ExecutionContext());
 
-        // We don't want this even to go through pre filtering so we mark it as done
-        event.setPrefiltered(true);
-        // We want to hide this event as much as possible
-        event.setHidden(true);
+        try {
+            List<CompletableFuture<Event>> futures = new ArrayList<>(batch.size());
+            for (LogEntry entry : batch) {
+                futures.add(save(entry));
+            }
 
-        event.setUser(SUPERADMIN);
-        event.setApplication(ReplicationMessageEventQuery.VALUE_APPLICATION);
-        event.setImportance(Importance.BACKGROUND);
+            // Wait for the whole batch to be stored before sending the next one to not flood the event store
+            for (CompletableFuture<Event> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // Already logged
+                }
+            }
+        } finally {
+            this.execution.removeContext();
+        }
+    }
+
+    private CompletableFuture<Event> save(LogEntry entry)
+    {
+        CompletableFuture<Event> future;
+        try {
+            future = saveAsyncInternal(entry.message, entry.initializer, entry.initializers);
+        } catch (Exception e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+
+        return future.whenComplete((event, error) -> {
+            if (error != null) {
+                entry.future.completeExceptionally(error);
+
+                this.logger.error("Failed to log the message with id [{}]", entry.message.getId(), error);
+            } else {
+                entry.future.complete(event);
+            }
+        });
+    }
 
-        event.setType(ReplicationMessageEventQuery.messageTypeValue(message.getType()));
+    private CompletableFuture<Event> saveAsyncInternal(ReplicationMessage message,
+        ReplicationMessageEventInitializer initializer, List<ReplicationMessageEventInitializer> initializers)
+        throws EventStreamException
+    {
+        Event event = createEvent(message.getType());
 
         Map<String, Object> properties = new HashMap<>();
 
@@ -225,9 +544,7 @@ public class ReplicationMessageLogStore
 
         // Call extended event initializers
         try {
-            this.componentManager
-                .<ReplicationMessageEventInitializer>getInstanceList(ReplicationMessageEventInitializer.class)
-                .forEach(i -> i.initialize(message, event));
+            initializers.forEach(i -> i.initialize(message, event));
         } catch (Exception e) {
             this.logger.error("Failed to execute event initializers for message with id [{}]", message.getId(), e);
         }
@@ -235,10 +552,58 @@ public class ReplicationMessageLogStore
         // Debug log of the message
         this.logger.debug("Message ({}): {}", event.getCustom().get(ReplicationMessageEventQuery.KEY_STATUS), message);
 
+        ReplicationMessageLogJournal currentJournal = getJournal();
+        if (currentJournal != null) {
+            return saveJournal(currentJournal, event);
+        }
+
         // Save the event asynchronously
         return this.store.saveEvent(event);
     }
 
+    private CompletableFuture<Event> saveJournal(ReplicationMessageLogJournal currentJournal, Event event)
+    {
+        if (event.getId() == null) {
+            event.setId(UUID.randomUUID().toString());
+        }
+        if (event.getDate() == null) {
+            event.setDate(new Date());
+        }
+
+        try {
+            currentJournal.add(event.getId(), event.getDate(), event.getCustom());
+        } catch (IOException e) {
+            return CompletableFuture
+                .failedFuture(new EventStreamException("Failed to write the event in the message log journal", e));
+        }
+
+        return CompletableFuture.completedFuture(event);
+    }
+
+    private List<ReplicationMessageEventInitializer> getInitializers(ReplicationMessage message)
+    {
+        // The initializers installed in a wiki are only visible from that wiki
+        EntityReference currentReference = this.modelContext.getCurrentEntityReference();
+        EntityReference wikiReference =
+            currentReference != null ? currentReference.extractReference(EntityType.WIKI) : null;
+        String namespace = wikiReference != null ? NAMESPACE_WIKI_PREFIX + wikiReference.getName() : NAMESPACE_ROOT;
+
+        List<ReplicationMessageEventInitializer> namespaceInitializers = this.initializers.get(namespace);
+
+        if (namespaceInitializers == null) {
+            try {
+                namespaceInitializers = this.componentManager.getInstanceList(ReplicationMessageEventInitializer.class);
+                this.initializers.put(namespace, namespaceInitializers);
+            } catch (ComponentLookupException e) {
+                this.logger.error("Failed to get event initializers for message with id [{}]", message.getId(), e);
+
+                namespaceInitializers = List.of();
+            }
+        }
+
+        return namespaceInitializers;
+    }
+
     /**
      * @param messageId the identifier of the message to delete
      * @return the new {@link CompletableFuture} providing the deleted {@link Event} or empty if none could be found
@@ -248,7 +613,36 @@ public class ReplicationMessageLogStore
     {
         Optional<String> eventId = getEventId(messageId);
 
-        return eventId.isPresent() ? this.store.deleteEvent(eventId.get()) : null;
+        if (eventId.isEmpty()) {
+            return null;
+        }
+
+        ReplicationMessageLogJournal currentJournal = getJournal();
+        if (currentJournal != null) {
+            try {
+                Row row = currentJournal.delete(eventId.get());
+
+                return CompletableFuture.completedFuture(Optional.ofNullable(row).map(this::toEvent));
+            } catch (IOException e) {
+                throw new EventStreamException("Failed to delete the event from the message log journal", e);
+            }
+        }
+
+        return this.store.deleteEvent(eventId.get());
+    }
+
+    private Optional<Event> getEvent(String id) throws EventStreamException
+    {
+        ReplicationMessageLogJournal currentJournal = getJournal();
+        if (currentJournal != null) {
+            try {
+                return Optional.ofNullable(currentJournal.get(id)).map(this::toEvent);
+            } catch (IOException e) {
+                throw new EventStreamException("Failed to read the event from the message log journal", e);
+            }
+        }
+
+        return this.store.getEvent(id);
     }
 
     /**
@@ -274,7 +668,7 @@ public class ReplicationMessageLogStore
     public <M extends ReplicationMessage> M loadMessage(String id, Collection<String> receivers)
         throws EventStreamException
     {
-        Optional<Event> eventOptional = this.store.getEvent(id);
+        Optional<Event> eventOptional = getEvent(id);
 
         if (eventOptional.isEmpty()) {
             return null;
@@ -331,6 +725,11 @@ public class ReplicationMessageLogStore
      */
     public Date getLastMessageBefore(Date dateMax) throws Exception
     {
+        ReplicationMessageLogJournal currentJournal = getJournal();
+        if (currentJournal != null) {
+            return currentJournal.getLastDateBefore(dateMax);
+        }
+
         SimpleEventQuery query = new SimpleEventQuery();
 
         // Only events related to replication messages
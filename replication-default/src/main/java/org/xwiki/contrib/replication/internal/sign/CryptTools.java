@@ -23,7 +23,10 @@ import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.Base64;
 import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+import javax.crypto.Cipher;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -37,7 +40,9 @@ import org.xwiki.contrib.replication.ReplicationInstance;
 import org.xwiki.crypto.AsymmetricKeyFactory;
 import org.xwiki.crypto.KeyPairGenerator;
 import org.xwiki.crypto.params.cipher.asymmetric.AsymmetricKeyPair;
+import org.xwiki.crypto.params.cipher.asymmetric.AsymmetricKeyParameters;
 import org.xwiki.crypto.params.cipher.asymmetric.PrivateKeyParameters;
+import org.xwiki.crypto.params.cipher.asymmetric.PublicKeyParameters;
 import org.xwiki.crypto.pkix.CertificateFactory;
 import org.xwiki.crypto.pkix.CertificateGenerator;
 import org.xwiki.crypto.pkix.CertificateGeneratorFactory;
@@ -63,6 +68,10 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 @Singleton
 public class CryptTools implements Initializable
 {
+    private static final String CIPHER = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+
+    private static final int SIGNERS_SIZE = 32;
+
     @Inject
     @Named("RSA")
     private KeyPairGenerator keyPairGenerator;
@@ -87,6 +96,17 @@ public class CryptTools implements Initializable
 
     private X509CertificateGenerationParameters generationParameters;
 
+    // Signers are not thread safe but can be reused once a signature is generated or verified
+    private final ThreadLocal<Map<AsymmetricKeyParameters, Signer>> signers =
+        ThreadLocal.withInitial(() -> new LinkedHashMap<>(SIGNERS_SIZE, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<AsymmetricKeyParameters, Signer> eldest)
+            {
+                return size() > SIGNERS_SIZE;
+            }
+        });
+
     @Override
     public void initialize() throws InitializationException
     {
@@ -167,15 +187,65 @@ public class CryptTools implements Initializable
     public String sign(PrivateKeyParameters pk, String content) throws ReplicationException
     {
         try {
-            Signer signer = this.signerFactory.getInstance(true, pk);
-            signer.update(content.getBytes(UTF_8));
+            Signer signer = getSigner(true, pk);
+            try {
+                signer.update(content.getBytes(UTF_8));
+
+                return Base64.getEncoder().encodeToString(signer.generate());
+            } catch (Exception e) {
+                // Don't reuse a signer in an unknown state
+                this.signers.get().remove(pk);
 
-            return Base64.getEncoder().encodeToString(signer.generate());
+                throw e;
+            }
         } catch (Exception e) {
             throw new ReplicationException(String.format("Error while signing [%s]", content), e);
         }
     }
 
+    private Signer getSigner(boolean forSigning, AsymmetricKeyParameters key)
+    {
+        return this.signers.get().computeIfAbsent(key, k -> this.signerFactory.getInstance(forSigning, k));
+    }
+
+    /**
+     * @param key the public key to use to encrypt the data
+     * @param data the data to encrypt
+     * @return the encrypted data
+     * @throws ReplicationException when failing to encrypt the data
+     * @since 2.3.9
+     */
+    public byte[] encrypt(CertifiedPublicKey key, byte[] data) throws ReplicationException
+    {
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, this.keyFactory.toKey(key.getPublicKeyParameters()));
+
+            return cipher.doFinal(data);
+        } catch (Exception e) {
+            throw new ReplicationException("Error while encrypting data", e);
+        }
+    }
+
+    /**
+     * @param key the private key to use to decrypt the data
+     * @param data the data to decrypt
+     * @return the decrypted data
+     * @throws ReplicationException when failing to decrypt the data
+     * @since 2.3.9
+     */
+    public byte[] decrypt(PrivateKeyParameters key, byte[] data) throws ReplicationException
+    {
+        try {
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, this.keyFactory.toKey(key));
+
+            return cipher.doFinal(data);
+        } catch (Exception e) {
+            throw new ReplicationException("Error while decrypting data", e);
+        }
+    }
+
     /**
      * @param instance the instance for which to validate the signature
      * @param content the unsigned content
@@ -192,10 +262,20 @@ public class CryptTools implements Initializable
         }
 
         try {
-            Signer signer = this.signerFactory.getInstance(false, instance.getReceiveKey().getPublicKeyParameters());
-            signer.update(content.getBytes(UTF_8));
+            byte[] signature = Base64.getDecoder().decode(signedContent);
+
+            PublicKeyParameters key = instance.getReceiveKey().getPublicKeyParameters();
+            Signer signer = getSigner(false, key);
+            try {
+                signer.update(content.getBytes(UTF_8));
+
+                return signer.verify(signature);
+            } catch (Exception e) {
+                // Don't reuse a signer in an unknown state
+                this.signers.get().remove(key);
 
-            return signer.verify(Base64.getDecoder().decode(signedContent));
+                throw e;
+            }
         } catch (Exception e) {
             throw new ReplicationException(
                 String.format("Error while verifying signature [%s] for [%s]", signedContent, instance), e);
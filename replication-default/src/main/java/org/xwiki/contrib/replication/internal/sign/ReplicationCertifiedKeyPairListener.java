@@ -71,8 +71,12 @@ public class ReplicationCertifiedKeyPairListener extends AbstractEventListener
     @Override
     public void onEvent(Event event, Object source, Object data)
     {
+        String instance = ((AbstractReplicationCertifiedKeyPairEvent) event).getInstance();
+
+        // Forget the cached key pair
+        this.store.invalidate(instance);
+
         if (this.remoteContext.isRemoteState()) {
-            String instance = ((AbstractReplicationCertifiedKeyPairEvent) event).getInstance();
             ReplicationCertifiedKeyPair remoteKeyPair = (ReplicationCertifiedKeyPair) source;
             ReplicationCertifiedKeyPair currentKeyPair = getCurrentKeyPair(instance);
 
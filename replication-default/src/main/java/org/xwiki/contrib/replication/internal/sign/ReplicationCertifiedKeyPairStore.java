@@ -25,6 +25,8 @@ import java.nio.file.Files;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -70,6 +72,8 @@ public class ReplicationCertifiedKeyPairStore
     @Inject
     private Logger logger;
 
+    private final Map<String, ReplicationCertifiedKeyPair> cache = new ConcurrentHashMap<>();
+
     /**
      * @param instance the instance for which to get the {@link CertifiedKeyPair}
      * @param create if true and no key already exist, create a new one
@@ -80,6 +84,12 @@ public class ReplicationCertifiedKeyPairStore
      */
     public ReplicationCertifiedKeyPair getCertifiedKeyPair(String instance, boolean create) throws ReplicationException
     {
+        // Avoid reading and parsing the key file for each signature
+        ReplicationCertifiedKeyPair cached = this.cache.get(instance);
+        if (cached != null) {
+            return cached;
+        }
+
         FileStoreReference file = buildFileStoreReference(instance);
 
         if (file.getFile().exists()) {
@@ -97,6 +107,8 @@ public class ReplicationCertifiedKeyPairStore
             }
 
             if (stored != null) {
+                this.cache.put(instance, stored);
+
                 return stored;
             }
         }
@@ -135,7 +147,23 @@ public class ReplicationCertifiedKeyPairStore
      */
     public void storeCertifiedKeyPair(String instance, CertifiedKeyPair keyPair) throws KeyStoreException
     {
-        this.keyStore.store(buildFileStoreReference(instance), keyPair);
+        try {
+            this.keyStore.store(buildFileStoreReference(instance), keyPair);
+        } finally {
+            invalidate(instance);
+        }
+    }
+
+    /**
+     * Make sure the next access to the {@link CertifiedKeyPair} associated with the passed instance reads the stored
+     * one.
+     * 
+     * @param instance the instance associated with the {@link CertifiedKeyPair}
+     * @since 2.3.9
+     */
+    public void invalidate(String instance)
+    {
+        this.cache.remove(instance);
     }
 
     private FileStoreReference buildFileStoreReference(String instance)
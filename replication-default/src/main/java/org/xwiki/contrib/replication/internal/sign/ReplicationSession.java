@@ -0,0 +1,143 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.sign;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.xwiki.contrib.replication.ReplicationException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A short lived symmetric key shared by two instances and used to authenticate the requests instead of an asymmetric
+ * signature.
+ * 
+ * @version $Id$
+ * @since 2.3.9
+ */
+public class ReplicationSession
+{
+    /**
+     * The algorithm used to authenticate the content.
+     */
+    public static final String ALGORITHM = "HmacSHA256";
+
+    private final String instance;
+
+    private final String id;
+
+    private final SecretKeySpec key;
+
+    private final long expiration;
+
+    /**
+     * @param instance the URI of the other instance
+     * @param id the identifier of the session
+     * @param secret the shared secret
+     * @param expiration the date (in milliseconds) after which the session should not be used anymore
+     */
+    public ReplicationSession(String instance, String id, byte[] secret, long expiration)
+    {
+        this.instance = instance;
+        this.id = id;
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.expiration = expiration;
+    }
+
+    /**
+     * @return the URI of the other instance
+     */
+    public String getInstance()
+    {
+        return this.instance;
+    }
+
+    /**
+     * @return the identifier of the session
+     */
+    public String getId()
+    {
+        return this.id;
+    }
+
+    /**
+     * @return the shared secret
+     */
+    public byte[] getSecret()
+    {
+        return this.key.getEncoded();
+    }
+
+    /**
+     * @return true if the session should not be used anymore
+     */
+    public boolean isExpired()
+    {
+        return System.currentTimeMillis() > this.expiration;
+    }
+
+    /**
+     * @param content the content to authenticate
+     * @return the authentication code of the content
+     * @throws ReplicationException when failing to authenticate the content
+     */
+    public String sign(String content) throws ReplicationException
+    {
+        return Base64.getEncoder().encodeToString(mac(content));
+    }
+
+    /**
+     * @param content the content
+     * @param signedContent the authentication code to validate
+     * @return true if the authentication code matches the content
+     * @throws ReplicationException when failing to authenticate the content
+     */
+    public boolean verify(String content, String signedContent) throws ReplicationException
+    {
+        if (content == null || signedContent == null) {
+            return false;
+        }
+
+        byte[] expected = mac(content);
+
+        try {
+            return MessageDigest.isEqual(expected, Base64.getDecoder().decode(signedContent));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private byte[] mac(String content) throws ReplicationException
+    {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(this.key);
+
+            return mac.doFinal(content.getBytes(UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new ReplicationException(String.format("Error while authenticating [%s]", content), e);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.sign;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.replication.ReplicationException;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+import org.xwiki.observation.remote.RemoteObservationManagerContext;
+
+/**
+ * A listener in charge of opening the sessions opened in another cluster member, and of forgetting the sessions
+ * associated with a replaced key pair.
+ * 
+ * @version $Id$
+ * @since 2.3.9
+ */
+@Component
+@Named(ReplicationSessionListener.NAME)
+@Singleton
+public class ReplicationSessionListener extends AbstractEventListener
+{
+    /**
+     * The name of this event listener (and its component hint at the same time).
+     */
+    public static final String NAME = "org.xwiki.contrib.replication.internal.sign.ReplicationSessionListener";
+
+    @Inject
+    private RemoteObservationManagerContext remoteContext;
+
+    @Inject
+    private ReplicationSessionManager sessions;
+
+    @Inject
+    private Logger logger;
+
+    /**
+     * The default constructor.
+     */
+    public ReplicationSessionListener()
+    {
+        super(NAME, new ReplicationSessionOpenedEvent(), new ReplicationCertifiedKeyPairCreatedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if (event instanceof ReplicationSessionOpenedEvent) {
+            if (this.remoteContext.isRemoteState()) {
+                ReplicationSessionOpenedEvent sessionEvent = (ReplicationSessionOpenedEvent) event;
+
+                try {
+                    this.sessions.openReceiveSession(sessionEvent.getInstance(), sessionEvent.getKey());
+                } catch (ReplicationException e) {
+                    this.logger.error("Failed to open the session for instance [{}]", sessionEvent.getInstance(), e);
+                }
+            }
+        } else {
+            // The key used to open the session changed
+            this.sessions.forgetSendSession(((AbstractReplicationCertifiedKeyPairEvent) event).getInstance());
+        }
+    }
+}
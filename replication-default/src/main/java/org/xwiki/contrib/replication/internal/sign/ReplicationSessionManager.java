@@ -0,0 +1,211 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.sign;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.replication.ReplicationException;
+import org.xwiki.contrib.replication.ReplicationInstance;
+import org.xwiki.contrib.replication.internal.ReplicationConfiguration;
+
+/**
+ * Manage the symmetric keys negotiated with other instances to authenticate requests without an asymmetric signature
+ * for each of them.
+ * <p>
+ * The instance sending requests generates a random secret, encrypts it with the public key of the target instance and
+ * send it in a request signed with its own private key (the regular handshake). Both instances then use the secret to
+ * authenticate the following requests until the session expires and a new one is negotiated.
+ * 
+ * @version $Id$
+ * @since 2.3.9
+ */
+@Component(roles = ReplicationSessionManager.class)
+@Singleton
+public class ReplicationSessionManager
+{
+    private static final int SECRET_SIZE = 32;
+
+    private static final char SEPARATOR = ':';
+
+    private static final long DEFAULT_LIFETIME = 3600;
+
+    @Inject
+    private CryptTools cryptTools;
+
+    @Inject
+    private ReplicationCertifiedKeyPairStore store;
+
+    @Inject
+    private ReplicationConfiguration configuration;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private final Map<String, ReplicationSession> sendSessions = new ConcurrentHashMap<>();
+
+    private final Map<String, ReplicationSession> receiveSessions = new ConcurrentHashMap<>();
+
+    /**
+     * @return true if sessions should be used to authenticate the requests sent to other instances
+     */
+    public boolean isEnabled()
+    {
+        return this.configuration.getSessionLifetime() > 0;
+    }
+
+    /**
+     * @param target the instance to send requests to
+     * @return the session to use to authenticate the requests sent to the passed instance, or null if none is open
+     */
+    public ReplicationSession getSendSession(ReplicationInstance target)
+    {
+        ReplicationSession session = this.sendSessions.get(target.getURI());
+
+        return session != null && !session.isExpired() ? session : null;
+    }
+
+    /**
+     * @param target the instance to send requests to
+     * @return a new session, to use once the target instance accepted it
+     */
+    public ReplicationSession createSendSession(ReplicationInstance target)
+    {
+        byte[] secret = new byte[SECRET_SIZE];
+        this.random.nextBytes(secret);
+
+        return new ReplicationSession(target.getURI(), UUID.randomUUID().toString(), secret,
+            System.currentTimeMillis() + this.configuration.getSessionLifetime() * 1000L);
+    }
+
+    /**
+     * @param target the instance to send requests to
+     * @param session the session to send to the target instance
+     * @return the key to send to the target instance to open the session
+     * @throws ReplicationException when failing to encrypt the session secret
+     */
+    public String getHandshakeKey(ReplicationInstance target, ReplicationSession session) throws ReplicationException
+    {
+        byte[] encrypted = this.cryptTools.encrypt(target.getReceiveKey(), session.getSecret());
+
+        return session.getId() + SEPARATOR + Base64.getEncoder().encodeToString(encrypted);
+    }
+
+    /**
+     * @param session the session accepted by the target instance
+     */
+    public void setSendSession(ReplicationSession session)
+    {
+        this.sendSessions.put(session.getInstance(), session);
+    }
+
+    /**
+     * @param target the instance to send requests to
+     * @param id the identifier of the session to forget
+     * @return true if the session was forgotten
+     */
+    public boolean forgetSendSession(String target, String id)
+    {
+        ReplicationSession session = this.sendSessions.get(target);
+
+        return session != null && session.getId().equals(id) && this.sendSessions.remove(target, session);
+    }
+
+    /**
+     * @param target the instance to send requests to
+     */
+    public void forgetSendSession(String target)
+    {
+        this.sendSessions.remove(target);
+    }
+
+    /**
+     * @param source the URI of the instance which sent the session
+     * @param key the key sent by the instance
+     * @throws ReplicationException when failing to decrypt the session secret
+     */
+    public void openReceiveSession(String source, String key) throws ReplicationException
+    {
+        int index = key != null ? key.indexOf(SEPARATOR) : -1;
+        if (index <= 0) {
+            throw new ReplicationException(String.format("Invalid session key sent by instance [%s]", source));
+        }
+
+        ReplicationCertifiedKeyPair keyPair = this.store.getCertifiedKeyPair(source, false);
+        if (keyPair == null) {
+            throw new ReplicationException(String.format("No key associated with instance [%s]", source));
+        }
+
+        byte[] secret;
+        try {
+            secret = this.cryptTools.decrypt(keyPair.getKey().getPrivateKey(),
+                Base64.getDecoder().decode(key.substring(index + 1)));
+        } catch (IllegalArgumentException e) {
+            throw new ReplicationException(String.format("Invalid session key sent by instance [%s]", source), e);
+        }
+
+        // Keep the session a bit longer than the sender to not reject requests sent right before it rotates the key
+        long lifetime = this.configuration.getSessionLifetime();
+        long expiration = System.currentTimeMillis() + (lifetime > 0 ? lifetime : DEFAULT_LIFETIME) * 2000L;
+
+        // Cleanup expired sessions
+        this.receiveSessions.values().removeIf(ReplicationSession::isExpired);
+
+        ReplicationSession session = new ReplicationSession(source, key.substring(0, index), secret, expiration);
+        this.receiveSessions.put(session.getId(), session);
+    }
+
+    /**
+     * @param source the URI of the instance
+     */
+    public void closeReceiveSessions(String source)
+    {
+        this.receiveSessions.values().removeIf(s -> s.getInstance().equals(source));
+    }
+
+    /**
+     * @param instance the instance for which to validate the authentication code
+     * @param id the identifier of the session
+     * @param content the content
+     * @param signedContent the authentication code
+     * @return true if the authentication code matches the content
+     * @throws ReplicationException when failing to verify the authentication code
+     * @throws UnknownReplicationSessionException when the session does not exist
+     */
+    public boolean verify(ReplicationInstance instance, String id, String content, String signedContent)
+        throws ReplicationException
+    {
+        ReplicationSession session = this.receiveSessions.get(id);
+
+        if (session == null || session.isExpired() || !StringUtils.equals(session.getInstance(), instance.getURI())) {
+            throw new UnknownReplicationSessionException(
+                String.format("Unknown session [%s] for instance [%s]", id, instance.getURI()));
+        }
+
+        return session.verify(content, signedContent);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.sign;
+
+import java.io.Serializable;
+
+import org.xwiki.observation.event.Event;
+
+/**
+ * An event sent when another instance opened a session with the current instance, so that all the cluster members
+ * know about it.
+ * 
+ * @version $Id$
+ * @since 2.3.9
+ */
+public class ReplicationSessionOpenedEvent implements Event, Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final String instance;
+
+    private final String key;
+
+    /**
+     * The default constructor.
+     */
+    public ReplicationSessionOpenedEvent()
+    {
+        this.instance = null;
+        this.key = null;
+    }
+
+    /**
+     * @param instance the URI of the instance which opened the session
+     * @param key the encrypted session key sent by the instance
+     */
+    public ReplicationSessionOpenedEvent(String instance, String key)
+    {
+        this.instance = instance;
+        this.key = key;
+    }
+
+    /**
+     * @return the URI of the instance which opened the session
+     */
+    public String getInstance()
+    {
+        return this.instance;
+    }
+
+    /**
+     * @return the encrypted session key sent by the instance
+     */
+    public String getKey()
+    {
+        return this.key;
+    }
+
+    @Override
+    public boolean matches(Object otherEvent)
+    {
+        return otherEvent instanceof ReplicationSessionOpenedEvent;
+    }
+}
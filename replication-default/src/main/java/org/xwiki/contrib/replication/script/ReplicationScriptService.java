@@ -31,16 +31,20 @@ import javax.inject.Named;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
+import org.apache.hc.core5.pool.PoolStats;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.contrib.replication.ReplicationException;
 import org.xwiki.contrib.replication.ReplicationInstance;
 import org.xwiki.contrib.replication.ReplicationInstanceManager;
+import org.xwiki.contrib.replication.ReplicationReceiverMessage;
 import org.xwiki.contrib.replication.ReplicationSender;
 import org.xwiki.contrib.replication.ReplicationSenderMessage;
+import org.xwiki.contrib.replication.internal.ReplicationClient;
 import org.xwiki.contrib.replication.internal.instance.DefaultReplicationInstance;
 import org.xwiki.contrib.replication.internal.message.DefaultReplicationSender;
 import org.xwiki.contrib.replication.internal.message.ReplicationInstanceRecoverRequestMessage;
+import org.xwiki.contrib.replication.internal.message.ReplicationMessageRetry;
 import org.xwiki.contrib.replication.internal.message.ReplicationReceiverMessageQueue;
 import org.xwiki.contrib.replication.internal.message.ReplicationSenderMessageQueue;
 import org.xwiki.contrib.replication.internal.message.log.ReplicationMessageLogStore;
@@ -93,6 +97,9 @@ public class ReplicationScriptService implements ScriptService
     @Inject
     private ReplicationMessageLogStore logStore;
 
+    @Inject
+    private ReplicationClient client;
+
     @Inject
     private Logger logger;
 
@@ -231,6 +238,131 @@ public class ReplicationScriptService implements ScriptService
         }        
     }
 
+    /**
+     * @return the number of lanes in which messages to send are serialized in parallel
+     * @since 2.3.9
+     */
+    public int getSenderStoreLanes()
+    {
+        if (this.sender instanceof DefaultReplicationSender) {
+            return ((DefaultReplicationSender) this.sender).getStoreLaneCount();
+        }
+
+        return 0;
+    }
+
+    /**
+     * @return the number of messages waiting to be serialized
+     * @since 2.3.9
+     */
+    public int getSenderStoreQueueSize()
+    {
+        if (this.sender instanceof DefaultReplicationSender) {
+            return ((DefaultReplicationSender) this.sender).getStoreQueueSize();
+        }
+
+        return 0;
+    }
+
+    /**
+     * @return true if the messages are sent faster than they can be serialized
+     * @since 2.3.9
+     */
+    public boolean isSenderStoreSaturated()
+    {
+        if (this.sender instanceof DefaultReplicationSender) {
+            return ((DefaultReplicationSender) this.sender).isStoreSaturated();
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the number of lanes in which received messages are handled in parallel
+     * @since 2.3.9
+     */
+    public int getReceiverLanes()
+    {
+        return this.receiverQueue.getLaneCount();
+    }
+
+    /**
+     * @return the statistics of the pool of connections used to send requests to other instances
+     * @since 2.3.9
+     */
+    public PoolStats getClientPoolStats()
+    {
+        return this.client.getPoolStats();
+    }
+
+    /**
+     * @return the received messages waiting to be handled
+     * @since 2.3.9
+     */
+    public List<ReplicationReceiverMessage> getReceiverMessages()
+    {
+        return this.receiverQueue.getMessages();
+    }
+
+    /**
+     * @return the received messages which failed and are waiting to be handled again
+     * @since 2.3.9
+     */
+    public List<ReplicationReceiverMessage> getReceiverRetryMessages()
+    {
+        return this.receiverQueue.getRetryMessages();
+    }
+
+    /**
+     * @return the received messages which failed too many times to be handled again automatically
+     * @since 2.3.9
+     */
+    public List<ReplicationReceiverMessage> getReceiverDeadMessages()
+    {
+        return this.receiverQueue.getDeadMessages();
+    }
+
+    /**
+     * @param message the received message
+     * @return the failures met so far while handling the message, null if it never failed
+     * @since 2.3.9
+     */
+    public ReplicationMessageRetry getReceiverMessageRetry(ReplicationReceiverMessage message)
+    {
+        return this.receiverQueue.getRetry(message);
+    }
+
+    /**
+     * Try once more to handle a received message which failed too many times.
+     * 
+     * @param id the identifier of the message
+     * @return true if the message was found
+     * @throws AccessDeniedException when the current author is not allowed to use this API
+     * @since 2.3.9
+     */
+    public boolean retryReceiverDeadMessage(String id) throws AccessDeniedException
+    {
+        this.authorization.checkAccess(Right.PROGRAM);
+
+        return this.receiverQueue.retryDeadMessage(id);
+    }
+
+    /**
+     * Forget a received message which failed too many times.
+     * 
+     * @param id the identifier of the message
+     * @return true if the message was found
+     * @throws AccessDeniedException when the current author is not allowed to use this API
+     * @throws ReplicationException when failing to delete the message
+     * @since 2.3.9
+     */
+    public boolean deleteReceiverDeadMessage(String id) throws AccessDeniedException, ReplicationException
+    {
+        this.authorization.checkAccess(Right.PROGRAM);
+
+        return this.receiverQueue.deleteDeadMessage(id);
+    }
+
     /**
      * @param instance the instance to send data to
      * @return the fingerprint of the public key used to validate signatures sent to the passed instance
@@ -0,0 +1,69 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal;
+
+import org.apache.hc.core5.pool.PoolStats;
+import org.junit.jupiter.api.Test;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link ReplicationClient}.
+ * 
+ * @version $Id$
+ */
+@ComponentTest
+class ReplicationClientTest
+{
+    @InjectMockComponents
+    private ReplicationClient client;
+
+    @BeforeComponent
+    void beforeComponent(MockitoComponentManager componentManager) throws Exception
+    {
+        ReplicationConfiguration configuration =
+            componentManager.registerMockComponent(ReplicationConfiguration.class);
+        when(configuration.getClientMaxConnections()).thenReturn(42);
+        when(configuration.getClientMaxConnectionsPerTarget()).thenReturn(7);
+        when(configuration.getClientConnectTimeout()).thenReturn(10);
+        when(configuration.getClientSocketTimeout()).thenReturn(10);
+        when(configuration.getClientIdleTimeout()).thenReturn(10);
+    }
+
+    @Test
+    void pool() throws ComponentLifecycleException
+    {
+        PoolStats stats = this.client.getPoolStats();
+
+        // The pool is sized from the configuration and nothing is opened until a request is sent
+        assertEquals(42, stats.getMax());
+        assertEquals(0, stats.getLeased());
+        assertEquals(0, stats.getAvailable());
+        assertEquals(0, stats.getPending());
+
+        this.client.dispose();
+    }
+}
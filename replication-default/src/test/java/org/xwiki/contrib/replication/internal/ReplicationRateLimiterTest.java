@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal;
+
+import java.time.LocalTime;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.replication.internal.ReplicationRateLimiter.TokenBucket;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Validate {@link ReplicationRateLimiter}.
+ * 
+ * @version $Id$
+ */
+class ReplicationRateLimiterTest
+{
+    @Test
+    void take()
+    {
+        TokenBucket bucket = new TokenBucket(100, 0);
+
+        // The first second is available immediately
+        assertEquals(0, bucket.take(100, 0));
+        // Then the tokens have to be waited for
+        assertEquals(500, bucket.take(50, 0));
+        // The debt is paid after 500ms
+        assertEquals(0, bucket.take(0, 500));
+        // The bucket does not keep more than one second of tokens
+        assertEquals(0, bucket.take(100, 10000));
+        assertEquals(10, bucket.take(1, 10000));
+    }
+
+    @Test
+    void isScheduled()
+    {
+        assertTrue(ReplicationRateLimiter.isScheduled(null, LocalTime.of(3, 0)));
+
+        assertTrue(ReplicationRateLimiter.isScheduled(ReplicationRateLimiter.parseSchedule("08:00-12:00, 13:00-19:00"),
+            LocalTime.of(8, 0)));
+        assertFalse(ReplicationRateLimiter
+            .isScheduled(ReplicationRateLimiter.parseSchedule("08:00-12:00, 13:00-19:00"), LocalTime.of(12, 30)));
+        assertFalse(ReplicationRateLimiter
+            .isScheduled(ReplicationRateLimiter.parseSchedule("08:00-12:00, 13:00-19:00"), LocalTime.of(19, 0)));
+
+        // Over midnight
+        assertTrue(ReplicationRateLimiter.isScheduled(ReplicationRateLimiter.parseSchedule("22:00-06:00"),
+            LocalTime.of(23, 0)));
+        assertTrue(ReplicationRateLimiter.isScheduled(ReplicationRateLimiter.parseSchedule("22:00-06:00"),
+            LocalTime.of(5, 0)));
+        assertFalse(ReplicationRateLimiter.isScheduled(ReplicationRateLimiter.parseSchedule("22:00-06:00"),
+            LocalTime.of(12, 0)));
+    }
+
+    @Test
+    void parseInvalidSchedule()
+    {
+        assertThrows(IllegalArgumentException.class, () -> ReplicationRateLimiter.parseSchedule("08:00"));
+    }
+}
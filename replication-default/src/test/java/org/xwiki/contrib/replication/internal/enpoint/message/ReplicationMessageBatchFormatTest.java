@@ -0,0 +1,150 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.enpoint.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.replication.DefaultReplicationSenderMessage;
+import org.xwiki.contrib.replication.ReplicationInstance;
+import org.xwiki.contrib.replication.ReplicationReceiverMessage;
+import org.xwiki.contrib.replication.ReplicationSenderMessage;
+import org.xwiki.filter.input.DefaultByteArrayInputSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Validate {@link ReplicationMessageBatchFormat}.
+ * 
+ * @version $Id$
+ */
+class ReplicationMessageBatchFormatTest
+{
+    @Test
+    void writeRead() throws IOException
+    {
+        Date date = new Date();
+
+        ReplicationSenderMessage message1 = new DefaultReplicationSenderMessage.Builder().id("id1").type("type1")
+            .date(date).source("source1").receivers(List.of("receiver1", "receiver2"))
+            .customMetadata("key", List.of("value1", "value2"))
+            .data(new DefaultByteArrayInputSource("data1".getBytes())).build();
+        ReplicationSenderMessage message2 = new DefaultReplicationSenderMessage.Builder().id("id2").type("type2")
+            .date(date).data(new DefaultByteArrayInputSource(new byte[0])).build();
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ReplicationMessageBatchFormat.write(List.of(message1, message2), "default", stream);
+
+        ReplicationInstance instance = mock(ReplicationInstance.class);
+        List<ReplicationReceiverMessage> messages =
+            ReplicationMessageBatchFormat.read(new ByteArrayInputStream(stream.toByteArray()), instance, 10, 1000);
+
+        assertEquals(2, messages.size());
+
+        ReplicationReceiverMessage receivedMessage1 = messages.get(0);
+        assertSame(instance, receivedMessage1.getInstance());
+        assertEquals("id1", receivedMessage1.getId());
+        assertEquals("type1", receivedMessage1.getType());
+        assertEquals(date, receivedMessage1.getDate());
+        assertEquals("source1", receivedMessage1.getSource());
+        assertEquals(List.of("receiver1", "receiver2"), receivedMessage1.getReceivers());
+        assertEquals(List.of("value1", "value2"), receivedMessage1.getCustomMetadata().get("key"));
+        try (InputStream data = receivedMessage1.open()) {
+            assertEquals("data1", IOUtils.toString(data, "UTF-8"));
+        }
+
+        ReplicationReceiverMessage receivedMessage2 = messages.get(1);
+        assertEquals("id2", receivedMessage2.getId());
+        assertEquals("default", receivedMessage2.getSource());
+        assertNull(receivedMessage2.getReceivers());
+        try (InputStream data = receivedMessage2.open()) {
+            assertEquals(0, data.available());
+        }
+    }
+
+    @Test
+    void readOverLimits() throws IOException
+    {
+        ReplicationSenderMessage message = new DefaultReplicationSenderMessage.Builder().id("id").type("type")
+            .data(new DefaultByteArrayInputSource("data".getBytes())).build();
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ReplicationMessageBatchFormat.write(List.of(message, message), "default", stream);
+        byte[] batch = stream.toByteArray();
+
+        ReplicationInstance instance = mock(ReplicationInstance.class);
+
+        // Too many messages
+        assertThrows(IOException.class,
+            () -> ReplicationMessageBatchFormat.read(new ByteArrayInputStream(batch), instance, 1, 1000));
+
+        // Too much data
+        assertThrows(IOException.class,
+            () -> ReplicationMessageBatchFormat.read(new ByteArrayInputStream(batch), instance, 10, 7));
+
+        // Huge header size announced by a corrupted frame
+        ByteArrayOutputStream corrupted = new ByteArrayOutputStream();
+        DataOutputStream corruptedStream = new DataOutputStream(corrupted);
+        corruptedStream.writeByte(1);
+        corruptedStream.writeInt(1);
+        corruptedStream.writeInt(Integer.MAX_VALUE);
+        assertThrows(IOException.class, () -> ReplicationMessageBatchFormat
+            .read(new ByteArrayInputStream(corrupted.toByteArray()), instance, 10, 1000));
+    }
+
+    @Test
+    void readNullMetadata() throws IOException
+    {
+        // A header announcing null metadata, which is not a valid value
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerStream = new DataOutputStream(header);
+        // id, type, date, source, receivers
+        headerStream.writeInt(-1);
+        headerStream.writeInt(-1);
+        headerStream.writeLong(-1);
+        headerStream.writeInt(-1);
+        headerStream.writeInt(-1);
+        // metadata
+        headerStream.writeInt(-1);
+
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        DataOutputStream batchStream = new DataOutputStream(batch);
+        batchStream.writeByte(1);
+        batchStream.writeInt(1);
+        batchStream.writeInt(header.size());
+        header.writeTo(batchStream);
+        batchStream.writeLong(0);
+
+        ReplicationInstance instance = mock(ReplicationInstance.class);
+        assertThrows(IOException.class, () -> ReplicationMessageBatchFormat
+            .read(new ByteArrayInputStream(batch.toByteArray()), instance, 10, 1000));
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.enpoint.message;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.replication.DefaultReplicationReceiverMessage;
+import org.xwiki.contrib.replication.ReplicationReceiverMessage;
+import org.xwiki.contrib.replication.internal.message.ReplicationReceiverMessageQueue;
+import org.xwiki.contrib.replication.internal.message.log.ReplicationMessageIdIndex;
+import org.xwiki.contrib.replication.internal.message.log.ReplicationMessageLogStore;
+import org.xwiki.eventstream.EventStreamException;
+import org.xwiki.resource.ResourceReferenceHandlerException;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate the duplicate detection of {@link AbstractReplicationMessageEndpoint} through
+ * {@link ReplicationMessageEndpoint}.
+ * 
+ * @version $Id$
+ */
+@ComponentTest
+class ReplicationMessageEndpointTest
+{
+    private static final String ID = "id";
+
+    @InjectMockComponents
+    private ReplicationMessageEndpoint endpoint;
+
+    @MockComponent
+    private ReplicationReceiverMessageQueue queue;
+
+    @MockComponent
+    private ReplicationMessageLogStore messageLog;
+
+    @MockComponent
+    private ReplicationMessageIdIndex messageIndex;
+
+    private final ReplicationReceiverMessage message =
+        new DefaultReplicationReceiverMessage.Builder().id(ID).date(new Date()).type("type").build();
+
+    @Test
+    void receiveNewMessage() throws Exception
+    {
+        when(this.messageIndex.isKnown(ID, this.message.getDate())).thenReturn(Boolean.FALSE);
+
+        this.endpoint.receive(this.message);
+
+        verify(this.messageLog).saveSync(eq(this.message), any());
+        verify(this.messageIndex).add(ID);
+        verify(this.queue).add(this.message);
+        // The index is sure so there is no need to search the message log
+        verify(this.messageLog, never()).exist(ID);
+    }
+
+    @Test
+    void receiveKnownMessage() throws Exception
+    {
+        when(this.messageIndex.isKnown(ID, this.message.getDate())).thenReturn(Boolean.TRUE);
+
+        this.endpoint.receive(this.message);
+
+        verify(this.messageLog, never()).saveSync(any(), any());
+        verify(this.queue, never()).add(any());
+    }
+
+    @Test
+    void receiveMessageInLog() throws Exception
+    {
+        // The index is not sure
+        when(this.messageIndex.isKnown(ID, this.message.getDate())).thenReturn(null);
+        when(this.messageLog.exist(ID)).thenReturn(true);
+
+        this.endpoint.receive(this.message);
+
+        verify(this.messageLog, never()).saveSync(any(), any());
+        verify(this.queue, never()).add(any());
+    }
+
+    @Test
+    void receiveSameMessageConcurrently() throws Exception
+    {
+        AtomicBoolean remembered = new AtomicBoolean();
+        when(this.messageIndex.isKnown(ID, this.message.getDate()))
+            .then(invocation -> remembered.get() ? Boolean.TRUE : Boolean.FALSE);
+        CountDownLatch saving = new CountDownLatch(1);
+        CountDownLatch saved = new CountDownLatch(1);
+        when(this.messageLog.saveSync(eq(this.message), any())).then(invocation -> {
+            saving.countDown();
+            saved.await();
+            remembered.set(true);
+
+            return null;
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> first = executor.submit(() -> {
+                this.endpoint.receive(this.message);
+
+                return null;
+            });
+
+            // Wait for the first thread to claim the message
+            assertTrue(saving.await(1, TimeUnit.MINUTES));
+
+            Future<?> second = executor.submit(() -> {
+                this.endpoint.receive(this.message);
+
+                return null;
+            });
+
+            saved.countDown();
+
+            first.get(1, TimeUnit.MINUTES);
+            second.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The message is only remembered and queued once
+        verify(this.messageLog).saveSync(eq(this.message), any());
+        verify(this.queue).add(this.message);
+    }
+
+    @Test
+    void receiveAfterFailure() throws Exception
+    {
+        when(this.messageIndex.isKnown(ID, this.message.getDate())).thenReturn(Boolean.FALSE);
+        when(this.messageLog.saveSync(eq(this.message), any())).thenThrow(new EventStreamException("failed"))
+            .thenReturn(null);
+
+        // A failure to remember the message releases the claim
+        assertThrows(EventStreamException.class, () -> this.endpoint.receive(this.message));
+        verify(this.queue, never()).add(any());
+
+        this.endpoint.receive(this.message);
+
+        verify(this.messageLog, times(2)).saveSync(eq(this.message), any());
+        verify(this.queue).add(this.message);
+    }
+
+    @Test
+    void receiveFailingToQueue() throws Exception
+    {
+        when(this.messageIndex.isKnown(ID, this.message.getDate())).thenReturn(Boolean.FALSE);
+        doThrow(new RuntimeException("failed")).when(this.queue).add(this.message);
+
+        assertThrows(ResourceReferenceHandlerException.class, () -> this.endpoint.receive(this.message));
+
+        // The message is forgotten so that it's accepted again when the sender retries
+        verify(this.messageIndex).remove(ID);
+        verify(this.messageLog).deleteAsync(ID);
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.message;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.contrib.replication.DefaultReplicationSenderMessage;
+import org.xwiki.contrib.replication.ReplicationException;
+import org.xwiki.contrib.replication.ReplicationInstance;
+import org.xwiki.contrib.replication.ReplicationSenderMessage;
+import org.xwiki.contrib.replication.internal.ReplicationConfiguration;
+import org.xwiki.contrib.replication.internal.ReplicationFileStore;
+import org.xwiki.contrib.replication.internal.WrappingMutableReplicationSenderMessage;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.XWikiTempDir;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link DefaultReplicationSender}.
+ * 
+ * @version $Id$
+ */
+@ComponentTest
+class DefaultReplicationSenderTest
+{
+    private static final int LANES = 2;
+
+    @InjectMockComponents
+    private DefaultReplicationSender sender;
+
+    @MockComponent
+    private ReplicationSenderMessageDataStore dataStore;
+
+    private final ReplicationInstance instance = mock(ReplicationInstance.class);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @XWikiTempDir
+    private File folder;
+
+    @BeforeComponent
+    void beforeComponent(MockitoComponentManager componentManager) throws Exception
+    {
+        ReplicationConfiguration configuration =
+            componentManager.registerMockComponent(ReplicationConfiguration.class);
+        when(configuration.getSenderStoreLanes()).thenReturn(LANES);
+        when(configuration.getSenderStoreQueueSize()).thenReturn(1);
+        when(configuration.getSenderStoreQueueTimeout()).thenReturn(1);
+    }
+
+    @AfterEach
+    void afterEach() throws ComponentLifecycleException
+    {
+        this.release.countDown();
+
+        this.sender.dispose();
+    }
+
+    private ReplicationSenderMessage message(String type)
+    {
+        return new DefaultReplicationSenderMessage.Builder().type(type).customMetadata(Map.of()).build();
+    }
+
+    /**
+     * @return a message type serialized in the passed lane
+     */
+    private String type(int lane)
+    {
+        for (int i = 0;; ++i) {
+            String type = "type" + i;
+            if (Math.floorMod(type.hashCode(), LANES) == lane) {
+                return type;
+            }
+        }
+    }
+
+    private CompletableFuture<ReplicationSenderMessage> send(String type) throws ReplicationException
+    {
+        return this.sender.send(message(type), List.of(this.instance));
+    }
+
+    private void waitDone(CompletableFuture<ReplicationSenderMessage> future) throws Exception
+    {
+        try {
+            future.get(1, TimeUnit.MINUTES);
+        } catch (ExecutionException e) {
+            // The serialization is made to fail once released
+        }
+    }
+
+    @Test
+    void saturatedLane() throws Exception
+    {
+        CountDownLatch storing = new CountDownLatch(1);
+        when(this.dataStore.store(any(), any())).then(invocation -> {
+            storing.countDown();
+            this.release.await();
+
+            throw new ReplicationException("Serialization failed");
+        });
+
+        String typeA = type(0);
+        String typeB = type(1);
+
+        // Block the serialization of the first lane
+        CompletableFuture<ReplicationSenderMessage> future1 = send(typeA);
+        assertTrue(storing.await(1, TimeUnit.MINUTES));
+        // Fill the first lane
+        CompletableFuture<ReplicationSenderMessage> future2 = send(typeA);
+
+        assertFalse(this.sender.isStoreSaturated());
+
+        // Don't wait forever for some room in a saturated lane
+        assertThrows(ReplicationException.class, () -> send(typeA));
+        assertTrue(this.sender.isStoreSaturated());
+
+        // The other lane is not impacted by the saturation of the first one
+        CompletableFuture<ReplicationSenderMessage> future3 = send(typeB);
+        assertTrue(this.sender.isStoreSaturated());
+
+        // Unblock the serialization
+        this.release.countDown();
+        waitDone(future1);
+        waitDone(future2);
+        waitDone(future3);
+
+        send(typeA);
+        assertFalse(this.sender.isStoreSaturated());
+    }
+
+    @Test
+    void releaseDataWhenQueueFails() throws Exception
+    {
+        // Store the data on disk for real
+        ReplicationFileStore fileStore = mock(ReplicationFileStore.class);
+        when(fileStore.getReplicationFolder()).thenReturn(this.folder);
+        Provider<WrappingMutableReplicationSenderMessage> wrappingMessageProvider =
+            WrappingMutableReplicationSenderMessage::new;
+        ReplicationSenderMessageDataStore realStore = new ReplicationSenderMessageDataStore();
+        ReflectionUtils.setFieldValue(realStore, "fileStore", fileStore);
+        ReflectionUtils.setFieldValue(realStore, "observation", mock(ObservationManager.class));
+        ReflectionUtils.setFieldValue(realStore, "wrappingMessageProvider", wrappingMessageProvider);
+        ReflectionUtils.setFieldValue(realStore, "configuration", mock(ReplicationConfiguration.class));
+        realStore.initialize();
+        when(this.dataStore.store(any(), any()))
+            .then(invocation -> realStore.store(invocation.getArgument(0), invocation.getArgument(1)));
+        CountDownLatch released = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            realStore.release(invocation.getArgument(0), invocation.getArgument(1));
+            released.countDown();
+
+            return null;
+        }).when(this.dataStore).release(any(), any());
+
+        // The second instance fails to queue the message
+        ReplicationInstance failingInstance = mock(ReplicationInstance.class);
+        when(this.instance.getURI()).thenReturn("instance");
+        when(failingInstance.getURI()).thenReturn("failing");
+        ReplicationSenderMessageQueue queue = mock(ReplicationSenderMessageQueue.class);
+        ReplicationSenderMessageQueue failingQueue = mock(ReplicationSenderMessageQueue.class);
+        when(failingQueue.add(any())).thenThrow(new ReplicationException("Queue failed"));
+        Provider<ReplicationSenderMessageQueue> sendQueueProvider = List.of(queue, failingQueue).iterator()::next;
+        ReflectionUtils.setFieldValue(this.sender, "sendQueueProvider", sendQueueProvider);
+
+        this.sender.send(new DefaultReplicationSenderMessage.Builder().id("id").type("type")
+            .customMetadata(Map.of()).build(), List.of(this.instance, failingInstance));
+
+        // The failing instance does not hold the data anymore
+        assertTrue(released.await(1, TimeUnit.MINUTES));
+        verify(this.dataStore).release("id", failingInstance);
+        File dataFile = realStore.getDataFile("id");
+        assertEquals(List.of(ReplicationSenderMessageDataStore.toFileName("instance")),
+            List.of(new File(dataFile.getParentFile(), "targets").list()));
+
+        // The data is deleted when the other instance is done with it
+        realStore.release("id", this.instance);
+        assertFalse(dataFile.getParentFile().exists());
+    }
+}
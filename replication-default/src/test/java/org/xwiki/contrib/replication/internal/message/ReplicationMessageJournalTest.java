@@ -0,0 +1,305 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.slf4j.Logger;
+import org.xwiki.contrib.replication.internal.message.ReplicationMessageJournal.ChannelDataWriter;
+import org.xwiki.contrib.replication.internal.message.ReplicationMessageJournal.Entry;
+import org.xwiki.contrib.replication.internal.message.ReplicationMessageJournal.Header;
+import org.xwiki.test.junit5.XWikiTempDir;
+import org.xwiki.test.junit5.XWikiTempDirExtension;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Validate {@link ReplicationMessageJournal}.
+ * 
+ * @version $Id$
+ */
+@ExtendWith(XWikiTempDirExtension.class)
+class ReplicationMessageJournalTest
+{
+    @XWikiTempDir
+    private File folder;
+
+    private final Logger logger = mock(Logger.class);
+
+    private Entry store(ReplicationMessageJournal journal, String id, String data) throws IOException
+    {
+        return journal.store(id, Map.of("id", List.of(id)), Map.of("KEY", List.of("value1", "value2")),
+            stream -> stream.write(data.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private String read(ReplicationMessageJournal journal, String id) throws IOException
+    {
+        try (InputStream stream = journal.openData(id)) {
+            return IOUtils.toString(stream, StandardCharsets.UTF_8);
+        }
+    }
+
+    private File[] getSegments()
+    {
+        return this.folder.listFiles((dir, name) -> name.endsWith(".journal"));
+    }
+
+    @Test
+    void storeDeleteAndReload() throws IOException
+    {
+        try (ReplicationMessageJournal journal = new ReplicationMessageJournal(this.folder, 0, this.logger)) {
+            store(journal, "id1", "data1");
+            store(journal, "id2", "data2");
+            store(journal, "id3", "data3");
+
+            journal.delete("id2");
+
+            assertEquals("data1", read(journal, "id1"));
+            assertEquals("data3", read(journal, "id3"));
+        }
+
+        try (ReplicationMessageJournal journal = new ReplicationMessageJournal(this.folder, 0, this.logger)) {
+            List<Entry> entries = journal.getEntries(0, Integer.MAX_VALUE);
+
+            assertEquals(2, entries.size());
+            assertEquals("id1", entries.get(0).getId());
+            assertEquals(0, entries.get(0).getSequence());
+            Header header = journal.readHeader(entries.get(0));
+            assertEquals(List.of("id1"), header.getMetadata().get("id"));
+            assertEquals(List.of("value1", "value2"), header.getCustom().get("KEY"));
+            assertEquals(5, entries.get(0).getDataSize());
+            assertEquals("id3", entries.get(1).getId());
+            assertEquals(2, entries.get(1).getSequence());
+
+            // Paging
+            assertEquals(List.of(entries.get(1)), journal.getEntries(1, 10));
+            assertEquals(List.of(entries.get(0)), journal.getEntries(0, 1));
+            assertNull(journal.get("id2"));
+
+            assertEquals("data1", read(journal, "id1"));
+            assertEquals("data3", read(journal, "id3"));
+        }
+    }
+
+    @Test
+    void extractKeys() throws IOException
+    {
+        Function<Header, String> keyExtractor =
+            header -> header.getMetadata().get("id").get(0) + '/' + header.getCustom().get("KEY").get(0);
+
+        try (ReplicationMessageJournal journal =
+            new ReplicationMessageJournal(this.folder, 0, keyExtractor, this.logger)) {
+            assertEquals("id1/value1", store(journal, "id1", "data1").getKey());
+        }
+
+        // The keys are extracted again when loading the journal
+        try (ReplicationMessageJournal journal =
+            new ReplicationMessageJournal(this.folder, 0, keyExtractor, this.logger)) {
+            assertEquals("id1/value1", journal.get("id1").getKey());
+        }
+
+        try (ReplicationMessageJournal journal = new ReplicationMessageJournal(this.folder, 0, this.logger)) {
+            assertNull(journal.get("id1").getKey());
+        }
+    }
+
+    @Test
+    void recoverIncompleteRecord() throws IOException
+    {
+        try (ReplicationMessageJournal journal = new ReplicationMessageJournal(this.folder, 0, this.logger)) {
+            store(journal, "id1", "data1");
+            store(journal, "id2", "data2");
+        }
+
+        // Simulate a crash in the middle of the last record
+        File segment = getSegments()[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        try (ReplicationMessageJournal journal = new ReplicationMessageJournal(this.folder, 0, this.logger)) {
+            assertEquals(1, journal.size());
+            assertEquals("data1", read(journal, "id1"));
+
+            // Make sure the journal can still be written after the truncated record
+            store(journal, "id3", "data3");
+        }
+
+        try (ReplicationMessageJournal journal = new ReplicationMessageJournal(this.folder, 0, this.logger)) {
+            assertEquals(2, journal.size());
+            assertEquals("data3", read(journal, "id3"));
+        }
+    }
+
+    @Test
+    void failOnCorruptedOlderSegment() throws IOException
+    {
+        // Start a new segment after each message
+        try (ReplicationMessageJournal journal = new ReplicationMessageJournal(this.folder, 1, this.logger)) {
+            store(journal, "id1", "data1");
+            store(journal, "id2", "data2");
+        }
+
+        // Corrupt the first segment, which is not the one being written
+        File[] segments = getSegments();
+        Arrays.sort(segments);
+        File segment = segments[0];
+        long length = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(length - 3);
+        }
+
+        assertThrows(IOException.class, () -> new ReplicationMessageJournal(this.folder, 1, this.logger));
+
+        // The messages following the corruption are not lost
+        assertEquals(length - 3, segment.length());
+        assertEquals(2, getSegments().length);
+    }
+
+    @Test
+    void compact() throws IOException
+    {
+        // Start a new segment after each message
+        try (ReplicationMessageJournal journal = new ReplicationMessageJournal(this.folder, 1, this.logger)) {
+            store(journal, "id1", "data1");
+            store(journal, "id2", "data2");
+            store(journal, "id3", "data3");
+
+            assertEquals(3, getSegments().length);
+
+            // The oldest segment does not contain anything anymore
+            journal.delete("id1");
+
+            assertEquals(2, getSegments().length);
+
+            // The segment of id3 is the one being written
+            journal.delete("id3");
+
+            assertEquals(2, getSegments().length);
+
+            assertEquals("data2", read(journal, "id2"));
+        }
+
+        // Relocated messages keep their position
+        try (ReplicationMessageJournal journal = new ReplicationMessageJournal(this.folder, 1, this.logger)) {
+            store(journal, "id4", "data4");
+            store(journal, "id5", "data5");
+            store(journal, "id6", "data6");
+            store(journal, "id7", "data7");
+            journal.delete("id4");
+            journal.delete("id5");
+            journal.delete("id6");
+            journal.delete("id7");
+
+            List<Entry> entries = journal.getEntries(0, Integer.MAX_VALUE);
+            assertEquals(1, entries.size());
+            assertEquals("id2", entries.get(0).getId());
+            assertEquals(1, entries.get(0).getSequence());
+            assertEquals("data2", read(journal, "id2"));
+        }
+
+        // The copy is used after a reload
+        try (ReplicationMessageJournal journal = new ReplicationMessageJournal(this.folder, 1, this.logger)) {
+            List<Entry> entries = journal.getEntries(0, Integer.MAX_VALUE);
+            assertEquals(1, entries.size());
+            assertEquals(1, entries.get(0).getSequence());
+            assertEquals("data2", read(journal, "id2"));
+            assertEquals(Map.of("id", List.of("id2")), journal.readHeader(entries.get(0)).getMetadata());
+        }
+    }
+
+    @Test
+    void detectCorruptedData() throws IOException
+    {
+        try (ReplicationMessageJournal journal = new ReplicationMessageJournal(this.folder, 0, this.logger)) {
+            store(journal, "id1", "data1");
+        }
+
+        // Corrupt the data of the message
+        File segment = getSegments()[0];
+        byte[] content = Files.readAllBytes(segment.toPath());
+        String contentString = new String(content, StandardCharsets.ISO_8859_1);
+        content[contentString.lastIndexOf("data1")] = 'D';
+        Files.write(segment.toPath(), content);
+
+        try (ReplicationMessageJournal journal = new ReplicationMessageJournal(this.folder, 0, this.logger)) {
+            // The header is still fine
+            assertEquals(1, journal.size());
+
+            assertThrows(IOException.class, () -> read(journal, "id1"));
+        }
+    }
+
+    @Test
+    void storeFromChannel() throws IOException
+    {
+        byte[] data = new byte[200 * 1024];
+        new Random(0).nextBytes(data);
+        ChannelDataWriter writer = new ChannelDataWriter()
+        {
+            @Override
+            protected ReadableByteChannel openChannel()
+            {
+                return Channels.newChannel(new ByteArrayInputStream(data));
+            }
+        };
+
+        try (ReplicationMessageJournal journal = new ReplicationMessageJournal(this.folder, 0, this.logger)) {
+            store(journal, "id1", "data1");
+            Entry entry = journal.store("id2", Map.of(), Map.of(), writer);
+            store(journal, "id3", "data3");
+
+            assertEquals(data.length, entry.getDataSize());
+            try (InputStream stream = journal.openData("id2")) {
+                assertArrayEquals(data, IOUtils.toByteArray(stream));
+            }
+        }
+
+        // The records following the transferred data are still readable after a reload
+        try (ReplicationMessageJournal journal = new ReplicationMessageJournal(this.folder, 0, this.logger)) {
+            assertEquals(3, journal.size());
+            assertEquals("data1", read(journal, "id1"));
+            try (InputStream stream = journal.openData("id2")) {
+                assertArrayEquals(data, IOUtils.toByteArray(stream));
+            }
+            assertEquals("data3", read(journal, "id3"));
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.message;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.replication.internal.ReplicationFileStore;
+import org.xwiki.test.TestEnvironment;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @version $Id$
+ */
+@ComponentTest
+@ComponentList({TestEnvironment.class, ReplicationFileStore.class})
+class ReplicationReceiverMessageChunkStoreTest
+{
+    @InjectMockComponents
+    private ReplicationReceiverMessageChunkStore store;
+
+    private static final String INSTANCE = "instance";
+
+    private long append(String instance, long offset, String chunk) throws IOException
+    {
+        return this.store.append(instance, "id", 10, false, offset, new ByteArrayInputStream(chunk.getBytes()));
+    }
+
+    @Test
+    void appendAndDelete() throws IOException
+    {
+        assertEquals(0, this.store.getOffset(INSTANCE, "id", 10, false));
+
+        assertEquals(5, append(INSTANCE, 0, "chunk"));
+        assertEquals(5, this.store.getOffset(INSTANCE, "id", 10, false));
+        assertFalse(this.store.isComplete(INSTANCE, "id", 10, false));
+
+        assertThrows(IOException.class, () -> append(INSTANCE, 0, "chunk"));
+
+        assertEquals(10, append(INSTANCE, 5, "chunk"));
+        assertEquals("chunkchunk",
+            FileUtils.readFileToString(this.store.getDataFile(INSTANCE, "id"), StandardCharsets.UTF_8));
+        assertTrue(this.store.isComplete(INSTANCE, "id", 10, false));
+        assertFalse(this.store.isComplete(INSTANCE, "id", 10, true));
+
+        this.store.delete(INSTANCE, "id");
+
+        assertFalse(this.store.getDataFile(INSTANCE, "id").exists());
+        assertEquals(0, this.store.getOffset(INSTANCE, "id", 10, false));
+    }
+
+    @Test
+    void separateTransfers() throws IOException
+    {
+        // The same message relayed by two instances
+        assertEquals(5, append(INSTANCE, 0, "chunk"));
+        assertEquals(5, append("other", 0, "other"));
+
+        assertEquals(10, append(INSTANCE, 5, "chunk"));
+        assertEquals("chunkchunk",
+            FileUtils.readFileToString(this.store.getDataFile(INSTANCE, "id"), StandardCharsets.UTF_8));
+        assertEquals("other",
+            FileUtils.readFileToString(this.store.getDataFile("other", "id"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void differentTransfer() throws IOException
+    {
+        assertEquals(5, append(INSTANCE, 0, "chunk"));
+
+        // A chunk announcing a different data is rejected
+        assertThrows(IOException.class, () -> this.store.append(INSTANCE, "id", 10, true, 5,
+            new ByteArrayInputStream("chunk".getBytes())));
+        assertThrows(IOException.class, () -> this.store.append(INSTANCE, "id", 20, false, 5,
+            new ByteArrayInputStream("chunk".getBytes())));
+
+        // And the sender is asked to start again
+        assertEquals(0, this.store.getOffset(INSTANCE, "id", 10, true));
+        assertFalse(this.store.getDataFile(INSTANCE, "id").exists());
+    }
+}
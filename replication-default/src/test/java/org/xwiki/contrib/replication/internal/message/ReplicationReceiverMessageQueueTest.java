@@ -0,0 +1,188 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.message;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import javax.inject.Named;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.contrib.replication.DefaultReplicationReceiverMessage;
+import org.xwiki.contrib.replication.ReplicationContext;
+import org.xwiki.contrib.replication.ReplicationReceiver;
+import org.xwiki.contrib.replication.ReplicationReceiverMessage;
+import org.xwiki.contrib.replication.ReplicationReceiverMessageFilter;
+import org.xwiki.contrib.replication.internal.DefaultReplicationContext;
+import org.xwiki.contrib.replication.internal.ReplicationConfiguration;
+import org.xwiki.contrib.replication.internal.ReplicationMessageKeys;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link ReplicationReceiverMessageQueue}.
+ * 
+ * @version $Id$
+ */
+@ComponentTest
+class ReplicationReceiverMessageQueueTest
+{
+    private static final int LANES = 4;
+
+    private static final int ENTITIES = 10;
+
+    private static final int MESSAGES = 200;
+
+    @InjectMockComponents
+    private ReplicationReceiverMessageQueue queue;
+
+    @MockComponent
+    private ReplicationReceiverMessageStore store;
+
+    @MockComponent
+    private ReplicationReceiverMessageFilter filter;
+
+    @MockComponent
+    @Named("type")
+    private ReplicationReceiver receiver;
+
+    private final List<ReplicationReceiverMessage> stored = new CopyOnWriteArrayList<>();
+
+    @BeforeComponent
+    void beforeComponent(MockitoComponentManager componentManager) throws Exception
+    {
+        ReplicationConfiguration configuration =
+            componentManager.registerMockComponent(ReplicationConfiguration.class);
+        when(configuration.getReceiverLanes()).thenReturn(LANES);
+        when(configuration.getQueueSize()).thenReturn(10);
+
+        componentManager.registerComponent(ReplicationContext.class, mock(DefaultReplicationContext.class));
+    }
+
+    @AfterEach
+    void afterEach() throws ComponentLifecycleException
+    {
+        this.queue.dispose();
+    }
+
+    private ReplicationReceiverMessage message(int index)
+    {
+        DefaultReplicationReceiverMessage.Builder builder = new DefaultReplicationReceiverMessage.Builder();
+
+        builder.id(String.valueOf(index));
+        builder.date(new Date());
+        builder.type("type");
+        builder.customMetadata(ReplicationMessageKeys.METADATA_ENTITY_REFERENCE,
+            List.of("entity" + (index % ENTITIES)));
+
+        return builder.build();
+    }
+
+    @Test
+    void handleInLanes() throws Exception
+    {
+        // Simulate the store with a list
+        when(this.store.load(anyLong(), anyInt(), any())).then(invocation -> {
+            long sequence = invocation.getArgument(0);
+            int max = invocation.getArgument(1);
+            Predicate<ReplicationReceiverMessage> consumer = invocation.getArgument(2);
+
+            for (int i = 0; i < max && sequence < this.stored.size(); ++i, ++sequence) {
+                consumer.test(this.stored.get((int) sequence));
+            }
+
+            return sequence;
+        });
+        when(this.store.store(any())).then(invocation -> {
+            this.stored.add(invocation.getArgument(0));
+
+            return invocation.getArgument(0);
+        });
+
+        when(this.filter.filter(any())).then(invocation -> invocation.getArgument(0));
+
+        // Remember in which order and in which thread each entity messages are handled
+        Map<String, List<Integer>> handled = new ConcurrentHashMap<>();
+        Map<String, Thread> threads = new ConcurrentHashMap<>();
+        List<Thread> allThreads = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(MESSAGES);
+        when(this.receiver.relay(any())).thenReturn(CompletableFuture.completedFuture(null));
+        doAnswer(invocation -> {
+            ReplicationReceiverMessage message = invocation.getArgument(0);
+            String key = ReplicationMessageKeys.getOrderingKey(message);
+
+            assertEquals(threads.computeIfAbsent(key, k -> Thread.currentThread()), Thread.currentThread());
+            if (!allThreads.contains(Thread.currentThread())) {
+                allThreads.add(Thread.currentThread());
+            }
+
+            // Give a chance to the other lanes to move forward
+            Thread.sleep(1);
+
+            handled.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(Integer.valueOf(message.getId()));
+            latch.countDown();
+
+            return null;
+        }).when(this.receiver).receive(any());
+
+        assertEquals(LANES, this.queue.getLaneCount());
+
+        for (int i = 0; i < MESSAGES; ++i) {
+            this.queue.add(message(i));
+        }
+
+        assertTrue(latch.await(1, TimeUnit.MINUTES));
+
+        // Messages targeting the same entity are handled in the order they were received
+        assertEquals(ENTITIES, handled.size());
+        for (int entity = 0; entity < ENTITIES; ++entity) {
+            List<Integer> expected = new ArrayList<>();
+            for (int i = entity; i < MESSAGES; i += ENTITIES) {
+                expected.add(i);
+            }
+            assertEquals(expected, handled.get("entity" + entity));
+        }
+
+        // The messages are handled in parallel
+        assertTrue(allThreads.size() > 1);
+    }
+}
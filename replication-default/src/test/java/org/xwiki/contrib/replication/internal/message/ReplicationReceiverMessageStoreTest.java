@@ -43,7 +43,9 @@ import org.xwiki.test.junit5.mockito.InjectMockComponents;
 import org.xwiki.test.junit5.mockito.MockComponent;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.when;
 
 /**
@@ -92,4 +94,43 @@ class ReplicationReceiverMessageStoreTest
         assertEquals(customMetadata.get("KEY2"), List.copyOf(storedMessage.getCustomMetadata().get("KEY2")));
         assertEquals("data", IOUtils.toString(storedMessage.open(), StandardCharsets.UTF_8));
     }
+
+    @Test
+    void saveRetryAndDelete() throws ReplicationException
+    {
+        DefaultReplicationReceiverMessage.Builder message = new DefaultReplicationReceiverMessage.Builder();
+
+        message.id("id");
+        message.date(new Date());
+        DefaultReplicationInstance instance = new DefaultReplicationInstance("name", "uri", Status.REGISTERED, null,
+            Map.of());
+        when(this.instances.getInstanceByURI(instance.getURI())).thenReturn(instance);
+        message.instance(instance);
+        message.type("type");
+        message.data(new DefaultByteArrayInputSource("data".getBytes()));
+
+        ReplicationReceiverMessage storedMessage = this.store.store(message.build());
+
+        assertNull(this.store.getRetry("id"));
+
+        Date nextTry = new Date();
+        this.store.saveRetry(new ReplicationMessageRetry("id", 2, nextTry, "cause", false));
+
+        ReplicationMessageRetry retry = this.store.getRetry("id");
+        assertEquals(2, retry.getAttempts());
+        assertEquals(nextTry, retry.getNextTry());
+        assertEquals("cause", retry.getCause());
+
+        this.store.saveRetry(new ReplicationMessageRetry("id", 3, null, "cause2", true));
+
+        retry = this.store.getRetry("id");
+        assertEquals(3, retry.getAttempts());
+        assertNull(retry.getNextTry());
+        assertEquals("cause2", retry.getCause());
+        assertTrue(retry.isDead());
+
+        this.store.delete(storedMessage);
+
+        assertNull(this.store.getRetry("id"));
+    }
 }
@@ -0,0 +1,203 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.message;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.replication.AbstractReplicationMessage;
+import org.xwiki.contrib.replication.DefaultReplicationSenderMessage;
+import org.xwiki.contrib.replication.MutableReplicationMessage;
+import org.xwiki.contrib.replication.ReplicationException;
+import org.xwiki.contrib.replication.ReplicationInstance.Status;
+import org.xwiki.contrib.replication.ReplicationSenderMessage;
+import org.xwiki.contrib.replication.event.ReplicationMessageStoringEvent;
+import org.xwiki.contrib.replication.internal.ReplicationConfiguration;
+import org.xwiki.contrib.replication.internal.ReplicationFileStore;
+import org.xwiki.contrib.replication.internal.WrappingMutableReplicationSenderMessage;
+import org.xwiki.contrib.replication.internal.instance.DefaultReplicationInstance;
+import org.xwiki.contrib.replication.internal.message.ReplicationSenderMessageDataStore.SharedReplicationSenderMessage;
+import org.xwiki.filter.input.DefaultByteArrayInputSource;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.properties.ConverterManager;
+import org.xwiki.test.TestEnvironment;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+/**
+ * @version $Id$
+ */
+@ComponentTest
+@ComponentList({TestEnvironment.class, ReplicationFileStore.class, WrappingMutableReplicationSenderMessage.class})
+class ReplicationSenderMessageDataStoreTest
+{
+    private static class WritingMessage extends AbstractReplicationMessage implements ReplicationSenderMessage
+    {
+        WritingMessage()
+        {
+            this.modifiableMetadata.put("MODIFIED", List.of("initial"));
+            this.modifiableMetadata.put("REMOVED", List.of("value"));
+        }
+
+        @Override
+        public String getId()
+        {
+            return "id";
+        }
+
+        @Override
+        public Date getDate()
+        {
+            return new Date();
+        }
+
+        @Override
+        public String getSource()
+        {
+            return null;
+        }
+
+        @Override
+        public String getType()
+        {
+            return "type";
+        }
+
+        @Override
+        public void write(OutputStream stream) throws IOException
+        {
+            stream.write("data".getBytes());
+
+            this.modifiableMetadata.put("MODIFIED", List.of("written"));
+            this.modifiableMetadata.put("ADDED", List.of("value"));
+            this.modifiableMetadata.remove("REMOVED");
+        }
+    }
+
+    @InjectMockComponents
+    private ReplicationSenderMessageDataStore store;
+
+    @MockComponent
+    private ObservationManager observation;
+
+    @MockComponent
+    private ConverterManager converter;
+
+    @MockComponent
+    private ReplicationConfiguration configuration;
+
+    @Test
+    void storeAndRelease() throws ReplicationException, IOException
+    {
+        DefaultReplicationInstance instance1 =
+            new DefaultReplicationInstance("name1", "uri1", Status.REGISTERED, null, Map.of());
+        DefaultReplicationInstance instance2 =
+            new DefaultReplicationInstance("name2", "uri2", Status.REGISTERED, null, Map.of());
+
+        DefaultReplicationSenderMessage.Builder message = new DefaultReplicationSenderMessage.Builder();
+        message.id("id");
+        message.date(new Date());
+        message.type("type");
+        message.data(new DefaultByteArrayInputSource("data".getBytes()));
+
+        SharedReplicationSenderMessage storedMessage = this.store.store(message.build(), List.of(instance1, instance2));
+
+        assertEquals("id", storedMessage.getId());
+        assertEquals("type", storedMessage.getType());
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        storedMessage.write(stream);
+        assertEquals("data", stream.toString(StandardCharsets.UTF_8));
+
+        assertTrue(this.store.getDataFile("id").exists());
+
+        this.store.release("id", instance1);
+
+        assertTrue(this.store.getDataFile("id").exists());
+
+        this.store.release("id", instance2);
+
+        assertFalse(this.store.getDataFile("id").exists());
+    }
+
+    @Test
+    void storeCompressed() throws ReplicationException, IOException
+    {
+        when(this.configuration.isCompressionStorage()).thenReturn(true);
+        when(this.configuration.getCompressionLevel()).thenReturn(9);
+
+        DefaultReplicationInstance instance =
+            new DefaultReplicationInstance("name", "uri", Status.REGISTERED, null, Map.of());
+
+        DefaultReplicationSenderMessage.Builder message = new DefaultReplicationSenderMessage.Builder();
+        message.id("id");
+        message.date(new Date());
+        message.type("type");
+        message.data(new DefaultByteArrayInputSource("data".repeat(1000).getBytes()));
+
+        SharedReplicationSenderMessage storedMessage = this.store.store(message.build(), List.of(instance));
+
+        assertTrue(storedMessage.isDataCompressed());
+        assertTrue(ReplicationSenderMessageDataStore.isCompressed(this.store.getDataFile("id")));
+        assertTrue(this.store.getDataFile("id").length() < 4000);
+        assertEquals(4000, ReplicationSenderMessageDataStore.getDataSize(this.store.getDataFile("id")));
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        storedMessage.write(stream);
+        assertEquals("data".repeat(1000), stream.toString(StandardCharsets.UTF_8));
+
+        this.store.release("id", instance);
+
+        assertFalse(this.store.getDataFile("id").exists());
+    }
+
+    @Test
+    void storeMetadataModifiedWhileWriting() throws ReplicationException
+    {
+        when(this.converter.convert(String.class, "custom")).thenReturn("custom");
+        doAnswer(invocation -> {
+            ((MutableReplicationMessage) invocation.getArgument(1)).putCustomMetadata("CUSTOM", List.of("custom"));
+
+            return null;
+        }).when(this.observation).notify(any(ReplicationMessageStoringEvent.class), any());
+
+        DefaultReplicationInstance instance =
+            new DefaultReplicationInstance("name", "uri", Status.REGISTERED, null, Map.of());
+
+        SharedReplicationSenderMessage storedMessage = this.store.store(new WritingMessage(), List.of(instance));
+
+        assertEquals(Map.of("MODIFIED", List.of("written"), "ADDED", List.of("value"), "CUSTOM", List.of("custom")),
+            storedMessage.getCustomMetadata());
+    }
+}
@@ -0,0 +1,493 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.message;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.contrib.replication.DefaultReplicationSenderMessage;
+import org.xwiki.contrib.replication.ReplicationException;
+import org.xwiki.contrib.replication.ReplicationInstance.Status;
+import org.xwiki.contrib.replication.ReplicationMessage;
+import org.xwiki.contrib.replication.ReplicationSenderMessage;
+import org.xwiki.contrib.replication.ReplicationSenderMessageCoalescer;
+import org.xwiki.contrib.replication.internal.ReplicationClient;
+import org.xwiki.contrib.replication.internal.ReplicationConfiguration;
+import org.xwiki.contrib.replication.internal.ReplicationMessageKeys;
+import org.xwiki.contrib.replication.internal.instance.DefaultReplicationInstance;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link ReplicationSenderMessageQueue}.
+ * 
+ * @version $Id$
+ */
+@ComponentTest
+class ReplicationSenderMessageQueueTest
+{
+    private static final String UPDATE = "update";
+
+    private static final String DELETE = "delete";
+
+    private static final String METADATA = "metadata";
+
+    private static final DefaultReplicationInstance INSTANCE =
+        new DefaultReplicationInstance("name", "uri", Status.REGISTERED, null, Map.of());
+
+    @InjectMockComponents
+    private ReplicationSenderMessageQueue queue;
+
+    @MockComponent
+    private ReplicationSenderMessageStore store;
+
+    @MockComponent
+    private ReplicationConfiguration configuration;
+
+    @MockComponent
+    private ReplicationClient client;
+
+    private final NavigableMap<Long, ReplicationSenderMessage> stored = new ConcurrentSkipListMap<>();
+
+    private final NavigableMap<Long, ReplicationSenderMessage> controlStored = new ConcurrentSkipListMap<>();
+
+    private final NavigableMap<Long, ReplicationSenderMessage> metadataStored = new ConcurrentSkipListMap<>();
+
+    private final List<String> sent = new CopyOnWriteArrayList<>();
+
+    private final ReplicationSenderMessageCoalescer coalescer = mock(ReplicationSenderMessageCoalescer.class);
+
+    @BeforeEach
+    void beforeEach() throws ReplicationException
+    {
+        // Don't send anything: the sending thread is stuck waiting for a free slot in the window
+        when(this.configuration.getSenderWindow()).thenReturn(0);
+        when(this.configuration.getQueueSize()).thenReturn(2);
+
+        // Each lane has its own store, created in the order of the priorities
+        Iterator<NavigableMap<Long, ReplicationSenderMessage>> laneStored =
+            List.of(this.controlStored, this.metadataStored).iterator();
+        Provider<ReplicationSenderMessageStore> storeProvider =
+            () -> fake(mock(ReplicationSenderMessageStore.class), laneStored.next());
+        ReflectionUtils.setFieldValue(this.queue, "storeProvider", storeProvider);
+
+        // Simulate the store of the main queue with a map
+        fake(this.store, this.stored);
+
+        when(this.coalescer.isSuperseded(any(), any()))
+            .then(invocation -> UPDATE.equals(((ReplicationMessage) invocation.getArgument(0)).getType()));
+    }
+
+    @AfterEach
+    void afterEach() throws ComponentLifecycleException
+    {
+        this.queue.dispose();
+    }
+
+    private ReplicationSenderMessageStore fake(ReplicationSenderMessageStore fakeStore,
+        NavigableMap<Long, ReplicationSenderMessage> fakeStored) throws ReplicationException
+    {
+        when(fakeStore.load(anyLong(), anyInt(), any())).then(invocation -> {
+            long sequence = invocation.getArgument(0);
+            int max = invocation.getArgument(1);
+            Predicate<ReplicationSenderMessage> consumer = invocation.getArgument(2);
+
+            int count = 0;
+            for (Map.Entry<Long, ReplicationSenderMessage> entry : fakeStored.tailMap(sequence, true).entrySet()) {
+                if (count++ >= max || !consumer.test(entry.getValue())) {
+                    break;
+                }
+                sequence = entry.getKey() + 1;
+            }
+
+            return sequence;
+        });
+        when(fakeStore.get(anyString())).then(invocation -> fakeStored.values().stream()
+            .filter(message -> message.getId().equals(invocation.getArgument(0))).findFirst().orElse(null));
+        when(fakeStore.getSequence(anyString())).then(invocation -> fakeStored.entrySet().stream()
+            .filter(entry -> entry.getValue().getId().equals(invocation.getArgument(0))).map(Map.Entry::getKey)
+            .findFirst().orElse(-1L));
+        doAnswer(invocation -> {
+            BiConsumer<String, String> consumer = invocation.getArgument(0);
+            fakeStored.values()
+                .forEach(message -> consumer.accept(message.getId(), ReplicationMessageKeys.getOrderingKey(message)));
+
+            return null;
+        }).when(fakeStore).forEachOrderingKey(any());
+        doAnswer(invocation -> fakeStored.values().remove(invocation.getArgument(0))).when(fakeStore).delete(any());
+        // The stored message cannot be created outside of a real store, the queue works with the passed one
+        doAnswer(invocation -> {
+            store(fakeStored, invocation.getArgument(0));
+
+            return null;
+        }).when(fakeStore).store(any());
+
+        return fakeStore;
+    }
+
+    private ReplicationSenderMessage store(String id, String type, String entity)
+    {
+        return store(this.stored, message(id, type, entity));
+    }
+
+    private ReplicationSenderMessage store(NavigableMap<Long, ReplicationSenderMessage> fakeStored,
+        ReplicationSenderMessage message)
+    {
+        fakeStored.put(fakeStored.isEmpty() ? 0 : fakeStored.lastKey() + 1, message);
+
+        return message;
+    }
+
+    private ReplicationSenderMessage message(String id, String type, String entity)
+    {
+        return new DefaultReplicationSenderMessage.Builder().id(id).type(type)
+            .customMetadata(ReplicationMessageKeys.METADATA_ENTITY_REFERENCE, List.of(entity)).build();
+    }
+
+    private ReplicationSenderMessage message(String id, String type)
+    {
+        return new DefaultReplicationSenderMessage.Builder().id(id).type(type).customMetadata(Map.of()).build();
+    }
+
+    private void priorities()
+    {
+        when(this.configuration.getSenderWindow()).thenReturn(1);
+        when(this.configuration.getSenderPriorityWeight(any())).then(
+            invocation -> ((ReplicationSenderMessagePriority) invocation.getArgument(0)).getDefaultWeight());
+        when(this.configuration.getSenderPriorityTypes(any())).then(invocation -> {
+            ReplicationSenderMessagePriority priority = invocation.getArgument(0);
+
+            return priority == ReplicationSenderMessagePriority.METADATA ? Set.of(METADATA)
+                : priority.getDefaultTypes();
+        });
+    }
+
+    private void waitSent(int count) throws InterruptedException
+    {
+        long timeout = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+        while (this.sent.size() < count && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, this.sent.size());
+    }
+
+    private List<String> sent(String prefix)
+    {
+        List<String> ids = new ArrayList<>();
+        for (String id : this.sent) {
+            if (id.startsWith(prefix)) {
+                ids.add(id);
+            }
+        }
+
+        return ids;
+    }
+
+    private List<String> ids(String prefix, int count)
+    {
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            ids.add(prefix + i);
+        }
+
+        return ids;
+    }
+
+    private void start() throws InterruptedException
+    {
+        this.queue.start(INSTANCE);
+
+        // Wait for the first message to be taken by the sending thread
+        while (this.queue.getMessages().contains(this.stored.firstEntry().getValue())) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void getSupersededKeepOrder() throws Exception
+    {
+        store("sending", UPDATE, "sending");
+        ReplicationSenderMessage a1 = store("a1", UPDATE, "a");
+        ReplicationSenderMessage b1 = store("b1", UPDATE, "b");
+        ReplicationSenderMessage a2 = store("a2", UPDATE, "a");
+        store("a3", DELETE, "a");
+        ReplicationSenderMessage a4 = store("a4", UPDATE, "a");
+        ReplicationSenderMessage b2 = store("b2", UPDATE, "b");
+        ReplicationSenderMessage a5 = store("a5", UPDATE, "a");
+
+        start();
+
+        // The messages following a message which cannot be coalesced are superseded, even if they are only on disk
+        assertEquals(List.of(a4, a5), this.queue.getSuperseded(message("a6", UPDATE, "a"), this.coalescer));
+
+        // Messages in memory and on disk are superseded together
+        assertEquals(List.of(b1, b2), this.queue.getSuperseded(message("b3", UPDATE, "b"), this.coalescer));
+
+        // No waiting message for this entity
+        assertTrue(this.queue.getSuperseded(message("c1", UPDATE, "c"), this.coalescer).isEmpty());
+
+        // The removed messages are not sent anymore
+        this.queue.remove(List.of(a4, a5, b1, b2));
+        verify(this.store).delete(a4);
+        verify(this.store).delete(a5);
+        verify(this.store).delete(b1);
+        verify(this.store).delete(b2);
+        assertEquals(List.of(a1, a2), this.queue.getMessages());
+
+        // The most recent message cannot be coalesced
+        assertTrue(this.queue.getSuperseded(message("a6", UPDATE, "a"), this.coalescer).isEmpty());
+    }
+
+    @Test
+    void removeMessageBeingSent() throws Exception
+    {
+        ReplicationSenderMessage sending = store("sending", UPDATE, "sending");
+
+        start();
+
+        // The message being sent is found but cannot be removed anymore
+        assertEquals(List.of(sending),
+            this.queue.getSuperseded(message("sending2", UPDATE, "sending"), this.coalescer));
+        this.queue.remove(List.of(sending));
+        verify(this.store, never()).delete(sending);
+    }
+
+    @Test
+    void sendInWindow() throws Exception
+    {
+        when(this.configuration.getSenderWindow()).thenReturn(3);
+
+        for (int i = 0; i < 30; ++i) {
+            store("m" + i, UPDATE, "e" + (i % 5));
+        }
+
+        // Remember the order in which the messages are sent and make sure messages of the same entity are never sent
+        // at the same time
+        Set<String> sendingKeys = ConcurrentHashMap.newKeySet();
+        AtomicBoolean sameKey = new AtomicBoolean();
+        Map<String, List<String>> sent = new ConcurrentHashMap<>();
+        AtomicInteger sending = new AtomicInteger();
+        AtomicInteger maxSending = new AtomicInteger();
+        AtomicBoolean failed = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(30);
+        doAnswer(invocation -> {
+            ReplicationSenderMessage message = invocation.getArgument(0);
+            String key = ReplicationMessageKeys.getOrderingKey(message);
+
+            if (!sendingKeys.add(key)) {
+                sameKey.set(true);
+            }
+            maxSending.accumulateAndGet(sending.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(5);
+
+                // Fail once in the middle
+                if (message.getId().equals("m12") && failed.compareAndSet(false, true)) {
+                    throw new ReplicationException("failed");
+                }
+            } finally {
+                sending.decrementAndGet();
+                sendingKeys.remove(key);
+            }
+
+            sent.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(message.getId());
+            done.countDown();
+
+            return null;
+        }).when(this.client).sendMessage(any(), eq(INSTANCE));
+
+        this.queue.start(INSTANCE);
+
+        // Don't wait minutes before sending again the failed message
+        long timeout = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1);
+        while (!done.await(10, TimeUnit.MILLISECONDS) && System.currentTimeMillis() < timeout) {
+            this.queue.wakeUp();
+        }
+        assertEquals(0, done.getCount());
+
+        // Messages are sent in parallel, but each entity messages are sent in order, even after a failure
+        assertTrue(maxSending.get() > 1);
+        assertFalse(sameKey.get());
+        assertTrue(failed.get());
+        for (int entity = 0; entity < 5; ++entity) {
+            List<String> expected = new ArrayList<>();
+            for (int i = entity; i < 30; i += 5) {
+                expected.add("m" + i);
+            }
+            assertEquals(expected, sent.get("e" + entity));
+        }
+    }
+
+    @Test
+    void purgeWhileSending() throws Exception
+    {
+        when(this.configuration.getSenderWindow()).thenReturn(1);
+
+        store("b0", UPDATE, "e0");
+
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger current = new AtomicInteger();
+        AtomicInteger maxSending = new AtomicInteger();
+        doAnswer(invocation -> {
+            ReplicationMessage message = invocation.getArgument(0);
+            maxSending.accumulateAndGet(current.incrementAndGet(), Math::max);
+            try {
+                if (message.getId().equals("b0")) {
+                    sending.countDown();
+                    release.await();
+                }
+            } finally {
+                current.decrementAndGet();
+            }
+
+            return this.sent.add(message.getId());
+        }).when(this.client).sendMessage(any(), eq(INSTANCE));
+
+        this.queue.start(INSTANCE);
+
+        // Purge the queue while the first message is being sent and add new messages
+        assertTrue(sending.await(1, TimeUnit.MINUTES));
+        this.queue.purge();
+        this.queue.add(message("b1", UPDATE, "e0"));
+        this.queue.add(message("b2", UPDATE, "e1"));
+
+        // The request being sent still holds its slot in the window
+        Thread.sleep(100);
+        assertTrue(this.sent.isEmpty());
+
+        release.countDown();
+        waitSent(3);
+
+        assertEquals(List.of("b0", "b1", "b2"), this.sent);
+        assertEquals(1, maxSending.get());
+    }
+
+    @Test
+    void sendPriorityLanes() throws Exception
+    {
+        priorities();
+
+        // The bulk backlog is stored first
+        for (int i = 0; i < 20; ++i) {
+            store("b" + i, UPDATE, "e" + i);
+        }
+        for (int i = 0; i < 5; ++i) {
+            store(this.metadataStored, message("m" + i, METADATA));
+        }
+        for (int i = 0; i < 3; ++i) {
+            store(this.controlStored, message("c" + i, ReplicationMessage.TYPE_INSTANCE_UPDATE));
+        }
+
+        doAnswer(invocation -> this.sent.add(((ReplicationMessage) invocation.getArgument(0)).getId()))
+            .when(this.client).sendMessage(any(), eq(INSTANCE));
+
+        this.queue.start(INSTANCE);
+
+        waitSent(28);
+
+        // Each lane is sent in order
+        assertEquals(ids("b", 20), sent("b"));
+        assertEquals(ids("m", 5), sent("m"));
+        assertEquals(ids("c", 3), sent("c"));
+
+        // The urgent messages don't wait for the bulk backlog
+        assertTrue(this.sent.indexOf("c2") < 5);
+        assertTrue(this.sent.indexOf("m4") < 12);
+    }
+
+    @Test
+    void sendNewUrgentMessageFirst() throws Exception
+    {
+        priorities();
+
+        for (int i = 0; i < 10; ++i) {
+            store("b" + i, UPDATE, "e" + i);
+        }
+
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            ReplicationMessage message = invocation.getArgument(0);
+            if (message.getId().equals("b0")) {
+                sending.countDown();
+                release.await();
+            }
+
+            return this.sent.add(message.getId());
+        }).when(this.client).sendMessage(any(), eq(INSTANCE));
+
+        this.queue.start(INSTANCE);
+
+        // Add a control message while the first bulk message is being sent
+        assertTrue(sending.await(1, TimeUnit.MINUTES));
+        this.queue.add(message("c0", ReplicationMessage.TYPE_INSTANCE_UPDATE));
+        release.countDown();
+
+        waitSent(11);
+
+        // The control message is sent right after the bulk message which was already being sent
+        assertEquals("b0", this.sent.get(0));
+        assertEquals("c0", this.sent.get(1));
+        assertEquals(ids("b", 10), sent("b"));
+
+        // The idle sending thread is woken up by new messages in any lane
+        this.queue.add(message("m0", METADATA));
+        waitSent(12);
+        this.queue.add(message("c1", ReplicationMessage.TYPE_INSTANCE_UPDATE));
+        waitSent(13);
+        assertEquals(List.of("m0", "c1"), this.sent.subList(11, 13));
+    }
+}
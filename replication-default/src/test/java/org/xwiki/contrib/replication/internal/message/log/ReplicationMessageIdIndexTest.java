@@ -0,0 +1,166 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.message.log;
+
+import java.io.File;
+import java.util.Date;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.replication.internal.ReplicationConfiguration;
+import org.xwiki.contrib.replication.internal.ReplicationFileStore;
+import org.xwiki.observation.remote.RemoteObservationManagerConfiguration;
+import org.xwiki.test.annotation.AfterComponent;
+import org.xwiki.test.junit5.XWikiTempDir;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link ReplicationMessageIdIndex}.
+ * 
+ * @version $Id$
+ */
+@ComponentTest
+class ReplicationMessageIdIndexTest
+{
+    private static final Date OLD = new Date(0);
+
+    private static final Date FUTURE = new Date(System.currentTimeMillis() + 7L * 24 * 60 * 60 * 1000);
+
+    @XWikiTempDir
+    private File folder;
+
+    @MockComponent
+    private ReplicationFileStore fileStore;
+
+    @MockComponent
+    private ReplicationConfiguration configuration;
+
+    @MockComponent
+    private RemoteObservationManagerConfiguration remoteConfiguration;
+
+    @InjectMockComponents
+    private ReplicationMessageIdIndex index;
+
+    @AfterComponent
+    void afterComponent()
+    {
+        when(this.fileStore.getReplicationFolder()).thenReturn(this.folder);
+        when(this.configuration.getReceiverIndexSize()).thenReturn(1000L);
+        when(this.configuration.getReceiverIndexTTL()).thenReturn(3600L);
+    }
+
+    @Test
+    void addRemoveAndReload() throws ComponentLifecycleException, InitializationException
+    {
+        // Unknown messages
+        assertEquals(Boolean.FALSE, this.index.isKnown("id1", FUTURE));
+        assertNull(this.index.isKnown("id1", OLD));
+        assertNull(this.index.isKnown("id1", null));
+
+        this.index.add("id1");
+        this.index.add("id2");
+
+        assertEquals(Boolean.TRUE, this.index.isKnown("id1", FUTURE));
+        assertEquals(Boolean.TRUE, this.index.isKnown("id1", OLD));
+        assertEquals(Boolean.TRUE, this.index.isKnown("id2", FUTURE));
+        assertEquals(Boolean.FALSE, this.index.isKnown("id3", FUTURE));
+        assertEquals(2, this.index.getCount());
+
+        // The bloom filter still contains the removed id
+        this.index.remove("id2");
+        assertNull(this.index.isKnown("id2", FUTURE));
+
+        // Reload
+        this.index.dispose();
+        this.index.initialize();
+
+        assertEquals(Boolean.TRUE, this.index.isKnown("id1", FUTURE));
+        assertNull(this.index.isKnown("id2", FUTURE));
+        assertEquals(Boolean.FALSE, this.index.isKnown("id3", FUTURE));
+        assertEquals(2, this.index.getCount());
+        assertTrue(new File(this.folder, "receiver-index/bloom").exists());
+        assertFalse(new File(this.folder, "receiver-index/bloom.tmp").exists());
+    }
+
+    @Test
+    void reloadAfterCrash() throws InitializationException
+    {
+        this.index.add("id1");
+
+        // Reload without saving the index
+        this.index.initialize();
+
+        // The recent identifiers which reached the disk are still known
+        assertEquals(Boolean.TRUE, this.index.isKnown("id1", FUTURE));
+
+        // But the bloom filter is not trusted anymore for the messages produced before the crash
+        assertNull(this.index.isKnown("id2", new Date()));
+        assertEquals(Boolean.FALSE, this.index.isKnown("id2", FUTURE));
+    }
+
+    @Test
+    void rebuildFullBloomFilter() throws ComponentLifecycleException, InitializationException
+    {
+        when(this.configuration.getReceiverIndexSize()).thenReturn(10L);
+        when(this.configuration.getReceiverIndexTTL()).thenReturn(0L);
+
+        this.index.dispose();
+        this.index.initialize();
+
+        for (int i = 0; i < 10; ++i) {
+            this.index.add("id" + i);
+        }
+        assertEquals(10, this.index.getCount());
+
+        // The bloom filter is started again when it contains more identifiers than it was sized for
+        this.index.add("id10");
+        assertEquals(0, this.index.getCount());
+
+        // And the messages which might have been received before are not trusted anymore
+        assertNull(this.index.isKnown("id11", new Date()));
+        assertEquals(Boolean.FALSE, this.index.isKnown("id11", FUTURE));
+    }
+
+    @Test
+    void clustered() throws ComponentLifecycleException, InitializationException
+    {
+        when(this.remoteConfiguration.isEnabled()).thenReturn(true);
+
+        this.index.dispose();
+        this.index.initialize();
+
+        // Another cluster member might have received the message
+        assertNull(this.index.isKnown("id1", FUTURE));
+
+        this.index.add("id1");
+
+        assertEquals(Boolean.TRUE, this.index.isKnown("id1", FUTURE));
+        assertNull(this.index.isKnown("id2", FUTURE));
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.message.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.slf4j.Logger;
+import org.xwiki.contrib.replication.internal.message.log.ReplicationMessageLogJournal.Row;
+import org.xwiki.contrib.replication.log.ReplicationMessageEventQuery;
+import org.xwiki.eventstream.Event;
+import org.xwiki.eventstream.EventStreamException;
+import org.xwiki.eventstream.query.SortableEventQuery.SortClause.Order;
+import org.xwiki.test.junit5.XWikiTempDir;
+import org.xwiki.test.junit5.XWikiTempDirExtension;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Validate {@link ReplicationMessageLogJournal}.
+ * 
+ * @version $Id$
+ */
+@ExtendWith(XWikiTempDirExtension.class)
+class ReplicationMessageLogJournalTest
+{
+    @XWikiTempDir
+    private File folder;
+
+    private final Logger logger = mock(Logger.class);
+
+    private Row add(ReplicationMessageLogJournal journal, String eventId, Date date, String id, String status,
+        String reference) throws IOException
+    {
+        Map<String, Object> custom = new HashMap<>();
+        custom.put(ReplicationMessageEventQuery.KEY_ID, id);
+        custom.put(ReplicationMessageEventQuery.KEY_TYPE, "type");
+        custom.put(ReplicationMessageEventQuery.KEY_STATUS, status);
+        custom.put(ReplicationMessageEventQuery.KEY_DATE, date);
+        custom.put(ReplicationMessageEventQuery.KEY_RECEIVERS, List.of("receiver"));
+        custom.put(ReplicationMessageEventQuery.customMetadataName("ENTITY_REFERENCE"), List.of(reference));
+
+        return journal.add(eventId, date, custom);
+    }
+
+    private List<String> search(ReplicationMessageLogJournal journal, ReplicationMessageEventQuery query)
+        throws EventStreamException
+    {
+        return journal.search(query).stream().map(Row::getEventId).collect(Collectors.toList());
+    }
+
+    @Test
+    void addSearchAndReload() throws IOException, EventStreamException
+    {
+        Date date = new Date();
+
+        try (ReplicationMessageLogJournal journal = new ReplicationMessageLogJournal(this.folder, 0, this.logger)) {
+            add(journal, "event1", new Date(date.getTime() - 2), "id1", "stored", "reference2");
+            add(journal, "event2", new Date(date.getTime() - 1), "id1", "sent", "reference2");
+            add(journal, "event3", date, "id2", "stored", "reference1");
+        }
+
+        try (ReplicationMessageLogJournal journal = new ReplicationMessageLogJournal(this.folder, 0, this.logger)) {
+            assertEquals(3, journal.size());
+            assertEquals("event1", journal.getFirstEventId("id1"));
+
+            Row row = journal.get("event3");
+            Map<String, Object> custom = row.getCustom();
+            assertEquals("id2", custom.get(ReplicationMessageEventQuery.KEY_ID));
+            assertEquals(date, custom.get(ReplicationMessageEventQuery.KEY_DATE));
+            assertEquals(List.of("receiver"), custom.get(ReplicationMessageEventQuery.KEY_RECEIVERS));
+            assertEquals(List.of("reference1"),
+                custom.get(ReplicationMessageEventQuery.customMetadataName("ENTITY_REFERENCE")));
+
+            // Status and date range
+            ReplicationMessageEventQuery query = new ReplicationMessageEventQuery();
+            query.custom().eq(ReplicationMessageEventQuery.KEY_STATUS, "stored");
+            query.after(new Date(date.getTime() - 10000));
+            assertEquals(List.of("event1", "event3"), search(journal, query));
+
+            // Custom metadata and sort
+            query = new ReplicationMessageEventQuery();
+            query.customMetadata().in(ReplicationMessageEventQuery.customMetadataName("ENTITY_REFERENCE"),
+                "reference1", "reference2");
+            query.custom().addSort(ReplicationMessageEventQuery.customMetadataName("ENTITY_REFERENCE"), Order.ASC);
+            query.addSort(Event.FIELD_DATE, Order.DESC);
+            assertEquals(List.of("event3", "event2", "event1"), search(journal, query));
+
+            // Indexed message id
+            query = new ReplicationMessageEventQuery();
+            query.custom().eq(ReplicationMessageEventQuery.KEY_ID, "id1");
+            query.custom().eq(ReplicationMessageEventQuery.KEY_STATUS, "stored");
+            assertEquals(List.of("event1"), search(journal, query));
+
+            assertEquals(new Date(date.getTime() - 1), journal.getLastDateBefore(date));
+        }
+    }
+
+    @Test
+    void delete() throws IOException
+    {
+        try (ReplicationMessageLogJournal journal = new ReplicationMessageLogJournal(this.folder, 0, this.logger)) {
+            add(journal, "event1", new Date(), "id1", "stored", "reference");
+            add(journal, "event2", new Date(), "id2", "stored", "reference");
+
+            assertEquals("event1", journal.delete("event1").getEventId());
+            assertNull(journal.delete("event1"));
+        }
+
+        try (ReplicationMessageLogJournal journal = new ReplicationMessageLogJournal(this.folder, 0, this.logger)) {
+            assertEquals(1, journal.size());
+            assertNull(journal.get("event1"));
+            assertNull(journal.getFirstEventId("id1"));
+            assertEquals("event2", journal.getFirstEventId("id2"));
+        }
+    }
+
+    @Test
+    void readRowsFromSeveralSegments() throws IOException, EventStreamException
+    {
+        Date date = new Date();
+        Date oldDate = new Date(date.getTime() - TimeUnit.DAYS.toMillis(2));
+
+        try (ReplicationMessageLogJournal journal = new ReplicationMessageLogJournal(this.folder, 0, this.logger)) {
+            // Switch between the segments to make sure each row is read at the right offset
+            add(journal, "event1", oldDate, "id1", "stored", "reference1");
+            add(journal, "event2", date, "id2", "stored", "reference2");
+            add(journal, "event3", new Date(oldDate.getTime() + 1), "id3", "sent", "reference3");
+            journal.delete("event1");
+            add(journal, "event4", new Date(date.getTime() + 1), "id4", "sent", "reference4");
+
+            assertEquals(2, this.folder.listFiles().length);
+            assertRows(journal);
+        }
+
+        try (ReplicationMessageLogJournal journal = new ReplicationMessageLogJournal(this.folder, 0, this.logger)) {
+            assertRows(journal);
+        }
+    }
+
+    private void assertRows(ReplicationMessageLogJournal journal) throws IOException, EventStreamException
+    {
+        assertEquals(3, journal.size());
+        assertNull(journal.get("event1"));
+        for (int i = 2; i <= 4; ++i) {
+            assertEquals(List.of("reference" + i), journal.get("event" + i).getCustom()
+                .get(ReplicationMessageEventQuery.customMetadataName("ENTITY_REFERENCE")));
+        }
+
+        ReplicationMessageEventQuery query = new ReplicationMessageEventQuery();
+        query.custom().eq(ReplicationMessageEventQuery.KEY_STATUS, "sent");
+        query.addSort(Event.FIELD_DATE, Order.ASC);
+        assertEquals(List.of("event3", "event4"), search(journal, query));
+    }
+
+    @Test
+    void prune() throws IOException
+    {
+        Date oldDate = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(10));
+
+        try (ReplicationMessageLogJournal journal = new ReplicationMessageLogJournal(this.folder, 5, this.logger)) {
+            add(journal, "event1", oldDate, "id1", "stored", "reference");
+
+            assertEquals(1, this.folder.listFiles().length);
+        }
+
+        // Expired segments are deleted when opening the journal
+        try (ReplicationMessageLogJournal journal = new ReplicationMessageLogJournal(this.folder, 5, this.logger)) {
+            assertEquals(0, journal.size());
+            assertEquals(0, this.folder.listFiles().length);
+
+            add(journal, "event2", oldDate, "id2", "stored", "reference");
+            add(journal, "event3", new Date(), "id3", "stored", "reference");
+
+            // And when starting a new segment
+            assertEquals(1, journal.size());
+            assertNull(journal.getFirstEventId("id2"));
+            assertEquals(1, this.folder.listFiles().length);
+        }
+    }
+}
@@ -20,15 +20,19 @@
 package org.xwiki.contrib.replication.internal.message.log;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 
 import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
 import org.xwiki.component.internal.ContextComponentManagerProvider;
 import org.xwiki.component.internal.WikiDeletedListener;
 import org.xwiki.component.manager.ComponentManager;
@@ -39,7 +43,10 @@ import org.xwiki.contrib.replication.ReplicationException;
 import org.xwiki.contrib.replication.ReplicationInstanceManager;
 import org.xwiki.contrib.replication.ReplicationReceiverMessage;
 import org.xwiki.contrib.replication.ReplicationSenderMessage;
+import org.xwiki.contrib.replication.internal.ReplicationConfiguration;
 import org.xwiki.contrib.replication.internal.instance.DefaultReplicationInstance;
+import org.xwiki.contrib.replication.log.ReplicationMessageEventQuery;
+import org.xwiki.contrib.replication.message.log.ReplicationMessageEventInitializer;
 import org.xwiki.environment.Environment;
 import org.xwiki.eventstream.Event;
 import org.xwiki.eventstream.EventStreamException;
@@ -48,8 +55,11 @@ import org.xwiki.eventstream.internal.DefaultEventStore;
 import org.xwiki.eventstream.internal.EventStreamConfiguration;
 import org.xwiki.eventstream.store.solr.internal.EventsSolrCoreInitializer;
 import org.xwiki.eventstream.store.solr.internal.SolrEventStore;
+import org.xwiki.model.ModelContext;
 import org.xwiki.model.internal.reference.converter.EntityReferenceConverter;
 import org.xwiki.model.internal.reference.converter.WikiReferenceConverter;
+import org.xwiki.model.reference.WikiReference;
+import org.xwiki.observation.EventListener;
 import org.xwiki.observation.ObservationManager;
 import org.xwiki.observation.remote.internal.DefaultRemoteObservationManagerConfiguration;
 import org.xwiki.search.solr.test.SolrComponentList;
@@ -72,6 +82,11 @@ import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -114,6 +129,12 @@ class ReplicationMessageLogStoreTest
     @MockComponent
     private ContextStoreManager contextStore;
 
+    @MockComponent
+    private ReplicationConfiguration replicationConfiguration;
+
+    @MockComponent
+    private ModelContext modelContext;
+
     @InjectComponentManager
     private MockitoComponentManager componentManager;
 
@@ -215,4 +236,91 @@ class ReplicationMessageLogStoreTest
         assertEquals(message.getType(), loadedMessage.getType());
         assertEquals(Set.of("receiver3", "receiver4"), Set.copyOf(loadedMessage.getReceivers()));
     }
+
+    @Test
+    void saveAsync() throws EventStreamException, InterruptedException, ExecutionException
+    {
+        when(this.replicationConfiguration.getLogQueueSize()).thenReturn(2);
+        when(this.replicationConfiguration.getLogBatchSize()).thenReturn(10);
+
+        List<CompletableFuture<Event>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            DefaultReplicationSenderMessage message =
+                new DefaultReplicationSenderMessage.Builder().id("id" + i).type("type").source("source").build();
+
+            futures.add(this.logStore.saveAsync(message, null));
+        }
+
+        // All the events are saved, including the ones which did not fit in the queue
+        for (int i = 0; i < 10; ++i) {
+            assertEquals("id" + i, futures.get(i).get().getCustom().get(ReplicationMessageEventQuery.KEY_ID));
+            assertTrue(this.logStore.exist("id" + i));
+        }
+    }
+
+    @Test
+    void initializers() throws Exception
+    {
+        ReplicationMessageEventInitializer initializer1 =
+            this.componentManager.registerMockComponent(ReplicationMessageEventInitializer.class, "initializer1");
+
+        DefaultReplicationSenderMessage message1 =
+            new DefaultReplicationSenderMessage.Builder().id("id1").type("type").source("source").build();
+        this.logStore.saveSync(message1, null);
+
+        verify(initializer1).initialize(same(message1), any());
+
+        // The cached initializers are forgotten when a new one is registered
+        ReplicationMessageEventInitializer initializer2 =
+            this.componentManager.registerMockComponent(ReplicationMessageEventInitializer.class, "initializer2");
+        ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+        verify(this.observation, atLeastOnce()).addListener(listener.capture());
+        for (EventListener registeredListener : listener.getAllValues()) {
+            if (registeredListener.getName().equals("ReplicationMessageLogStore.initializers")) {
+                registeredListener.onEvent(new ComponentDescriptorAddedEvent(ReplicationMessageEventInitializer.class),
+                    this.componentManager, null);
+            }
+        }
+
+        DefaultReplicationSenderMessage message2 =
+            new DefaultReplicationSenderMessage.Builder().id("id2").type("type").source("source").build();
+        this.logStore.saveSync(message2, null);
+
+        verify(initializer1).initialize(same(message2), any());
+        verify(initializer2).initialize(same(message2), any());
+    }
+
+    @Test
+    void initializersByNamespace() throws Exception
+    {
+        ReplicationMessageEventInitializer initializer1 =
+            this.componentManager.registerMockComponent(ReplicationMessageEventInitializer.class, "initializer1");
+
+        DefaultReplicationSenderMessage message1 =
+            new DefaultReplicationSenderMessage.Builder().id("id1").type("type").source("source").build();
+        this.logStore.saveSync(message1, null);
+
+        verify(initializer1).initialize(same(message1), any());
+
+        ReplicationMessageEventInitializer initializer2 =
+            this.componentManager.registerMockComponent(ReplicationMessageEventInitializer.class, "initializer2");
+
+        // The initializers of another wiki are looked up separately
+        when(this.modelContext.getCurrentEntityReference()).thenReturn(new WikiReference("wiki"));
+        DefaultReplicationSenderMessage message2 =
+            new DefaultReplicationSenderMessage.Builder().id("id2").type("type").source("source").build();
+        this.logStore.saveSync(message2, null);
+
+        verify(initializer1).initialize(same(message2), any());
+        verify(initializer2).initialize(same(message2), any());
+
+        // The initializers of the first namespace are still cached
+        when(this.modelContext.getCurrentEntityReference()).thenReturn(null);
+        DefaultReplicationSenderMessage message3 =
+            new DefaultReplicationSenderMessage.Builder().id("id3").type("type").source("source").build();
+        this.logStore.saveSync(message3, null);
+
+        verify(initializer1).initialize(same(message3), any());
+        verify(initializer2, never()).initialize(same(message3), any());
+    }
 }
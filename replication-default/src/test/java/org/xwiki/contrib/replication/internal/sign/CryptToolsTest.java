@@ -27,6 +27,8 @@ import javax.inject.Provider;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.replication.ReplicationException;
+import org.xwiki.contrib.replication.ReplicationInstance;
 import org.xwiki.contrib.replication.internal.ReplicationFileStore;
 import org.xwiki.crypto.internal.asymmetric.generator.BcRSAKeyPairGenerator;
 import org.xwiki.crypto.internal.asymmetric.keyfactory.BcRSAKeyFactory;
@@ -49,7 +51,13 @@ import org.xwiki.test.junit5.mockito.ComponentTest;
 import org.xwiki.test.junit5.mockito.InjectMockComponents;
 import org.xwiki.test.junit5.mockito.MockComponent;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 /**
@@ -93,4 +101,35 @@ class CryptToolsTest
 
         assertEquals(keyPair.getPrivateKey(), privateKey);
     }
+
+    @Test
+    void encryptDecrypt() throws IOException, GeneralSecurityException, ReplicationException
+    {
+        CertifiedKeyPair keyPair = this.cryptTools.createCertifiedKeyPair();
+
+        byte[] encrypted = this.cryptTools.encrypt(keyPair.getCertificate(), "secret".getBytes());
+
+        assertNotEquals("secret", new String(encrypted));
+        assertArrayEquals("secret".getBytes(), this.cryptTools.decrypt(keyPair.getPrivateKey(), encrypted));
+    }
+
+    @Test
+    void signAndVerify() throws IOException, GeneralSecurityException, ReplicationException
+    {
+        CertifiedKeyPair keyPair = this.cryptTools.createCertifiedKeyPair();
+        ReplicationInstance instance = mock(ReplicationInstance.class);
+        when(instance.getReceiveKey()).thenReturn(keyPair.getCertificate());
+
+        // The reused signers don't keep anything from the previous operation
+        String signature1 = this.cryptTools.sign(keyPair.getPrivateKey(), "content1");
+        String signature2 = this.cryptTools.sign(keyPair.getPrivateKey(), "content2");
+        assertTrue(this.cryptTools.verify(instance, "content1", signature1));
+        assertTrue(this.cryptTools.verify(instance, "content2", signature2));
+        assertFalse(this.cryptTools.verify(instance, "content1", signature2));
+        assertEquals(signature1, this.cryptTools.sign(keyPair.getPrivateKey(), "content1"));
+
+        // An invalid signature does not leave the reused signer in an unknown state
+        assertThrows(ReplicationException.class, () -> this.cryptTools.verify(instance, "content1", "not base64!"));
+        assertTrue(this.cryptTools.verify(instance, "content1", signature1));
+    }
 }
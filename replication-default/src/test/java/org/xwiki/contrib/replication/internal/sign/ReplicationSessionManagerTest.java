@@ -0,0 +1,131 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.internal.sign;
+
+import java.security.SecureRandom;
+
+import javax.inject.Provider;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.contrib.replication.ReplicationException;
+import org.xwiki.contrib.replication.ReplicationInstance.Status;
+import org.xwiki.contrib.replication.internal.ReplicationConfiguration;
+import org.xwiki.contrib.replication.internal.ReplicationFileStore;
+import org.xwiki.contrib.replication.internal.instance.DefaultReplicationInstance;
+import org.xwiki.crypto.internal.asymmetric.generator.BcRSAKeyPairGenerator;
+import org.xwiki.crypto.internal.asymmetric.keyfactory.BcRSAKeyFactory;
+import org.xwiki.crypto.internal.asymmetric.keyfactory.DefaultKeyFactory;
+import org.xwiki.crypto.internal.encoder.Base64BinaryStringEncoder;
+import org.xwiki.crypto.internal.encoder.HexBinaryStringEncoder;
+import org.xwiki.crypto.password.internal.DefaultPrivateKeyPasswordBasedEncryptor;
+import org.xwiki.crypto.pkix.internal.BcX509CertificateFactory;
+import org.xwiki.crypto.pkix.internal.BcX509CertificateGeneratorFactory;
+import org.xwiki.crypto.pkix.internal.extension.DefaultX509ExtensionBuilder;
+import org.xwiki.crypto.signer.internal.factory.BcSHA256withRsaSignerFactory;
+import org.xwiki.crypto.signer.internal.factory.DefaultSignerFactory;
+import org.xwiki.crypto.store.filesystem.internal.X509KeyFileSystemStore;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.test.TestEnvironment;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectComponentManager;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link ReplicationSessionManager}.
+ * 
+ * @version $Id$
+ */
+@ComponentTest
+@ComponentList({ReplicationCertifiedKeyPairStore.class, ReplicationFileStore.class, TestEnvironment.class,
+    BcRSAKeyPairGenerator.class, BcX509CertificateGeneratorFactory.class, DefaultSignerFactory.class,
+    BcRSAKeyFactory.class, BcSHA256withRsaSignerFactory.class, X509KeyFileSystemStore.class,
+    DefaultPrivateKeyPasswordBasedEncryptor.class, DefaultKeyFactory.class, Base64BinaryStringEncoder.class,
+    HexBinaryStringEncoder.class, BcX509CertificateFactory.class, DefaultX509ExtensionBuilder.class, CryptTools.class})
+class ReplicationSessionManagerTest
+{
+    @MockComponent
+    private Provider<SecureRandom> secureRandomProvider;
+
+    @MockComponent
+    private ObservationManager observation;
+
+    @MockComponent
+    private ReplicationConfiguration configuration;
+
+    @InjectMockComponents
+    private ReplicationSessionManager sessions;
+
+    @InjectComponentManager
+    private MockitoComponentManager componentManager;
+
+    @BeforeEach
+    void beforeEach()
+    {
+        SecureRandom random = new SecureRandom();
+        when(this.secureRandomProvider.get()).thenReturn(random);
+
+        when(this.configuration.getSessionLifetime()).thenReturn(3600L);
+    }
+
+    @Test
+    void openVerify() throws ReplicationException, ComponentLookupException
+    {
+        ReplicationCertifiedKeyPairStore store =
+            this.componentManager.getInstance(ReplicationCertifiedKeyPairStore.class);
+
+        DefaultReplicationInstance instance =
+            new DefaultReplicationInstance("name1", "uri1", Status.REGISTERED, null, null);
+
+        // In this test the same instance is both the sender and the receiver
+        instance.setReceiveKey(store.getCertifiedKeyPair("uri1", true).getKey().getCertificate());
+
+        assertNull(this.sessions.getSendSession(instance));
+
+        ReplicationSession session = this.sessions.createSendSession(instance);
+        String key = this.sessions.getHandshakeKey(instance, session);
+
+        assertThrows(UnknownReplicationSessionException.class,
+            () -> this.sessions.verify(instance, session.getId(), "content", session.sign("content")));
+
+        this.sessions.openReceiveSession("uri1", key);
+        this.sessions.setSendSession(session);
+
+        assertSame(session, this.sessions.getSendSession(instance));
+        assertTrue(this.sessions.verify(instance, session.getId(), "content", session.sign("content")));
+        assertFalse(this.sessions.verify(instance, session.getId(), "othercontent", session.sign("content")));
+
+        this.sessions.closeReceiveSessions("uri1");
+
+        assertThrows(UnknownReplicationSessionException.class,
+            () -> this.sessions.verify(instance, session.getId(), "content", session.sign("content")));
+    }
+}
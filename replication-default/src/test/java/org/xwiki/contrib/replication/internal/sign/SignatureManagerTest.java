@@ -46,11 +46,15 @@ import org.xwiki.observation.ObservationManager;
 import org.xwiki.test.TestEnvironment;
 import org.xwiki.test.annotation.ComponentList;
 import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectComponentManager;
 import org.xwiki.test.junit5.mockito.InjectMockComponents;
 import org.xwiki.test.junit5.mockito.MockComponent;
+import org.xwiki.test.mockito.MockitoComponentManager;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.when;
 
@@ -76,6 +80,9 @@ class SignatureManagerTest
     @InjectMockComponents
     private SignatureManager signatureManager;
 
+    @InjectComponentManager
+    private MockitoComponentManager componentManager;
+
     @BeforeEach
     void beforeEach()
     {
@@ -119,4 +126,22 @@ class SignatureManagerTest
         assertFalse(this.signatureManager.verify(instance1, "content", signature2));
         assertFalse(this.signatureManager.verify(instance2, "content", signature1));
     }
+
+    @Test
+    void keyPairCache() throws Exception
+    {
+        ReplicationCertifiedKeyPairStore store =
+            this.componentManager.getInstance(ReplicationCertifiedKeyPairStore.class);
+
+        // The key pair is read only once
+        ReplicationCertifiedKeyPair keyPair = store.getCertifiedKeyPair("uri", true);
+        assertSame(keyPair, store.getCertifiedKeyPair("uri", true));
+
+        // A new key pair replaces the cached one
+        ReplicationCertifiedKeyPair newKeyPair = store.createCertifiedKeyPair("uri");
+        ReplicationCertifiedKeyPair storedKeyPair = store.getCertifiedKeyPair("uri", false);
+        assertNotEquals(keyPair.getKey().getCertificate(), storedKeyPair.getKey().getCertificate());
+        assertEquals(newKeyPair.getKey().getCertificate(), storedKeyPair.getKey().getCertificate());
+        assertSame(storedKeyPair, store.getCertifiedKeyPair("uri", false));
+    }
 }
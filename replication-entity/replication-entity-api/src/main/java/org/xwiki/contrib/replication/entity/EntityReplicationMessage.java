@@ -104,6 +104,17 @@ public interface EntityReplicationMessage extends ReplicationMessage
      */
     String METADATA_DOCUMENT_UPDATE_OWNER = PREFIX_METADATA_DOCUMENT_UPDATE + "OWNER";
 
+    /**
+     * The name of the metadata containing the version against which the document update delta was computed.
+     */
+    String METADATA_DOCUMENT_UPDATE_DELTA = PREFIX_METADATA_DOCUMENT_UPDATE + "DELTA";
+
+    /**
+     * The name of the metadata containing the hash of the modified attachments which content is not sent because the
+     * receivers already have it.
+     */
+    String METADATA_DOCUMENT_UPDATE_ATTACHMENT_HASHES = PREFIX_METADATA_DOCUMENT_UPDATE + "ATTACHMENT_HASHES";
+
     /**
      * The message type for these messages.
      */
@@ -36,10 +36,10 @@ import org.xwiki.contrib.replication.ReplicationReceiverMessage;
 import org.xwiki.contrib.replication.entity.DocumentReplicationControllerInstance;
 import org.xwiki.contrib.replication.entity.internal.AbstractEntityReplicationInstanceRecoverHandler;
 import org.xwiki.contrib.replication.entity.internal.EntityReplicationStore;
+import org.xwiki.contrib.replication.internal.message.log.ReplicationMessageLogStore;
 import org.xwiki.contrib.replication.log.ReplicationMessageEventQuery;
 import org.xwiki.eventstream.Event;
 import org.xwiki.eventstream.EventSearchResult;
-import org.xwiki.eventstream.EventStore;
 import org.xwiki.eventstream.query.SortableEventQuery.SortClause.Order;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.properties.ConverterManager;
@@ -56,7 +56,7 @@ import com.xpn.xwiki.XWikiException;
 public class EntityReplicationControllerRecoverHandler extends AbstractEntityReplicationInstanceRecoverHandler
 {
     @Inject
-    private EventStore eventStore;
+    private ReplicationMessageLogStore logStore;
 
     @Inject
     private ConverterManager converter;
@@ -103,7 +103,7 @@ public class EntityReplicationControllerRecoverHandler extends AbstractEntityRep
         // Search with only the needed field in the result
         // TODO: reduce the number of results with field collapsing when support for it is added to the event store API
         // TODO: reduce the field fetched when support for custom fields is added
-        try (EventSearchResult result = this.eventStore.search(query)) {
+        try (EventSearchResult result = this.logStore.search(query)) {
             handle(result, message.getSource());
         } catch (Exception e) {
             throw new ReplicationException("Failed to request messages log", e);
@@ -83,6 +83,25 @@ public class EntityReplicationConfiguration
         return this.configuration.getProperty(PREFIX + "ancestorMaxCount", 50);
     }
 
+    /**
+     * @return true if the owner of a document should only send the difference with the previous version when the
+     *         document is modified (all instances need to support it)
+     * @since 2.3.9
+     */
+    public boolean isDocumentUpdateDelta()
+    {
+        return this.configuration.getProperty(PREFIX + "update.delta", false);
+    }
+
+    /**
+     * @return the maximum number of bytes of recently replicated document versions to keep in memory
+     * @since 2.3.9
+     */
+    public long getDocumentRevisionCacheMaxSize()
+    {
+        return this.configuration.getProperty(PREFIX + "update.revisionCacheMaxSize", 10L * 1024 * 1024);
+    }
+
     /**
      * @param type the message type
      * @return who is allowed to do send this type of messages
@@ -0,0 +1,216 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.entity.internal.update;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.diff.Delta;
+import org.xwiki.diff.DiffException;
+import org.xwiki.diff.DiffManager;
+import org.xwiki.diff.DiffResult;
+
+/**
+ * Produce and apply the difference between two serialized versions of a document.
+ * <p>
+ * The XML is split in tokens ending with a tag or a new line so that modifying a line of the content or a property of
+ * an xobject only produce a small change. The delta starts with a hash of the serialized version it was computed
+ * against, to make sure it's only applied on exactly the same base.
+ * <p>
+ * The receiver does not have the bytes the sender computed the delta against, it re-serializes its own current version
+ * of the document. That serialization can differ from the sender's one even for the same document version (different
+ * XWiki versions, installed filters, etc.). In that case the hash does not match, {@link #apply(byte[], InputStream)}
+ * returns {@code null} and the receiver falls back to asking the owner for the complete document instead of applying
+ * the delta on a different base.
+ * <p>
+ * When the sender does not have the base version anymore, it sends the complete new version instead of a delta (see
+ * {@link #writeComplete(OutputStream)}).
+ * 
+ * @version $Id$
+ * @since 2.3.9
+ */
+@Component(roles = DocumentUpdateDelta.class)
+@Singleton
+public class DocumentUpdateDelta
+{
+    private static final int VERSION = 1;
+
+    @Inject
+    private DiffManager diffManager;
+
+    /**
+     * @param previous the serialized base version
+     * @param next the serialized new version
+     * @param stream the stream where to write the delta
+     * @throws IOException when failing to write the delta
+     */
+    public void write(byte[] previous, byte[] next, OutputStream stream) throws IOException
+    {
+        DiffResult<String> result;
+        try {
+            result = this.diffManager.diff(tokenize(previous), tokenize(next), null);
+        } catch (DiffException e) {
+            throw new IOException("Failed to compute the document delta", e);
+        }
+
+        DataOutputStream dataStream = new DataOutputStream(stream);
+
+        dataStream.writeByte(VERSION);
+        writeBytes(DigestUtils.sha256(previous), dataStream);
+
+        dataStream.writeInt(result.getPatch().size());
+        for (Delta<String> delta : result.getPatch()) {
+            dataStream.writeInt(delta.getPrevious().getIndex());
+            dataStream.writeInt(delta.getPrevious().size());
+            dataStream.writeInt(delta.getNext().size());
+            for (String token : delta.getNext()) {
+                writeBytes(token.getBytes(StandardCharsets.UTF_8), dataStream);
+            }
+        }
+
+        dataStream.flush();
+    }
+
+    /**
+     * Indicate that the rest of the stream contains the complete serialized new version instead of a delta.
+     * 
+     * @param stream the stream where to write the serialized new version after this call
+     * @throws IOException when failing to write the header
+     */
+    public void writeComplete(OutputStream stream) throws IOException
+    {
+        DataOutputStream dataStream = new DataOutputStream(stream);
+
+        dataStream.writeByte(VERSION);
+        // An empty base hash indicates a complete version
+        writeBytes(new byte[0], dataStream);
+
+        dataStream.flush();
+    }
+
+    /**
+     * @param previous the serialized base version or null if it's not available
+     * @param stream the stream containing the delta
+     * @return the serialized new version or null if the delta was not computed against exactly the passed base version
+     *         (in which case the caller is expected to get the complete document some other way)
+     * @throws IOException when failing to read the delta
+     */
+    public byte[] apply(byte[] previous, InputStream stream) throws IOException
+    {
+        DataInputStream dataStream = new DataInputStream(stream);
+
+        int version = dataStream.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException("Unsupported document delta version [" + version + "]");
+        }
+
+        byte[] hash = readBytes(dataStream);
+
+        // The sender could not compute a delta and sent the complete new version
+        if (hash.length == 0) {
+            return IOUtils.toByteArray(dataStream);
+        }
+
+        // Make sure the delta was computed against the same base
+        if (previous == null || !MessageDigest.isEqual(DigestUtils.sha256(previous), hash)) {
+            return null;
+        }
+
+        List<String> tokens = tokenize(previous);
+        ByteArrayOutputStream result = new ByteArrayOutputStream(previous.length);
+
+        int index = 0;
+        int size = dataStream.readInt();
+        for (int i = 0; i < size; ++i) {
+            int previousIndex = dataStream.readInt();
+            int previousSize = dataStream.readInt();
+            if (previousIndex < index || previousIndex + previousSize > tokens.size()) {
+                throw new IOException("Invalid document delta");
+            }
+
+            // Copy the unchanged tokens
+            for (; index < previousIndex; ++index) {
+                result.write(tokens.get(index).getBytes(StandardCharsets.UTF_8));
+            }
+
+            // Replace the modified tokens
+            int nextSize = dataStream.readInt();
+            for (int j = 0; j < nextSize; ++j) {
+                result.write(readBytes(dataStream));
+            }
+            index += previousSize;
+        }
+
+        // Copy the remaining tokens
+        for (; index < tokens.size(); ++index) {
+            result.write(tokens.get(index).getBytes(StandardCharsets.UTF_8));
+        }
+
+        return result.toByteArray();
+    }
+
+    private static List<String> tokenize(byte[] bytes)
+    {
+        String xml = new String(bytes, StandardCharsets.UTF_8);
+
+        List<String> tokens = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < xml.length(); ++i) {
+            char c = xml.charAt(i);
+            if (c == '>' || c == '\n') {
+                tokens.add(xml.substring(start, i + 1));
+                start = i + 1;
+            }
+        }
+        if (start < xml.length()) {
+            tokens.add(xml.substring(start));
+        }
+
+        return tokens;
+    }
+
+    private static void writeBytes(byte[] bytes, DataOutputStream stream) throws IOException
+    {
+        stream.writeInt(bytes.length);
+        stream.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream stream) throws IOException
+    {
+        byte[] bytes = new byte[stream.readInt()];
+        stream.readFully(bytes);
+
+        return bytes;
+    }
+}
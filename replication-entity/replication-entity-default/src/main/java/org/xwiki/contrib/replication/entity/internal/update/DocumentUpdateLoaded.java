@@ -21,17 +21,27 @@ package org.xwiki.contrib.replication.entity.internal.update;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.filter.FilterException;
 import org.xwiki.filter.input.DefaultInputStreamInputSource;
+import org.xwiki.filter.instance.input.DocumentInstanceInputProperties;
 import org.xwiki.filter.instance.output.DocumentInstanceOutputProperties;
+import org.xwiki.filter.output.DefaultOutputStreamOutputTarget;
 import org.xwiki.filter.xar.input.XARInputProperties;
+import org.xwiki.filter.xar.output.XAROutputProperties;
 
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiAttachment;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.internal.filter.XWikiDocumentFilterUtils;
 
@@ -42,6 +52,8 @@ import com.xpn.xwiki.internal.filter.XWikiDocumentFilterUtils;
 @Singleton
 public class DocumentUpdateLoaded
 {
+    private static final char HASH_SEPARATOR = ':';
+
     @Inject
     // TODO: don't use internal tool
     private XWikiDocumentFilterUtils importer;
@@ -66,4 +78,90 @@ public class DocumentUpdateLoaded
         this.importer.importEntity(XWikiDocument.class, document, new DefaultInputStreamInputSource(stream),
             xarProperties, documentProperties);
     }
+
+    /**
+     * @param document the document to serialize
+     * @param output the stream where to write the document
+     * @param complete true if the history of the document should be serialized too
+     * @param attachments the attachments for which to serialize the content
+     * @throws XWikiException when failing to serialize the document
+     * @since 2.3.9
+     */
+    public void exportDocument(XWikiDocument document, OutputStream output, boolean complete, Set<String> attachments)
+        throws XWikiException
+    {
+        // Input
+        DocumentInstanceInputProperties documentProperties = new DocumentInstanceInputProperties();
+        // XAR XML format only support JRCS for the document
+        documentProperties.setWithRevisions(false);
+        documentProperties.setWithJRCSRevisions(complete);
+        // Indicate which attachment content to serialize
+        documentProperties.setAttachmentsContent(attachments);
+        // Use the revision format for attachment history since it's better from memory point of view
+        documentProperties.setWithWikiAttachmentJRCSRevisions(false);
+        documentProperties.setWithWikiAttachmentsRevisions(complete);
+
+        // Output
+        XAROutputProperties xarProperties = new XAROutputProperties();
+        // Indicate the stream where you write the XAR XML
+        xarProperties.setTarget(new DefaultOutputStreamOutputTarget(output));
+        // Indentation is only useful to humans and produces a lot of whitespace events to parse on the receiver side
+        xarProperties.setFormat(false);
+        // The XAR syntax is kept rather than a binary encoding: the data is serialized once and shared by all the
+        // target instances, whatever version they run, and only the XAR filter knows how to faithfully serialize every
+        // part of a document (the compression of the data already removes most of the XML verbosity)
+
+        try {
+            document.toXML(documentProperties, xarProperties);
+        } catch (Exception e) {
+            throw new XWikiException(XWikiException.MODULE_XWIKI_DOC, XWikiException.ERROR_XWIKI_DOC_EXPORT,
+                "Error serializing document to XML", e, null);
+        }
+    }
+
+    /**
+     * @param attachment the attachment
+     * @param xcontext the XWiki context
+     * @return the hash of the attachment content
+     * @throws XWikiException when failing to load the attachment content
+     * @throws IOException when failing to read the attachment content
+     * @since 2.3.9
+     */
+    public String getContentHash(XWikiAttachment attachment, XWikiContext xcontext) throws XWikiException, IOException
+    {
+        try (InputStream stream = attachment.getContentInputStream(xcontext)) {
+            return DigestUtils.sha256Hex(stream);
+        }
+    }
+
+    /**
+     * @param filename the name of the attachment
+     * @param hash the hash of the attachment content
+     * @return the metadata value associated with the attachment
+     * @since 2.3.9
+     */
+    public static String toAttachmentHash(String filename, String hash)
+    {
+        return hash + HASH_SEPARATOR + filename;
+    }
+
+    /**
+     * @param value the metadata value associated with the attachment
+     * @return the name of the attachment
+     * @since 2.3.9
+     */
+    public static String getAttachmentHashFilename(String value)
+    {
+        return StringUtils.substringAfter(value, HASH_SEPARATOR);
+    }
+
+    /**
+     * @param value the metadata value associated with the attachment
+     * @return the hash of the attachment content
+     * @since 2.3.9
+     */
+    public static String getAttachmentHash(String value)
+    {
+        return StringUtils.substringBefore(value, HASH_SEPARATOR);
+    }
 }
@@ -19,32 +19,38 @@
  */
 package org.xwiki.contrib.replication.entity.internal.update;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 
+import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.contrib.replication.ReplicationException;
 import org.xwiki.contrib.replication.entity.DocumentReplicationSenderMessageBuilder;
 import org.xwiki.contrib.replication.entity.EntityReplication;
 import org.xwiki.contrib.replication.entity.internal.AbstractDocumentReplicationMessage;
+import org.xwiki.contrib.replication.entity.internal.DocumentReplicationUtils;
 import org.xwiki.contrib.replication.entity.internal.EntityReplicationConfiguration;
-import org.xwiki.filter.instance.input.DocumentInstanceInputProperties;
-import org.xwiki.filter.output.DefaultOutputStreamOutputTarget;
-import org.xwiki.filter.xar.output.XAROutputProperties;
 import org.xwiki.user.UserReference;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.DocumentRevisionProvider;
+import com.xpn.xwiki.doc.XWikiAttachment;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.doc.XWikiDocumentArchive;
 import com.xpn.xwiki.doc.rcs.XWikiRCSNodeInfo;
@@ -67,15 +73,37 @@ public class DocumentUpdateReplicationMessage extends AbstractDocumentReplicatio
     @Inject
     private EntityReplication entityReplication;
 
+    @Inject
+    private DocumentReplicationUtils replicationUtils;
+
+    @Inject
+    private DocumentUpdateLoaded loader;
+
+    @Inject
+    private DocumentUpdateDelta delta;
+
+    @Inject
+    private DocumentUpdateRevisionCache revisions;
+
     @Inject
     private Logger logger;
 
     private String version;
 
+    private Date documentDate;
+
+    private String deltaVersion;
+
+    private Date deltaDate;
+
     private boolean complete;
 
     private Set<String> attachments;
 
+    private Map<String, XWikiAttachment> previousAttachments;
+
+    private XWikiDocument document;
+
     /**
      * Initialize a message for a version replication.
      * 
@@ -93,10 +121,17 @@ public class DocumentUpdateReplicationMessage extends AbstractDocumentReplicatio
     {
         initialize(builder, document, readonly, false, extraMetadata);
 
-        this.attachments = attachments;
-
         XWikiContext xcontext = this.xcontextProvider.get();
 
+        // Only the owner can skip content the receivers are supposed to already have, since it's the one they ask for
+        // the complete document when they don't
+        boolean owner = this.replicationUtils.isOwner(builder.getDocumentReference());
+
+        this.attachments = attachments;
+        if (owner) {
+            this.previousAttachments = getPreviousAttachments(document, attachments);
+        }
+
         try {
             XWikiDocumentArchive archive = document.getDocumentArchive(xcontext);
             Collection<XWikiRCSNodeInfo> nodes = archive.getNodes();
@@ -112,11 +147,74 @@ public class DocumentUpdateReplicationMessage extends AbstractDocumentReplicatio
                 }
             }
             putCustomMetadata(METADATA_DOCUMENT_UPDATE_ANCESTORS, DocumentAncestorConverter.toStrings(ancestors));
+
+            // Only send the difference with the previous version when the current instance is the owner, so that the
+            // receivers which don't have the same previous version can ask it for the complete document
+            if (!ancestors.isEmpty() && this.configuration.isDocumentUpdateDelta() && owner) {
+                this.deltaVersion = ancestors.get(0).getVersion();
+                this.deltaDate = ancestors.get(0).getDate();
+                putCustomMetadata(METADATA_DOCUMENT_UPDATE_DELTA, this.deltaVersion);
+            }
         } catch (XWikiException e) {
             this.logger.error("Failed to get document ancestors", e);
         }
     }
 
+    private Map<String, XWikiAttachment> getPreviousAttachments(XWikiDocument document,
+        Set<String> modifiedAttachments)
+    {
+        XWikiDocument originalDocument = document.getOriginalDocument();
+        if (modifiedAttachments == null || originalDocument == null) {
+            return null;
+        }
+
+        // Only remember the previous versions of the attachments which might have the same content, the comparison of
+        // the content itself is delayed to the serialization of the message to not slow down the save
+        Map<String, XWikiAttachment> previous = new HashMap<>();
+        for (String filename : modifiedAttachments) {
+            XWikiAttachment attachment = document.getAttachment(filename);
+            XWikiAttachment originalAttachment = originalDocument.getAttachment(filename);
+
+            // Comparing the size first avoids loading the content of attachments which obviously changed
+            if (attachment != null && originalAttachment != null
+                && attachment.getLongSize() == originalAttachment.getLongSize()) {
+                previous.put(filename, originalAttachment);
+            }
+        }
+
+        return previous.isEmpty() ? null : previous;
+    }
+
+    private void reuseAttachments(XWikiDocument document, XWikiContext xcontext)
+    {
+        Set<String> contentAttachments = new HashSet<>(this.attachments);
+        List<String> hashes = new ArrayList<>();
+        for (Map.Entry<String, XWikiAttachment> entry : this.previousAttachments.entrySet()) {
+            String filename = entry.getKey();
+            XWikiAttachment attachment = document.getAttachment(filename);
+
+            if (attachment != null) {
+                try {
+                    String hash = this.loader.getContentHash(attachment, xcontext);
+                    if (hash.equals(this.loader.getContentHash(entry.getValue(), xcontext))) {
+                        // The same content was uploaded again, the receivers already have it
+                        contentAttachments.remove(filename);
+                        hashes.add(DocumentUpdateLoaded.toAttachmentHash(filename, hash));
+                    }
+                } catch (Exception e) {
+                    this.logger.warn("Failed to compare the content of attachment [{}] with the previous version: {}",
+                        filename, ExceptionUtils.getRootCauseMessage(e));
+                }
+            }
+        }
+
+        if (!hashes.isEmpty()) {
+            this.attachments = contentAttachments;
+            // The metadata is taken into account by the sender after the data is written
+            putCustomMetadata(METADATA_DOCUMENT_UPDATE_ATTACHMENT_HASHES, hashes);
+        }
+    }
+
     /**
      * Initialize a message for a complete replication.
      * 
@@ -133,6 +231,44 @@ public class DocumentUpdateReplicationMessage extends AbstractDocumentReplicatio
         initialize(builder, document, readonly, true, extraMetadata);
     }
 
+    /**
+     * Initialize a message for a complete replication of the same document version as the passed message.
+     * 
+     * @param message the update message to copy
+     * @since 2.3.9
+     */
+    public void initializeComplete(DocumentUpdateReplicationMessage message)
+    {
+        this.entityReference = message.entityReference;
+        this.date = message.date;
+        this.source = message.source;
+        this.receivers = message.receivers;
+        this.modifiableMetadata.putAll(message.modifiableMetadata);
+
+        // Generate a new id
+        initialize();
+
+        this.version = message.version;
+        this.documentDate = message.documentDate;
+        this.document = message.document;
+        this.complete = true;
+
+        // The whole history is sent so there is no need for ancestors
+        putCustomMetadata(METADATA_DOCUMENT_UPDATE_ANCESTORS, null);
+        putCustomMetadata(METADATA_DOCUMENT_UPDATE_DELTA, null);
+        putCustomMetadata(METADATA_DOCUMENT_UPDATE_ATTACHMENT_HASHES, null);
+        putCustomMetadata(METADATA_DOCUMENT_UPDATE_COMPLETE, this.complete);
+    }
+
+    /**
+     * @return true if the whole document is sent, including its history
+     * @since 2.3.9
+     */
+    public boolean isComplete()
+    {
+        return this.complete;
+    }
+
     /**
      * Initialize a message for a complete replication.
      * 
@@ -156,8 +292,13 @@ public class DocumentUpdateReplicationMessage extends AbstractDocumentReplicatio
         this.complete = complete;
 
         this.version = document.getVersion();
+        this.documentDate = document.getDate();
         putCustomMetadata(METADATA_DOCUMENT_UPDATE_VERSION, this.version);
 
+        // Remember the saved document to not have to load (and copy) it again when serializing the message. It's
+        // serialized as is, as long as it was not modified again in the meantime.
+        this.document = document;
+
         putCustomMetadata(METADATA_DOCUMENT_UPDATE_COMPLETE, this.complete);
 
         UserReference creator = document.getAuthors().getCreator();
@@ -179,9 +320,58 @@ public class DocumentUpdateReplicationMessage extends AbstractDocumentReplicatio
     @Override
     public void write(OutputStream stream) throws IOException
     {
+        XWikiDocument revision = getRevision(this.version, this.documentDate);
+
+        // The saved document is not needed anymore
+        this.document = null;
+
+        if (revision == null) {
+            throw new IOException(String.format("No document with reference [%s] and version [%s] could found",
+                this.entityReference, this.version));
+        }
+
+        if (this.previousAttachments != null) {
+            reuseAttachments(revision, this.xcontextProvider.get());
+
+            // The previous attachments are not needed anymore
+            this.previousAttachments = null;
+        }
+
+        try {
+            byte[] next = null;
+            if (this.deltaVersion != null) {
+                next = writeDelta(revision, stream);
+            } else {
+                this.loader.exportDocument(revision, stream, this.complete, this.attachments);
+            }
+
+            if (this.configuration.isDocumentUpdateDelta() && !revision.isNew()) {
+                // Remember this version since the next update is likely to be sent as a delta against it
+                if (next == null) {
+                    next = serialize(revision, Collections.emptySet());
+                }
+                this.revisions.set(this.entityReference, this.version, this.documentDate, next);
+            }
+        } catch (Exception e) {
+            throw new IOException(String.format("Failed to serialize the document with reference [%s] and version [%s]",
+                this.entityReference, this.version), e);
+        }
+    }
+
+    private XWikiDocument getRevision(String revisionVersion, Date revisionDate) throws IOException
+    {
+        // Check if the saved document was not modified since then
+        XWikiDocument savedDocument = this.document;
+        if (savedDocument != null && revisionVersion.equals(savedDocument.getVersion())
+            && Objects.equals(revisionDate, savedDocument.getDate())) {
+            // The serialization does not modify the document so there is no need to work on a copy of it
+            return savedDocument;
+        }
+
         XWikiContext xcontext = this.xcontextProvider.get();
 
         XWikiDocument document;
+
         try {
             document = xcontext.getWiki().getDocument(this.entityReference, xcontext);
         } catch (XWikiException e) {
@@ -190,63 +380,68 @@ public class DocumentUpdateReplicationMessage extends AbstractDocumentReplicatio
 
         if (document.isNew()) {
             // TODO: try to find it in the recycle bin
-        } else if (!document.getVersion().equals(this.version)) {
+            return document;
+        } else if (!document.getVersion().equals(revisionVersion)) {
             // Get the right version from the history
             try {
-                document = this.revisionProvider.getRevision(document, this.version);
+                document = this.revisionProvider.getRevision(document, revisionVersion);
             } catch (XWikiException e) {
                 throw new IOException(String.format("Failed to get document with reference [%s] and version [%s]",
-                    this.entityReference, this.version), e);
+                    this.entityReference, revisionVersion), e);
             }
 
             if (document == null) {
-                throw new IOException(String.format("No document with reference [%s] and version [%s] could found",
-                    this.entityReference, this.version));
+                return null;
             }
         }
 
-        if (document.getDocumentArchive() != null) {
-            // We don't need to modifying the document, but we are cloning it anyway to make sure to not be impacted by
-            // bad code which might modify it while we are trying to write it, especially the archive which
-            // apparently still have some problem even in XWiki Standard (see
-            // https://jira.xwiki.org/browse/REPLICAT-231)
-            // TODO: remove the workaround when we are sure the problem is fixed in XWiki Standard
-            document = document.clone();
-            // The archive is supposed to be null after the clone, but we are being extra safe (in case this changes)
-            document.setDocumentArchive((XWikiDocumentArchive) null);
-        }
+        // We don't need to modifying the document, but we are working on a copy anyway to make sure to not be
+        // impacted by bad code which might modify it while we are trying to write it, especially the archive which
+        // apparently still have some problem even in XWiki Standard (see https://jira.xwiki.org/browse/REPLICAT-231)
+        // TODO: remove the workaround when we are sure the problem is fixed in XWiki Standard
+        XWikiDocument revision = document.clone();
+        // The archive is supposed to be null after the clone, but we are being extra safe (in case this changes)
+        revision.setDocumentArchive((XWikiDocumentArchive) null);
 
-        try {
-            toXML(document, stream, this.complete);
-        } catch (Exception e) {
-            throw new IOException(String.format("Failed to serialize the document with reference [%s] and version [%s]",
-                this.entityReference, this.version), e);
-        }
+        return revision;
     }
 
-    private void toXML(XWikiDocument document, OutputStream output, boolean complete) throws XWikiException
+    private byte[] serialize(XWikiDocument document, Set<String> attachments) throws XWikiException
     {
-        // Input
-        DocumentInstanceInputProperties documentProperties = new DocumentInstanceInputProperties();
-        // XAR XML format only support JRCS for the document
-        documentProperties.setWithRevisions(false);
-        documentProperties.setWithJRCSRevisions(complete);
-        // Indicate which attachment content to serialize
-        documentProperties.setAttachmentsContent(this.attachments);
-        // Use the revision format for attachment history since it's better from memory point of view
-        documentProperties.setWithWikiAttachmentJRCSRevisions(false);
-        documentProperties.setWithWikiAttachmentsRevisions(complete);
-
-        // Output
-        XAROutputProperties xarProperties = new XAROutputProperties();
-        // Indicate the stream where you write the XAR XML
-        xarProperties.setTarget(new DefaultOutputStreamOutputTarget(output));
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        this.loader.exportDocument(document, stream, false, attachments);
 
-        try {
-            document.toXML(documentProperties, xarProperties);
-        } catch (Exception e) {
-            throw new XWikiException(XWikiException.MODULE_XWIKI_DOC, XWikiException.ERROR_XWIKI_DOC_EXPORT,
-                "Error serializing document to XML", e, null);
+        return stream.toByteArray();
+    }
+
+    /**
+     * @return the serialized new version when it can be reused as the base of the next delta, null otherwise
+     */
+    private byte[] writeDelta(XWikiDocument document, OutputStream stream) throws XWikiException, IOException
+    {
+        // Check if the version was recently replicated
+        byte[] previous = this.revisions.get(this.entityReference, this.deltaVersion, this.deltaDate);
+        if (previous == null) {
+            XWikiDocument previousDocument = getRevision(this.deltaVersion, this.deltaDate);
+            if (previousDocument != null && !previousDocument.isNew()) {
+                // The receivers don't have the content of the attachments at hand, so it's not part of the base
+                previous = serialize(previousDocument, Collections.emptySet());
+            }
         }
+
+        if (previous == null) {
+            // There is nothing to compute the delta against, send the whole document instead of a delta the receivers
+            // won't be able to apply
+            this.delta.writeComplete(stream);
+            this.loader.exportDocument(document, stream, false, this.attachments);
+
+            return null;
+        }
+
+        byte[] next = serialize(document, this.attachments);
+        this.delta.write(previous, next, stream);
+
+        // The serialized new version is only a valid base if it does not contain any attachment content
+        return this.attachments != null && this.attachments.isEmpty() ? next : null;
     }
 }
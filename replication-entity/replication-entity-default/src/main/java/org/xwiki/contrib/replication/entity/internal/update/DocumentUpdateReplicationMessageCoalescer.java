@@ -0,0 +1,95 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.entity.internal.update;
+
+import java.util.Collection;
+import java.util.Objects;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.collections4.CollectionUtils;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.contrib.replication.ReplicationMessage;
+import org.xwiki.contrib.replication.ReplicationSenderMessage;
+import org.xwiki.contrib.replication.ReplicationSenderMessageCoalescer;
+import org.xwiki.contrib.replication.entity.EntityReplicationMessage;
+
+/**
+ * Replace the document updates waiting to be sent by a single complete update of the most recent version.
+ * 
+ * @version $Id$
+ * @since 2.3.9
+ */
+@Component
+@Singleton
+@Named(EntityReplicationMessage.TYPE_DOCUMENT_UPDATE)
+public class DocumentUpdateReplicationMessageCoalescer implements ReplicationSenderMessageCoalescer
+{
+    @Inject
+    private Provider<DocumentUpdateReplicationMessage> messageProvider;
+
+    @Override
+    public boolean isSuperseded(ReplicationMessage pending, ReplicationSenderMessage message)
+    {
+        // Only updates produced by the current instance can be regenerated
+        if (!(message instanceof DocumentUpdateReplicationMessage)
+            || !EntityReplicationMessage.TYPE_DOCUMENT_UPDATE.equals(pending.getType())) {
+            return false;
+        }
+
+        return Objects.equals(pending.getSource(), message.getSource())
+            && isEqual(pending.getReceivers(), message.getReceivers())
+            && isSameMetadata(pending, message, EntityReplicationMessage.METADATA_ENTITY_REFERENCE)
+            && isSameMetadata(pending, message, EntityReplicationMessage.METADATA_ENTITY_LOCALE)
+            && isSameMetadata(pending, message, EntityReplicationMessage.METADATA_DOCUMENT_UPDATE_READONLY);
+    }
+
+    private boolean isSameMetadata(ReplicationMessage pending, ReplicationMessage message, String key)
+    {
+        return isEqual(pending.getCustomMetadata().get(key), message.getCustomMetadata().get(key));
+    }
+
+    private boolean isEqual(Collection<String> values1, Collection<String> values2)
+    {
+        if (values1 == null || values2 == null) {
+            return values1 == values2;
+        }
+
+        return CollectionUtils.isEqualCollection(values1, values2);
+    }
+
+    @Override
+    public ReplicationSenderMessage coalesce(ReplicationSenderMessage message)
+    {
+        DocumentUpdateReplicationMessage updateMessage = (DocumentUpdateReplicationMessage) message;
+
+        if (updateMessage.isComplete()) {
+            return updateMessage;
+        }
+
+        DocumentUpdateReplicationMessage completeMessage = this.messageProvider.get();
+        completeMessage.initializeComplete(updateMessage);
+
+        return completeMessage;
+    }
+}
@@ -19,8 +19,11 @@
  */
 package org.xwiki.contrib.replication.entity.internal.update;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Objects;
@@ -45,6 +48,7 @@ import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiAttachment;
 import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.doc.XWikiDocumentArchive;
 import com.xpn.xwiki.internal.doc.ListAttachmentArchive;
 import com.xpn.xwiki.objects.BaseObject;
 
@@ -59,6 +63,9 @@ public class DocumentUpdateReplicationReceiver extends AbstractDocumentReplicati
     @Inject
     private DocumentUpdateLoaded loader;
 
+    @Inject
+    private DocumentUpdateDelta delta;
+
     @Inject
     private DocumentUpdateConflictResolver conflictResolver;
 
@@ -76,10 +83,17 @@ public class DocumentUpdateReplicationReceiver extends AbstractDocumentReplicati
 
         // Load the document
         XWikiDocument replicationDocument = new XWikiDocument(documentReference, documentReference.getLocale());
-        try (InputStream stream = message.open()) {
-            this.loader.importDocument(replicationDocument, stream);
-        } catch (Exception e) {
-            throw new ReplicationException("Failed to parse document message to update", e);
+        if (!loadDocument(message, documentReference, replicationDocument, xcontext)) {
+            if (this.replicationUtils.isOwner(documentReference)) {
+                this.logger.warn("Could not rebuild the update received for document [{}] from instance [{}]",
+                    documentReference, message.getSource());
+            } else {
+                // The current version is not the one the update was computed against (or it does not serialize to
+                // exactly the same bytes as on the sender side), ask the owner for the complete document
+                requestRepair(documentReference, false);
+            }
+
+            return;
         }
 
         if (complete) {
@@ -128,6 +142,80 @@ public class DocumentUpdateReplicationReceiver extends AbstractDocumentReplicati
         }
     }
 
+    private boolean loadDocument(ReplicationReceiverMessage message, DocumentReference documentReference,
+        XWikiDocument replicationDocument, XWikiContext xcontext) throws ReplicationException
+    {
+        String deltaVersion = this.messageReader.getMetadata(message,
+            DocumentUpdateReplicationMessage.METADATA_DOCUMENT_UPDATE_DELTA, false);
+
+        try (InputStream stream = message.open()) {
+            if (deltaVersion != null) {
+                byte[] content = applyDelta(documentReference, deltaVersion, stream, xcontext);
+                if (content == null) {
+                    return false;
+                }
+
+                this.loader.importDocument(replicationDocument, new ByteArrayInputStream(content));
+            } else {
+                this.loader.importDocument(replicationDocument, stream);
+            }
+
+            return reuseAttachments(message, documentReference, replicationDocument, xcontext);
+        } catch (Exception e) {
+            throw new ReplicationException("Failed to parse document message to update", e);
+        }
+    }
+
+    private boolean reuseAttachments(ReplicationReceiverMessage message, DocumentReference documentReference,
+        XWikiDocument replicationDocument, XWikiContext xcontext) throws Exception
+    {
+        Collection<String> values = message.getCustomMetadata()
+            .get(DocumentUpdateReplicationMessage.METADATA_DOCUMENT_UPDATE_ATTACHMENT_HASHES);
+
+        if (values != null) {
+            XWikiDocument databaseDocument = xcontext.getWiki().getDocument(documentReference, xcontext);
+
+            for (String value : values) {
+                String filename = DocumentUpdateLoaded.getAttachmentHashFilename(value);
+                XWikiAttachment replicationAttachment = replicationDocument.getAttachment(filename);
+                XWikiAttachment currentAttachment = databaseDocument.getAttachment(filename);
+
+                // Make sure we really have the expected content
+                if (replicationAttachment == null || currentAttachment == null || !DocumentUpdateLoaded
+                    .getAttachmentHash(value).equals(this.loader.getContentHash(currentAttachment, xcontext))) {
+                    return false;
+                }
+
+                // Reuse the content we already have
+                try (InputStream stream = currentAttachment.getContentInputStream(xcontext)) {
+                    replicationAttachment.setContent(stream);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private byte[] applyDelta(DocumentReference documentReference, String deltaVersion, InputStream stream,
+        XWikiContext xcontext) throws Exception
+    {
+        XWikiDocument databaseDocument = xcontext.getWiki().getDocument(documentReference, xcontext);
+
+        // The sender might have sent the complete new version, in which case the current version is not needed
+        byte[] previous = null;
+        if (!databaseDocument.isNew() && databaseDocument.getVersion().equals(deltaVersion)) {
+            // Serialize the current version the same way the sender serialized the version it computed the delta
+            // against
+            XWikiDocument previousDocument = databaseDocument.clone();
+            previousDocument.setDocumentArchive((XWikiDocumentArchive) null);
+            ByteArrayOutputStream previousStream = new ByteArrayOutputStream();
+            this.loader.exportDocument(previousDocument, previousStream, false, Collections.emptySet());
+            previous = previousStream.toByteArray();
+        }
+
+        return this.delta.apply(previous, stream);
+    }
+
     private void prepare(XWikiDocument previousDocument, XWikiDocument replicationDocument, XWikiContext xcontext)
         throws ReplicationException
     {
@@ -0,0 +1,120 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.entity.internal.update;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.contrib.replication.entity.internal.EntityReplicationConfiguration;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Keep the serialization (without history and attachments content) of the recently replicated versions of documents so
+ * that producing a delta against them does not require to rebuild them from the history.
+ * <p>
+ * The cache is bounded by the total number of bytes it contains rather than the number of versions, since the size of
+ * a document can vary a lot.
+ * 
+ * @version $Id$
+ * @since 2.3.9
+ */
+@Component(roles = DocumentUpdateRevisionCache.class)
+@Singleton
+public class DocumentUpdateRevisionCache implements Initializable
+{
+    private static final char SEPARATOR = '/';
+
+    @Inject
+    private EntityReplicationConfiguration configuration;
+
+    private final Map<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long maxSize;
+
+    private long size;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.maxSize = this.configuration.getDocumentRevisionCacheMaxSize();
+    }
+
+    private String toKey(DocumentReference reference, String version, Date date)
+    {
+        // The date protects against a document deleted and created again with the same version
+        return reference.toString() + SEPARATOR + reference.getLocale() + SEPARATOR + version + SEPARATOR
+            + (date != null ? date.getTime() : null);
+    }
+
+    /**
+     * @param reference the reference of the document
+     * @param version the version of the document
+     * @param date the date of the version
+     * @param xml the serialized version of the document to remember
+     */
+    public synchronized void set(DocumentReference reference, String version, Date date, byte[] xml)
+    {
+        byte[] previous = this.cache.remove(toKey(reference, version, date));
+        if (previous != null) {
+            this.size -= previous.length;
+        }
+
+        // Don't flush the whole cache for a single huge document
+        if (xml.length > this.maxSize) {
+            return;
+        }
+
+        this.cache.put(toKey(reference, version, date), xml);
+        this.size += xml.length;
+
+        // Evict the least recently used versions
+        for (Iterator<byte[]> it = this.cache.values().iterator(); this.size > this.maxSize && it.hasNext();) {
+            this.size -= it.next().length;
+            it.remove();
+        }
+    }
+
+    /**
+     * @param reference the reference of the document
+     * @param version the version of the document
+     * @param date the date of the version
+     * @return the serialized version of the document or null if it's not in the cache
+     */
+    public synchronized byte[] get(DocumentReference reference, String version, Date date)
+    {
+        return this.cache.get(toKey(reference, version, date));
+    }
+
+    /**
+     * @return the number of bytes currently kept in memory
+     */
+    public synchronized long getSize()
+    {
+        return this.size;
+    }
+}
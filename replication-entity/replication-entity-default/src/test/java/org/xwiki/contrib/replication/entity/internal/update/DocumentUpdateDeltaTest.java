@@ -0,0 +1,158 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.entity.internal.update;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.diff.internal.DefaultDiffManager;
+import org.xwiki.test.annotation.ComponentList;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectComponentManager;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Validate {@link DocumentUpdateDelta}.
+ * 
+ * @version $Id$
+ */
+@ComponentTest
+@ComponentList({DocumentUpdateDelta.class, DefaultDiffManager.class})
+class DocumentUpdateDeltaTest
+{
+    private static final String PREVIOUS = "<xwikidoc version=\"1.5\">\n<title>Title</title>\n"
+        + "<content>line1\nline2\nline3\n</content>\n<object><property><name>value</name></property></object>\n"
+        + "</xwikidoc>\n";
+
+    private static final String NEXT = "<xwikidoc version=\"1.5\">\n<title>New title</title>\n"
+        + "<content>line1\nline2 modified\nline3\nline4\n</content>\n"
+        + "<object><property><name>other value</name></property></object>\n</xwikidoc>\n";
+
+    @InjectComponentManager
+    private MockitoComponentManager componentManager;
+
+    private DocumentUpdateDelta delta;
+
+    @BeforeEach
+    void beforeEach() throws ComponentLookupException
+    {
+        this.delta = this.componentManager.getInstance(DocumentUpdateDelta.class);
+    }
+
+    private byte[] write(String previous, String next) throws IOException
+    {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        this.delta.write(bytes(previous), bytes(next), stream);
+
+        return stream.toByteArray();
+    }
+
+    private byte[] apply(String previous, byte[] delta) throws IOException
+    {
+        return this.delta.apply(bytes(previous), new ByteArrayInputStream(delta));
+    }
+
+    private static byte[] bytes(String xml)
+    {
+        return xml.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void applyDiff() throws IOException
+    {
+        byte[] delta = write(PREVIOUS, NEXT);
+
+        assertArrayEquals(bytes(NEXT), apply(PREVIOUS, delta));
+        // The delta only contains the modified tokens
+        assertTrue(delta.length < NEXT.length());
+    }
+
+    @Test
+    void applyDiffWithoutChange() throws IOException
+    {
+        assertArrayEquals(bytes(PREVIOUS), apply(PREVIOUS, write(PREVIOUS, PREVIOUS)));
+    }
+
+    @Test
+    void applyDiffFromEmpty() throws IOException
+    {
+        assertArrayEquals(bytes(NEXT), apply("", write("", NEXT)));
+        assertArrayEquals(new byte[0], apply(NEXT, write(NEXT, "")));
+    }
+
+    @Test
+    void applyOnDifferentBase() throws IOException
+    {
+        byte[] delta = write(PREVIOUS, NEXT);
+
+        assertNull(apply(NEXT, delta));
+        assertNull(apply("", delta));
+    }
+
+    @Test
+    void applyOnDifferentSerialization() throws IOException
+    {
+        // The receiver serialized the same document version slightly differently than the sender (for example because
+        // of a different XWiki version), the delta must not be applied on it
+        byte[] delta = write(PREVIOUS, NEXT);
+
+        assertNull(apply(PREVIOUS.replace("version=\"1.5\"", "version=\"1.6\""), delta));
+        assertNull(apply(PREVIOUS.replace("\n", "\r\n"), delta));
+    }
+
+    @Test
+    void applyWithoutBase() throws IOException
+    {
+        // The receiver does not have the version the delta was computed against
+        assertNull(this.delta.apply(null, new ByteArrayInputStream(write(PREVIOUS, NEXT))));
+    }
+
+    @Test
+    void applyWhenSenderLostBase() throws IOException
+    {
+        // When the sender does not have the base revision anymore it sends the complete new version instead
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        this.delta.writeComplete(stream);
+        stream.write(bytes(NEXT));
+        byte[] complete = stream.toByteArray();
+
+        assertArrayEquals(bytes(NEXT), apply(PREVIOUS, complete));
+        assertArrayEquals(bytes(NEXT), this.delta.apply(null, new ByteArrayInputStream(complete)));
+    }
+
+    @Test
+    void applyInvalid() throws IOException
+    {
+        byte[] delta = write(PREVIOUS, NEXT);
+
+        delta[0] = 42;
+        assertThrows(IOException.class, () -> apply(PREVIOUS, delta));
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.entity.internal.update;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.replication.DefaultReplicationSenderMessage;
+import org.xwiki.contrib.replication.ReplicationMessage;
+import org.xwiki.contrib.replication.ReplicationSenderMessage;
+import org.xwiki.contrib.replication.entity.EntityReplicationMessage;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link DocumentUpdateReplicationMessageCoalescer}.
+ * 
+ * @version $Id$
+ */
+@ComponentTest
+class DocumentUpdateReplicationMessageCoalescerTest
+{
+    private static final String REFERENCE = "wiki:Space.Page";
+
+    @InjectMockComponents
+    private DocumentUpdateReplicationMessageCoalescer coalescer;
+
+    @MockComponent
+    private DocumentUpdateReplicationMessage completeMessage;
+
+    private DocumentUpdateReplicationMessage message;
+
+    @BeforeEach
+    void beforeEach()
+    {
+        this.message = mock(DocumentUpdateReplicationMessage.class);
+        when(this.message.getType()).thenReturn(EntityReplicationMessage.TYPE_DOCUMENT_UPDATE);
+        when(this.message.getSource()).thenReturn("source");
+        when(this.message.getReceivers()).thenReturn(null);
+        when(this.message.getCustomMetadata()).thenReturn(
+            Map.of(EntityReplicationMessage.METADATA_ENTITY_REFERENCE, List.of(REFERENCE),
+                EntityReplicationMessage.METADATA_ENTITY_LOCALE, List.of("")));
+    }
+
+    private ReplicationMessage pending(String type, String source, Collection<String> receivers,
+        Map<String, Collection<String>> metadata)
+    {
+        return new DefaultReplicationSenderMessage.Builder().type(type).source(source).receivers(receivers)
+            .customMetadata(metadata).build();
+    }
+
+    private ReplicationMessage pending(Map<String, Collection<String>> metadata)
+    {
+        return pending(EntityReplicationMessage.TYPE_DOCUMENT_UPDATE, "source", null, metadata);
+    }
+
+    @Test
+    void isSuperseded()
+    {
+        assertTrue(this.coalescer.isSuperseded(
+            pending(Map.of(EntityReplicationMessage.METADATA_ENTITY_REFERENCE, List.of(REFERENCE),
+                EntityReplicationMessage.METADATA_ENTITY_LOCALE, List.of(""))),
+            this.message));
+    }
+
+    @Test
+    void isNotSuperseded()
+    {
+        Map<String, Collection<String>> metadata = Map.of(EntityReplicationMessage.METADATA_ENTITY_REFERENCE,
+            List.of(REFERENCE), EntityReplicationMessage.METADATA_ENTITY_LOCALE, List.of(""));
+
+        // Only updates can be superseded
+        assertFalse(this.coalescer.isSuperseded(
+            pending(EntityReplicationMessage.TYPE_DOCUMENT_DELETE, "source", null, metadata), this.message));
+
+        // Updates coming from another instance cannot be regenerated
+        assertFalse(this.coalescer.isSuperseded(
+            pending(EntityReplicationMessage.TYPE_DOCUMENT_UPDATE, "other", null, metadata), this.message));
+
+        // Updates targeting other instances must still be sent
+        assertFalse(this.coalescer.isSuperseded(
+            pending(EntityReplicationMessage.TYPE_DOCUMENT_UPDATE, "source", List.of("instance"), metadata),
+            this.message));
+
+        // Another translation
+        assertFalse(this.coalescer.isSuperseded(pending(Map.of(EntityReplicationMessage.METADATA_ENTITY_REFERENCE,
+            List.of(REFERENCE), EntityReplicationMessage.METADATA_ENTITY_LOCALE, List.of("fr"))), this.message));
+
+        // A change of readonly status
+        assertFalse(this.coalescer.isSuperseded(
+            pending(Map.of(EntityReplicationMessage.METADATA_ENTITY_REFERENCE, List.of(REFERENCE),
+                EntityReplicationMessage.METADATA_ENTITY_LOCALE, List.of(""),
+                EntityReplicationMessage.METADATA_DOCUMENT_UPDATE_READONLY, List.of("true"))),
+            this.message));
+
+        // The new message is not a local update
+        ReplicationSenderMessage relayed = mock(ReplicationSenderMessage.class);
+        when(relayed.getType()).thenReturn(EntityReplicationMessage.TYPE_DOCUMENT_UPDATE);
+        when(relayed.getSource()).thenReturn("source");
+        when(relayed.getReceivers()).thenReturn(null);
+        when(relayed.getCustomMetadata()).thenReturn(metadata);
+        assertFalse(this.coalescer.isSuperseded(pending(metadata), relayed));
+    }
+
+    @Test
+    void coalesce()
+    {
+        // A complete update is sent as is
+        when(this.message.isComplete()).thenReturn(true);
+        assertSame(this.message, this.coalescer.coalesce(this.message));
+
+        // A partial update is replaced by a complete update of the same version
+        when(this.message.isComplete()).thenReturn(false);
+        assertSame(this.completeMessage, this.coalescer.coalesce(this.message));
+        verify(this.completeMessage).initializeComplete(this.message);
+    }
+}
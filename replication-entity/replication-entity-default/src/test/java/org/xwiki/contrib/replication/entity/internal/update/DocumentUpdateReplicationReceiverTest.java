@@ -0,0 +1,228 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.entity.internal.update;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.replication.InvalidReplicationMessageException;
+import org.xwiki.contrib.replication.ReplicationMessageReader;
+import org.xwiki.contrib.replication.ReplicationReceiverMessage;
+import org.xwiki.contrib.replication.entity.DocumentReplicationController;
+import org.xwiki.contrib.replication.entity.DocumentReplicationSenderMessageBuilder;
+import org.xwiki.contrib.replication.entity.EntityReplicationBuilders;
+import org.xwiki.contrib.replication.entity.EntityReplicationMessage;
+import org.xwiki.contrib.replication.entity.internal.DocumentReplicationUtils;
+import org.xwiki.contrib.replication.entity.internal.index.ReplicationDocumentStore;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.junit5.mockito.MockComponent;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiAttachment;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.test.MockitoOldcore;
+import com.xpn.xwiki.test.junit5.mockito.InjectMockitoOldcore;
+import com.xpn.xwiki.test.junit5.mockito.OldcoreTest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate the fallback of {@link DocumentUpdateReplicationReceiver} when a delta or a skipped attachment content
+ * cannot be applied.
+ * 
+ * @version $Id$
+ */
+@OldcoreTest
+class DocumentUpdateReplicationReceiverTest
+{
+    private static final DocumentReference DOCUMENT = new DocumentReference("wiki", "Space", "Document");
+
+    private static final String OWNER = "owner";
+
+    private static final String FILENAME = "file:name.txt";
+
+    @InjectMockitoOldcore
+    private MockitoOldcore oldcore;
+
+    @InjectMockComponents
+    private DocumentUpdateReplicationReceiver receiver;
+
+    @MockComponent
+    private ReplicationMessageReader messageReader;
+
+    @MockComponent
+    private DocumentUpdateLoaded loader;
+
+    @MockComponent
+    private DocumentUpdateDelta delta;
+
+    @MockComponent
+    private DocumentReplicationUtils replicationUtils;
+
+    @MockComponent
+    private ReplicationDocumentStore documentStore;
+
+    @MockComponent
+    private EntityReplicationBuilders builders;
+
+    @MockComponent
+    private DocumentReplicationController controller;
+
+    private DocumentReplicationSenderMessageBuilder repairBuilder;
+
+    private ReplicationReceiverMessage message;
+
+    private XWikiContext xcontext;
+
+    @BeforeEach
+    void beforeEach() throws Exception
+    {
+        this.xcontext = this.oldcore.getXWikiContext();
+
+        // The current version of the document is 1.1
+        this.oldcore.getSpyXWiki().saveDocument(new XWikiDocument(DOCUMENT), this.xcontext);
+
+        this.message = mock(ReplicationReceiverMessage.class);
+        when(this.message.getSource()).thenReturn("source");
+        when(this.message.open()).thenReturn(new ByteArrayInputStream(new byte[0]));
+
+        when(this.documentStore.getOwner(DOCUMENT)).thenReturn(OWNER);
+
+        this.repairBuilder = mock(DocumentReplicationSenderMessageBuilder.class);
+        when(this.builders.documentRepairRequestMessageBuilder(DOCUMENT, true)).thenReturn(this.repairBuilder);
+        when(this.repairBuilder.conflict(false)).thenReturn(this.repairBuilder);
+        when(this.repairBuilder.receivers(OWNER)).thenReturn(this.repairBuilder);
+    }
+
+    private void delta(String version) throws InvalidReplicationMessageException
+    {
+        when(this.messageReader.getMetadata(this.message, EntityReplicationMessage.METADATA_DOCUMENT_UPDATE_DELTA,
+            false)).thenReturn(version);
+    }
+
+    @Test
+    void receiveDeltaOnDifferentSerialization() throws Exception
+    {
+        delta("1.1");
+        // The current version does not serialize to the bytes the delta was computed against
+        when(this.delta.apply(any(), any())).thenReturn(null);
+
+        this.receiver.receiveDocument(this.message, DOCUMENT, this.xcontext);
+
+        verify(this.delta).apply(any(), any());
+        verify(this.loader, never()).importDocument(any(), any());
+        // Ask the owner for the complete document
+        verify(this.controller).send(this.repairBuilder);
+    }
+
+    @Test
+    void receiveDeltaOnDifferentVersion() throws Exception
+    {
+        delta("4.2");
+
+        this.receiver.receiveDocument(this.message, DOCUMENT, this.xcontext);
+
+        // The current version is not a valid base
+        verify(this.delta).apply(isNull(), any());
+        verify(this.loader, never()).importDocument(any(), any());
+        verify(this.controller).send(this.repairBuilder);
+    }
+
+    private void skippedAttachment(String hash) throws Exception
+    {
+        when(this.message.getCustomMetadata()).thenReturn(
+            Map.of(EntityReplicationMessage.METADATA_DOCUMENT_UPDATE_ATTACHMENT_HASHES,
+                List.of(DocumentUpdateLoaded.toAttachmentHash(FILENAME, hash))));
+
+        // The received document contains the attachment, without its content
+        doAnswer(invocation -> {
+            XWikiDocument document = invocation.getArgument(0);
+            document.setAttachment(new XWikiAttachment(document, FILENAME));
+            return null;
+        }).when(this.loader).importDocument(any(), any());
+    }
+
+    private void saveAttachment(String hash) throws Exception
+    {
+        XWikiDocument document = this.oldcore.getSpyXWiki().getDocument(DOCUMENT, this.xcontext).clone();
+        XWikiAttachment attachment = new XWikiAttachment(document, FILENAME);
+        document.setAttachment(attachment);
+        this.oldcore.getSpyXWiki().saveDocument(document, this.xcontext);
+
+        when(this.loader.getContentHash(any(), any())).thenReturn(hash);
+    }
+
+    @Test
+    void receiveAttachmentHashWithoutAttachment() throws Exception
+    {
+        skippedAttachment("hash");
+
+        this.receiver.receiveDocument(this.message, DOCUMENT, this.xcontext);
+
+        // The attachment content was skipped but we don't have it
+        verify(this.loader, never()).getContentHash(any(), any());
+        verify(this.controller).send(this.repairBuilder);
+    }
+
+    @Test
+    void receiveAttachmentHashWithDifferentContent() throws Exception
+    {
+        saveAttachment("otherhash");
+        skippedAttachment("hash");
+
+        this.receiver.receiveDocument(this.message, DOCUMENT, this.xcontext);
+
+        // The attachment content was skipped but we have a different one
+        verify(this.controller).send(this.repairBuilder);
+    }
+
+    @Test
+    void attachmentHash()
+    {
+        String value = DocumentUpdateLoaded.toAttachmentHash(FILENAME, "hash");
+
+        assertEquals(FILENAME, DocumentUpdateLoaded.getAttachmentHashFilename(value));
+        assertEquals("hash", DocumentUpdateLoaded.getAttachmentHash(value));
+    }
+
+    @Test
+    void receiveDeltaOnDifferentSerializationAsOwner() throws Exception
+    {
+        delta("1.1");
+        when(this.replicationUtils.isOwner(DOCUMENT)).thenReturn(true);
+
+        this.receiver.receiveDocument(this.message, DOCUMENT, this.xcontext);
+
+        // The owner has nobody to ask the complete document to
+        verify(this.loader, never()).importDocument(any(), any());
+        verify(this.controller, never()).send(any());
+    }
+}
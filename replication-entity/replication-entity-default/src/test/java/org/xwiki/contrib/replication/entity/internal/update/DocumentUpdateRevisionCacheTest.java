@@ -0,0 +1,112 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.xwiki.contrib.replication.entity.internal.update;
+
+import java.util.Date;
+
+import org.junit.jupiter.api.Test;
+import org.xwiki.contrib.replication.entity.internal.EntityReplicationConfiguration;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.annotation.BeforeComponent;
+import org.xwiki.test.junit5.mockito.ComponentTest;
+import org.xwiki.test.junit5.mockito.InjectMockComponents;
+import org.xwiki.test.mockito.MockitoComponentManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.when;
+
+/**
+ * Validate {@link DocumentUpdateRevisionCache}.
+ * 
+ * @version $Id$
+ */
+@ComponentTest
+class DocumentUpdateRevisionCacheTest
+{
+    private static final DocumentReference DOCUMENT = new DocumentReference("wiki", "Space", "Document");
+
+    private static final Date DATE = new Date(42);
+
+    @InjectMockComponents
+    private DocumentUpdateRevisionCache cache;
+
+    @BeforeComponent
+    void beforeComponent(MockitoComponentManager componentManager) throws Exception
+    {
+        EntityReplicationConfiguration configuration =
+            componentManager.registerMockComponent(EntityReplicationConfiguration.class);
+        when(configuration.getDocumentRevisionCacheMaxSize()).thenReturn(100L);
+    }
+
+    @Test
+    void setGet()
+    {
+        byte[] xml = new byte[10];
+
+        assertNull(this.cache.get(DOCUMENT, "1.1", DATE));
+
+        this.cache.set(DOCUMENT, "1.1", DATE, xml);
+
+        assertSame(xml, this.cache.get(DOCUMENT, "1.1", DATE));
+        assertNull(this.cache.get(DOCUMENT, "1.2", DATE));
+        assertNull(this.cache.get(DOCUMENT, "1.1", new Date(43)));
+        assertNull(this.cache.get(new DocumentReference("wiki", "Space", "Other"), "1.1", DATE));
+        assertEquals(10, this.cache.getSize());
+
+        // Replace the same version
+        this.cache.set(DOCUMENT, "1.1", DATE, new byte[20]);
+
+        assertEquals(20, this.cache.getSize());
+    }
+
+    @Test
+    void boundedBySize()
+    {
+        this.cache.set(DOCUMENT, "1.1", DATE, new byte[40]);
+        this.cache.set(DOCUMENT, "1.2", DATE, new byte[40]);
+
+        // Make 1.1 the most recently used
+        this.cache.get(DOCUMENT, "1.1", DATE);
+
+        this.cache.set(DOCUMENT, "1.3", DATE, new byte[40]);
+
+        assertNull(this.cache.get(DOCUMENT, "1.2", DATE));
+        assertEquals(40, this.cache.get(DOCUMENT, "1.1", DATE).length);
+        assertEquals(40, this.cache.get(DOCUMENT, "1.3", DATE).length);
+        assertEquals(80, this.cache.getSize());
+
+        // A single version bigger than the cache is not kept and does not flush the cache
+        this.cache.set(DOCUMENT, "1.4", DATE, new byte[101]);
+
+        assertNull(this.cache.get(DOCUMENT, "1.4", DATE));
+        assertEquals(80, this.cache.getSize());
+
+        // Many small versions
+        for (int i = 0; i < 100; ++i) {
+            this.cache.set(DOCUMENT, "2." + i, DATE, new byte[10]);
+        }
+
+        assertEquals(100, this.cache.getSize());
+        assertNull(this.cache.get(DOCUMENT, "2.89", DATE));
+        assertEquals(10, this.cache.get(DOCUMENT, "2.90", DATE).length);
+    }
+}